@@ -0,0 +1,119 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.benchmarks;
+
+import com.intellij.rt.coverage.util.ClassNameMatcher;
+import com.intellij.rt.coverage.util.ClassNameUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Matching of class names against include/exclude patterns: a loop over regular expressions
+ * versus {@link ClassNameMatcher}.
+ * <p>
+ * Patterns have the shapes generated by IDE run configurations: packages, classes with inner classes,
+ * class name suffixes, and a few hand-written regular expressions.
+ * The <code>cold</code> benchmark compiles the matcher and checks each name once, as the transformer does on class loading.
+ */
+@SuppressWarnings({"unused", "used in jmh"})
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ClassNameMatcherBenchmark {
+  @Param({"300"})
+  public int patterns;
+
+  @Param({"10000"})
+  public int classes;
+
+  private final List<Pattern> myPatterns = new ArrayList<Pattern>();
+  private String[] myNames;
+  private ClassNameMatcher myMatcher;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    final Random random = new Random(42);
+    for (int i = 0; i < patterns; i++) {
+      final String module = "com\\.company\\.module" + i;
+      switch (i % 10) {
+        case 0:
+        case 1:
+        case 2:
+        case 3:
+          myPatterns.add(Pattern.compile(module + "\\..*"));
+          break;
+        case 4:
+        case 5:
+        case 6:
+          myPatterns.add(Pattern.compile(module + "\\.impl\\.Service" + i + "(\\$.*)?"));
+          break;
+        case 7:
+          myPatterns.add(Pattern.compile(".*Generated" + i + "(\\$.*)?"));
+          break;
+        case 8:
+          myPatterns.add(Pattern.compile("com\\.company\\..*\\.internal" + i + "\\..*"));
+          break;
+        default:
+          myPatterns.add(Pattern.compile(module + "\\.(api|spi)\\.[A-Z]\\w*"));
+      }
+    }
+    myNames = new String[classes];
+    for (int i = 0; i < classes; i++) {
+      final int module = random.nextInt(patterns * 2);
+      final String packageName = "com.company.module" + module + (random.nextBoolean() ? ".impl" : ".api");
+      final String className = random.nextInt(10) == 0 ? "Service" + module : "Class" + i;
+      myNames[i] = packageName + "." + className + (random.nextInt(4) == 0 ? "$" + random.nextInt(5) : "");
+    }
+    myMatcher = ClassNameMatcher.create(myPatterns);
+  }
+
+  @Benchmark
+  public int regexps() {
+    int matched = 0;
+    for (String name : myNames) {
+      if (ClassNameUtil.matchesPatterns(name, myPatterns)) matched++;
+    }
+    return matched;
+  }
+
+  @Benchmark
+  public int cold() {
+    final ClassNameMatcher matcher = ClassNameMatcher.create(myPatterns);
+    int matched = 0;
+    for (String name : myNames) {
+      if (matcher.matches(name)) matched++;
+    }
+    return matched;
+  }
+
+  @Benchmark
+  public int cached() {
+    int matched = 0;
+    for (String name : myNames) {
+      if (myMatcher.matches(name)) matched++;
+    }
+    return matched;
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.benchmarks;
+
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.instrumentation.CoverageTransformer;
+import com.intellij.rt.coverage.instrumentation.InstrumentationOptions;
+import com.intellij.rt.coverage.instrumentation.data.ProjectContext;
+import com.intellij.rt.coverage.util.CoverageIOUtil;
+import com.intellij.rt.coverage.util.OptionsUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Transformation of all classes of joda-time and commons-collections with branch coverage:
+ * frames computation versus preserving the original frames, see {@link OptionsUtil#PRESERVE_FRAMES}.
+ * <p>
+ * The <code>newLoader</code> benchmark transforms the classes for a new class loader, so the class hierarchy
+ * used for frames computation is read from scratch, as on application start.
+ * The <code>sameLoader</code> benchmark reuses the hierarchy.
+ */
+@SuppressWarnings({"unused", "used in jmh"})
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FramesBenchmark {
+  private static final String[] JARS = {"joda-time-2.9.9.jar", "commons-collections4-4.4.jar"};
+
+  @Param({"false", "true"})
+  public boolean preserveFrames;
+
+  private final List<String> myNames = new ArrayList<String>();
+  private final List<byte[]> myBytes = new ArrayList<byte[]>();
+  private URL[] myUrls;
+  private ClassLoader myLoader;
+  private CoverageTransformer myTransformer;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    OptionsUtil.PRESERVE_FRAMES = preserveFrames;
+    final File lib = new File(System.getProperty("benchmarks.lib", "lib"));
+    myUrls = new URL[JARS.length];
+    for (int i = 0; i < JARS.length; i++) {
+      final File jar = new File(lib, JARS[i]);
+      myUrls[i] = jar.toURI().toURL();
+      readClasses(jar);
+    }
+    myLoader = new URLClassLoader(myUrls, null);
+    final InstrumentationOptions options = new InstrumentationOptions.Builder()
+        .setBranchCoverage(true)
+        .build();
+    myTransformer = new CoverageTransformer(new ProjectData(), new ProjectContext(options));
+  }
+
+  @Benchmark
+  public int sameLoader() {
+    return transform(myLoader);
+  }
+
+  @Benchmark
+  public int newLoader() {
+    final ClassLoader loader = new URLClassLoader(myUrls, null);
+    try {
+      return transform(loader);
+    } finally {
+      // URLClassLoader is closeable since Java 7
+      if (loader instanceof Closeable) {
+        CoverageIOUtil.close((Closeable) loader);
+      }
+    }
+  }
+
+  private int transform(ClassLoader loader) {
+    int size = 0;
+    for (int i = 0; i < myNames.size(); i++) {
+      final byte[] bytes = myTransformer.instrument(myBytes.get(i), myNames.get(i), loader, true);
+      if (bytes != null) size += bytes.length;
+    }
+    return size;
+  }
+
+  private void readClasses(File file) throws IOException {
+    final JarFile jar = new JarFile(file);
+    try {
+      final Enumeration<JarEntry> entries = jar.entries();
+      while (entries.hasMoreElements()) {
+        final JarEntry entry = entries.nextElement();
+        final String name = entry.getName();
+        if (!name.endsWith(".class") || name.endsWith("module-info.class")) continue;
+        final InputStream is = jar.getInputStream(entry);
+        try {
+          myBytes.add(readBytes(is));
+        } finally {
+          CoverageIOUtil.close(is);
+        }
+        myNames.add(name.substring(0, name.length() - ".class".length()).replace('/', '.'));
+      }
+    } finally {
+      jar.close();
+    }
+  }
+
+  private static byte[] readBytes(InputStream is) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[8192];
+    for (int read = is.read(buffer); read > 0; read = is.read(buffer)) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.benchmarks;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.instrumentation.CoverageRuntime;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hits counting in a hot method called from many threads: a shared int array versus striped counters.
+ * Each call does what an instrumented method with {@link #PROBES} probes does.
+ * <p>
+ * Besides throughput, the share of lost increments is printed after each iteration.
+ */
+@SuppressWarnings({"unused", "used in jmh"})
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HitsCounterBenchmark {
+  private static final int PROBES = 4;
+
+  @State(Scope.Benchmark)
+  public static class Hits {
+    @Param({"64"})
+    public int stripes;
+
+    private ClassData myClassData;
+    private int[] myHits;
+    private int[][] myStripes;
+    private final Queue<Calls> myCalls = new ConcurrentLinkedQueue<Calls>();
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+      myClassData = new ClassData("Hot");
+      myClassData.createMask(PROBES, true);
+      myHits = (int[]) myClassData.getHitsMask();
+      myStripes = myClassData.getHitsStripes(stripes);
+      myCalls.clear();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+      long expected = 0;
+      for (Calls calls : myCalls) {
+        expected += calls.count;
+      }
+      long actual = 0;
+      for (int[] stripe : myStripes) {
+        if (stripe != null) actual += stripe[0];
+      }
+      if (expected > 0) {
+        System.out.printf("%nLost increments: %.2f%%%n", 100.0 * (expected - actual) / expected);
+      }
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Calls {
+    public long count;
+
+    @Setup(Level.Iteration)
+    public void setUp(Hits hits) {
+      count = 0;
+      hits.myCalls.add(this);
+    }
+  }
+
+  @Benchmark
+  @Threads(1)
+  public int[] intArray_1(Hits hits, Calls calls) {
+    return intArray(hits, calls);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public int[] intArray_8(Hits hits, Calls calls) {
+    return intArray(hits, calls);
+  }
+
+  @Benchmark
+  @Threads(64)
+  public int[] intArray_64(Hits hits, Calls calls) {
+    return intArray(hits, calls);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public int[] striped_1(Hits hits, Calls calls) {
+    return striped(hits, calls);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public int[] striped_8(Hits hits, Calls calls) {
+    return striped(hits, calls);
+  }
+
+  @Benchmark
+  @Threads(64)
+  public int[] striped_64(Hits hits, Calls calls) {
+    return striped(hits, calls);
+  }
+
+  private static int[] intArray(Hits hits, Calls calls) {
+    calls.count++;
+    return touch(hits.myHits);
+  }
+
+  private static int[] striped(Hits hits, Calls calls) {
+    calls.count++;
+    // the stripe is selected once at method start
+    return touch(CoverageRuntime.getHitsStripe(hits.myStripes));
+  }
+
+  private static int[] touch(int[] hits) {
+    for (int i = 0; i < PROBES; i++) {
+      hits[i]++;
+    }
+    return hits;
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.benchmarks;
+
+import com.intellij.rt.coverage.data.*;
+import com.intellij.rt.coverage.util.ProjectDataLoader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the line objects with the columnar line storage of {@link ClassData#compact()}.
+ * <code>load</code> reports the heap retained by a loaded report in the <code>retainedMb</code> counter,
+ * <code>traverse</code> measures reading all lines, as report generation does.
+ */
+@SuppressWarnings({"unused", "used in jmh"})
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx12g"})
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class LineStorageBenchmark {
+  @Param({"40000"})
+  public int classes;
+
+  @Param({"200"})
+  public int linesPerClass;
+
+  @Param({"false", "true"})
+  public boolean compact;
+
+  private File myReport;
+  private ProjectData myProjectData;
+
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  @State(Scope.Thread)
+  public static class Heap {
+    public long retainedMb;
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    myReport = File.createTempFile("report", ".ic");
+    SyntheticReports.save(SyntheticReports.createProjectData(classes, linesPerClass, 42), myReport);
+    myProjectData = loadReport();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    myReport.delete();
+  }
+
+  @Benchmark
+  public ProjectData load(Heap heap) {
+    // release the data of the previous iteration
+    myProjectData = null;
+    final long before = usedHeap();
+    myProjectData = loadReport();
+    heap.retainedMb = (usedHeap() - before) >> 20;
+    return myProjectData;
+  }
+
+  @Benchmark
+  public long traverse() {
+    long result = 0;
+    for (ClassData classData : myProjectData.getClassesCollection()) {
+      for (Object o : classData.getLines()) {
+        if (o == null) continue;
+        final LineData line = (LineData) o;
+        result += line.getHits() + line.getStatus();
+        final BranchData branchData = line.getBranchData();
+        if (branchData != null) {
+          result += branchData.getCoveredBranches();
+        }
+      }
+    }
+    return result;
+  }
+
+  private ProjectData loadReport() {
+    final ProjectData projectData = ProjectDataLoader.load(myReport);
+    if (compact) {
+      projectData.compact();
+    }
+    return projectData;
+  }
+
+  private static long usedHeap() {
+    final Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.benchmarks;
+
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.util.ProjectDataLoader;
+import com.intellij.rt.coverage.util.ProjectDataMerger;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merge of reports produced by N test forks: serial load and merge versus {@link ProjectDataMerger}.
+ * Each report covers the same classes with different hits, as forks of one test run do.
+ */
+@SuppressWarnings({"unused", "used in jmh"})
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g"})
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class MergeBenchmark {
+  @Param({"64"})
+  public int reports;
+
+  @Param({"20000"})
+  public int classes;
+
+  @Param({"100"})
+  public int linesPerClass;
+
+  @Param({"1", "4", "8"})
+  public int threads;
+
+  private final List<File> myReports = new ArrayList<File>();
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    for (int i = 0; i < reports; i++) {
+      final File report = File.createTempFile("report" + i, ".ic");
+      SyntheticReports.save(SyntheticReports.createProjectData(classes, linesPerClass, i), report);
+      myReports.add(report);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    for (File report : myReports) {
+      report.delete();
+    }
+    myReports.clear();
+  }
+
+  @Benchmark
+  public ProjectData serialMerge() {
+    final ProjectData projectData = new ProjectData();
+    for (File report : myReports) {
+      projectData.merge(ProjectDataLoader.load(report));
+    }
+    return projectData;
+  }
+
+  @Benchmark
+  public ProjectData parallelMerge() {
+    final ProjectData projectData = new ProjectData();
+    final ProjectDataMerger merger = new ProjectDataMerger(threads);
+    try {
+      merger.loadAndMerge(projectData, myReports, null);
+    } finally {
+      merger.shutdown();
+    }
+    return projectData;
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.benchmarks;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.util.MappedReport;
+import com.intellij.rt.coverage.util.ProjectDataLoader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the stream loader with the memory-mapped reader.
+ * The default size gives a report of about 300 MB, use <code>-p classes=...</code> to change it.
+ */
+@SuppressWarnings({"unused", "used in jmh"})
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx12g"})
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ReportLoadingBenchmark {
+  @Param({"150000"})
+  public int classes;
+
+  @Param({"200"})
+  public int linesPerClass;
+
+  private File myReport;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    myReport = File.createTempFile("report", ".ic");
+    SyntheticReports.save(SyntheticReports.createProjectData(classes, linesPerClass, 42), myReport);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    myReport.delete();
+  }
+
+  @Benchmark
+  public ProjectData streamLoad() {
+    return ProjectDataLoader.load(myReport);
+  }
+
+  @Benchmark
+  public ProjectData mappedLoad() throws IOException {
+    return MappedReport.open(myReport).load();
+  }
+
+  @Benchmark
+  public MappedReport mappedIndex() throws IOException {
+    return MappedReport.open(myReport);
+  }
+
+  @Benchmark
+  public ClassData mappedSingleClass() throws IOException {
+    return MappedReport.open(myReport).loadClass(SyntheticReports.className(classes / 2));
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.benchmarks;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.LineData;
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.instrumentation.InstrumentationOptions;
+import com.intellij.rt.coverage.instrumentation.data.ProjectContext;
+import com.intellij.rt.coverage.util.CoverageReport;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Generator of coverage data of a given size.
+ * The data is random but reproducible: the same seed gives the same data.
+ */
+public class SyntheticReports {
+  private static final int LINES_PER_METHOD = 10;
+
+  public static ProjectData createProjectData(int classes, int linesPerClass, long seed) {
+    final Random random = new Random(seed);
+    final ProjectData projectData = new ProjectData();
+    for (int c = 0; c < classes; c++) {
+      final ClassData classData = projectData.getOrCreateClassData(className(c));
+      final LineData[] lines = new LineData[linesPerClass + 1];
+      for (int l = 1; l <= linesPerClass; l++) {
+        final LineData lineData = new LineData(l, "method" + (l / LINES_PER_METHOD) + "(Ljava/lang/String;I)V");
+        final boolean covered = random.nextInt(3) != 0;
+        if (covered) {
+          lineData.setHits(1 + random.nextInt(1000));
+        }
+        final int branch = random.nextInt(10);
+        if (branch < 2) {
+          lineData.addJump(0);
+          if (covered) {
+            lineData.setTrueHits(0, random.nextInt(100));
+            lineData.setFalseHits(0, random.nextInt(100));
+          }
+        } else if (branch == 2) {
+          final int[] keys = {1, 2, 3, 4};
+          lineData.addSwitch(0, keys);
+          if (covered) {
+            lineData.setDefaultHits(0, keys, random.nextInt(10));
+            lineData.setSwitchHits(0, keys, new int[]{random.nextInt(10), 0, random.nextInt(10), 1});
+          }
+        }
+        lineData.fillArrays();
+        classData.registerMethodSignature(lineData);
+        lines[l] = lineData;
+      }
+      classData.setLines(lines);
+    }
+    return projectData;
+  }
+
+  public static String className(int index) {
+    return "com.example.package" + (index % 100) + ".GeneratedClass" + index;
+  }
+
+  public static void save(ProjectData projectData, File file) {
+    final InstrumentationOptions options = new InstrumentationOptions.Builder().setDataFile(file).build();
+    CoverageReport.save(projectData, new ProjectContext(options));
+  }
+}
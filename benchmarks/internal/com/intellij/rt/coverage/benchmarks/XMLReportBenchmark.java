@@ -0,0 +1,72 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.benchmarks;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.report.XMLCoverageReport;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * XML report of a loaded project, with package counters calculated in the writing thread or in a pool.
+ */
+@SuppressWarnings({"unused", "used in jmh"})
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class XMLReportBenchmark {
+  @Param({"10000"})
+  public int classes;
+
+  @Param({"200"})
+  public int linesPerClass;
+
+  @Param({"1", "4", "8"})
+  public int threads;
+
+  private ProjectData myProjectData;
+  private File myOutput;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    myProjectData = SyntheticReports.createProjectData(classes, linesPerClass, 42);
+    for (ClassData classData : myProjectData.getClassesCollection()) {
+      final String name = classData.getName();
+      classData.setSource(name.substring(name.lastIndexOf('.') + 1) + ".kt");
+    }
+    myOutput = File.createTempFile("report", ".xml");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    myOutput.delete();
+  }
+
+  @Benchmark
+  public long xmlReport() throws IOException {
+    new XMLCoverageReport(threads).write(new FileOutputStream(myOutput), myProjectData, null);
+    return myOutput.length();
+  }
+}
@@ -16,10 +16,11 @@
 
 package com.intellij.rt.coverage.jmh;
 
-import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.*;
 import org.openjdk.jmh.util.NullOutputStream;
 
 import java.io.PrintStream;
+import java.lang.reflect.Method;
 
 @SuppressWarnings({"unused", "used in jmh"})
 public class DiscoveryAgentBenchmark {
@@ -33,4 +34,46 @@ public class DiscoveryAgentBenchmark {
       System.setOut(original);
     }
   }
+
+  /**
+   * Class registration from several threads, as in parallel test runs.
+   * Every thread registers the same classes, so after the first iteration only known names are enumerated.
+   */
+  @Benchmark
+  @Threads(4)
+  public void parallelClassRegistration(Registration registration) throws Exception {
+    if (registration.myTrace == null) return;
+    for (int i = 0; i < registration.myClassNames.length; i++) {
+      registration.myTrace.invoke(null, registration.myClassNames[i], new boolean[Registration.METHODS], registration.myMethodNames[i]);
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class Registration {
+    private static final int CLASSES = 20000;
+    private static final int METHODS = 10;
+
+    private Method myTrace;
+    private String[] myClassNames;
+    private String[][] myMethodNames;
+
+    @Setup
+    public void setUp() {
+      try {
+        myTrace = Class.forName("com.intellij.rt.coverage.data.TestDiscoveryProjectData")
+            .getMethod("trace", String.class, boolean[].class, String[].class);
+      } catch (Exception e) {
+        // no agent
+        myTrace = null;
+      }
+      myClassNames = new String[CLASSES];
+      myMethodNames = new String[CLASSES][METHODS];
+      for (int i = 0; i < CLASSES; i++) {
+        myClassNames[i] = "benchmark.pkg" + i % 100 + ".Class" + i;
+        for (int j = 0; j < METHODS; j++) {
+          myMethodNames[i][j] = "method" + j + "()V";
+        }
+      }
+    }
+  }
 }
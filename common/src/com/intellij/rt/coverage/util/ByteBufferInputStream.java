@@ -0,0 +1,60 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Input stream over a byte buffer, for example, a memory-mapped file.
+ * In contrast to buffered file streams, reads are not synchronized.
+ * The stream advances the position of the underlying buffer.
+ */
+public class ByteBufferInputStream extends InputStream {
+  private final ByteBuffer myBuffer;
+
+  public ByteBufferInputStream(ByteBuffer buffer) {
+    myBuffer = buffer;
+  }
+
+  @Override
+  public int read() {
+    return myBuffer.hasRemaining() ? myBuffer.get() & 0xFF : -1;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) {
+    if (len == 0) return 0;
+    if (!myBuffer.hasRemaining()) return -1;
+    final int n = Math.min(len, myBuffer.remaining());
+    myBuffer.get(b, off, n);
+    return n;
+  }
+
+  @Override
+  public long skip(long n) {
+    if (n <= 0) return 0;
+    final int skipped = (int) Math.min(n, myBuffer.remaining());
+    myBuffer.position(myBuffer.position() + skipped);
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    return myBuffer.remaining();
+  }
+}
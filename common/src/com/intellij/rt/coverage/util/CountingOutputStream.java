@@ -0,0 +1,50 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that counts the written bytes.
+ * In contrast to <code>DataOutputStream.size()</code>, the count does not stop at <code>Integer.MAX_VALUE</code>,
+ * so it can be used to detect files that do not fit int offsets.
+ */
+public class CountingOutputStream extends FilterOutputStream {
+  private long myCount;
+
+  public CountingOutputStream(OutputStream out) {
+    super(out);
+  }
+
+  public long getCount() {
+    return myCount;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    out.write(b);
+    myCount++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    out.write(b, off, len);
+    myCount += len;
+  }
+}
@@ -17,6 +17,9 @@
 package com.intellij.rt.coverage.util;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -35,8 +38,23 @@ public class CoverageIOUtil {
   private CoverageIOUtil() {
   }
 
+  /**
+   * Lock of a report file shared between processes.
+   * <p>
+   * By default, the lock is an existence of a sibling <code>.lck</code> file, which is polled until it is deleted.
+   * A lock file left by a killed process is treated as stale after the lock timeout.
+   * <p>
+   * With <code>idea.coverage.lock=os</code>, an OS lock of the <code>.lck</code> file is used instead.
+   * Waiting for such a lock does not poll, and the lock is released by OS when the holder process dies,
+   * so there are no stale locks. The lock file is not deleted on unlock.
+   * Note that these modes do not exclude each other, so all processes working with a report must use the same mode.
+   */
   public final static class FileLock {
+    public static boolean USE_OS_LOCK = "os".equals(System.getProperty("idea.coverage.lock", "file"));
+
     final File myLock;
+    private RandomAccessFile myFile;
+    private java.nio.channels.FileLock myOsLock;
 
     private FileLock(final File target) {
       myLock = new File(target.getParentFile(), target.getName() + ".lck");
@@ -61,6 +79,47 @@ public class CoverageIOUtil {
       return myLock.delete();
     }
 
+    /**
+     * If lock file exists, and it was created long time ago then looks like it stayed from a previous run.
+     * This may lead to a race, as modification check and deletion is not atomic.
+     */
+    private void deleteStaleLock(final long totalTimeoutMS) {
+      if (myLock.exists()) {
+        final long current = System.currentTimeMillis();
+        final long modified = myLock.lastModified();
+        if (modified != 0 && modified + totalTimeoutMS < current) {
+          tryUnlock();
+        }
+      }
+    }
+
+    /**
+     * The lock is polled, as a blocking <code>FileChannel.lock()</code> cannot be limited with a timeout.
+     *
+     * @param wait whether to wait until the lock is released by other processes
+     */
+    private boolean osLock(final boolean wait, final long totalTimeoutMS, final long waitTimeMS) {
+      try {
+        myFile = new RandomAccessFile(myLock, "rw");
+        final FileChannel channel = myFile.getChannel();
+        for (long timePassed = 0; ; timePassed += waitTimeMS) {
+          try {
+            myOsLock = channel.tryLock();
+            if (myOsLock != null) return true;
+          } catch (OverlappingFileLockException e) {
+            // the lock is held by another thread of this JVM
+          }
+          if (!wait || timePassed >= totalTimeoutMS) break;
+          wait(this, waitTimeMS, "lock");
+        }
+      } catch (IOException e) {
+        ErrorReporter.warn("Failed to lock with file lock: " + myLock.getAbsolutePath(), e);
+      }
+      close(myFile);
+      myFile = null;
+      return false;
+    }
+
     public static FileLock lock(final File targetFile) {
       return lock(targetFile, 2 * 60 * 1000, 100);
     }
@@ -71,29 +130,50 @@ public class CoverageIOUtil {
      */
     public static FileLock lock(final File targetFile, final long totalTimeoutMS, final long waitTimeMS) {
       final FileLock lock = new FileLock(targetFile);
-      if (lock.myLock.exists()) {
-        // If file exists, and it was created long time ago then looks like it stayed from a previous run.
-        // This may lead to a race, as modification check and deletion is not atomic.
-        final long current = System.currentTimeMillis();
-        final long modified = lock.myLock.lastModified();
-        if (modified != 0 && modified + totalTimeoutMS < current) {
-          lock.tryUnlock();
+      if (USE_OS_LOCK) {
+        if (lock.osLock(true, totalTimeoutMS, waitTimeMS)) return lock;
+      } else {
+        lock.deleteStaleLock(totalTimeoutMS);
+        for (long timePassed = 0; timePassed < totalTimeoutMS; timePassed += waitTimeMS) {
+          if (lock.tryLock()) return lock;
+          wait(lock, waitTimeMS, "lock");
         }
       }
-      for (long timePassed = 0; timePassed < totalTimeoutMS; timePassed += waitTimeMS) {
-        if (lock.tryLock()) return lock;
-        wait(lock, waitTimeMS, "lock");
-      }
       ErrorReporter.warn("Failed to lock with file lock: " + lock.myLock.getAbsolutePath());
       return null;
     }
 
+    /**
+     * Lock without waiting.
+     *
+     * @return Lock object or <code>null</code> if the file is locked by someone else
+     */
+    public static FileLock tryLock(final File targetFile) {
+      final FileLock lock = new FileLock(targetFile);
+      if (USE_OS_LOCK) {
+        return lock.osLock(false, 0, 0) ? lock : null;
+      }
+      lock.deleteStaleLock(2 * 60 * 1000);
+      return lock.tryLock() ? lock : null;
+    }
+
     public static void unlock(final FileLock lock) {
       unlock(lock, 5, 100);
     }
 
     public static void unlock(final FileLock lock, final int retries, final long waitTimeMS) {
       if (lock == null) return;
+      if (lock.myFile != null) {
+        try {
+          lock.myOsLock.release();
+        } catch (IOException e) {
+          ErrorReporter.warn("Failed to unlock with file lock: " + lock.myLock.getAbsolutePath(), e);
+        } finally {
+          close(lock.myFile);
+          lock.myFile = null;
+        }
+        return;
+      }
       for (int attempt = 0; attempt < retries; attempt++) {
         if (!lock.isLocked()) return;
         if (lock.tryUnlock()) return;
@@ -223,6 +303,64 @@ public class CoverageIOUtil {
     }
   }
 
+  /**
+   * Read an int written with {@link #writeINT} directly from a buffer.
+   */
+  public static int readINT(ByteBuffer buffer) {
+    final int val = buffer.get() & 0xFF;
+    if (val < 192) {
+      return val;
+    }
+
+    int res = val - 192;
+    for (int sh = 6; ; sh += 7) {
+      int next = buffer.get() & 0xFF;
+      res |= (next & 0x7F) << sh;
+      if ((next & 0x80) == 0) {
+        return res;
+      }
+    }
+  }
+
+  /**
+   * Read a string written with {@link #writeUTF} directly from a buffer.
+   */
+  public static String readUTFFast(ByteBuffer buffer) throws IOException {
+    final int len = buffer.get(buffer.position()) & 0xFF;
+    if (len == 0xFF) {
+      return readUTFFast(new DataInputStream(new ByteBufferInputStream(buffer)));
+    }
+    buffer.position(buffer.position() + STRING_HEADER_SIZE);
+    final char[] chars = new char[len];
+    for (int i = 0; i < len; i++) {
+      chars[i] = (char) buffer.get();
+    }
+    return new String(chars);
+  }
+
+  /**
+   * Skip a string written with {@link #writeUTF} without decoding it.
+   */
+  public static void skipUTF(ByteBuffer buffer) {
+    final int len = buffer.get() & 0xFF;
+    if (len != 0xFF) {
+      buffer.position(buffer.position() + len);
+      return;
+    }
+    final int utfLength = buffer.getShort() & 0xFFFF;
+    boolean isLongString = utfLength == LONGER_THAN_64K_MARKER.length();
+    for (int i = 0; i < utfLength; i++) {
+      final byte b = buffer.get();
+      isLongString &= b == LONGER_THAN_64K_MARKER.charAt(i);
+    }
+    if (isLongString) {
+      final int length = buffer.getInt();
+      if (length > 0) {
+        buffer.position(buffer.position() + 2 * length);
+      }
+    }
+  }
+
   public static void writeINT(DataOutput record, int val) throws IOException {
     /*
     if (0 <= val && val < 255)
@@ -26,6 +26,10 @@ public class CondyUtils {
     return CoverageRuntime.getHits(className);
   }
 
+  public static int[][] getHitsStripes(MethodHandles.Lookup lookup, String name, Class<?> clazz, String className) {
+    return CoverageRuntime.getHitsStripes(className);
+  }
+
   public static boolean[] getHitsMask(MethodHandles.Lookup lookup, String name, Class<?> clazz, String className) {
     return CoverageRuntime.getHitsMask(className);
   }
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.ProjectData;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * This map provides faster read operations for the case when key is mostly the same
+ * object. In our case key is the class name which is the same string with high probability.
+ * According to CPU snapshots with usual map we spend a lot of time on equals() operation.
+ * This class was introduced to reduce number of equals().
+ * <p>
+ * The map is an open addressing table with keys and values interleaved in one array.
+ * Reads are lock-free and compare keys by identity; updates and resizing are done under a lock.
+ * A value is written before its key, so a reader that sees the key sees the value too.
+ * The table is at most half full, so a lookup always stops at an empty slot.
+ * A reader of a replaced table misses and takes the slow path.
+ */
+class ClassesMap {
+  private static final int INITIAL_CAPACITY = 1024; // must be a power of two
+
+  private volatile AtomicReferenceArray<Object> myTable = new AtomicReferenceArray<Object>(2 * INITIAL_CAPACITY);
+  private int mySize;
+
+  private final boolean myCollectStatistics;
+  private final AtomicLong myHits = new AtomicLong();
+  private final AtomicLong myMisses = new AtomicLong();
+
+  /**
+   * @param collectStatistics whether to count hits, this adds a shared counter update to each lookup
+   */
+  ClassesMap(boolean collectStatistics) {
+    myCollectStatistics = collectStatistics;
+  }
+
+  public ClassData get(String name, ProjectData projectData) {
+    final AtomicReferenceArray<Object> table = myTable;
+    final int mask = (table.length() >> 1) - 1;
+    for (int i = hash(name) & mask; ; i = (i + 1) & mask) {
+      final Object key = table.get(2 * i);
+      if (key == name) {
+        if (myCollectStatistics) {
+          myHits.incrementAndGet();
+        }
+        return (ClassData) table.get(2 * i + 1);
+      }
+      if (key == null) break;
+    }
+    return getSlow(name, projectData);
+  }
+
+  /**
+   * @return number of lookups found in the map, counted only when statistics are enabled
+   */
+  public long getHits() {
+    return myHits.get();
+  }
+
+  /**
+   * @return number of lookups that went to the project data
+   */
+  public long getMisses() {
+    return myMisses.get();
+  }
+
+  public synchronized int size() {
+    return mySize;
+  }
+
+  private synchronized ClassData getSlow(String name, ProjectData projectData) {
+    myMisses.incrementAndGet();
+    final ClassData data = projectData.getClassData(name);
+    // the class may be registered later
+    if (data == null) return null;
+
+    AtomicReferenceArray<Object> table = myTable;
+    if (2 * (mySize + 1) > (table.length() >> 1)) {
+      table = resize(table);
+      myTable = table;
+    }
+    if (put(table, name, data)) {
+      mySize++;
+    }
+    return data;
+  }
+
+  private static AtomicReferenceArray<Object> resize(AtomicReferenceArray<Object> table) {
+    final AtomicReferenceArray<Object> newTable = new AtomicReferenceArray<Object>(2 * table.length());
+    for (int i = 0; i < table.length(); i += 2) {
+      final Object key = table.get(i);
+      if (key != null) {
+        put(newTable, (String) key, table.get(i + 1));
+      }
+    }
+    return newTable;
+  }
+
+  /**
+   * A key equal to an existing one is stored instead of it, so the map does not grow
+   * when the same name comes as different string objects.
+   *
+   * @return true if a new key has been added
+   */
+  private static boolean put(AtomicReferenceArray<Object> table, String name, Object data) {
+    final int mask = (table.length() >> 1) - 1;
+    for (int i = hash(name) & mask; ; i = (i + 1) & mask) {
+      final Object key = table.get(2 * i);
+      if (key == null || key == name || name.equals(key)) {
+        table.set(2 * i + 1, data);
+        table.set(2 * i, name);
+        return key == null;
+      }
+    }
+  }
+
+  private static int hash(String name) {
+    final int h = name.hashCode();
+    return h ^ (h >>> 16);
+  }
+}
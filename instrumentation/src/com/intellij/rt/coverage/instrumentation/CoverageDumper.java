@@ -0,0 +1,177 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.instrumentation.data.ProjectContext;
+import com.intellij.rt.coverage.util.CoverageReport;
+import com.intellij.rt.coverage.util.ErrorReporter;
+
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Saves coverage of a running application without waiting for the JVM shutdown.
+ * This is useful for long-running processes, and it also keeps the coverage collected so far
+ * in case the process is killed.
+ * <p>
+ * A dump is written periodically, when a trigger file appears, or on a JMX request.
+ * Each dump is a complete report of the coverage collected up to this moment, see {@link CoverageReport#dump}.
+ * Dumps are written into a separate file, so the final report and merging with previous runs are not affected.
+ */
+public class CoverageDumper implements Runnable, CoverageDumperMBean {
+  public static final String DUMP_INTERVAL_PROPERTY = "idea.coverage.dump.interval";
+  public static final String DUMP_TRIGGER_FILE_PROPERTY = "idea.coverage.dump.trigger.file";
+  public static final String DUMP_JMX_PROPERTY = "idea.coverage.dump.jmx";
+  public static final String DUMP_FILE_PROPERTY = "idea.coverage.dump.file";
+  public static final String DUMP_FILE_SUFFIX = ".dump";
+  public static final String MBEAN_NAME = "com.intellij.rt.coverage:type=CoverageDumper";
+
+  private static final long TRIGGER_CHECK_INTERVAL_MS = 1000;
+
+  private final ProjectData myProjectData;
+  private final ProjectContext myProjectContext;
+  private final File myDumpFile;
+  private final long myIntervalMS;
+  private final File myTriggerFile;
+  private final boolean myRegisterMBean;
+
+  private final Object myLock = new Object();
+  private boolean myDumpRequested;
+  private boolean myStopped;
+  private Thread myThread;
+
+  public CoverageDumper(ProjectData projectData, ProjectContext projectContext, File dumpFile,
+                        long intervalMS, File triggerFile, boolean registerMBean) {
+    myProjectData = projectData;
+    myProjectContext = projectContext;
+    myDumpFile = dumpFile;
+    myIntervalMS = intervalMS;
+    myTriggerFile = triggerFile;
+    myRegisterMBean = registerMBean;
+  }
+
+  /**
+   * Create a dumper configured with system properties.
+   *
+   * @return dumper or <code>null</code> if no dump trigger is enabled
+   */
+  public static CoverageDumper createFromSystemProperties(ProjectData projectData, ProjectContext projectContext) {
+    long intervalMS = 0;
+    String interval = System.getProperty(DUMP_INTERVAL_PROPERTY);
+    if (interval != null) {
+      try {
+        intervalMS = Long.parseLong(interval);
+      } catch (NumberFormatException e) {
+        ErrorReporter.warn("Incorrect coverage dump interval " + interval + ", a number of milliseconds expected");
+      }
+    }
+    String triggerPath = System.getProperty(DUMP_TRIGGER_FILE_PROPERTY);
+    File triggerFile = triggerPath == null ? null : new File(triggerPath);
+    boolean registerMBean = "true".equals(System.getProperty(DUMP_JMX_PROPERTY, "false"));
+    if (intervalMS <= 0 && triggerFile == null && !registerMBean) return null;
+
+    File dataFile = projectContext.getOptions().dataFile;
+    String dumpPath = System.getProperty(DUMP_FILE_PROPERTY);
+    File dumpFile = dumpPath != null ? new File(dumpPath) : new File(dataFile.getParentFile(), dataFile.getName() + DUMP_FILE_SUFFIX);
+    return new CoverageDumper(projectData, projectContext, dumpFile, intervalMS, triggerFile, registerMBean);
+  }
+
+  public void start() {
+    Thread thread = new Thread(this, "IntelliJ Coverage Dumper");
+    thread.setDaemon(true);
+    synchronized (myLock) {
+      myThread = thread;
+    }
+    thread.start();
+  }
+
+  /**
+   * Stop dumping and wait for the current dump to finish.
+   * Should be called before the final report is saved.
+   */
+  public void stop() {
+    Thread thread;
+    synchronized (myLock) {
+      myStopped = true;
+      thread = myThread;
+      myLock.notifyAll();
+    }
+    if (thread == null || thread == Thread.currentThread()) return;
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public void dump() {
+    synchronized (myLock) {
+      myDumpRequested = true;
+      myLock.notifyAll();
+    }
+  }
+
+  public String getDumpFile() {
+    return myDumpFile.getAbsolutePath();
+  }
+
+  public void run() {
+    if (myRegisterMBean) {
+      registerMBean();
+    }
+    long nextDump = myIntervalMS > 0 ? System.currentTimeMillis() + myIntervalMS : Long.MAX_VALUE;
+    while (true) {
+      synchronized (myLock) {
+        while (!myStopped && !myDumpRequested) {
+          long now = System.currentTimeMillis();
+          if (now >= nextDump) break;
+          long timeout = nextDump - now;
+          if (myTriggerFile != null) {
+            if (myTriggerFile.exists()) break;
+            timeout = Math.min(timeout, TRIGGER_CHECK_INTERVAL_MS);
+          }
+          try {
+            myLock.wait(timeout);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (myStopped) return;
+        myDumpRequested = false;
+      }
+      if (myTriggerFile != null && myTriggerFile.exists() && !myTriggerFile.delete()) {
+        ErrorReporter.warn("Failed to delete coverage dump trigger file " + myTriggerFile.getPath());
+      }
+      long start = System.nanoTime();
+      CoverageReport.dump(myProjectData, myProjectContext, myDumpFile);
+      ErrorReporter.info("Coverage dump saved to " + myDumpFile.getPath() + " in " + (System.nanoTime() - start) / 1000000 + "ms");
+      if (myIntervalMS > 0) {
+        nextDump = System.currentTimeMillis() + myIntervalMS;
+      }
+    }
+  }
+
+  private void registerMBean() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(MBEAN_NAME));
+    } catch (Throwable e) {
+      ErrorReporter.warn("Failed to register coverage dump MBean", e);
+    }
+  }
+}
@@ -26,15 +26,22 @@ import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
 import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
 import org.jetbrains.coverage.org.objectweb.asm.tree.MethodNode;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * Collect information about coverage and prepare jumps and switches execution for coverage collection.
  * This class uses <code>MethodNode</code> inside, so bytecode is firstly fully analysed and then written to a <code>MethodWriter</code>
+ * <p>
+ * When the original frames are preserved, see {@link Key#PRESERVE_FRAMES}, the inserted branch labels
+ * are not visited in the method code, see {@link #getDetachedLabels()}.
  */
 public class CoverageEnumerator extends MethodVisitor implements Opcodes {
   private final MethodNode myMethodNode;
   protected final InstrumentationData myData;
   private final String myMethodDesc;
   private final boolean myBranchCoverage;
+  private final Map<Label, Label> myDetachedLabels;
 
   protected int myCurrentLine;
 
@@ -48,6 +55,7 @@ public class CoverageEnumerator extends MethodVisitor implements Opcodes {
 
     myMethodDesc = data.getProjectContext().getFromPool(myData.getMethodName() + myData.getMethodDesc());
     myBranchCoverage = branchCoverage;
+    myDetachedLabels = data.get(Key.PRESERVE_FRAMES) == Boolean.TRUE ? new LinkedHashMap<Label, Label>() : null;
   }
 
   protected void onNewJump(Label originalLabel, Label trueLabel, Label falseLabel) {
@@ -60,6 +68,16 @@ public class CoverageEnumerator extends MethodVisitor implements Opcodes {
     myMethodNode.accept(visitor);
   }
 
+  /**
+   * Inserted labels that should be placed after the method code, mapped to the original labels they jump to.
+   * Such a label has the same frame as the original label, so no frames are computed for it.
+   *
+   * @return null if the inserted labels are placed into the code
+   */
+  public Map<Label, Label> getDetachedLabels() {
+    return myDetachedLabels;
+  }
+
   @Override
   public void visitLineNumber(int line, Label start) {
     myCurrentLine = line;
@@ -84,9 +102,13 @@ public class CoverageEnumerator extends MethodVisitor implements Opcodes {
 
         jumpInstrumented = true;
         super.visitJumpInsn(opcode, trueLabel);
-        super.visitJumpInsn(Opcodes.GOTO, falseLabel);
-        super.visitLabel(trueLabel);  // true hit will be inserted here
-        super.visitJumpInsn(Opcodes.GOTO, label);
+        if (myDetachedLabels != null) {
+          myDetachedLabels.put(trueLabel, label);
+        } else {
+          super.visitJumpInsn(Opcodes.GOTO, falseLabel);
+          super.visitLabel(trueLabel);  // true hit will be inserted here
+          super.visitJumpInsn(Opcodes.GOTO, label);
+        }
         super.visitLabel(falseLabel); // false hit will be inserted here
       }
     }
@@ -107,12 +129,20 @@ public class CoverageEnumerator extends MethodVisitor implements Opcodes {
       newLabels[i] = new Label();
     }
 
-    super.visitJumpInsn(Opcodes.GOTO, beforeSwitchLabel);
-
     final SwitchLabels replacement = new SwitchLabels(newDefaultLabel, newLabels);
     myData.addSwitch(lineData, keys, newDefaultLabel, newLabels);
     onNewSwitch(original, replacement);
 
+    if (myDetachedLabels != null) {
+      for (int i = 0; i < newLabels.length; i++) {
+        myDetachedLabels.put(newLabels[i], original.getLabels()[i]);
+      }
+      myDetachedLabels.put(newDefaultLabel, original.getDefault());
+      return replacement;
+    }
+
+    super.visitJumpInsn(Opcodes.GOTO, beforeSwitchLabel);
+
     for (int i = 0; i < newLabels.length; i++) {
       super.visitLabel(newLabels[i]);
       super.visitJumpInsn(Opcodes.GOTO, original.getLabels()[i]);
@@ -21,6 +21,7 @@ import com.intellij.rt.coverage.data.ProjectData;
 import com.intellij.rt.coverage.util.ErrorReporter;
 import com.intellij.rt.coverage.util.MethodCaller;
 import com.intellij.rt.coverage.util.OptionsUtil;
+import com.intellij.rt.coverage.util.SequentialTestTrackingCallback;
 import com.intellij.rt.coverage.util.TestTrackingCallback;
 
 /**
@@ -31,6 +32,8 @@ public class CoverageRuntime {
   public static final String COVERAGE_RUNTIME_OWNER = "com/intellij/rt/coverage/instrumentation/CoverageRuntime";
   private static final MethodCaller GET_HITS_METHOD = new MethodCaller("getHits", new Class[]{String.class});
   private static final MethodCaller GET_HITS_CACHED_METHOD = new MethodCaller("getHitsCached", new Class[]{String.class});
+  private static final MethodCaller GET_HITS_STRIPES_METHOD = new MethodCaller("getHitsStripes", new Class[]{String.class});
+  private static final MethodCaller GET_HITS_STRIPES_CACHED_METHOD = new MethodCaller("getHitsStripesCached", new Class[]{String.class});
   private static final MethodCaller GET_HITS_MASK_METHOD = new MethodCaller("getHitsMask", new Class[]{String.class});
   private static final MethodCaller GET_HITS_MASK_CACHED_METHOD = new MethodCaller("getHitsMaskCached", new Class[]{String.class});
   private static final MethodCaller GET_TRACE_MASK_METHOD = new MethodCaller("getTraceMask", new Class[]{String.class});
@@ -63,7 +66,7 @@ public class CoverageRuntime {
       synchronized (this) {
         map = myClassesMap;
         if (map == null) {
-          map = new ClassesMap();
+          map = new ClassesMap(OptionsUtil.CLASSES_MAP_STATISTICS);
           myClassesMap = map;
         }
       }
@@ -111,7 +114,8 @@ public class CoverageRuntime {
    */
   public static void registerClassForTrace(Object classData) {
     if (ourRuntime != null) {
-      TestTrackingCallback callback = ourRuntime.myProjectData.myTestTrackingCallback;
+      // classes are registered only in array test tracking mode, which traces the tests sequentially
+      SequentialTestTrackingCallback callback = (SequentialTestTrackingCallback) ourRuntime.myProjectData.myTestTrackingCallback;
       if (callback != null) {
         callback.registerForTrace(classData);
       }
@@ -161,6 +165,50 @@ public class CoverageRuntime {
     }
   }
 
+  /**
+   * On class initialization at runtime, an instrumented class asks for hits stripes
+   */
+  public static int[][] getHitsStripes(String className) {
+    CoverageRuntime runtime = ourRuntime;
+    if (runtime != null) {
+      return runtime.myProjectData.getClassData(className).getHitsStripes(OptionsUtil.HITS_STRIPES);
+    }
+    try {
+      final Object runtimeObject = getRuntimeObject();
+      return (int[][]) GET_HITS_STRIPES_METHOD.invoke(runtimeObject, new Object[]{className});
+    } catch (Exception e) {
+      ErrorReporter.error("Error in class data access: " + className, e);
+      return null;
+    }
+  }
+
+  /**
+   * On class initialization at runtime, an instrumented class asks for hits stripes
+   * This version is used cache when calls are frequent.
+   */
+  @SuppressWarnings("unused")
+  public static int[][] getHitsStripesCached(String className) {
+    CoverageRuntime runtime = ourRuntime;
+    if (runtime != null) {
+      return runtime.getClassesMap().get(className, runtime.myProjectData).getHitsStripes(OptionsUtil.HITS_STRIPES);
+    }
+    try {
+      final Object runtimeObject = getRuntimeObject();
+      return (int[][]) GET_HITS_STRIPES_CACHED_METHOD.invoke(runtimeObject, new Object[]{className});
+    } catch (Exception e) {
+      ErrorReporter.error("Error in class data access: " + className, e);
+      return null;
+    }
+  }
+
+  /**
+   * On method start, an instrumented class selects the hits stripe of the current thread.
+   */
+  @SuppressWarnings("unused")
+  public static int[] getHitsStripe(int[][] stripes) {
+    return ClassData.getHitsStripe(stripes);
+  }
+
   /**
    * On class initialization at runtime, an instrumented class asks for hits array
    */
@@ -250,6 +298,21 @@ public class CoverageRuntime {
     }
   }
 
+  /**
+   * Statistics of the class data cache used by the name-based coverage data access.
+   *
+   * @return a message with the numbers of hits and misses
+   */
+  public static String getClassesMapStatistics() {
+    CoverageRuntime runtime = ourRuntime;
+    if (runtime == null) return null;
+    ClassesMap map = runtime.myClassesMap;
+    if (map == null) return "Classes map is not used";
+    return "Classes map: " + map.size() + " classes, "
+        + (OptionsUtil.CLASSES_MAP_STATISTICS ? map.getHits() + " hits, " : "")
+        + map.getMisses() + " misses";
+  }
+
   private static Object getRuntimeObject() throws ClassNotFoundException, IllegalAccessException, NoSuchFieldException {
     if (ourRuntimeObject == null) {
       final ClassLoader classLoader = OptionsUtil.USE_SYSTEM_CLASS_LOADER ? ClassLoader.getSystemClassLoader() : null;
@@ -260,48 +323,4 @@ public class CoverageRuntime {
   }
 
   // ----------------------------------------------------------------------------------------------- //
-
-
-  /**
-   * This map provides faster read operations for the case when key is mostly the same
-   * object. In our case key is the class name which is the same string with high probability.
-   * According to CPU snapshots with usual map we spend a lot of time on equals() operation.
-   * This class was introduced to reduce number of equals().
-   */
-  private static class ClassesMap {
-    private static final int POOL_SIZE = 1024; // must be a power of two
-    private static final int MASK = POOL_SIZE - 1;
-    private final IdentityClassData[] myIdentityArray = new IdentityClassData[POOL_SIZE];
-
-    public ClassData get(String name, ProjectData projectData) {
-      int idx = name.hashCode() & MASK;
-      final IdentityClassData lastClassData = myIdentityArray[idx];
-      if (lastClassData != null) {
-        final ClassData data = lastClassData.getClassData(name);
-        if (data != null) return data;
-      }
-
-      final ClassData data = projectData.getClassData(name);
-      myIdentityArray[idx] = new IdentityClassData(name, data);
-      return data;
-    }
-  }
-
-  private static class IdentityClassData {
-    private final String myClassName;
-    private final ClassData myClassData;
-
-    private IdentityClassData(String className, ClassData classData) {
-      myClassName = className;
-      myClassData = classData;
-    }
-
-    @SuppressWarnings("StringEquality")
-    public ClassData getClassData(String name) {
-      if (name == myClassName) {
-        return myClassData;
-      }
-      return null;
-    }
-  }
 }
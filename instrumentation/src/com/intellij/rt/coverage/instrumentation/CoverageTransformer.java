@@ -19,43 +19,104 @@ package com.intellij.rt.coverage.instrumentation;
 import com.intellij.rt.coverage.data.ProjectData;
 import com.intellij.rt.coverage.instrumentation.data.ProjectContext;
 import com.intellij.rt.coverage.instrumentation.dataAccess.*;
-import com.intellij.rt.coverage.util.ClassNameUtil;
+import com.intellij.rt.coverage.util.ClassNameMatcher;
 import com.intellij.rt.coverage.util.OptionsUtil;
 import com.intellij.rt.coverage.util.classFinder.ClassFinder;
 import org.jetbrains.coverage.org.objectweb.asm.ClassReader;
 import org.jetbrains.coverage.org.objectweb.asm.ClassVisitor;
 
+import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Pattern;
 
 public class CoverageTransformer extends AbstractIntellijClassfileTransformer {
   private final ProjectData myProjectData;
   protected final ProjectContext myProjectContext;
   private boolean myStop;
 
+  private TransformationCache myTransformationCache;
+  private final ThreadLocal<TransformationCache.Entry> myTransformation = new ThreadLocal<TransformationCache.Entry>();
+
   public CoverageTransformer(ProjectData projectData, ProjectContext projectContext) {
     myProjectData = projectData;
     myProjectContext = projectContext;
   }
 
+  public void setTransformationCache(TransformationCache transformationCache) {
+    myTransformationCache = transformationCache;
+  }
+
+  @Override
+  public byte[] instrument(byte[] classfileBuffer, String className, ClassLoader loader, boolean computeFrames) {
+    final TransformationCache cache = myTransformationCache;
+    if (cache == null || !isCacheable()) {
+      return super.instrument(classfileBuffer, className, loader, computeFrames);
+    }
+    final byte[] key = cache.getKey(classfileBuffer, className, computeFrames);
+    final TransformationCache.Entry cached = cache.load(key, className);
+    if (cached != null && cached.isComplete() && checkCommonSuperClasses(cached.getCommonSuperClasses(), loader)) {
+      cached.apply(myProjectData, myProjectContext, myProjectContext.getFromPool(className));
+      return cached.getBytes();
+    }
+
+    final TransformationCache.Entry entry = new TransformationCache.Entry();
+    final List<String> commonSuperClasses = new ArrayList<String>();
+    final byte[] result;
+    myTransformation.set(entry);
+    try {
+      result = super.instrument(classfileBuffer, className, loader, computeFrames, commonSuperClasses);
+    } finally {
+      myTransformation.remove();
+    }
+    // annotation filters could register methods of other classes
+    if (result != null && isCacheable()) {
+      entry.setResult(result, commonSuperClasses);
+      if (entry.isComplete()) {
+        cache.store(key, className, entry);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Instrumentation result is cached only if it does not depend on classes instrumented before.
+   */
+  private boolean isCacheable() {
+    return !myProjectContext.shouldCollectInherits() && myProjectContext.getFilteredStorage().isEmpty();
+  }
+
   @Override
   protected ClassVisitor createClassVisitor(String className, ClassLoader loader, ClassReader cr, ClassVisitor cw) {
-    return InstrumentationStrategy.createInstrumenter(myProjectData, className, cr, cw, myProjectContext, createDataAccess(className, cr));
+    return InstrumentationStrategy.createInstrumenter(myProjectData, className, cr, cw, myProjectContext,
+        createDataAccess(className, cr), myTransformation.get());
   }
 
   private CoverageDataAccess createDataAccess(String className, ClassReader cr) {
+    CoverageDataAccess dataAccess;
     if (OptionsUtil.FIELD_INSTRUMENTATION_ENABLED) {
       if (InstrumentationUtils.isCondyEnabled(cr)) {
-        return new CondyCoverageDataAccess(createCondyInit(className, cr));
+        dataAccess = new CondyCoverageDataAccess(createCondyInit(className, cr));
       } else {
-        return new FieldCoverageDataAccess(cr, className, createInit(className, cr, false));
+        dataAccess = new FieldCoverageDataAccess(cr, className, createInit(className, cr, false));
       }
     } else {
-      return new NameCoverageDataAccess(createInit(className, cr, true));
+      dataAccess = new NameCoverageDataAccess(createInit(className, cr, true));
     }
+    return isStripedHits() ? new StripedCoverageDataAccess(dataAccess) : dataAccess;
+  }
+
+  /**
+   * Whether each thread should increment hits in its own stripe of counters,
+   * see {@link com.intellij.rt.coverage.data.ClassData#getHitsStripes(int)}.
+   */
+  protected boolean isStripedHits() {
+    return myProjectContext.getOptions().isCalculateHits && OptionsUtil.HITS_STRIPES > 1;
   }
 
   protected CoverageDataAccess.Init createInit(String className, ClassReader cr, boolean needCache) {
+    if (isStripedHits()) {
+      return new CoverageDataAccess.Init("__$hits$__", DataAccessUtil.HITS_STRIPES_TYPE, CoverageRuntime.COVERAGE_RUNTIME_OWNER,
+          needCache ? "getHitsStripesCached" : "getHitsStripes", "(Ljava/lang/String;)" + DataAccessUtil.HITS_STRIPES_TYPE, new Object[]{className});
+    }
     boolean calculateHits = myProjectContext.getOptions().isCalculateHits;
     String arrayType = calculateHits ? DataAccessUtil.HITS_ARRAY_TYPE : DataAccessUtil.MASK_ARRAY_TYPE;
     String methodName = calculateHits ? (needCache ? "getHitsCached" : "getHits")
@@ -66,23 +127,32 @@ public class CoverageTransformer extends AbstractIntellijClassfileTransformer {
 
   protected CoverageDataAccess.Init createCondyInit(String className, ClassReader cr) {
     boolean calculateHits = myProjectContext.getOptions().isCalculateHits;
-    String arrayType = calculateHits ? DataAccessUtil.HITS_ARRAY_TYPE : DataAccessUtil.MASK_ARRAY_TYPE;
-    String methodName = calculateHits ? "getHits" : "getHitsMask";
+    String arrayType = isStripedHits() ? DataAccessUtil.HITS_STRIPES_TYPE
+        : calculateHits ? DataAccessUtil.HITS_ARRAY_TYPE : DataAccessUtil.MASK_ARRAY_TYPE;
+    String methodName = isStripedHits() ? "getHitsStripes" : calculateHits ? "getHits" : "getHitsMask";
     return new CoverageDataAccess.Init("__$hits$__", arrayType, "com/intellij/rt/coverage/util/CondyUtils",
         methodName, "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;Ljava/lang/String;)" + arrayType, new Object[]{className});
   }
 
+  /**
+   * Test tracking inserts its own branches, so frames are computed when it is enabled.
+   */
+  @Override
+  protected boolean shouldPreserveFrames() {
+    return OptionsUtil.PRESERVE_FRAMES && myProjectContext.getOptions().testTrackingMode == null;
+  }
+
   @Override
   protected boolean shouldExclude(String className) {
-    return ClassNameUtil.matchesPatterns(className, myProjectContext.getOptions().excludePatterns);
+    return myProjectContext.getExcludeMatcher().matches(className);
   }
 
   @Override
   protected InclusionPattern getInclusionPattern() {
-    final List<Pattern> includes = myProjectContext.getOptions().includePatterns;
-    return includes == null || includes.isEmpty() ? null : new InclusionPattern() {
+    final ClassNameMatcher includes = myProjectContext.getIncludeMatcher();
+    return includes.isEmpty() ? null : new InclusionPattern() {
       public boolean accept(String className) {
-        return ClassNameUtil.matchesPatterns(className, includes);
+        return includes.matches(className);
       }
     };
   }
@@ -41,6 +41,17 @@ public class InstrumentationStrategy {
                                          ClassReader cr, ClassVisitor cw,
                                          ProjectContext projectContext,
                                          CoverageDataAccess dataAccess) {
+    return createInstrumenter(projectData, className, cr, cw, projectContext, dataAccess, null);
+  }
+
+  /**
+   * @param transformation if not null, the result of instrumentation is recorded here to be cached
+   */
+  static ClassVisitor createInstrumenter(ProjectData projectData, String className,
+                                         ClassReader cr, ClassVisitor cw,
+                                         ProjectContext projectContext,
+                                         CoverageDataAccess dataAccess,
+                                         TransformationCache.Entry transformation) {
     // uncomment to get readable bytecode
     // cw = new TraceClassVisitor(cw, new PrintWriter(System.err));
 
@@ -49,6 +60,12 @@ public class InstrumentationStrategy {
     context.put(Key.CLASS_READER, cr);
     context.put(Key.CLASS_NAME, projectContext.getFromPool(className));
     context.put(Key.CLASS_INTERNAL_NAME, ClassNameUtil.convertToInternalName(className));
+    if (transformation != null) {
+      context.put(Key.TRANSFORMATION, transformation);
+    }
+    if (AbstractIntellijClassfileTransformer.isPreservingFrames(cw)) {
+      context.put(Key.PRESERVE_FRAMES, true);
+    }
 
     for (ClassSignatureFilter filter : ourFilters) {
       if (filter.shouldIgnore(context)) return null;
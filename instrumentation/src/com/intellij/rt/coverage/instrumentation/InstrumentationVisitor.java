@@ -35,9 +35,13 @@ import com.intellij.rt.coverage.instrumentation.util.InsertLineAfterJumpVisitor;
 import com.intellij.rt.coverage.instrumentation.util.LinesUtil;
 import com.intellij.rt.coverage.util.ClassNameUtil;
 import com.intellij.rt.coverage.util.OptionsUtil;
+import org.jetbrains.coverage.gnu.trove.TIntArrayList;
 import org.jetbrains.coverage.org.objectweb.asm.*;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class InstrumentationVisitor extends ClassVisitor {
   private static final List<MethodFilter> ourMethodFilters = FilterUtils.createMethodFilters();
@@ -97,7 +101,7 @@ public class InstrumentationVisitor extends ClassVisitor {
         super.visitEnd();
         if (myDataAccess.getDataAccess() != EmptyCoverageDataAccess.INSTANCE) {
           MethodVisitor methodVisitor = InstrumentationVisitor.super.visitMethod(access, name, descriptor, signature, exceptions);
-          MethodVisitor hitsVisitor = new InsertLineAfterJumpVisitor(new HitsVisitor(methodVisitor));
+          MethodVisitor hitsVisitor = new InsertLineAfterJumpVisitor(new HitsVisitor(methodVisitor, enumerator.getDetachedLabels()));
           enumerator.accept(myContext.hasNoLinesInCurrentMethod() ? methodVisitor : hitsVisitor);
         }
       }
@@ -136,16 +140,24 @@ public class InstrumentationVisitor extends ClassVisitor {
     super.visitEnd();
     String className = myContext.get(Key.CLASS_NAME);
     ClassData classData = myProjectData.getOrCreateClassData(className);
-    classData.setLines(LinesUtil.calcLineArray(myContext.getMaxSeenLine(), myContext.getLines()));
+    LineData[] lines = LinesUtil.calcLineArray(myContext.getMaxSeenLine(), myContext.getLines());
+    classData.setLines(lines);
     classData.createMask(myContext.getSize(), getOptions().isCalculateHits);
     classData.setSource(mySource);
     myContext.getProjectContext().addIgnoredLines(className, myContext.getIgnoredLines());
+    TransformationCache.Entry transformation = myContext.get(Key.TRANSFORMATION);
+    if (transformation != null) {
+      transformation.setClassData(lines, myContext.getSize(), mySource, myContext.getIgnoredLines());
+    }
     if (OptionsUtil.TEST_MODE) {
       InstrumentationData.assertIds(classData);
     }
     if (getOptions().isInstructionCoverage) {
       ClassInstructions classInstructions = new ClassInstructions(classData, myContext.getInstructions());
       myProjectData.getInstructions().put(classData.getName(), classInstructions);
+      if (transformation != null) {
+        transformation.setInstructions(myContext.getInstructions().toNativeArray());
+      }
     }
   }
 
@@ -157,6 +169,10 @@ public class InstrumentationVisitor extends ClassVisitor {
       mySource = myContext.getProjectContext().getFromPool(source);
     }
     if (debug != null) {
+      TransformationCache.Entry transformation = myContext.get(Key.TRANSFORMATION);
+      if (transformation != null) {
+        transformation.setSourceDebug(debug);
+      }
       FileMapData[] mapping = JSR45Util.extractLineMapping(debug, className);
       if (mapping != null) {
         myContext.getProjectContext().addLineMaps(className, mapping);
@@ -168,6 +184,10 @@ public class InstrumentationVisitor extends ClassVisitor {
   public void visitOuterClass(String outerClassName, String methodName, String methodSig) {
     if (getOptions().isSaveSource) {
       String fqnName = ClassNameUtil.convertToFQName(outerClassName);
+      TransformationCache.Entry transformation = myContext.get(Key.TRANSFORMATION);
+      if (transformation != null) {
+        transformation.setOuterClassName(fqnName);
+      }
       ClassData outerClass = myProjectData.getOrCreateClassData(myContext.getProjectContext().getFromPool(fqnName));
       if (outerClass.getSource() == null) {
         outerClass.setSource(mySource);
@@ -180,40 +200,250 @@ public class InstrumentationVisitor extends ClassVisitor {
     return myContext.getProjectContext().getOptions();
   }
 
+  /**
+   * Inserts hits increments after labels and before line numbers.
+   * <p>
+   * When the original frames are preserved, the increments are postponed until the next instruction,
+   * so that a frame of a label stays at the label offset.
+   * If the next instruction is <code>NEW</code>, its uninitialized type in frames is moved to a new label after the increments.
+   * The detached branch labels are placed after the method code with the frames of their target labels.
+   */
   private class HitsVisitor extends MethodVisitor {
+    private final boolean myPreserveFrames = myContext.get(Key.PRESERVE_FRAMES) == Boolean.TRUE;
+    private final TIntArrayList myPendingHits = new TIntArrayList();
+    private final List<Label> myOffsetLabels = new ArrayList<Label>();
+    private final Map<Label, Label> myUninitializedLabels = new HashMap<Label, Label>();
+    private final Map<Label, Label> myDetachedLabels;
+    private final Map<Label, Frame> myFrames;
+    private boolean mySeenFrame;
 
-    public HitsVisitor(MethodVisitor methodVisitor) {
+    /**
+     * @param detachedLabels see {@link CoverageEnumerator#getDetachedLabels()}
+     */
+    public HitsVisitor(MethodVisitor methodVisitor, Map<Label, Label> detachedLabels) {
       super(Opcodes.API_VERSION, methodVisitor);
+      myDetachedLabels = detachedLabels == null || detachedLabels.isEmpty() ? null : detachedLabels;
+      myFrames = myDetachedLabels == null ? null : new HashMap<Label, Frame>();
     }
 
     @Override
     public void visitLineNumber(int line, Label start) {
       LineData lineData = myContext.getLineData(line);
       if (lineData != null) {
-        incrementHitById(lineData.getId());
+        hit(lineData.getId());
       }
       super.visitLineNumber(line, start);
     }
 
     @Override
     public void visitLabel(Label label) {
+      if (mySeenFrame) {
+        // the previous label already has a frame, so this label must have another offset
+        separateFromFrame();
+      }
       super.visitLabel(label);
+      if (myPreserveFrames) {
+        myOffsetLabels.add(label);
+      }
 
       Jump jump = myContext.getJump(label);
       if (jump != null) {
-        incrementHitById(jump.getId());
+        hit(jump.getId());
       }
 
       Switch aSwitch = myContext.getSwitch(label);
       if (aSwitch != null) {
-        incrementHitById(aSwitch.getId());
+        hit(aSwitch.getId());
       }
     }
 
-    private void incrementHitById(int id) {
+    @Override
+    public void visitFrame(int type, int numLocal, Object[] local, int numStack, Object[] stack) {
+      if (mySeenFrame) {
+        separateFromFrame();
+      }
+      if (myFrames != null) {
+        final Frame frame = new Frame(numLocal, local.clone(), numStack, stack.clone());
+        for (Label label : myOffsetLabels) {
+          myFrames.put(label, frame);
+        }
+      }
+      if (!myUninitializedLabels.isEmpty()) {
+        local = replaceUninitializedLabels(local);
+        stack = replaceUninitializedLabels(stack);
+      }
+      super.visitFrame(type, numLocal, local, numStack, stack);
+      mySeenFrame = myPreserveFrames;
+    }
+
+    @Override
+    public void visitInsn(int opcode) {
+      flushHits();
+      super.visitInsn(opcode);
+    }
+
+    @Override
+    public void visitIntInsn(int opcode, int operand) {
+      flushHits();
+      super.visitIntInsn(opcode, operand);
+    }
+
+    @Override
+    public void visitVarInsn(int opcode, int varIndex) {
+      flushHits();
+      super.visitVarInsn(opcode, varIndex);
+    }
+
+    @Override
+    public void visitTypeInsn(int opcode, String type) {
+      if (opcode == Opcodes.NEW && !myPendingHits.isEmpty()) {
+        final List<Label> labels = new ArrayList<Label>(myOffsetLabels);
+        flushHits();
+        final Label newLabel = new Label();
+        mv.visitLabel(newLabel);
+        for (Label label : labels) {
+          myUninitializedLabels.put(label, newLabel);
+        }
+      } else {
+        flushHits();
+      }
+      super.visitTypeInsn(opcode, type);
+    }
+
+    @Override
+    public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+      flushHits();
+      super.visitFieldInsn(opcode, owner, name, descriptor);
+    }
+
+    @Override
+    public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+      flushHits();
+      super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+    }
+
+    @Override
+    public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle, Object... bootstrapMethodArguments) {
+      flushHits();
+      super.visitInvokeDynamicInsn(name, descriptor, bootstrapMethodHandle, bootstrapMethodArguments);
+    }
+
+    @Override
+    public void visitJumpInsn(int opcode, Label label) {
+      flushHits();
+      super.visitJumpInsn(opcode, label);
+    }
+
+    @Override
+    public void visitLdcInsn(Object value) {
+      flushHits();
+      super.visitLdcInsn(value);
+    }
+
+    @Override
+    public void visitIincInsn(int varIndex, int increment) {
+      flushHits();
+      super.visitIincInsn(varIndex, increment);
+    }
+
+    @Override
+    public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+      flushHits();
+      super.visitTableSwitchInsn(min, max, dflt, labels);
+    }
+
+    @Override
+    public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+      flushHits();
+      super.visitLookupSwitchInsn(dflt, keys, labels);
+    }
+
+    @Override
+    public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
+      flushHits();
+      super.visitMultiANewArrayInsn(descriptor, numDimensions);
+    }
+
+    @Override
+    public void visitMaxs(int maxStack, int maxLocals) {
+      flushHits();
+      if (myDetachedLabels != null) {
+        visitDetachedLabels();
+      }
+      super.visitMaxs(maxStack, maxLocals);
+    }
+
+    /**
+     * The method code ends with an unconditional instruction, so the detached labels are reached only by jumps.
+     */
+    private void visitDetachedLabels() {
+      for (Map.Entry<Label, Label> entry : myDetachedLabels.entrySet()) {
+        final Frame frame = myFrames.get(entry.getValue());
+        if (frame == null) {
+          throw new AbstractIntellijClassfileTransformer.ComputeFramesException(
+              "No frame for a branch target in " + myContext.getMethodName() + myContext.getMethodDesc());
+        }
+        visitLabel(entry.getKey());
+        visitFrame(Opcodes.F_NEW, frame.numLocal, frame.local, frame.numStack, frame.stack);
+        visitJumpInsn(Opcodes.GOTO, entry.getValue());
+      }
+    }
+
+    private void hit(int id) {
       if (id == -1) return;
+      if (myPreserveFrames) {
+        myPendingHits.add(id);
+      } else {
+        incrementHitById(id);
+      }
+    }
+
+    private void separateFromFrame() {
+      if (myPendingHits.isEmpty()) {
+        mv.visitInsn(Opcodes.NOP);
+      }
+      flushHits();
+    }
+
+    private void flushHits() {
+      for (int i = 0; i < myPendingHits.size(); i++) {
+        incrementHitById(myPendingHits.get(i));
+      }
+      myPendingHits.clear();
+      myOffsetLabels.clear();
+      mySeenFrame = false;
+    }
+
+    private Object[] replaceUninitializedLabels(Object[] types) {
+      Object[] result = types;
+      for (int i = 0; i < types.length; i++) {
+        final Label label = types[i] instanceof Label ? myUninitializedLabels.get(types[i]) : null;
+        if (label == null) continue;
+        if (result == types) {
+          result = types.clone();
+        }
+        result[i] = label;
+      }
+      return result;
+    }
+
+    private void incrementHitById(int id) {
       myDataAccess.loadFromLocal();
       InstrumentationUtils.touchById(mv, id, getOptions().isCalculateHits);
     }
   }
+
+  private static class Frame {
+    final int numLocal;
+    final Object[] local;
+    final int numStack;
+    final Object[] stack;
+
+    Frame(int numLocal, Object[] local, int numStack, Object[] stack) {
+      this.numLocal = numLocal;
+      this.local = local;
+      this.numStack = numStack;
+      this.stack = stack;
+    }
+  }
 }
@@ -20,6 +20,7 @@ import com.intellij.rt.coverage.data.ProjectData;
 import com.intellij.rt.coverage.instrumentation.data.ProjectContext;
 import com.intellij.rt.coverage.instrumentation.testTracking.TestTrackingArrayMode;
 import com.intellij.rt.coverage.instrumentation.testTracking.TestTrackingClassDataMode;
+import com.intellij.rt.coverage.instrumentation.testTracking.TestTrackingConcurrentMode;
 import com.intellij.rt.coverage.instrumentation.testTracking.TestTrackingMode;
 import com.intellij.rt.coverage.util.CoverageReport;
 import com.intellij.rt.coverage.util.ErrorReporter;
@@ -93,14 +94,39 @@ public class Instrumentator {
 
     final ProjectContext instrumentationData = new ProjectContext(options);
     final CoverageTransformer transformer = new CoverageTransformer(data, instrumentationData);
+    final TransformationCache transformationCache = TransformationCache.createFromSystemProperties(options);
+    transformer.setTransformationCache(transformationCache);
+    final CoverageDumper dumper = CoverageDumper.createFromSystemProperties(data, instrumentationData);
+    final File metricsFile = createMetricsFile(transformer, args.dataFile);
     Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
       public void run() {
         transformer.stop();
+        if (dumper != null) {
+          dumper.stop();
+        }
+        if (callback != null) {
+          // test names are assigned to lines while writing traces
+          callback.close();
+        }
         CoverageReport.save(data, instrumentationData);
+        if (OptionsUtil.CLASSES_MAP_STATISTICS) {
+          ErrorReporter.printInfo(CoverageRuntime.getClassesMapStatistics());
+        }
+        if (transformationCache != null) {
+          transformationCache.evict();
+          ErrorReporter.printInfo(transformationCache.getStatistics());
+        }
+        if (metricsFile != null) {
+          saveMetrics(transformer.getMetrics(), metricsFile);
+        }
       }
     }));
 
     addTransformer(instrumentation, transformer);
+    if (dumper != null) {
+      ErrorReporter.printInfo("Coverage dumps are saved to " + dumper.getDumpFile());
+      dumper.start();
+    }
   }
 
   private void createDataFile(File dataFile) throws IOException {
@@ -111,6 +137,25 @@ public class Instrumentator {
     }
   }
 
+  /**
+   * Detailed transformation metrics are collected when a format is specified, see {@link OptionsUtil#INSTRUMENTATION_METRICS}.
+   */
+  private File createMetricsFile(CoverageTransformer transformer, File dataFile) {
+    if (OptionsUtil.INSTRUMENTATION_METRICS == null || dataFile == null) return null;
+    transformer.setMetrics(new TransformationMetrics());
+    final File file = TransformationMetrics.getMetricsFile(dataFile, OptionsUtil.INSTRUMENTATION_METRICS);
+    ErrorReporter.printInfo("Instrumentation metrics are saved to " + file);
+    return file;
+  }
+
+  private void saveMetrics(TransformationMetrics metrics, File file) {
+    try {
+      metrics.save(file);
+    } catch (IOException e) {
+      ErrorReporter.warn("Failed to save instrumentation metrics to " + file, e);
+    }
+  }
+
   private void logPatterns(List<Pattern> patterns, String name) {
     if (patterns.isEmpty()) return;
     ErrorReporter.printInfo(name + " patterns:");
@@ -137,6 +182,7 @@ public class Instrumentator {
 
   private TestTrackingMode createTestTrackingMode(boolean traceLines) {
     if (!traceLines) return null;
+    if (OptionsUtil.CONCURRENT_TEST_TRACKING) return new TestTrackingConcurrentMode();
     return OptionsUtil.NEW_TEST_TRACKING_ENABLED ? new TestTrackingArrayMode() : new TestTrackingClassDataMode();
   }
 }
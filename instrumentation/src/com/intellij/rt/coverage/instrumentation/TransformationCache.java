@@ -0,0 +1,570 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.data.*;
+import com.intellij.rt.coverage.data.instructions.ClassInstructions;
+import com.intellij.rt.coverage.instrumentation.data.FilteredMethodStorage;
+import com.intellij.rt.coverage.instrumentation.data.ProjectContext;
+import com.intellij.rt.coverage.util.CoverageIOUtil;
+import com.intellij.rt.coverage.util.ErrorReporter;
+import com.intellij.rt.coverage.util.OptionsUtil;
+import org.jetbrains.coverage.gnu.trove.TIntArrayList;
+import org.jetbrains.coverage.gnu.trove.TIntHashSet;
+
+import java.io.*;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent cache of instrumented classes shared between JVM runs.
+ * <p>
+ * An entry is keyed by a hash of the original class bytes, the instrumentation options and the agent jar,
+ * and it contains the instrumented bytes together with everything instrumentation registers in the project data:
+ * line, jump and switch layout, hits mask size, source, SMAP and ignored lines.
+ * So a class found in the cache is not parsed with ASM at all.
+ * <p>
+ * Frames of an instrumented class depend on the hierarchy of other classes, so the common super classes
+ * computed during instrumentation are saved too, and an entry is used only if they are the same in the current class loader.
+ * <p>
+ * The entries are files in the cache directory, their modification time is the last access time.
+ * When the cache exceeds its size limit, the least recently used entries are deleted at JVM shutdown.
+ * Enabled with <code>idea.coverage.transformation.cache.dir</code>.
+ */
+public class TransformationCache {
+  private static final int MAGIC = 0x49435443;
+  private static final int FORMAT_VERSION = 2;
+  private static final String EXTENSION = ".class.cache";
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final File myDirectory;
+  private final long myMaxSize;
+  private final byte[] myFingerprint;
+
+  private final AtomicInteger myHits = new AtomicInteger();
+  private final AtomicInteger myMisses = new AtomicInteger();
+  private final AtomicLong myStoredSize = new AtomicLong();
+
+  public TransformationCache(File directory, long maxSize, InstrumentationOptions options) {
+    myDirectory = directory;
+    myMaxSize = maxSize;
+    myFingerprint = getFingerprint(options);
+  }
+
+  /**
+   * Create a cache configured with system properties.
+   *
+   * @return cache or <code>null</code> if the cache is disabled or cannot be used with these options
+   */
+  public static TransformationCache createFromSystemProperties(InstrumentationOptions options) {
+    if (OptionsUtil.TRANSFORMATION_CACHE_DIR == null || !isApplicable(options)) return null;
+    final File directory = new File(OptionsUtil.TRANSFORMATION_CACHE_DIR);
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      ErrorReporter.warn("Failed to create transformation cache directory " + directory.getPath());
+      return null;
+    }
+    return new TransformationCache(directory, OptionsUtil.TRANSFORMATION_CACHE_SIZE_MB * 1024L * 1024L, options);
+  }
+
+  /**
+   * Instrumentation in these modes registers data that is not saved in the cache,
+   * or the result depends on other classes instrumented before.
+   */
+  static boolean isApplicable(InstrumentationOptions options) {
+    return options.testTrackingMode == null
+        && !options.isInstructionCoverage
+        && options.includeAnnotations.isEmpty()
+        && options.excludeAnnotations.isEmpty()
+        && !OptionsUtil.TEST_MODE;
+  }
+
+  public byte[] getKey(byte[] classBytes, String className, boolean computeFrames) {
+    final MessageDigest digest = createDigest();
+    digest.update(myFingerprint);
+    digest.update(className.getBytes());
+    digest.update((byte) (computeFrames ? 1 : 0));
+    digest.update(classBytes);
+    return digest.digest();
+  }
+
+  /**
+   * @return cached entry or <code>null</code> if the class is not in the cache or the entry cannot be read
+   */
+  public Entry load(byte[] key, String className) {
+    final File file = getFile(key);
+    if (!file.exists()) {
+      myMisses.incrementAndGet();
+      return null;
+    }
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      final Entry entry = Entry.read(in, className);
+      if (entry == null) {
+        myMisses.incrementAndGet();
+        return null;
+      }
+      // modification time is used as access time for eviction
+      file.setLastModified(System.currentTimeMillis());
+      myHits.incrementAndGet();
+      return entry;
+    } catch (IOException e) {
+      // the entry may be deleted by eviction in another process
+      myMisses.incrementAndGet();
+      return null;
+    } finally {
+      CoverageIOUtil.close(in);
+    }
+  }
+
+  public void store(byte[] key, String className, Entry entry) {
+    final File file = getFile(key);
+    File tmpFile = null;
+    DataOutputStream out = null;
+    try {
+      tmpFile = File.createTempFile("entry", ".tmp", myDirectory);
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+      entry.write(out, className);
+      out.close();
+      out = null;
+      if (tmpFile.renameTo(file)) {
+        myStoredSize.addAndGet(file.length());
+        tmpFile = null;
+      }
+    } catch (IOException e) {
+      ErrorReporter.info("Failed to save class to transformation cache: " + className, e);
+    } finally {
+      CoverageIOUtil.close(out);
+      if (tmpFile != null) {
+        tmpFile.delete();
+      }
+    }
+  }
+
+  /**
+   * Delete the least recently used entries if the cache exceeds its size limit.
+   * Nothing is done if no entries have been added by this JVM.
+   */
+  public void evict() {
+    if (myStoredSize.get() == 0) return;
+    final File[] files = myDirectory.listFiles(new FileFilter() {
+      public boolean accept(File file) {
+        return file.getName().endsWith(EXTENSION);
+      }
+    });
+    if (files == null) return;
+    final long[] lastModified = new long[files.length];
+    long size = 0;
+    for (int i = 0; i < files.length; i++) {
+      size += files[i].length();
+      lastModified[i] = files[i].lastModified();
+    }
+    if (size <= myMaxSize) return;
+    final Integer[] order = new Integer[files.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer o1, Integer o2) {
+        final long t1 = lastModified[o1];
+        final long t2 = lastModified[o2];
+        return t1 < t2 ? -1 : t1 == t2 ? 0 : 1;
+      }
+    });
+    for (int i = 0; i < order.length && size > myMaxSize; i++) {
+      final File file = files[order[i]];
+      final long length = file.length();
+      if (file.delete()) {
+        size -= length;
+      }
+    }
+  }
+
+  public int getHits() {
+    return myHits.get();
+  }
+
+  public int getMisses() {
+    return myMisses.get();
+  }
+
+  public String getStatistics() {
+    return "Transformation cache: " + myHits.get() + " hits, " + myMisses.get() + " misses, "
+        + myStoredSize.get() / 1024 + "KB added";
+  }
+
+  private File getFile(byte[] key) {
+    return new File(myDirectory, toHex(key) + EXTENSION);
+  }
+
+  /**
+   * Options and flags that affect instrumented bytes.
+   */
+  private static byte[] getFingerprint(InstrumentationOptions options) {
+    final StringBuilder builder = new StringBuilder();
+    builder.append(options.isBranchCoverage)
+        .append(';').append(options.isCalculateHits)
+        .append(';').append(options.isSaveSource)
+        .append(';').append(OptionsUtil.FIELD_INSTRUMENTATION_ENABLED)
+        .append(';').append(OptionsUtil.CONDY_ENABLED)
+        .append(';').append(OptionsUtil.HITS_STRIPES > 1)
+        .append(';').append(OptionsUtil.IGNORE_LOCAL_FUNCTIONS_IN_IGNORED_METHODS)
+        .append(';').append(OptionsUtil.PRESERVE_FRAMES);
+    appendAgentIdentity(builder);
+    return digest(builder.toString());
+  }
+
+  /**
+   * Entry format and the agent jar identity, which is used instead of the agent version.
+   */
+  public static void appendAgentIdentity(StringBuilder builder) {
+    builder.append(';').append(FORMAT_VERSION);
+    try {
+      final CodeSource codeSource = TransformationCache.class.getProtectionDomain().getCodeSource();
+      final URL location = codeSource == null ? null : codeSource.getLocation();
+      if (location != null) {
+        builder.append(';').append(location);
+        if ("file".equals(location.getProtocol())) {
+          final File agentFile = new File(location.getPath());
+          builder.append(';').append(agentFile.length()).append(';').append(agentFile.lastModified());
+        }
+      }
+    } catch (SecurityException ignored) {
+    }
+  }
+
+  static byte[] digest(String s) {
+    return createDigest().digest(s.getBytes());
+  }
+
+  public static String toHex(byte[] bytes) {
+    final char[] result = new char[2 * bytes.length];
+    for (int i = 0; i < bytes.length; i++) {
+      result[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+      result[2 * i + 1] = HEX[bytes[i] & 0xF];
+    }
+    return new String(result);
+  }
+
+  private static MessageDigest createDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Result of a class instrumentation or analysis. It is filled during instrumentation and then saved,
+   * or it is loaded from the cache and applied instead of instrumentation.
+   * <p>
+   * Instrumented bytes are absent in the entries of unloaded classes analysis, see {@link UnloadedCache}.
+   * Lines are absent if the class has been ignored by a class filter.
+   */
+  public static class Entry {
+    private byte[] myBytes;
+    private String[] myCommonSuperClasses;
+    private LineData[] myLines;
+    private int myMaskSize = -1;
+    private String mySource;
+    private String mySourceDebug;
+    private String myOuterClassName;
+    private int[] myIgnoredLines;
+    private int[] myInstructions;
+    private String[] myInherits;
+    private String[] myIgnoredMethods;
+    private String[] myIncludedMethods;
+
+    public byte[] getBytes() {
+      return myBytes;
+    }
+
+    /**
+     * @return flattened triples of the common super class arguments and the result
+     */
+    public String[] getCommonSuperClasses() {
+      return myCommonSuperClasses;
+    }
+
+    void setResult(byte[] bytes, List<String> commonSuperClasses) {
+      myBytes = bytes;
+      myCommonSuperClasses = commonSuperClasses.toArray(new String[0]);
+    }
+
+    public void setClassData(LineData[] lines, int maskSize, String source, TIntHashSet ignoredLines) {
+      myLines = lines;
+      myMaskSize = maskSize;
+      mySource = source;
+      myIgnoredLines = ignoredLines == null ? null : ignoredLines.toArray();
+    }
+
+    public void setSourceDebug(String sourceDebug) {
+      mySourceDebug = sourceDebug;
+    }
+
+    public void setOuterClassName(String outerClassName) {
+      myOuterClassName = outerClassName;
+    }
+
+    /**
+     * @param instructions number of instructions by line, jump and switch id
+     */
+    public void setInstructions(int[] instructions) {
+      myInstructions = instructions;
+    }
+
+    /**
+     * Save the data that the class registers in the project context for other classes.
+     */
+    void setContextData(ProjectContext projectContext, String className) {
+      final FilteredMethodStorage storage = projectContext.getFilteredStorage();
+      myIgnoredMethods = storage.getMethods(className, false);
+      myIncludedMethods = storage.getMethods(className, true);
+      final Map<String, String[]> inherits = projectContext.getInherits();
+      myInherits = inherits == null ? null : inherits.get(className);
+    }
+
+    boolean isComplete() {
+      return myBytes != null && myLines != null;
+    }
+
+    boolean hasLines() {
+      return myLines != null;
+    }
+
+    /**
+     * Register the class in the project data as its instrumentation does, see {@link InstrumentationVisitor}.
+     */
+    void apply(ProjectData projectData, ProjectContext projectContext, String className) {
+      addMethods(projectContext, className, myIgnoredMethods, false);
+      addMethods(projectContext, className, myIncludedMethods, true);
+      if (myInherits != null) {
+        final String[] inherits = new String[myInherits.length];
+        for (int i = 0; i < inherits.length; i++) {
+          inherits[i] = projectContext.getFromPool(myInherits[i]);
+        }
+        projectContext.addInherits(className, inherits);
+      }
+      if (myLines == null) return;
+      if (mySourceDebug != null) {
+        final FileMapData[] mapping = JSR45Util.extractLineMapping(mySourceDebug, className);
+        if (mapping != null) {
+          projectContext.addLineMaps(className, mapping);
+        }
+      }
+      final String source = mySource == null ? null : projectContext.getFromPool(mySource);
+      if (myOuterClassName != null) {
+        final ClassData outerClass = projectData.getOrCreateClassData(projectContext.getFromPool(myOuterClassName));
+        if (outerClass.getSource() == null) {
+          outerClass.setSource(source);
+        }
+      }
+      for (LineData line : myLines) {
+        if (line != null) {
+          line.setMethodSignature(projectContext.getFromPool(line.getMethodSignature()));
+        }
+      }
+      final ClassData classData = projectData.getOrCreateClassData(className);
+      classData.setLines(myLines);
+      classData.createMask(myMaskSize, projectContext.getOptions().isCalculateHits);
+      classData.setSource(source);
+      if (myIgnoredLines != null) {
+        projectContext.addIgnoredLines(className, new TIntHashSet(myIgnoredLines));
+      }
+      if (myInstructions != null) {
+        final ClassInstructions classInstructions = new ClassInstructions(classData, new TIntArrayList(myInstructions));
+        projectData.getInstructions().put(classData.getName(), classInstructions);
+      }
+    }
+
+    private static void addMethods(ProjectContext projectContext, String className, String[] methods, boolean included) {
+      if (methods == null) return;
+      for (String method : methods) {
+        projectContext.getFilteredStorage().addMethod(className, method, included);
+      }
+    }
+
+    void write(DataOutputStream out, String className) throws IOException {
+      out.writeInt(MAGIC);
+      CoverageIOUtil.writeINT(out, FORMAT_VERSION);
+      CoverageIOUtil.writeUTF(out, className);
+      CoverageIOUtil.writeINT(out, myBytes == null ? -1 : myBytes.length);
+      if (myBytes != null) {
+        out.write(myBytes);
+      }
+      writeStrings(out, myCommonSuperClasses);
+      writeStrings(out, myIgnoredMethods);
+      writeStrings(out, myIncludedMethods);
+      writeStrings(out, myInherits);
+      CoverageIOUtil.writeINT(out, myLines == null ? -1 : myLines.length);
+      if (myLines == null) return;
+      CoverageIOUtil.writeINT(out, myMaskSize);
+      writeNullable(out, mySource);
+      writeNullable(out, mySourceDebug);
+      writeNullable(out, myOuterClassName);
+      writeInts(out, myIgnoredLines);
+      writeInts(out, myInstructions);
+      for (LineData line : myLines) {
+        out.writeBoolean(line != null);
+        if (line != null) {
+          writeLine(out, line);
+        }
+      }
+    }
+
+    /**
+     * @return entry or <code>null</code> if the entry format is not supported or the class name does not match
+     */
+    static Entry read(DataInputStream in, String className) throws IOException {
+      if (in.readInt() != MAGIC) return null;
+      if (CoverageIOUtil.readINT(in) != FORMAT_VERSION) return null;
+      if (!className.equals(CoverageIOUtil.readUTFFast(in))) return null;
+      final Entry entry = new Entry();
+      final int bytesLength = CoverageIOUtil.readINT(in);
+      if (bytesLength >= 0) {
+        entry.myBytes = new byte[bytesLength];
+        in.readFully(entry.myBytes);
+      }
+      entry.myCommonSuperClasses = readStrings(in);
+      entry.myIgnoredMethods = readStrings(in);
+      entry.myIncludedMethods = readStrings(in);
+      entry.myInherits = readStrings(in);
+      final int linesLength = CoverageIOUtil.readINT(in);
+      if (linesLength < 0) return entry;
+      entry.myMaskSize = CoverageIOUtil.readINT(in);
+      entry.mySource = readNullable(in);
+      entry.mySourceDebug = readNullable(in);
+      entry.myOuterClassName = readNullable(in);
+      entry.myIgnoredLines = readInts(in);
+      entry.myInstructions = readInts(in);
+      entry.myLines = new LineData[linesLength];
+      for (int i = 0; i < entry.myLines.length; i++) {
+        if (in.readBoolean()) {
+          entry.myLines[i] = readLine(in);
+        }
+      }
+      return entry;
+    }
+
+    private static void writeLine(DataOutputStream out, LineData line) throws IOException {
+      CoverageIOUtil.writeINT(out, line.getLineNumber());
+      CoverageIOUtil.writeUTF(out, line.getMethodSignature());
+      CoverageIOUtil.writeINT(out, line.getId());
+      final JumpData[] jumps = line.getJumps();
+      CoverageIOUtil.writeINT(out, jumps == null ? 0 : jumps.length);
+      if (jumps != null) {
+        for (JumpData jump : jumps) {
+          CoverageIOUtil.writeINT(out, jump.getId(true));
+          CoverageIOUtil.writeINT(out, jump.getId(false));
+        }
+      }
+      final SwitchData[] switches = line.getSwitches();
+      CoverageIOUtil.writeINT(out, switches == null ? 0 : switches.length);
+      if (switches != null) {
+        for (SwitchData switchData : switches) {
+          final int[] keys = switchData.getKeys();
+          writeInts(out, keys);
+          for (int i = -1; i < keys.length; i++) {
+            CoverageIOUtil.writeINT(out, switchData.getId(i));
+          }
+        }
+      }
+    }
+
+    private static LineData readLine(DataInputStream in) throws IOException {
+      final LineData line = new LineData(CoverageIOUtil.readINT(in), CoverageIOUtil.readUTFFast(in));
+      line.setId(CoverageIOUtil.readINT(in));
+      final int jumps = CoverageIOUtil.readINT(in);
+      for (int i = 0; i < jumps; i++) {
+        final JumpData jump = line.addJump(i);
+        jump.setId(CoverageIOUtil.readINT(in), true);
+        jump.setId(CoverageIOUtil.readINT(in), false);
+      }
+      final int switches = CoverageIOUtil.readINT(in);
+      for (int s = 0; s < switches; s++) {
+        final int[] keys = readInts(in);
+        final SwitchData switchData = line.addSwitch(s, keys);
+        for (int i = -1; i < keys.length; i++) {
+          final int id = CoverageIOUtil.readINT(in);
+          if (id != -1) {
+            switchData.setId(id, i);
+          }
+        }
+      }
+      line.fillArrays();
+      return line;
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+      out.writeBoolean(value != null);
+      if (value != null) {
+        CoverageIOUtil.writeUTF(out, value);
+      }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+      return in.readBoolean() ? CoverageIOUtil.readUTFFast(in) : null;
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] values) throws IOException {
+      CoverageIOUtil.writeINT(out, values == null ? -1 : values.length);
+      if (values == null) return;
+      for (String value : values) {
+        CoverageIOUtil.writeUTF(out, value);
+      }
+    }
+
+    private static String[] readStrings(DataInputStream in) throws IOException {
+      final int length = CoverageIOUtil.readINT(in);
+      if (length < 0) return null;
+      final String[] values = new String[length];
+      for (int i = 0; i < length; i++) {
+        values[i] = CoverageIOUtil.readUTFFast(in);
+      }
+      return values;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+      if (values == null) {
+        CoverageIOUtil.writeINT(out, -1);
+        return;
+      }
+      CoverageIOUtil.writeINT(out, values.length);
+      for (int value : values) {
+        CoverageIOUtil.writeINT(out, value);
+      }
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+      final int length = CoverageIOUtil.readINT(in);
+      if (length < 0) return null;
+      final int[] values = new int[length];
+      for (int i = 0; i < length; i++) {
+        values[i] = CoverageIOUtil.readINT(in);
+      }
+      return values;
+    }
+  }
+}
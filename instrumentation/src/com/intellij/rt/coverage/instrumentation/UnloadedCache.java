@@ -0,0 +1,228 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.instrumentation.data.ProjectContext;
+import com.intellij.rt.coverage.util.CoverageIOUtil;
+import com.intellij.rt.coverage.util.ErrorReporter;
+import com.intellij.rt.coverage.util.OptionsUtil;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Persistent cache of unloaded classes analysis, see {@link UnloadedUtil}.
+ * <p>
+ * A class is identified by its file path, size and modification time, or by the CRC of a jar entry,
+ * so the bytecode is not hashed. An entry contains the analysis result, see {@link TransformationCache.Entry}.
+ * <p>
+ * Analysis of a class may depend on the classes with the same outermost class analysed before it,
+ * e.g. an anonymous class in a method excluded by annotation. So the key of a class also includes the keys of these classes,
+ * see {@link #getKey(String, String)}.
+ * <p>
+ * All entries are stored in one file. The file is loaded at the start of the analysis and rewritten at the end.
+ * Entries that have not been used for {@link #MAX_UNUSED_SAVES} analyses are dropped.
+ * Enabled with <code>idea.coverage.unloaded.cache</code>.
+ */
+public class UnloadedCache {
+  private static final int MAGIC = 0x49435543;
+  private static final int FORMAT_VERSION = 1;
+  private static final int MAX_UNUSED_SAVES = 8;
+
+  private final File myFile;
+  private final String myFingerprint;
+  private final Map<String, byte[]> myOldEntries = new HashMap<String, byte[]>();
+  private final Map<String, Integer> myOldEntriesAge = new HashMap<String, Integer>();
+  private final ConcurrentMap<String, byte[]> myUsedEntries = new ConcurrentHashMap<String, byte[]>();
+
+  private final AtomicInteger myHits = new AtomicInteger();
+  private final AtomicInteger myMisses = new AtomicInteger();
+
+  public UnloadedCache(File file, ProjectContext context) {
+    myFile = file;
+    myFingerprint = getFingerprint(context);
+    load();
+  }
+
+  /**
+   * @return cache or <code>null</code> if the cache is disabled
+   */
+  public static UnloadedCache createFromSystemProperties(ProjectContext context) {
+    if (OptionsUtil.UNLOADED_CACHE == null) return null;
+    return new UnloadedCache(new File(OptionsUtil.UNLOADED_CACHE), context);
+  }
+
+  /**
+   * @param fileKey     identity of the class file, see {@link com.intellij.rt.coverage.util.classFinder.ClassEntry#getFileKey()}
+   * @param previousKey key of the previous class with the same outermost class, an empty string for the first class,
+   *                    or <code>null</code> if it is unknown
+   * @return key or <code>null</code> if the class cannot be cached
+   */
+  public String getKey(String fileKey, String previousKey) {
+    if (fileKey == null || previousKey == null) return null;
+    return TransformationCache.toHex(TransformationCache.digest(myFingerprint + '\n' + fileKey + '\n' + previousKey));
+  }
+
+  /**
+   * @return cached entry or <code>null</code> if the class is not in the cache
+   */
+  public TransformationCache.Entry load(String key, String className) {
+    byte[] bytes = myUsedEntries.get(key);
+    if (bytes == null) {
+      bytes = myOldEntries.get(key);
+    }
+    if (bytes != null) {
+      try {
+        final TransformationCache.Entry entry = TransformationCache.Entry.read(new DataInputStream(new ByteArrayInputStream(bytes)), className);
+        if (entry != null) {
+          myUsedEntries.put(key, bytes);
+          myHits.incrementAndGet();
+          return entry;
+        }
+      } catch (IOException e) {
+        ErrorReporter.info("Failed to read unloaded class from cache: " + className, e);
+      }
+    }
+    myMisses.incrementAndGet();
+    return null;
+  }
+
+  public void store(String key, String className, TransformationCache.Entry entry) {
+    try {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      final DataOutputStream out = new DataOutputStream(bytes);
+      entry.write(out, className);
+      out.close();
+      myUsedEntries.put(key, bytes.toByteArray());
+    } catch (IOException e) {
+      ErrorReporter.info("Failed to save unloaded class to cache: " + className, e);
+    }
+  }
+
+  public int getHits() {
+    return myHits.get();
+  }
+
+  public int getMisses() {
+    return myMisses.get();
+  }
+
+  /**
+   * Write the entries used in this analysis and the recently used old entries.
+   */
+  public void save() {
+    final File parent = myFile.getAbsoluteFile().getParentFile();
+    if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+      ErrorReporter.warn("Failed to create unloaded classes cache directory " + parent.getPath());
+      return;
+    }
+    File tmpFile = null;
+    DataOutputStream out = null;
+    try {
+      tmpFile = File.createTempFile("unloaded", ".tmp", parent);
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+      out.writeInt(MAGIC);
+      CoverageIOUtil.writeINT(out, FORMAT_VERSION);
+      int count = myUsedEntries.size();
+      for (Map.Entry<String, Integer> e : myOldEntriesAge.entrySet()) {
+        if (!myUsedEntries.containsKey(e.getKey()) && e.getValue() < MAX_UNUSED_SAVES) count++;
+      }
+      CoverageIOUtil.writeINT(out, count);
+      for (Map.Entry<String, byte[]> e : myUsedEntries.entrySet()) {
+        writeEntry(out, e.getKey(), 0, e.getValue());
+      }
+      for (Map.Entry<String, byte[]> e : myOldEntries.entrySet()) {
+        final int age = myOldEntriesAge.get(e.getKey());
+        if (!myUsedEntries.containsKey(e.getKey()) && age < MAX_UNUSED_SAVES) {
+          writeEntry(out, e.getKey(), age + 1, e.getValue());
+        }
+      }
+      out.close();
+      out = null;
+      if (!tmpFile.renameTo(myFile) && !(myFile.delete() && tmpFile.renameTo(myFile))) {
+        ErrorReporter.warn("Failed to save unloaded classes cache " + myFile.getPath());
+      } else {
+        tmpFile = null;
+      }
+    } catch (IOException e) {
+      ErrorReporter.warn("Failed to save unloaded classes cache " + myFile.getPath(), e);
+    } finally {
+      CoverageIOUtil.close(out);
+      if (tmpFile != null) {
+        tmpFile.delete();
+      }
+    }
+  }
+
+  private void load() {
+    if (!myFile.isFile()) return;
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(myFile)));
+      if (in.readInt() != MAGIC || CoverageIOUtil.readINT(in) != FORMAT_VERSION) return;
+      final int count = CoverageIOUtil.readINT(in);
+      for (int i = 0; i < count; i++) {
+        final String key = CoverageIOUtil.readUTFFast(in);
+        final int age = CoverageIOUtil.readINT(in);
+        final byte[] bytes = new byte[CoverageIOUtil.readINT(in)];
+        in.readFully(bytes);
+        myOldEntries.put(key, bytes);
+        myOldEntriesAge.put(key, age);
+      }
+    } catch (IOException e) {
+      ErrorReporter.info("Failed to load unloaded classes cache " + myFile.getPath(), e);
+      myOldEntries.clear();
+      myOldEntriesAge.clear();
+    } finally {
+      CoverageIOUtil.close(in);
+    }
+  }
+
+  private static void writeEntry(DataOutputStream out, String key, int age, byte[] bytes) throws IOException {
+    CoverageIOUtil.writeUTF(out, key);
+    CoverageIOUtil.writeINT(out, age);
+    CoverageIOUtil.writeINT(out, bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Options that affect the analysis result.
+   */
+  private static String getFingerprint(ProjectContext context) {
+    final InstrumentationOptions options = context.getOptions();
+    final StringBuilder builder = new StringBuilder();
+    builder.append(options.isBranchCoverage)
+        .append(';').append(options.isCalculateHits)
+        .append(';').append(options.isSaveSource)
+        .append(';').append(options.isInstructionCoverage)
+        .append(';').append(context.shouldCollectInherits())
+        .append(';').append(OptionsUtil.IGNORE_LOCAL_FUNCTIONS_IN_IGNORED_METHODS);
+    for (Pattern pattern : options.includeAnnotations) {
+      builder.append(";+").append(pattern.pattern());
+    }
+    for (Pattern pattern : options.excludeAnnotations) {
+      builder.append(";-").append(pattern.pattern());
+    }
+    TransformationCache.appendAgentIdentity(builder);
+    return TransformationCache.toHex(TransformationCache.digest(builder.toString()));
+  }
+}
@@ -23,7 +23,9 @@ import com.intellij.rt.coverage.data.ProjectData;
 import com.intellij.rt.coverage.data.instructions.InstructionsUtil;
 import com.intellij.rt.coverage.instrumentation.data.ProjectContext;
 import com.intellij.rt.coverage.instrumentation.dataAccess.EmptyCoverageDataAccess;
+import com.intellij.rt.coverage.util.ClassNameUtil;
 import com.intellij.rt.coverage.util.ErrorReporter;
+import com.intellij.rt.coverage.util.OptionsUtil;
 import com.intellij.rt.coverage.util.classFinder.ClassEntry;
 import com.intellij.rt.coverage.util.classFinder.ClassFinder;
 import org.jetbrains.coverage.org.objectweb.asm.ClassReader;
@@ -31,13 +33,23 @@ import org.jetbrains.coverage.org.objectweb.asm.ClassVisitor;
 import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
 import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Some classes may be untouched during application execution, so these classes
  * have not been seen by coverage engine. In order to consider such classes in overall statistics,
  * coverage engine can analyse bytecode of these classes on disk.
+ * <p>
+ * With several threads set in {@link OptionsUtil#UNLOADED_THREADS}, class path entries are scanned concurrently,
+ * and classes are analysed on a worker pool.
+ * The analysis results may be reused between runs, see {@link UnloadedCache}.
  */
 public class UnloadedUtil {
   public static final MethodVisitor EMPTY_METHOD_VISITOR = new MethodVisitor(Opcodes.API_VERSION) {
@@ -59,17 +71,42 @@ public class UnloadedUtil {
     appendUnloaded(projectData, context, false);
   }
 
-  private static void appendUnloaded(final ProjectData projectData, final ProjectContext context, final boolean finalizeCoverage) {
+  private static void appendUnloaded(ProjectData projectData, ProjectContext context, boolean finalizeCoverage) {
+    final UnloadedCache cache = UnloadedCache.createFromSystemProperties(context);
+    appendUnloaded(projectData, context, finalizeCoverage, cache);
+    if (cache != null) {
+      cache.save();
+      ErrorReporter.info("Unloaded classes cache: " + cache.getHits() + " hits, " + cache.getMisses() + " misses");
+    }
+  }
+
+  static void appendUnloaded(final ProjectData projectData, final ProjectContext context, final boolean finalizeCoverage,
+                             final UnloadedCache cache) {
+    if (OptionsUtil.UNLOADED_THREADS > 1) {
+      new ConcurrentAnalysis(projectData, context, finalizeCoverage, cache, OptionsUtil.UNLOADED_THREADS).run();
+      return;
+    }
+    // keys of the last class in each group, see UnloadedCache.getKey
+    final Map<String, String> lastKeys = new HashMap<String, String>();
     context.getClassFinder().iterateMatchedClasses(new ClassEntry.Consumer() {
       public void consume(ClassEntry classEntry) {
-        final ClassData cd = projectData.getClassData(classEntry.getClassName());
+        final String className = classEntry.getClassName();
+        String key = null;
+        if (cache != null) {
+          final String groupName = ClassNameUtil.getOuterClassName(className);
+          final String previousKey = lastKeys.containsKey(groupName) ? lastKeys.get(groupName) : "";
+          key = cache.getKey(classEntry.getFileKey(), previousKey);
+          lastKeys.put(groupName, key);
+        }
+        final ClassData cd = projectData.getClassData(className);
         if (cd != null && cd.getLines() != null && cd.isFullyAnalysed()) return;
         try {
+          if (appendCachedClass(projectData, className, context, finalizeCoverage, cache, key)) return;
           final InputStream is = classEntry.getClassInputStream();
           if (is == null) return;
-          appendUnloadedClass(projectData, classEntry.getClassName(), new ClassReader(is), context, finalizeCoverage);
+          appendUnloadedClass(projectData, className, new ClassReader(is), context, finalizeCoverage, cache, key);
         } catch (Throwable e) {
-          ErrorReporter.info("Failed to process unloaded class: " + classEntry.getClassName() + ", error: " + e.getMessage(), e);
+          ErrorReporter.info("Failed to process unloaded class: " + className + ", error: " + e.getMessage(), e);
         }
       }
     });
@@ -78,14 +115,42 @@ public class UnloadedUtil {
   @SuppressWarnings("unused") // used in IntelliJ
   public static void appendUnloadedClass(ProjectData projectData, String className, ClassReader reader, boolean branchCoverage) {
     InstrumentationOptions options = new InstrumentationOptions.Builder().setBranchCoverage(branchCoverage).build();
-    appendUnloadedClass(projectData, className, reader, new ProjectContext(options), true);
+    appendUnloadedClass(projectData, className, reader, new ProjectContext(options), true, null, null);
+  }
+
+  /**
+   * @return true if the class has been found in the cache
+   */
+  private static boolean appendCachedClass(ProjectData projectData, String className, ProjectContext context,
+                                           boolean finalizeCoverage, UnloadedCache cache, String key) {
+    if (key == null) return false;
+    final TransformationCache.Entry entry = cache.load(key, className);
+    if (entry == null) return false;
+    entry.apply(projectData, context, context.getFromPool(className));
+    if (entry.hasLines()) {
+      finishUnloadedClass(projectData, className, context, finalizeCoverage);
+    }
+    return true;
   }
 
-  private static void appendUnloadedClass(ProjectData projectData, String className, ClassReader reader, ProjectContext context, boolean finalizeCoverage) {
+  private static void appendUnloadedClass(ProjectData projectData, String className, ClassReader reader, ProjectContext context,
+                                          boolean finalizeCoverage, UnloadedCache cache, String key) {
+    final TransformationCache.Entry entry = key == null ? null : new TransformationCache.Entry();
     ClassVisitor cv = InstrumentationStrategy.createInstrumenter(projectData, className, reader,
-        EMPTY_CLASS_VISITOR, context, EmptyCoverageDataAccess.INSTANCE);
+        EMPTY_CLASS_VISITOR, context, EmptyCoverageDataAccess.INSTANCE, entry);
+    if (cv != null) {
+      reader.accept(cv, ClassReader.SKIP_FRAMES);
+    }
+    if (entry != null) {
+      // store before the lines are modified by finalization
+      entry.setContextData(context, context.getFromPool(className));
+      cache.store(key, className, entry);
+    }
     if (cv == null) return;
-    reader.accept(cv, ClassReader.SKIP_FRAMES);
+    finishUnloadedClass(projectData, className, context, finalizeCoverage);
+  }
+
+  private static void finishUnloadedClass(ProjectData projectData, String className, ProjectContext context, boolean finalizeCoverage) {
     final ClassData classData = projectData.getClassData(className);
     if (classData == null || classData.getLines() == null) return;
     final LineData[] lines = (LineData[]) classData.getLines();
@@ -97,4 +162,158 @@ public class UnloadedUtil {
       context.dropLineMappings(projectData, classData);
     }
   }
+
+  /**
+   * Classes are analysed in groups by the outermost class name, classes of one group are analysed sequentially
+   * in the order they have been found, as an inner class analysis may depend on its outer class.
+   * For example, annotation filters check whether the outer class or method has been excluded.
+   * So different threads never modify the same <code>ClassData</code>.
+   * <p>
+   * The number of classes read and not yet analysed is limited, so a fast scan does not keep all the bytecode in memory.
+   */
+  private static class ConcurrentAnalysis {
+    private static final int MAX_PENDING_CLASSES_PER_THREAD = 256;
+
+    private final ProjectData myProjectData;
+    private final ProjectContext myContext;
+    private final boolean myFinalizeCoverage;
+    private final UnloadedCache myCache;
+    private final int myThreads;
+    private final int myMaxPending;
+
+    private final ConcurrentMap<String, Boolean> myClaimedClasses = new ConcurrentHashMap<String, Boolean>();
+    private final ConcurrentMap<String, Group> myGroups = new ConcurrentHashMap<String, Group>();
+    private final Semaphore myPending;
+    private ExecutorService myWorkers;
+
+    private ConcurrentAnalysis(ProjectData projectData, ProjectContext context, boolean finalizeCoverage,
+                               UnloadedCache cache, int threads) {
+      myProjectData = projectData;
+      myContext = context;
+      myFinalizeCoverage = finalizeCoverage;
+      myCache = cache;
+      myThreads = threads;
+      myMaxPending = threads * MAX_PENDING_CLASSES_PER_THREAD;
+      myPending = new Semaphore(myMaxPending);
+    }
+
+    void run() {
+      // scanning blocks when too many classes are pending, so it must not share threads with the analysis
+      final ExecutorService scanners = createExecutor(myThreads, "Scan");
+      myWorkers = createExecutor(myThreads, "Analysis");
+      try {
+        myContext.getClassFinder().iterateMatchedClasses(new ClassEntry.Consumer() {
+          public void consume(ClassEntry classEntry) {
+            submit(classEntry);
+          }
+        }, scanners);
+        // all permits are returned when all the classes are analysed
+        myPending.acquireUninterruptibly(myMaxPending);
+      } finally {
+        scanners.shutdownNow();
+        myWorkers.shutdownNow();
+      }
+    }
+
+    private void submit(ClassEntry classEntry) {
+      final String className = classEntry.getClassName();
+      final Group group = getGroup(ClassNameUtil.getOuterClassName(className));
+      final ClassData cd = myProjectData.getClassData(className);
+      // the same class may be found in several entries
+      if (cd != null && cd.getLines() != null && cd.isFullyAnalysed()
+          || myClaimedClasses.putIfAbsent(className, Boolean.TRUE) != null) {
+        group.add(className, classEntry.getFileKey(), null);
+        return;
+      }
+      ClassReader reader = null;
+      try {
+        final InputStream is = classEntry.getClassInputStream();
+        if (is != null) {
+          reader = new ClassReader(is);
+        }
+      } catch (IOException e) {
+        ErrorReporter.info("Failed to process unloaded class: " + className + ", error: " + e.getMessage(), e);
+      }
+      if (reader != null) {
+        myPending.acquireUninterruptibly();
+      }
+      group.add(className, classEntry.getFileKey(), reader);
+    }
+
+    private Group getGroup(String groupName) {
+      Group group = myGroups.get(groupName);
+      if (group == null) {
+        final Group newGroup = new Group();
+        group = myGroups.putIfAbsent(groupName, newGroup);
+        if (group == null) {
+          group = newGroup;
+        }
+      }
+      return group;
+    }
+
+    private void analyse(String className, ClassReader reader, String key) {
+      try {
+        final ClassData cd = myProjectData.getClassData(className);
+        if (cd != null && cd.getLines() != null && cd.isFullyAnalysed()) return;
+        if (appendCachedClass(myProjectData, className, myContext, myFinalizeCoverage, myCache, key)) return;
+        appendUnloadedClass(myProjectData, className, reader, myContext, myFinalizeCoverage, myCache, key);
+      } catch (Throwable e) {
+        ErrorReporter.info("Failed to process unloaded class: " + className + ", error: " + e.getMessage(), e);
+      } finally {
+        myPending.release();
+      }
+    }
+
+    private static ExecutorService createExecutor(int threads, final String name) {
+      return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        private final AtomicInteger myCounter = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+          final Thread thread = new Thread(r, "IntelliJ Coverage Unloaded " + name + " " + myCounter.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+
+    /**
+     * Classes of a group are analysed one after another, at most one task per group is scheduled at a time.
+     * Cache keys are chained in the same order as the classes are analysed.
+     */
+    private class Group implements Runnable {
+      private final Queue<Object[]> myQueue = new LinkedList<Object[]>();
+      private boolean myScheduled;
+      private String myLastKey = "";
+
+      /**
+       * @param reader class to analyse, or <code>null</code> if the class is skipped and only affects the cache keys
+       */
+      void add(String className, String fileKey, ClassReader reader) {
+        synchronized (this) {
+          final String key = myCache == null ? null : myCache.getKey(fileKey, myLastKey);
+          myLastKey = key;
+          if (reader == null) return;
+          myQueue.add(new Object[]{className, reader, key});
+          if (myScheduled) return;
+          myScheduled = true;
+        }
+        myWorkers.execute(this);
+      }
+
+      public void run() {
+        while (true) {
+          final Object[] next;
+          synchronized (this) {
+            next = myQueue.poll();
+            if (next == null) {
+              myScheduled = false;
+              return;
+            }
+          }
+          analyse((String) next[0], (ClassReader) next[1], (String) next[2]);
+        }
+      }
+    }
+  }
 }
@@ -21,8 +21,10 @@ import com.intellij.rt.coverage.instrumentation.filters.KotlinUtils;
 import com.intellij.rt.coverage.instrumentation.filters.branches.KotlinDefaultArgsBranchFilter;
 import com.intellij.rt.coverage.util.ClassNameUtil;
 
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.regex.Pattern;
 
@@ -32,8 +34,11 @@ public class FilteredMethodStorage {
    */
   private static final String CLASS_MARKER = "__$$CLASS_MARKER$$__()V";
 
-  private Set<String> myIncludedMethods;
-  private Set<String> myIgnoredMethods;
+  /**
+   * Method signatures by owner class name.
+   */
+  private Map<String, Set<String>> myIncludedMethods;
+  private Map<String, Set<String>> myIgnoredMethods;
 
   public boolean checkClassIncluded(InstrumentationData context) {
     if (isNoFilters(context)) return true;
@@ -92,15 +97,30 @@ public class FilteredMethodStorage {
    * It is used for local function determination.
    */
   public synchronized boolean isMethodNameRegistered(String owner, String methodName, boolean included) {
-    Set<String> methods = included ? myIncludedMethods : myIgnoredMethods;
+    Set<String> methods = getMethodsInternal(owner, included);
     if (methods == null) return false;
-    String target = owner + "#" + methodName;
     for (String candidate : methods) {
-      if (candidate.startsWith(target)) return true;
+      if (candidate.startsWith(methodName)) return true;
     }
     return false;
   }
 
+  /**
+   * @return signatures of the methods registered for the owner class, or <code>null</code> if there are none
+   */
+  public synchronized String[] getMethods(String owner, boolean included) {
+    Set<String> methods = getMethodsInternal(owner, included);
+    return methods == null ? null : methods.toArray(new String[0]);
+  }
+
+  /**
+   * @return true if no methods are registered, so instrumentation does not depend on other classes
+   */
+  public synchronized boolean isEmpty() {
+    return (myIgnoredMethods == null || myIgnoredMethods.isEmpty())
+        && (myIncludedMethods == null || myIncludedMethods.isEmpty());
+  }
+
   public void addIgnoredMethod(String owner, String methodSignature) {
     addMethod(owner, methodSignature, false);
   }
@@ -152,24 +172,30 @@ public class FilteredMethodStorage {
   }
 
   private synchronized boolean isMethodRegisteredInternal(String owner, String methodSignature, boolean included) {
-    Set<String> methods = included ? myIncludedMethods : myIgnoredMethods;
-    return methods != null && methods.contains(createDesc(owner, methodSignature));
+    Set<String> methods = getMethodsInternal(owner, included);
+    return methods != null && methods.contains(methodSignature);
   }
 
   public synchronized void addMethod(String owner, String methodSignature, boolean included) {
-    Set<String> methods = included ? myIncludedMethods : myIgnoredMethods;
-    if (methods == null) {
-      methods = new HashSet<String>();
+    Map<String, Set<String>> classes = included ? myIncludedMethods : myIgnoredMethods;
+    if (classes == null) {
+      classes = new HashMap<String, Set<String>>();
       if (included) {
-        myIncludedMethods = methods;
+        myIncludedMethods = classes;
       } else {
-        myIgnoredMethods = methods;
+        myIgnoredMethods = classes;
       }
     }
-    methods.add(createDesc(owner, methodSignature));
+    Set<String> methods = classes.get(owner);
+    if (methods == null) {
+      methods = new HashSet<String>();
+      classes.put(owner, methods);
+    }
+    methods.add(methodSignature);
   }
 
-  private static String createDesc(String owner, String methodSignature) {
-    return owner + "#" + methodSignature;
+  private Set<String> getMethodsInternal(String owner, boolean included) {
+    Map<String, Set<String>> classes = included ? myIncludedMethods : myIgnoredMethods;
+    return classes == null ? null : classes.get(owner);
   }
 }
@@ -17,6 +17,7 @@
 package com.intellij.rt.coverage.instrumentation.data;
 
 import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.instrumentation.TransformationCache;
 import org.jetbrains.coverage.org.objectweb.asm.ClassReader;
 
 import java.util.List;
@@ -31,6 +32,8 @@ public class Key<T> {
   public static final Key<String> CLASS_INTERNAL_NAME = new Key<String>();
   public static final Key<Integer> CLASS_ACCESS = new Key<Integer>();
   public static final Key<String[]> INTERFACES = new Key<String[]>();
+  public static final Key<TransformationCache.Entry> TRANSFORMATION = new Key<TransformationCache.Entry>();
+  public static final Key<Boolean> PRESERVE_FRAMES = new Key<Boolean>();
 
   public static final Key<Integer> METHOD_ACCESS = new Key<Integer>();
   public static final Key<String> METHOD_NAME = new Key<String>();
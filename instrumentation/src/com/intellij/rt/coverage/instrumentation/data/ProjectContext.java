@@ -20,17 +20,15 @@ import com.intellij.rt.coverage.data.*;
 import com.intellij.rt.coverage.data.instructions.InstructionsUtil;
 import com.intellij.rt.coverage.instrumentation.InstrumentationOptions;
 import com.intellij.rt.coverage.util.ArrayUtil;
-import com.intellij.rt.coverage.util.ClassNameUtil;
+import com.intellij.rt.coverage.util.ClassNameMatcher;
 import com.intellij.rt.coverage.util.LineMapper;
 import com.intellij.rt.coverage.util.StringsPool;
 import com.intellij.rt.coverage.util.classFinder.ClassFinder;
 import org.jetbrains.coverage.gnu.trove.TIntHashSet;
 import org.jetbrains.coverage.gnu.trove.TIntProcedure;
 
-import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Pattern;
 
 public class ProjectContext {
   private final InstrumentationOptions myOptions;
@@ -38,6 +36,8 @@ public class ProjectContext {
 
   private final StringsPool myStringPool = new StringsPool();
   private final FilteredMethodStorage myAnnotationStorage = new FilteredMethodStorage();
+  private final ClassNameMatcher myIncludeMatcher;
+  private final ClassNameMatcher myExcludeMatcher;
 
   /**
    * Set of lines that were ignored during instrumentation.
@@ -54,12 +54,28 @@ public class ProjectContext {
   public ProjectContext(InstrumentationOptions options, ClassFinder classFinder) {
     myOptions = options;
     myClassFinder = classFinder;
+    myIncludeMatcher = ClassNameMatcher.create(options.includePatterns);
+    myExcludeMatcher = ClassNameMatcher.create(options.excludePatterns);
   }
 
   public InstrumentationOptions getOptions() {
     return myOptions;
   }
 
+  /**
+   * @return matcher of {@link InstrumentationOptions#includePatterns}
+   */
+  public ClassNameMatcher getIncludeMatcher() {
+    return myIncludeMatcher;
+  }
+
+  /**
+   * @return matcher of {@link InstrumentationOptions#excludePatterns}
+   */
+  public ClassNameMatcher getExcludeMatcher() {
+    return myExcludeMatcher;
+  }
+
   public FilteredMethodStorage getFilteredStorage() {
     return myAnnotationStorage;
   }
@@ -244,9 +260,8 @@ public class ProjectContext {
   }
 
   private boolean shouldIncludeClass(String className) {
-    if (ClassNameUtil.matchesPatterns(className, getOptions().excludePatterns)) return false;
-    List<Pattern> includePatterns = getOptions().includePatterns;
-    return includePatterns == null || includePatterns.isEmpty() || ClassNameUtil.matchesPatterns(className, includePatterns);
+    if (myExcludeMatcher.matches(className)) return false;
+    return myIncludeMatcher.isEmpty() || myIncludeMatcher.matches(className);
   }
 
   private static class BasicLineMapper extends LineMapper<LineData> {
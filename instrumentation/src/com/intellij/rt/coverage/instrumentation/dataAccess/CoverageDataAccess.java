@@ -54,6 +54,14 @@ public abstract class CoverageDataAccess {
     return mv;
   }
 
+  /**
+   * Same as {@link #createMethodVisitor(MethodVisitor, String, boolean)},
+   * the method access and descriptor let an implementation describe frames of the inserted code.
+   */
+  public MethodVisitor createMethodVisitor(MethodVisitor mv, int access, String name, String desc, boolean hasLines) {
+    return createMethodVisitor(mv, name, hasLines);
+  }
+
   /**
    * The init information about a method which should be invoked to get coverage data
    * with its signature and parameter values.
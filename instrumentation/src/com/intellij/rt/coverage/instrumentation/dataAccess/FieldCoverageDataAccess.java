@@ -57,8 +57,13 @@ public class FieldCoverageDataAccess extends CoverageDataAccess {
 
   @Override
   public MethodVisitor createMethodVisitor(MethodVisitor mv, String name, boolean hasLines) {
+    return createMethodVisitor(mv, 0, name, null, hasLines);
+  }
+
+  @Override
+  public MethodVisitor createMethodVisitor(MethodVisitor mv, int access, String name, String desc, boolean hasLines) {
     if (hasLines || myExtraFieldInstrumenter.isInterface() && InstrumentationUtils.CLASS_INIT.equals(name)) {
-      return myExtraFieldInstrumenter.createMethodVisitor(mv, name);
+      return myExtraFieldInstrumenter.createMethodVisitor(mv, access, name, desc);
     }
     return mv;
   }
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation.dataAccess;
+
+import com.intellij.rt.coverage.instrumentation.CoverageRuntime;
+import org.jetbrains.coverage.org.objectweb.asm.ClassVisitor;
+import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
+import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
+
+/**
+ * Access striped hits: the delegate provides all stripes of a class,
+ * and the stripe of the current thread is selected in the beginning of each method.
+ * So the local variable contains an int array, and hits are incremented as usual.
+ */
+public class StripedCoverageDataAccess extends CoverageDataAccess {
+  private final CoverageDataAccess myDelegate;
+
+  public StripedCoverageDataAccess(CoverageDataAccess delegate) {
+    super(createLocalInit(delegate.getInit()));
+    myDelegate = delegate;
+  }
+
+  @Override
+  public void onMethodStart(MethodVisitor mv, int localVariable) {
+    // the local variable holds the stripes only until the stripe is selected
+    myDelegate.onMethodStart(mv, localVariable);
+    mv.visitVarInsn(Opcodes.ALOAD, localVariable);
+    mv.visitMethodInsn(Opcodes.INVOKESTATIC, CoverageRuntime.COVERAGE_RUNTIME_OWNER, "getHitsStripe",
+        "(" + DataAccessUtil.HITS_STRIPES_TYPE + ")" + DataAccessUtil.HITS_ARRAY_TYPE, false);
+    mv.visitVarInsn(Opcodes.ASTORE, localVariable);
+  }
+
+  @Override
+  public void onClassEnd(ClassVisitor cv) {
+    myDelegate.onClassEnd(cv);
+  }
+
+  @Override
+  public MethodVisitor createMethodVisitor(MethodVisitor mv, String name, boolean hasLines) {
+    return myDelegate.createMethodVisitor(mv, name, hasLines);
+  }
+
+  @Override
+  public MethodVisitor createMethodVisitor(MethodVisitor mv, int access, String name, String desc, boolean hasLines) {
+    return myDelegate.createMethodVisitor(mv, access, name, desc, hasLines);
+  }
+
+  private static Init createLocalInit(Init init) {
+    return new Init(init.name, DataAccessUtil.HITS_ARRAY_TYPE, init.initOwner, init.initName, init.initDesc, init.params);
+  }
+}
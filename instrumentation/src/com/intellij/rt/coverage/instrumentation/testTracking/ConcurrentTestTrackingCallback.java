@@ -0,0 +1,195 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation.testTracking;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.util.TestTrackingCallback;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Test tracking callback that collects a separate trace for each running test.
+ * <p>
+ * A test is bound to the thread that has started it and to the threads created from this thread.
+ * Tasks passed to executors could be bound with {@link #bindToCurrentTest(Runnable)}.
+ * Lines executed in a thread that is not bound to a running test are attributed to the running test
+ * if there is only one, as in sequential test tracking.
+ * <p>
+ * Unlike the other modes, the trace mask of a class is not used: a test keeps a line bitset
+ * for each class it has touched, so concurrent tests do not clear each other's data.
+ */
+class ConcurrentTestTrackingCallback extends TestTrackingCallback {
+  private final ThreadLocal<TestTrace> myCurrentTest = new InheritableThreadLocal<TestTrace>();
+  /**
+   * Running tests by name, guarded by itself.
+   */
+  private final Map<String, TestTrace> myRunningTests = new HashMap<String, TestTrace>();
+  /**
+   * The only running test, or null if there are no tests or several tests running.
+   */
+  private volatile TestTrace mySingleTest;
+
+  ConcurrentTestTrackingCallback(File file) {
+    super(file);
+  }
+
+  @Override
+  public void traceLineByTest(Object classData, int line) {
+    final TestTrace trace = getCurrentTest();
+    if (trace != null) {
+      trace.traceLine((ClassData) classData, line);
+    }
+  }
+
+  @Override
+  public void testStarted(String name) {
+    final TestTrace trace = new TestTrace();
+    synchronized (myRunningTests) {
+      myRunningTests.put(name, trace);
+      updateSingleTest();
+    }
+    myCurrentTest.set(trace);
+  }
+
+  @Override
+  public void testEnded(String name) {
+    final TestTrace trace;
+    synchronized (myRunningTests) {
+      trace = myRunningTests.remove(name);
+      updateSingleTest();
+    }
+    final TestTrace current = myCurrentTest.get();
+    if (current != null && (current == trace || current.myEnded)) {
+      myCurrentTest.remove();
+    }
+    if (trace == null) return;
+    trace.myEnded = true;
+
+    final Map<Object, boolean[]> touched = new HashMap<Object, boolean[]>();
+    for (Map.Entry<ClassData, LineSet> entry : trace.myClasses.entrySet()) {
+      touched.put(entry.getKey(), entry.getValue().toArray());
+    }
+    submitTrace(name, touched);
+  }
+
+  @Override
+  public Runnable bindToCurrentTest(final Runnable task) {
+    final TestTrace trace = myCurrentTest.get();
+    if (trace == null) return task;
+    return new Runnable() {
+      public void run() {
+        final TestTrace previous = bind(trace);
+        try {
+          task.run();
+        } finally {
+          bind(previous);
+        }
+      }
+    };
+  }
+
+  @Override
+  public <T> Callable<T> bindToCurrentTest(final Callable<T> task) {
+    final TestTrace trace = myCurrentTest.get();
+    if (trace == null) return task;
+    return new Callable<T>() {
+      public T call() throws Exception {
+        final TestTrace previous = bind(trace);
+        try {
+          return task.call();
+        } finally {
+          bind(previous);
+        }
+      }
+    };
+  }
+
+  private TestTrace bind(TestTrace trace) {
+    final TestTrace previous = myCurrentTest.get();
+    if (trace == null) {
+      myCurrentTest.remove();
+    } else {
+      myCurrentTest.set(trace);
+    }
+    return previous;
+  }
+
+  private TestTrace getCurrentTest() {
+    final TestTrace trace = myCurrentTest.get();
+    if (trace != null && !trace.myEnded) return trace;
+    return mySingleTest;
+  }
+
+  private void updateSingleTest() {
+    mySingleTest = myRunningTests.size() == 1 ? myRunningTests.values().iterator().next() : null;
+  }
+
+  private static class TestTrace {
+    /**
+     * Only the touched classes are stored, so a test costs memory proportional to the code it runs.
+     */
+    private final ConcurrentHashMap<ClassData, LineSet> myClasses = new ConcurrentHashMap<ClassData, LineSet>();
+    private volatile boolean myEnded;
+
+    void traceLine(ClassData classData, int line) {
+      LineSet lines = myClasses.get(classData);
+      if (lines == null) {
+        final LineSet newLines = new LineSet(classData.getLines().length);
+        lines = myClasses.putIfAbsent(classData, newLines);
+        if (lines == null) lines = newLines;
+      }
+      lines.add(line);
+    }
+  }
+
+  /**
+   * Thread-safe bitset of line numbers. A line that is already set is not written again,
+   * so repeated hits of a line from several threads do not contend.
+   */
+  private static class LineSet {
+    private final AtomicLongArray myWords;
+    private final int mySize;
+
+    LineSet(int size) {
+      mySize = size;
+      myWords = new AtomicLongArray((size + 63) >> 6);
+    }
+
+    void add(int line) {
+      if (line < 0 || line >= mySize) return;
+      final int index = line >> 6;
+      final long bit = 1L << line;
+      long word;
+      while (((word = myWords.get(index)) & bit) == 0) {
+        if (myWords.compareAndSet(index, word, word | bit)) return;
+      }
+    }
+
+    boolean[] toArray() {
+      final boolean[] result = new boolean[mySize];
+      for (int i = 0; i < mySize; i++) {
+        result[i] = (myWords.get(i >> 6) & (1L << i)) != 0;
+      }
+      return result;
+    }
+  }
+}
@@ -24,6 +24,7 @@ import com.intellij.rt.coverage.instrumentation.data.InstrumentationData;
 import com.intellij.rt.coverage.instrumentation.data.Key;
 import com.intellij.rt.coverage.instrumentation.dataAccess.CoverageDataAccessVisitor;
 import com.intellij.rt.coverage.instrumentation.dataAccess.DataAccessUtil;
+import com.intellij.rt.coverage.util.SequentialTestTrackingCallback;
 import com.intellij.rt.coverage.util.TestTrackingCallback;
 import org.jetbrains.coverage.org.objectweb.asm.ClassVisitor;
 import org.jetbrains.coverage.org.objectweb.asm.Label;
@@ -45,7 +46,7 @@ import java.io.File;
  */
 public class TestTrackingArrayMode implements TestTrackingMode {
   public TestTrackingCallback createTestTrackingCallback(File file) {
-    return new TestTrackingCallback(file) {
+    return new SequentialTestTrackingCallback(file) {
       public void clearTrace(ClassData classData) {
         classData.getTraceMask()[0] = false;
       }
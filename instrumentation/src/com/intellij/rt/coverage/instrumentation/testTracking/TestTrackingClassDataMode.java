@@ -23,6 +23,7 @@ import com.intellij.rt.coverage.instrumentation.InstrumentationUtils;
 import com.intellij.rt.coverage.instrumentation.data.InstrumentationData;
 import com.intellij.rt.coverage.instrumentation.dataAccess.CoverageDataAccessVisitor;
 import com.intellij.rt.coverage.instrumentation.dataAccess.DataAccessUtil;
+import com.intellij.rt.coverage.util.SequentialTestTrackingCallback;
 import com.intellij.rt.coverage.util.TestTrackingCallback;
 import org.jetbrains.coverage.org.objectweb.asm.*;
 
@@ -33,7 +34,7 @@ import java.io.File;
  */
 public class TestTrackingClassDataMode implements TestTrackingMode {
   public TestTrackingCallback createTestTrackingCallback(File file) {
-    return new TestTrackingCallback(file) {
+    return new SequentialTestTrackingCallback(file) {
       public void clearTrace(ClassData classData) {
         classData.setTraceMask(null);
       }
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation.testTracking;
+
+import com.intellij.rt.coverage.util.TestTrackingCallback;
+
+import java.io.File;
+
+/**
+ * Test tracking mode that supports tests running in parallel.
+ * The instrumentation is the same as in {@link TestTrackingClassDataMode},
+ * but the traces are collected per test, see {@link ConcurrentTestTrackingCallback}.
+ */
+public class TestTrackingConcurrentMode extends TestTrackingClassDataMode {
+  @Override
+  public TestTrackingCallback createTestTrackingCallback(File file) {
+    return new ConcurrentTestTrackingCallback(file);
+  }
+}
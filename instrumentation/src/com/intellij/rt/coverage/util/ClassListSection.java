@@ -18,18 +18,23 @@ package com.intellij.rt.coverage.util;
 
 import com.intellij.rt.coverage.data.ClassData;
 import com.intellij.rt.coverage.data.ProjectData;
+import org.jetbrains.coverage.gnu.trove.TIntIntHashMap;
 import org.jetbrains.coverage.gnu.trove.TIntObjectHashMap;
 import org.jetbrains.coverage.gnu.trove.TObjectIntHashMap;
 import org.jetbrains.coverage.gnu.trove.TObjectIntProcedure;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
 
 /**
  * Basic section that can store additional information per each class.
  */
 public abstract class ClassListSection extends ReportSection {
+  private final TIntIntHashMap myClassOffsets = new TIntIntHashMap();
+
   protected abstract void loadClass(DataInputStream in, ClassData classData, int version) throws IOException;
 
   protected abstract void saveClass(ClassData classData, DataOutput out, int index) throws IOException;
@@ -47,11 +52,20 @@ public abstract class ClassListSection extends ReportSection {
 
   @Override
   protected void saveInternal(final ProjectData projectData, final DataOutput out, TObjectIntHashMap<String> dict) throws IOException {
+    final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    final DataOutputStream recordOut = new DataOutputStream(record);
+    final int[] offset = new int[1];
     try {
       dict.forEachEntry(new TObjectIntProcedure<String>() {
         public boolean execute(String className, int index) {
           try {
-            saveClass(projectData.getClassData(className), out, index);
+            record.reset();
+            saveClass(projectData.getClassData(className), recordOut, index);
+            if (record.size() > 0) {
+              myClassOffsets.put(index, offset[0]);
+              offset[0] += record.size();
+              out.write(record.toByteArray());
+            }
           } catch (IOException e) {
             throw new RuntimeException(e);
           }
@@ -67,4 +81,9 @@ public abstract class ClassListSection extends ReportSection {
     }
     CoverageIOUtil.writeINT(out, -1);
   }
+
+  @Override
+  TIntIntHashMap getClassOffsets() {
+    return myClassOffsets;
+  }
 }
@@ -18,6 +18,7 @@ package com.intellij.rt.coverage.util;
 
 import com.intellij.rt.coverage.data.ClassData;
 import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.data.instructions.InstructionsUtil;
 import com.intellij.rt.coverage.instrumentation.InstrumentationOptions;
 import com.intellij.rt.coverage.instrumentation.UnloadedUtil;
 import com.intellij.rt.coverage.instrumentation.data.ProjectContext;
@@ -46,13 +47,23 @@ public class CoverageReport {
       finalizeCoverage(projectData, projectContext);
 
       InstrumentationOptions options = projectContext.getOptions();
+      if (options.isMergeData && OptionsUtil.MERGE_SPOOL) {
+        ReportSpool.add(projectData, options);
+        return;
+      }
       lock = CoverageIOUtil.FileLock.lock(options.dataFile);
       if (options.isMergeData) {
+        ProjectDataMerger merger = null;
         try {
           ProjectData load = ProjectDataLoader.load(options.dataFile);
-          projectData.merge(load);
+          merger = ProjectDataMerger.create();
+          merger.merge(projectData, load);
         } catch (OutOfMemoryError e) {
           ErrorReporter.warn("Out of memory error occurred during previous report loading. Try to increase memory available for the JVM or write new report to a separate file", e);
+        } finally {
+          if (merger != null) {
+            merger.shutdown();
+          }
         }
       }
 
@@ -80,23 +91,68 @@ public class CoverageReport {
     projectContext.finalizeCoverage(projectData);
   }
 
+  /**
+   * Saves coverage collected so far into a separate file while the application keeps running.
+   * Hits are read from copies of the runtime arrays, so the project data is not modified,
+   * and the final report is not affected by the dump.
+   * The dump is written into a temporary file first and then moved to <code>dumpFile</code>,
+   * so that the previous dump stays intact if the process is killed in the middle of saving.
+   */
+  public static void dump(ProjectData projectData, ProjectContext projectContext, File dumpFile) {
+    try {
+      InstrumentationOptions options = projectContext.getOptions();
+      ProjectData snapshot = new ProjectData();
+      snapshot.setIncludePatterns(options.includePatterns);
+      snapshot.setExcludePatterns(options.excludePatterns);
+      snapshot.setAnnotationsToIgnore(options.excludeAnnotations);
+      snapshot.setInstructionsCoverage(options.isInstructionCoverage);
+      for (ClassData classData : projectData.getClassesCollection()) {
+        if (classData.getLines() == null) continue;
+        snapshot.addClassData(classData.createSnapshot());
+      }
+      InstructionsUtil.merge(projectData, snapshot, null);
+      projectContext.finalizeCoverage(snapshot);
+
+      File tmpFile = new File(dumpFile.getParentFile(), dumpFile.getName() + ".tmp");
+      if (!save(snapshot, options, tmpFile, null)) return;
+      if (!tmpFile.renameTo(dumpFile)) {
+        // rename does not replace an existing file on some platforms
+        dumpFile.delete();
+        if (!tmpFile.renameTo(dumpFile)) {
+          ErrorReporter.warn("Failed to move coverage dump to " + dumpFile.getPath());
+        }
+      }
+    } catch (OutOfMemoryError e) {
+      ErrorReporter.warn("Out of memory error occurred during coverage dump", e);
+    } catch (Throwable e) {
+      ErrorReporter.warn("Unexpected error during coverage dump", e);
+    }
+  }
+
   public static void save(ProjectData projectData, InstrumentationOptions options) {
+    save(projectData, options, options.dataFile, options.sourceMapFile);
+  }
+
+  static boolean save(ProjectData projectData, InstrumentationOptions options, File dataFile, File sourceMapFile) {
     DataOutputStream os = null;
     try {
-      os = CoverageIOUtil.openWriteFile(options.dataFile);
+      os = CoverageIOUtil.openWriteFile(dataFile);
       final TObjectIntHashMap<String> dict = new TObjectIntHashMap<String>();
       final Map<String, ClassData> classes = new HashMap<String, ClassData>(projectData.getClasses());
+      final ReportIndex index = new ReportIndex(classes.size());
       CoverageIOUtil.writeINT(os, classes.size());
       saveDictionary(os, dict, classes);
-      saveData(os, dict, classes);
+      saveData(os, dict, classes, index);
 
       CoverageIOUtil.writeINT(os, ProjectDataLoader.REPORT_VERSION);
       CoverageIOUtil.writeUTF(os, getExtraInfoString());
-      ReportSectionsUtil.saveSections(projectData, os, dict, options);
+      ReportSectionsUtil.saveSections(projectData, os, dict, options, index);
 
-      saveSourceMap(classes, options.sourceMapFile);
+      saveSourceMap(classes, sourceMapFile);
+      return true;
     } catch (IOException e) {
-      ErrorReporter.warn("Error writing file " + options.dataFile.getPath(), e);
+      ErrorReporter.warn("Error writing file " + dataFile.getPath(), e);
+      return false;
     } finally {
       CoverageIOUtil.close(os);
     }
@@ -129,9 +185,8 @@ public class CoverageReport {
     }
   }
 
-  @SuppressWarnings("unused") // used in IntelliJ
   public static void loadAndApplySourceMap(ProjectData projectData, File sourceMapFile) throws IOException {
-    final Map<String, String> map = loadSourceMapFromFile(new HashMap<String, ClassData>(), sourceMapFile);
+    final Map<String, String> map = loadSourceMap(sourceMapFile);
     for (Map.Entry<String, String> entry : map.entrySet()) {
       String className = entry.getKey();
       String source = entry.getValue();
@@ -142,6 +197,13 @@ public class CoverageReport {
     }
   }
 
+  /**
+   * @return source file names by class names
+   */
+  public static Map<String, String> loadSourceMap(File sourceMapFile) throws IOException {
+    return loadSourceMapFromFile(new HashMap<String, ClassData>(), sourceMapFile);
+  }
+
   static Map<String, String> loadSourceMapFromFile(Map<String, ClassData> classes, File sourceMapFile) throws IOException {
     DataInputStream in = null;
     try {
@@ -165,13 +227,15 @@ public class CoverageReport {
     }
   }
 
-  private static void saveData(DataOutputStream os, final TObjectIntHashMap<String> dict, Map<String, ClassData> classes) throws IOException {
+  private static void saveData(DataOutputStream os, final TObjectIntHashMap<String> dict, Map<String, ClassData> classes, ReportIndex index) throws IOException {
+    final DictionaryLookup dictionaryLookup = new DictionaryLookup() {
+      public int getDictionaryIndex(String className) {
+        return dict.containsKey(className) ? dict.get(className) : -1;
+      }
+    };
     for (ClassData o : classes.values()) {
-      o.save(os, new DictionaryLookup() {
-        public int getDictionaryIndex(String className) {
-          return dict.containsKey(className) ? dict.get(className) : -1;
-        }
-      });
+      index.setClassOffset(dict.get(o.getName()), os.size());
+      o.save(os, dictionaryLookup);
     }
   }
 
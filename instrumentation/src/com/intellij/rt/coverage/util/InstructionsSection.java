@@ -65,6 +65,13 @@ public class InstructionsSection extends ClassListSection {
 
   @Override
   protected void loadClass(DataInputStream in, ClassData classData, int version) throws IOException {
+    myProjectData.getInstructions().put(classData.getName(), readClass(in, classData));
+  }
+
+  /**
+   * Read instructions of a class, the lines of the class must be loaded.
+   */
+  static ClassInstructions readClass(DataInputStream in, ClassData classData) throws IOException {
     final LineData[] lines = (LineData[]) classData.getLines();
     final LineInstructions[] instructions = new LineInstructions[lines.length];
     for (LineData lineData : lines) {
@@ -88,7 +95,7 @@ public class InstructionsSection extends ClassListSection {
         }
       }
     }
-    myProjectData.getInstructions().put(classData.getName(), new ClassInstructions(instructions));
+    return new ClassInstructions(instructions);
   }
 
   @Override
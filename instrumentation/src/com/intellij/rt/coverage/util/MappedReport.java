@@ -0,0 +1,383 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.util;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.data.instructions.ClassInstructions;
+import org.jetbrains.coverage.gnu.trove.TObjectIntHashMap;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Read-only view of a binary coverage report mapped into memory.
+ * <p>
+ * On opening, offsets of the class records are read from the {@link ReportIndex} at the end of the report.
+ * Reports without index are scanned once instead: the scan decodes numbers
+ * directly from the mapped buffer and skips strings without creating objects.
+ * After that, a single class can be loaded without loading the whole report, see {@link #loadClass(String)}.
+ * The full report can be loaded with {@link #load()}, which is equivalent to {@link ProjectDataLoader#load(File)}.
+ * <p>
+ * Note that the mapping is held until the view is garbage collected, and on Windows a mapped file cannot be
+ * overwritten or deleted. Use this view for reading reports that are not modified anymore, e.g. in the reporter.
+ */
+public class MappedReport {
+  private static final int NO_OFFSET = -1;
+
+  private final File myFile;
+  private final ByteBuffer myBuffer;
+  private final StringsPool myPool = new StringsPool();
+
+  private String[] myClassNames;
+  private TObjectIntHashMap<String> myClassIndex;
+  /**
+   * Offsets of class records in the main part by class index.
+   * Taken from the {@link ReportIndex} if the report has one, otherwise found by scanning.
+   */
+  private int[] myClassOffsets;
+  /**
+   * Number of lines without hits by class index, only needed to scan a report without index.
+   * Branches of such lines are stored in a separate section.
+   */
+  private int[] myUncoveredLines;
+  /**
+   * Offsets of class records in the uncovered branches section by class index, or <code>null</code> if the section is absent.
+   */
+  private int[] myUncoveredBranchesOffsets;
+  private int myUncoveredBranchesVersion;
+  private boolean[] myPartlyAnalysed;
+  private boolean myHasInstructions;
+  /**
+   * Offsets of class records in the instructions section by class index, only available in a report with index.
+   */
+  private int[] myInstructionsOffsets;
+
+  private MappedReport(File file, ByteBuffer buffer) {
+    myFile = file;
+    myBuffer = buffer;
+  }
+
+  public static MappedReport open(File file) throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+    final ByteBuffer buffer;
+    try {
+      final FileChannel channel = raf.getChannel();
+      final long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Report file is too large to be mapped: " + file.getAbsolutePath());
+      }
+      // the mapping stays valid after the channel is closed
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    } finally {
+      CoverageIOUtil.close(raf);
+    }
+    final MappedReport report = new MappedReport(file, buffer);
+    try {
+      report.index();
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Unexpected end of coverage report: " + file.getAbsolutePath());
+    } catch (IndexOutOfBoundsException e) {
+      throw new IOException("Corrupted coverage report: " + file.getAbsolutePath());
+    }
+    return report;
+  }
+
+  public int getClassCount() {
+    return myClassNames.length;
+  }
+
+  public List<String> getClassNames() {
+    return Collections.unmodifiableList(Arrays.asList(myClassNames));
+  }
+
+  public boolean containsClass(String className) {
+    return myClassIndex.containsKey(className);
+  }
+
+  /**
+   * Load coverage data of a single class.
+   * Uncovered branches and fully analysed flag are loaded as well, instructions are only available via {@link #load()}.
+   *
+   * @return class data or <code>null</code> if the report does not contain this class
+   */
+  public ClassData loadClass(String className) throws IOException {
+    if (!myClassIndex.containsKey(className)) return null;
+    final int index = myClassIndex.get(className);
+    final ClassData classData = new ClassData(myClassNames[index]);
+    final int offset = myClassOffsets[index];
+    if (offset == NO_OFFSET) return classData;
+    ProjectDataLoader.loadClassLines(openRecord(offset), classData, myClassNames, myPool);
+
+    if (myUncoveredBranchesOffsets != null && myUncoveredBranchesOffsets[index] != NO_OFFSET) {
+      new UncoveredBranchesSection().loadClass(openRecord(myUncoveredBranchesOffsets[index]), classData, myUncoveredBranchesVersion);
+    }
+    if (myPartlyAnalysed != null && myPartlyAnalysed[index]) {
+      classData.setFullyAnalysed(false);
+    }
+    return classData;
+  }
+
+  /**
+   * Check whether a class has lines without loading it.
+   */
+  public boolean hasLines(String className) {
+    if (!myClassIndex.containsKey(className)) return false;
+    final int offset = myClassOffsets[myClassIndex.get(className)];
+    if (offset == NO_OFFSET) return false;
+    final ByteBuffer buffer = myBuffer.duplicate();
+    buffer.position(offset);
+    CoverageIOUtil.readINT(buffer);
+    final int methods = CoverageIOUtil.readINT(buffer);
+    for (int m = 0; m < methods; m++) {
+      CoverageIOUtil.skipUTF(buffer);
+      // lines of a method are only skipped if there are none
+      if (CoverageIOUtil.readINT(buffer) > 0) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Instructions of a single class can be loaded if the report has no instructions or has an index.
+   */
+  public boolean canLoadInstructions() {
+    return !myHasInstructions || myInstructionsOffsets != null;
+  }
+
+  /**
+   * Load instructions of a class loaded with {@link #loadClass(String)}.
+   *
+   * @return class instructions or <code>null</code> if the report has no instructions for this class
+   */
+  public ClassInstructions loadInstructions(ClassData classData) throws IOException {
+    if (myInstructionsOffsets == null || classData.getLines() == null) return null;
+    if (!myClassIndex.containsKey(classData.getName())) return null;
+    final int offset = myInstructionsOffsets[myClassIndex.get(classData.getName())];
+    if (offset == NO_OFFSET) return null;
+    return InstructionsSection.readClass(openRecord(offset), classData);
+  }
+
+  /**
+   * Load the whole report.
+   */
+  public ProjectData load() {
+    final ProjectData projectData = new ProjectData();
+    if (myBuffer.capacity() == 0) return projectData;
+    try {
+      ProjectDataLoader.load(projectData, createStream(0));
+    } catch (Exception e) {
+      ErrorReporter.warn("Failed to load coverage data from file: " + myFile.getAbsolutePath(), e);
+    }
+    return projectData;
+  }
+
+  /**
+   * Open a class record, the class index at the record start is skipped.
+   */
+  private DataInputStream openRecord(int offset) throws IOException {
+    final DataInputStream in = createStream(offset);
+    CoverageIOUtil.readINT(in);
+    return in;
+  }
+
+  private DataInputStream createStream(int offset) {
+    final ByteBuffer buffer = myBuffer.duplicate();
+    buffer.position(offset);
+    return new DataInputStream(new ByteBufferInputStream(buffer));
+  }
+
+  private void index() throws IOException {
+    final ByteBuffer buffer = myBuffer.duplicate();
+    if (!buffer.hasRemaining()) {
+      myClassNames = new String[0];
+      myClassIndex = new TObjectIntHashMap<String>();
+      return;
+    }
+    final int classCount = CoverageIOUtil.readINT(buffer);
+    myClassNames = new String[classCount];
+    myClassIndex = new TObjectIntHashMap<String>(classCount);
+    for (int c = 0; c < classCount; c++) {
+      final String className = myPool.getFromPool(CoverageIOUtil.readUTFFast(buffer));
+      myClassNames[c] = className;
+      myClassIndex.put(className, c);
+    }
+    myClassOffsets = new int[classCount];
+    Arrays.fill(myClassOffsets, NO_OFFSET);
+
+    final ReportIndex reportIndex = ReportIndex.read(myBuffer);
+    if (reportIndex != null && reportIndex.getClassCount() == classCount) {
+      for (int c = 0; c < classCount; c++) {
+        myClassOffsets[c] = reportIndex.getClassOffset(c);
+      }
+      readIndexedSections(reportIndex);
+      return;
+    }
+
+    // the report has no index, scan it
+    myUncoveredLines = new int[classCount];
+    for (int c = 0; c < classCount; c++) {
+      final int offset = buffer.position();
+      final int index = CoverageIOUtil.readINT(buffer);
+      myClassOffsets[index] = offset;
+      myUncoveredLines[index] = skipClass(buffer);
+    }
+    indexSections(buffer);
+  }
+
+  /**
+   * @return number of lines without hits
+   */
+  private static int skipClass(ByteBuffer buffer) {
+    int uncoveredLines = 0;
+    final int methods = CoverageIOUtil.readINT(buffer);
+    for (int m = 0; m < methods; m++) {
+      CoverageIOUtil.skipUTF(buffer);
+      final int lines = CoverageIOUtil.readINT(buffer);
+      for (int l = 0; l < lines; l++) {
+        CoverageIOUtil.readINT(buffer);
+        CoverageIOUtil.skipUTF(buffer);
+        final int hits = CoverageIOUtil.readINT(buffer);
+        if (hits <= 0) {
+          uncoveredLines++;
+          continue;
+        }
+        final int jumps = CoverageIOUtil.readINT(buffer);
+        for (int j = 0; j < 2 * jumps; j++) {
+          CoverageIOUtil.readINT(buffer);
+        }
+        final int switches = CoverageIOUtil.readINT(buffer);
+        for (int s = 0; s < switches; s++) {
+          CoverageIOUtil.readINT(buffer);
+          final int keys = CoverageIOUtil.readINT(buffer);
+          for (int k = 0; k < 2 * keys; k++) {
+            CoverageIOUtil.readINT(buffer);
+          }
+        }
+      }
+    }
+    return uncoveredLines;
+  }
+
+  private void indexSections(ByteBuffer buffer) {
+    // old format, no extra info
+    if (!buffer.hasRemaining()) return;
+    final int version = CoverageIOUtil.readINT(buffer);
+    if (version > ProjectDataLoader.REPORT_VERSION) return;
+    CoverageIOUtil.skipUTF(buffer);
+
+    final int numberOfSections = CoverageIOUtil.readINT(buffer);
+    for (int i = 0; i < numberOfSections; i++) {
+      final int sectionId = CoverageIOUtil.readINT(buffer);
+      final int size = CoverageIOUtil.readINT(buffer);
+      final int sectionVersion = CoverageIOUtil.readINT(buffer);
+      final int end = buffer.position() + size;
+      if (sectionId == ReportSectionsUtil.UNCOVERED_BRANCHES_SECTION_ID && sectionVersion <= new UncoveredBranchesSection().getVersion()) {
+        indexUncoveredBranches(buffer, sectionVersion);
+      } else if (sectionId == ReportSectionsUtil.PARTLY_ANALYSED_CLASSES_SECTION_ID && sectionVersion <= new PartlyAnalysedClassesSection().getVersion()) {
+        readPartlyAnalysed(buffer);
+      } else if (sectionId == ReportSectionsUtil.INSTRUCTIONS_SECTION_ID) {
+        // records cannot be found without loading the classes
+        myHasInstructions = true;
+      }
+      buffer.position(end);
+    }
+  }
+
+  private void indexUncoveredBranches(ByteBuffer buffer, int version) {
+    myUncoveredBranchesVersion = version;
+    myUncoveredBranchesOffsets = new int[myClassNames.length];
+    Arrays.fill(myUncoveredBranchesOffsets, NO_OFFSET);
+    int offset = buffer.position();
+    int classId = CoverageIOUtil.readINT(buffer);
+    while (classId != -1) {
+      myUncoveredBranchesOffsets[classId] = offset;
+      for (int l = 0; l < myUncoveredLines[classId]; l++) {
+        CoverageIOUtil.readINT(buffer);
+        final int switches = CoverageIOUtil.readINT(buffer);
+        for (int s = 0; s < switches; s++) {
+          CoverageIOUtil.readINT(buffer);
+        }
+      }
+      offset = buffer.position();
+      classId = CoverageIOUtil.readINT(buffer);
+    }
+  }
+
+  private void readPartlyAnalysed(ByteBuffer buffer) {
+    myPartlyAnalysed = new boolean[myClassNames.length];
+    int classId = CoverageIOUtil.readINT(buffer);
+    while (classId != -1) {
+      myPartlyAnalysed[classId] = true;
+      classId = CoverageIOUtil.readINT(buffer);
+    }
+  }
+
+  private void readIndexedSections(ReportIndex reportIndex) {
+    final int uncoveredBranchesId = ReportSectionsUtil.UNCOVERED_BRANCHES_SECTION_ID;
+    final ByteBuffer buffer = openSection(reportIndex, uncoveredBranchesId, new UncoveredBranchesSection().getVersion());
+    if (buffer != null) {
+      final int dataStart = buffer.position();
+      myUncoveredBranchesOffsets = new int[myClassNames.length];
+      for (int c = 0; c < myClassNames.length; c++) {
+        final int offset = reportIndex.getSectionClassOffset(uncoveredBranchesId, c);
+        myUncoveredBranchesOffsets[c] = offset == ReportIndex.NO_OFFSET ? NO_OFFSET : dataStart + offset;
+      }
+    }
+    final ByteBuffer partlyAnalysed = openSection(reportIndex, ReportSectionsUtil.PARTLY_ANALYSED_CLASSES_SECTION_ID,
+        new PartlyAnalysedClassesSection().getVersion());
+    if (partlyAnalysed != null) {
+      readPartlyAnalysed(partlyAnalysed);
+    }
+    final int instructionsId = ReportSectionsUtil.INSTRUCTIONS_SECTION_ID;
+    myHasInstructions = reportIndex.getSectionOffset(instructionsId) != ReportIndex.NO_OFFSET;
+    final ByteBuffer instructions = openSection(reportIndex, instructionsId, new InstructionsSection(null).getVersion());
+    if (instructions != null) {
+      final int dataStart = instructions.position();
+      myInstructionsOffsets = new int[myClassNames.length];
+      for (int c = 0; c < myClassNames.length; c++) {
+        final int offset = reportIndex.getSectionClassOffset(instructionsId, c);
+        myInstructionsOffsets[c] = offset == ReportIndex.NO_OFFSET ? NO_OFFSET : dataStart + offset;
+      }
+    }
+  }
+
+  /**
+   * @return buffer positioned at the section data start, or <code>null</code> if the section is absent or not supported
+   */
+  private ByteBuffer openSection(ReportIndex reportIndex, int sectionId, int supportedVersion) {
+    final int offset = reportIndex.getSectionOffset(sectionId);
+    if (offset == ReportIndex.NO_OFFSET) return null;
+    final ByteBuffer buffer = myBuffer.duplicate();
+    buffer.position(offset);
+    CoverageIOUtil.readINT(buffer);
+    CoverageIOUtil.readINT(buffer);
+    final int version = CoverageIOUtil.readINT(buffer);
+    if (version > supportedVersion) return null;
+    if (sectionId == ReportSectionsUtil.UNCOVERED_BRANCHES_SECTION_ID) {
+      myUncoveredBranchesVersion = version;
+    }
+    return buffer;
+  }
+}
@@ -34,6 +34,11 @@ import java.io.IOException;
  * @since 05-May-2009
  */
 public class ProjectDataLoader {
+  /**
+   * Version of the report format: sections are saved after the main part, see {@link ReportSectionsUtil}.
+   * The index for random access is saved as the last section, see {@link ReportIndex},
+   * so the reports stay readable by agents that do not know the index.
+   */
   public static final int REPORT_VERSION = 1;
 
   public static ProjectData loadLocked(final File sessionDataFile) {
@@ -52,65 +57,9 @@ public class ProjectDataLoader {
     if (sessionDataFile.length() == 0) {
       return projectInfo;
     }
-    final StringsPool pool = new StringsPool();
     try {
       in = CoverageIOUtil.openReadFile(sessionDataFile);
-      final TIntObjectHashMap<ClassData> dict = new TIntObjectHashMap<ClassData>(1000, 0.99f);
-      final int classCount = CoverageIOUtil.readINT(in);
-      for (int c = 0; c < classCount; c++) {
-        final String className = pool.getFromPool(CoverageIOUtil.readUTFFast(in));
-        final ClassData classInfo = projectInfo.getOrCreateClassData(className);
-        dict.put(c, classInfo);
-      }
-      for (int c = 0; c < classCount; c++) {
-        final ClassData classInfo = dict.get(CoverageIOUtil.readINT(in));
-        final int methCount = CoverageIOUtil.readINT(in);
-        final TIntObjectHashMap<LineData> lines = new TIntObjectHashMap<LineData>(4, 0.99f);
-        int maxLine = -1;
-        for (int m = 0; m < methCount; m++) {
-          final String methodSig = pool.getFromPool(expand(in, dict));
-          final int lineCount = CoverageIOUtil.readINT(in);
-          for (int l = 0; l < lineCount; l++) {
-            final int line = CoverageIOUtil.readINT(in);
-            LineData lineInfo = lines.get(line);
-            if (lineInfo == null) {
-              lineInfo = new LineData(line, methodSig);
-              lines.put(line, lineInfo);
-              if (line > maxLine) maxLine = line;
-            }
-            classInfo.registerMethodSignature(lineInfo);
-            String testName = pool.getFromPool(CoverageIOUtil.readUTFFast(in));
-            if (testName != null && !testName.isEmpty()) {
-              lineInfo.setTestName(testName);
-            }
-            final int hits = CoverageIOUtil.readINT(in);
-            lineInfo.setHits(hits);
-            if (hits > 0) {
-              final int jumpsNumber = CoverageIOUtil.readINT(in);
-              for (int j = 0; j < jumpsNumber; j++) {
-                lineInfo.setTrueHits(j, CoverageIOUtil.readINT(in));
-                lineInfo.setFalseHits(j, CoverageIOUtil.readINT(in));
-              }
-              final int switchesNumber = CoverageIOUtil.readINT(in);
-              for (int s = 0; s < switchesNumber; s++) {
-                final int defaultHit = CoverageIOUtil.readINT(in);
-                final int keysLength = CoverageIOUtil.readINT(in);
-                final int[] keys = new int[keysLength];
-                final int[] keysHits = new int[keysLength];
-                for (int k = 0; k < keysLength; k++) {
-                  keys[k] = CoverageIOUtil.readINT(in);
-                  keysHits[k] = CoverageIOUtil.readINT(in);
-                }
-                lineInfo.setDefaultHits(s, keys, defaultHit);
-                lineInfo.setSwitchHits(s, keys, keysHits);
-              }
-            }
-            lineInfo.fillArrays();
-          }
-        }
-        classInfo.setLines(LinesUtil.calcLineArray(maxLine, lines));
-      }
-      loadExtraInfo(projectInfo, in, dict);
+      load(projectInfo, in);
     } catch (Exception e) {
       ErrorReporter.warn("Failed to load coverage data from file: " + sessionDataFile.getAbsolutePath(), e);
     } finally {
@@ -119,13 +68,82 @@ public class ProjectDataLoader {
     return projectInfo;
   }
 
-  private static String expand(DataInputStream in, final TIntObjectHashMap<ClassData> dict) throws IOException {
+  static void load(ProjectData projectInfo, DataInputStream in) throws IOException {
+    final StringsPool pool = new StringsPool();
+    final TIntObjectHashMap<ClassData> dict = new TIntObjectHashMap<ClassData>(1000, 0.99f);
+    final int classCount = CoverageIOUtil.readINT(in);
+    final String[] classNames = new String[classCount];
+    for (int c = 0; c < classCount; c++) {
+      final String className = pool.getFromPool(CoverageIOUtil.readUTFFast(in));
+      final ClassData classInfo = projectInfo.getOrCreateClassData(className);
+      classNames[c] = className;
+      dict.put(c, classInfo);
+    }
+    for (int c = 0; c < classCount; c++) {
+      final ClassData classInfo = dict.get(CoverageIOUtil.readINT(in));
+      loadClassLines(in, classInfo, classNames, pool);
+    }
+    loadExtraInfo(projectInfo, in, dict);
+  }
+
+  /**
+   * Load lines of a class record. The class index of the record must be already read.
+   */
+  static void loadClassLines(DataInputStream in, ClassData classInfo, String[] classNames, StringsPool pool) throws IOException {
+    final int methCount = CoverageIOUtil.readINT(in);
+    final TIntObjectHashMap<LineData> lines = new TIntObjectHashMap<LineData>(4, 0.99f);
+    int maxLine = -1;
+    for (int m = 0; m < methCount; m++) {
+      final String methodSig = pool.getFromPool(expand(in, classNames));
+      final int lineCount = CoverageIOUtil.readINT(in);
+      for (int l = 0; l < lineCount; l++) {
+        final int line = CoverageIOUtil.readINT(in);
+        LineData lineInfo = lines.get(line);
+        if (lineInfo == null) {
+          lineInfo = new LineData(line, methodSig);
+          lines.put(line, lineInfo);
+          if (line > maxLine) maxLine = line;
+        }
+        classInfo.registerMethodSignature(lineInfo);
+        String testName = pool.getFromPool(CoverageIOUtil.readUTFFast(in));
+        if (testName != null && !testName.isEmpty()) {
+          lineInfo.setTestName(testName);
+        }
+        final int hits = CoverageIOUtil.readINT(in);
+        lineInfo.setHits(hits);
+        if (hits > 0) {
+          final int jumpsNumber = CoverageIOUtil.readINT(in);
+          for (int j = 0; j < jumpsNumber; j++) {
+            lineInfo.setTrueHits(j, CoverageIOUtil.readINT(in));
+            lineInfo.setFalseHits(j, CoverageIOUtil.readINT(in));
+          }
+          final int switchesNumber = CoverageIOUtil.readINT(in);
+          for (int s = 0; s < switchesNumber; s++) {
+            final int defaultHit = CoverageIOUtil.readINT(in);
+            final int keysLength = CoverageIOUtil.readINT(in);
+            final int[] keys = new int[keysLength];
+            final int[] keysHits = new int[keysLength];
+            for (int k = 0; k < keysLength; k++) {
+              keys[k] = CoverageIOUtil.readINT(in);
+              keysHits[k] = CoverageIOUtil.readINT(in);
+            }
+            lineInfo.setDefaultHits(s, keys, defaultHit);
+            lineInfo.setSwitchHits(s, keys, keysHits);
+          }
+        }
+        lineInfo.fillArrays();
+      }
+    }
+    classInfo.setLines(LinesUtil.calcLineArray(maxLine, lines));
+  }
+
+  private static String expand(DataInputStream in, final String[] classNames) throws IOException {
     return CoverageIOUtil.processWithDictionary(CoverageIOUtil.readUTFFast(in), new CoverageIOUtil.Consumer() {
       protected String consume(String type) {
         if (!type.isEmpty() && Character.isDigit(type.charAt(0))) {
           try {
             final int typeIdx = Integer.parseInt(type);
-            return (dict.get(typeIdx)).getName();
+            return classNames[typeIdx];
           } catch (NumberFormatException ignored) {
           }
         }
@@ -134,7 +152,7 @@ public class ProjectDataLoader {
     });
   }
 
-  private static void loadExtraInfo(ProjectData projectData, DataInputStream in, TIntObjectHashMap<ClassData> dict) throws IOException {
+  static void loadExtraInfo(ProjectData projectData, DataInputStream in, TIntObjectHashMap<ClassData> dict) throws IOException {
     final int version;
     try {
       version = CoverageIOUtil.readINT(in);
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.util;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.data.instructions.InstructionsUtil;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Merges coverage data using several threads.
+ * <p>
+ * Classes are split into disjoint partitions by name, and each partition is merged by a single task.
+ * So a <code>ClassData</code> is never modified by two threads at once, and no global lock is required.
+ * Reports are loaded concurrently and each report is merged as soon as it is loaded,
+ * at most <code>parallelism</code> loaded reports are kept in memory at once.
+ * <p>
+ * The merger must be shut down with {@link #shutdown()} after use.
+ */
+public class ProjectDataMerger {
+  /**
+   * Merging fewer classes is done in the calling thread, as splitting the work costs more than it gains.
+   */
+  private static final int MIN_PARALLEL_CLASSES = 512;
+
+  private final int myParallelism;
+  private final ExecutorService myExecutor;
+
+  public ProjectDataMerger(int parallelism) {
+    myParallelism = Math.max(1, parallelism);
+    myExecutor = Executors.newFixedThreadPool(myParallelism, new ThreadFactory() {
+      private final AtomicInteger myCounter = new AtomicInteger();
+
+      public Thread newThread(Runnable r) {
+        final Thread thread = new Thread(r, "IntelliJ Coverage Merge " + myCounter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Create a merger with the number of threads from {@link OptionsUtil#MERGE_THREADS}.
+   */
+  public static ProjectDataMerger create() {
+    return new ProjectDataMerger(OptionsUtil.MERGE_THREADS);
+  }
+
+  public interface ReportProcessor {
+    /**
+     * Called in a loading thread for each loaded report before it is merged.
+     */
+    void process(ProjectData data);
+  }
+
+  /**
+   * Merge <code>source</code> into <code>target</code>, equivalent to {@link ProjectData#merge}.
+   */
+  public void merge(ProjectData target, ProjectData source) {
+    merge(target, source, true);
+  }
+
+  /**
+   * Merge hits of the classes that are present in <code>target</code>, other classes and instructions are skipped.
+   */
+  public void mergeHits(ProjectData target, ProjectData source) {
+    merge(target, source, false);
+  }
+
+  /**
+   * Load binary reports concurrently and merge them into <code>target</code>, see {@link #merge}.
+   */
+  public void loadAndMerge(ProjectData target, List<File> reports, ReportProcessor processor) {
+    loadAndMerge(target, reports, processor, true);
+  }
+
+  /**
+   * Load binary reports concurrently and merge their hits into <code>target</code>, see {@link #mergeHits}.
+   */
+  public void loadAndMergeHits(ProjectData target, List<File> reports, ReportProcessor processor) {
+    loadAndMerge(target, reports, processor, false);
+  }
+
+  public void shutdown() {
+    myExecutor.shutdownNow();
+  }
+
+  private void loadAndMerge(ProjectData target, List<File> reports, final ReportProcessor processor, boolean full) {
+    final CompletionService<ProjectData> loaded = new ExecutorCompletionService<ProjectData>(myExecutor);
+    int submitted = 0;
+    int pending = 0;
+    try {
+      while (submitted < reports.size() || pending > 0) {
+        // keep a limited number of reports loaded at once
+        while (submitted < reports.size() && pending < myParallelism) {
+          final File report = reports.get(submitted++);
+          loaded.submit(new Callable<ProjectData>() {
+            public ProjectData call() {
+              final ProjectData data = ProjectDataLoader.load(report);
+              if (processor != null) {
+                processor.process(data);
+              }
+              return data;
+            }
+          });
+          pending++;
+        }
+        final ProjectData data = get(loaded.take());
+        pending--;
+        merge(target, data, full);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void merge(final ProjectData target, final ProjectData source, final boolean full) {
+    final Collection<ClassData> classes = source.getClassesCollection();
+    if (myParallelism == 1 || classes.size() < MIN_PARALLEL_CLASSES) {
+      mergeClasses(target, source, classes, full);
+      return;
+    }
+    final List<List<ClassData>> partitions = new ArrayList<List<ClassData>>(myParallelism);
+    for (int i = 0; i < myParallelism; i++) {
+      partitions.add(new ArrayList<ClassData>(classes.size() / myParallelism + 1));
+    }
+    for (ClassData classData : classes) {
+      partitions.get((classData.getName().hashCode() & Integer.MAX_VALUE) % myParallelism).add(classData);
+    }
+    final List<Future<?>> futures = new ArrayList<Future<?>>(myParallelism);
+    for (final List<ClassData> partition : partitions) {
+      futures.add(myExecutor.submit(new Runnable() {
+        public void run() {
+          mergeClasses(target, source, partition, full);
+        }
+      }));
+    }
+    try {
+      for (Future<?> future : futures) {
+        get(future);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static void mergeClasses(ProjectData target, ProjectData source, Collection<ClassData> classes, boolean full) {
+    for (ClassData sourceClass : classes) {
+      final String className = sourceClass.getName();
+      ClassData targetClass = target.getClassData(className);
+      if (targetClass == null) {
+        if (!full) continue;
+        // only the partition owner creates this class, so there is no race
+        targetClass = target.getOrCreateClassData(className);
+      }
+      targetClass.merge(sourceClass);
+      if (full) {
+        InstructionsUtil.mergeClass(source, target, className);
+      }
+    }
+  }
+
+  private static <T> T get(Future<T> future) throws InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new RuntimeException(cause);
+    }
+  }
+}
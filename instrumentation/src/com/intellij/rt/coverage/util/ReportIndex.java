@@ -0,0 +1,197 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.util;
+
+import org.jetbrains.coverage.gnu.trove.TIntArrayList;
+import org.jetbrains.coverage.gnu.trove.TIntIntHashMap;
+import org.jetbrains.coverage.gnu.trove.TIntIntProcedure;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Index of a binary report, which allows reading a single class without parsing the whole report.
+ * <p>
+ * The index is saved as the last report section with {@link ReportSectionsUtil#REPORT_INDEX_SECTION_ID},
+ * so readers that do not know the index skip it as an unknown section.
+ * The section data ends with a fixed size trailer: 4-byte offset of the index section and 4-byte {@link #MAGIC} number.
+ * The index contains offsets of class records by dictionary index and offsets of sections.
+ * For sections that are split by classes, offsets of class records relative to the section data start are saved as well.
+ */
+public class ReportIndex {
+  public static final int MAGIC = 0x49434958;
+  public static final int NO_OFFSET = -1;
+  public static final int VERSION = 1;
+  private static final int TRAILER_SIZE = 8;
+
+  private final int[] myClassOffsets;
+  private final TIntArrayList mySectionIds = new TIntArrayList();
+  private final TIntArrayList mySectionOffsets = new TIntArrayList();
+  private final List<TIntIntHashMap> mySectionClassOffsets = new ArrayList<TIntIntHashMap>();
+
+  ReportIndex(int classCount) {
+    myClassOffsets = new int[classCount];
+    Arrays.fill(myClassOffsets, NO_OFFSET);
+  }
+
+  public int getClassCount() {
+    return myClassOffsets.length;
+  }
+
+  /**
+   * @return offset of the class record in the main part or {@link #NO_OFFSET}
+   */
+  public int getClassOffset(int classIndex) {
+    return myClassOffsets[classIndex];
+  }
+
+  /**
+   * @return offset of the section header or {@link #NO_OFFSET} if the report has no such section
+   */
+  public int getSectionOffset(int sectionId) {
+    final int i = mySectionIds.indexOf(sectionId);
+    return i < 0 ? NO_OFFSET : mySectionOffsets.get(i);
+  }
+
+  /**
+   * @return offset of the class record relative to the section data start or {@link #NO_OFFSET}
+   */
+  public int getSectionClassOffset(int sectionId, int classIndex) {
+    final int i = mySectionIds.indexOf(sectionId);
+    if (i < 0) return NO_OFFSET;
+    final TIntIntHashMap offsets = mySectionClassOffsets.get(i);
+    return offsets.containsKey(classIndex) ? offsets.get(classIndex) : NO_OFFSET;
+  }
+
+  void setClassOffset(int classIndex, int offset) {
+    myClassOffsets[classIndex] = offset;
+  }
+
+  void addSection(int sectionId, int offset, TIntIntHashMap classOffsets) {
+    mySectionIds.add(sectionId);
+    mySectionOffsets.add(offset);
+    mySectionClassOffsets.add(classOffsets == null ? new TIntIntHashMap() : classOffsets);
+  }
+
+  /**
+   * Save the index as a report section. The section is empty if the report is too large for the offsets to be saved.
+   */
+  void save(DataOutputStream out) throws IOException {
+    final int indexOffset = out.size();
+    final ByteArrayOutputStream data = new ByteArrayOutputStream();
+    // DataOutputStream counter is saturated, offsets cannot be saved correctly
+    if (indexOffset != Integer.MAX_VALUE) {
+      saveInternal(new DataOutputStream(data));
+    }
+    CoverageIOUtil.writeINT(out, ReportSectionsUtil.REPORT_INDEX_SECTION_ID);
+    CoverageIOUtil.writeINT(out, data.size() == 0 ? 0 : data.size() + TRAILER_SIZE);
+    CoverageIOUtil.writeINT(out, VERSION);
+    if (data.size() == 0) return;
+    data.writeTo(out);
+    out.writeInt(indexOffset);
+    out.writeInt(MAGIC);
+  }
+
+  private void saveInternal(final DataOutputStream out) throws IOException {
+    CoverageIOUtil.writeINT(out, myClassOffsets.length);
+    for (int offset : myClassOffsets) {
+      CoverageIOUtil.writeINT(out, offset);
+    }
+    CoverageIOUtil.writeINT(out, mySectionIds.size());
+    for (int i = 0; i < mySectionIds.size(); i++) {
+      CoverageIOUtil.writeINT(out, mySectionIds.get(i));
+      CoverageIOUtil.writeINT(out, mySectionOffsets.get(i));
+      final TIntIntHashMap classOffsets = mySectionClassOffsets.get(i);
+      CoverageIOUtil.writeINT(out, classOffsets.size());
+      try {
+        classOffsets.forEachEntry(new TIntIntProcedure() {
+          public boolean execute(int classIndex, int offset) {
+            try {
+              CoverageIOUtil.writeINT(out, classIndex);
+              CoverageIOUtil.writeINT(out, offset);
+            } catch (IOException e) {
+              throw new RuntimeException(e);
+            }
+            return true;
+          }
+        });
+      } catch (RuntimeException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Read the index from the end of a report.
+   *
+   * @return index or <code>null</code> if the report has no valid index, e.g. it was written by an older agent
+   */
+  public static ReportIndex read(ByteBuffer report) {
+    final int size = report.limit();
+    if (size < TRAILER_SIZE || report.getInt(size - 4) != MAGIC) return null;
+    final int indexOffset = report.getInt(size - TRAILER_SIZE);
+    if (indexOffset < 0 || indexOffset >= size - TRAILER_SIZE) return null;
+
+    final ByteBuffer in = report.duplicate();
+    in.position(indexOffset);
+    in.limit(size - TRAILER_SIZE);
+    try {
+      if (CoverageIOUtil.readINT(in) != ReportSectionsUtil.REPORT_INDEX_SECTION_ID) return null;
+      CoverageIOUtil.readINT(in); // size
+      final int version = CoverageIOUtil.readINT(in);
+      if (version > VERSION) return null;
+      final int classCount = CoverageIOUtil.readINT(in);
+      if (classCount < 0) return null;
+      final ReportIndex index = new ReportIndex(classCount);
+      for (int i = 0; i < classCount; i++) {
+        index.setClassOffset(i, checkOffset(CoverageIOUtil.readINT(in), indexOffset));
+      }
+      final int sectionCount = CoverageIOUtil.readINT(in);
+      for (int i = 0; i < sectionCount; i++) {
+        final int sectionId = CoverageIOUtil.readINT(in);
+        final int offset = checkOffset(CoverageIOUtil.readINT(in), indexOffset);
+        final int classOffsetsCount = CoverageIOUtil.readINT(in);
+        final TIntIntHashMap classOffsets = new TIntIntHashMap(classOffsetsCount);
+        for (int c = 0; c < classOffsetsCount; c++) {
+          classOffsets.put(CoverageIOUtil.readINT(in), CoverageIOUtil.readINT(in));
+        }
+        index.addSection(sectionId, offset, classOffsets);
+      }
+      return index;
+    } catch (BufferUnderflowException e) {
+      return null;
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private static int checkOffset(int offset, int indexOffset) {
+    if (offset != NO_OFFSET && (offset < 0 || offset >= indexOffset)) {
+      throw new IllegalArgumentException("Offset is out of report bounds: " + offset);
+    }
+    return offset;
+  }
+}
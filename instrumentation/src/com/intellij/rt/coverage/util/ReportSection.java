@@ -19,6 +19,7 @@ package com.intellij.rt.coverage.util;
 import com.intellij.rt.coverage.data.ClassData;
 import com.intellij.rt.coverage.data.ProjectData;
 import com.intellij.rt.coverage.instrumentation.InstrumentationOptions;
+import org.jetbrains.coverage.gnu.trove.TIntIntHashMap;
 import org.jetbrains.coverage.gnu.trove.TIntObjectHashMap;
 import org.jetbrains.coverage.gnu.trove.TObjectIntHashMap;
 
@@ -54,6 +55,16 @@ public abstract class ReportSection {
 
   protected abstract void saveInternal(ProjectData projectData, DataOutput out, TObjectIntHashMap<String> dict) throws IOException;
 
+  /**
+   * Offsets of per-class records relative to the section data start, available after the section is saved.
+   * These offsets are stored in the {@link ReportIndex}.
+   *
+   * @return class index to offset mapping or <code>null</code> if the section is not split by classes
+   */
+  TIntIntHashMap getClassOffsets() {
+    return null;
+  }
+
   /**
    * Save section data. Identifier, size and version are saved before the data.
    */
@@ -35,6 +35,7 @@ public class ReportSectionsUtil {
   public static final int INSTRUCTIONS_SECTION_ID = 2;
   public static final int PARTLY_ANALYSED_CLASSES_SECTION_ID = 3;
   public static final int INCLUDE_PATTERNS_SECTION_ID = 4;
+  public static final int REPORT_INDEX_SECTION_ID = 5;
 
   private static Map<Integer, ReportSection> getSections(ProjectData projectData) {
     final Map<Integer, ReportSection> result = new LinkedHashMap<Integer, ReportSection>();
@@ -55,6 +56,11 @@ public class ReportSectionsUtil {
       final int version = CoverageIOUtil.readINT(in);
       final ReportSection section = sections.get(sectionId);
 
+      if (sectionId == REPORT_INDEX_SECTION_ID) {
+        // the index is used only for random access, see MappedReport
+        in.skipBytes(size);
+        continue;
+      }
       if (section != null) {
         if (version <= section.getVersion()) {
           section.load(projectData, in, dict, version);
@@ -71,12 +77,15 @@ public class ReportSectionsUtil {
   }
 
   public static void saveSections(ProjectData projectData, DataOutputStream out,
-                                  TObjectIntHashMap<String> dict, InstrumentationOptions options) throws IOException {
+                                  TObjectIntHashMap<String> dict, InstrumentationOptions options, ReportIndex index) throws IOException {
     List<ReportSection> sections = getEngagedSections(projectData, options);
-    CoverageIOUtil.writeINT(out, sections.size());
+    CoverageIOUtil.writeINT(out, sections.size() + 1);
     for (ReportSection section : sections) {
+      final int offset = out.size();
       section.save(projectData, out, dict);
+      index.addSection(section.getId(), offset, section.getClassOffsets());
     }
+    index.save(out);
   }
 
   private static List<ReportSection> getEngagedSections(ProjectData projectData, InstrumentationOptions options) {
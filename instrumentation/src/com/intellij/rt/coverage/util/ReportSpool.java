@@ -0,0 +1,174 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.util;
+
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.instrumentation.InstrumentationOptions;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Spool directory for merging reports of many processes that finish simultaneously, e.g. forked test JVMs.
+ * <p>
+ * Instead of waiting for the report lock to merge its data, each process drops its own report into the spool
+ * and tries to take the lock without waiting. The process that takes the lock folds all spooled reports
+ * into the main report. It checks the spool again before and after releasing the lock,
+ * so the reports added by processes that failed to take the lock are folded as well.
+ * <p>
+ * Enabled with <code>idea.coverage.merge.spool=true</code> for reports with merge option on.
+ */
+public class ReportSpool {
+  private static final String SPOOL_SUFFIX = ".spool";
+  private static final String REPORT_EXTENSION = ".ic";
+  private static final String SOURCE_MAP_EXTENSION = ".sm";
+  private static final String TMP_EXTENSION = ".tmp";
+
+  public static File getSpoolDir(File dataFile) {
+    return new File(dataFile.getParentFile(), dataFile.getName() + SPOOL_SUFFIX);
+  }
+
+  /**
+   * Add a report to the spool and fold the spool if no other process is doing it.
+   * Project data must be finalized before.
+   */
+  static void add(ProjectData projectData, InstrumentationOptions options) throws IOException {
+    final File spoolDir = getSpoolDir(options.dataFile);
+    spoolDir.mkdirs();
+    final File tmpFile = File.createTempFile("report", TMP_EXTENSION, spoolDir);
+    final String name = tmpFile.getName().substring(0, tmpFile.getName().length() - TMP_EXTENSION.length());
+    if (options.sourceMapFile != null) {
+      // written before the report appears in the spool
+      CoverageReport.saveSourceMap(projectData.getClasses(), new File(spoolDir, name + SOURCE_MAP_EXTENSION));
+    }
+    if (!CoverageReport.save(projectData, options, tmpFile, null)) {
+      tmpFile.delete();
+      return;
+    }
+    if (!tmpFile.renameTo(new File(spoolDir, name + REPORT_EXTENSION))) {
+      ErrorReporter.warn("Failed to add report to spool " + spoolDir.getPath());
+      return;
+    }
+
+    foldIfUnlocked(options);
+  }
+
+  /**
+   * Fold all spooled reports into the main report.
+   * May be used by a build tool after all processes finish, in case a folding process has failed.
+   */
+  public static void fold(InstrumentationOptions options) {
+    CoverageIOUtil.FileLock lock = null;
+    try {
+      lock = CoverageIOUtil.FileLock.lock(options.dataFile);
+      if (lock == null || !foldLocked(options)) return;
+    } finally {
+      CoverageIOUtil.FileLock.unlock(lock);
+    }
+    foldIfUnlocked(options);
+  }
+
+  /**
+   * A lock holder may have seen the spool empty before a report was added, but not released the lock yet.
+   * The process that added the report fails to take the lock then, so each process checks the spool again
+   * after releasing the lock. It stops once the spool is empty or another process holds the lock,
+   * as that process checks the spool again in turn.
+   */
+  private static void foldIfUnlocked(InstrumentationOptions options) {
+    final File spoolDir = getSpoolDir(options.dataFile);
+    while (hasReports(spoolDir)) {
+      final CoverageIOUtil.FileLock lock = CoverageIOUtil.FileLock.tryLock(options.dataFile);
+      // the lock holder folds the spool
+      if (lock == null) return;
+      try {
+        if (!foldLocked(options)) return;
+      } finally {
+        CoverageIOUtil.FileLock.unlock(lock);
+      }
+    }
+  }
+
+  /**
+   * @return false if the spool could not be folded, so the reports are left in the spool
+   */
+  private static boolean foldLocked(InstrumentationOptions options) {
+    final File spoolDir = getSpoolDir(options.dataFile);
+    while (true) {
+      final File[] reports = listReports(spoolDir);
+      if (reports == null || reports.length == 0) return true;
+
+      final ProjectData projectData = ProjectDataLoader.load(options.dataFile);
+      projectData.setIncludePatterns(options.includePatterns);
+      projectData.setExcludePatterns(options.excludePatterns);
+      projectData.setAnnotationsToIgnore(options.excludeAnnotations);
+      projectData.setInstructionsCoverage(options.isInstructionCoverage);
+
+      final List<File> reportsList = Arrays.asList(reports);
+      final ProjectDataMerger merger = ProjectDataMerger.create();
+      try {
+        merger.loadAndMerge(projectData, reportsList, null);
+      } finally {
+        merger.shutdown();
+      }
+      if (options.sourceMapFile != null) {
+        applySourceMaps(projectData, reportsList);
+      }
+      if (!CoverageReport.save(projectData, options, options.dataFile, options.sourceMapFile)) {
+        ErrorReporter.warn("Failed to fold spooled reports, they are left in " + spoolDir.getPath());
+        return false;
+      }
+
+      for (File report : reports) {
+        report.delete();
+        getSourceMapFile(report).delete();
+      }
+    }
+  }
+
+  private static boolean hasReports(File spoolDir) {
+    final File[] reports = listReports(spoolDir);
+    return reports != null && reports.length > 0;
+  }
+
+  private static File[] listReports(File spoolDir) {
+    return spoolDir.listFiles(new FileFilter() {
+      public boolean accept(File file) {
+        return file.getName().endsWith(REPORT_EXTENSION);
+      }
+    });
+  }
+
+  private static void applySourceMaps(ProjectData projectData, List<File> reports) {
+    for (File report : reports) {
+      final File sourceMap = getSourceMapFile(report);
+      if (!sourceMap.exists()) continue;
+      try {
+        CoverageReport.loadAndApplySourceMap(projectData, sourceMap);
+      } catch (IOException e) {
+        ErrorReporter.warn("Error loading source map from " + sourceMap.getPath(), e);
+      }
+    }
+  }
+
+  private static File getSourceMapFile(File report) {
+    final String name = report.getName();
+    return new File(report.getParentFile(), name.substring(0, name.length() - REPORT_EXTENSION.length()) + SOURCE_MAP_EXTENSION);
+  }
+}
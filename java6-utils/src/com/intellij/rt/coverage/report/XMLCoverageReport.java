@@ -26,12 +26,15 @@ import com.intellij.rt.coverage.util.ArrayUtil;
 import com.intellij.rt.coverage.util.ClassNameUtil;
 import com.intellij.rt.coverage.util.CoverageIOUtil;
 import com.intellij.rt.coverage.util.ErrorReporter;
+import com.intellij.rt.coverage.util.OptionsUtil;
 import org.jetbrains.coverage.gnu.trove.TIntObjectHashMap;
 import org.jetbrains.coverage.gnu.trove.TIntObjectProcedure;
 
 import javax.xml.stream.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class XMLCoverageReport {
   private static final String LINE_COUNTER = "LINE";
@@ -66,10 +69,25 @@ public class XMLCoverageReport {
   public static final String MISSED_TAG = "missed";
   public static final String COVERED_TAG = "covered";
   private static final String SOURCEFILE_NAME_TAG = "sourcefilename";
-  private final Map<String, List<LineData>> myFiles = new HashMap<String, List<LineData>>();
+  private final int myThreads;
+  private final Map<String, FileReport> myFiles = new HashMap<String, FileReport>();
+  private OutputStream myStream;
   private XMLStreamWriter myOut;
   private XMLStreamReader myIn;
 
+  public XMLCoverageReport() {
+    this(OptionsUtil.REPORT_THREADS);
+  }
+
+  /**
+   * @param threads number of threads to calculate the counters of packages and format them in,
+   *                the packages are put into the report in the writing thread in the same order as sequentially;
+   *                <code>1</code> means that everything is done in the writing thread
+   */
+  public XMLCoverageReport(int threads) {
+    myThreads = threads;
+  }
+
   /**
    * Check whether a file may be an XML coverage report of a suitable format.
    */
@@ -246,9 +264,18 @@ public class XMLCoverageReport {
   }
 
   public void write(FileOutputStream fOut, ProjectData project, String title) throws IOException {
+    write(fOut, createClassSource(project), title);
+  }
+
+  /**
+   * Write a report, loading the classes of one package at a time.
+   * The output is the same as if all the classes were loaded into a project data.
+   */
+  public void write(FileOutputStream fOut, ClassSource classes, String title) throws IOException {
     XMLOutputFactory factory = XMLOutputFactory.newInstance();
     try {
-      myOut = factory.createXMLStreamWriter(new BufferedOutputStream(fOut));
+      myStream = new BufferedOutputStream(fOut);
+      myOut = factory.createXMLStreamWriter(myStream);
       myFiles.clear();
 
       myOut.writeStartDocument();
@@ -257,7 +284,7 @@ public class XMLCoverageReport {
       String reportName = title != null ? title : IJ_REPORT_NAME;
       myOut.writeAttribute(NAME_TAG, reportName);
       newLine();
-      writeProject(project);
+      writeProject(classes);
       myOut.writeEndDocument();
     } catch (XMLStreamException e) {
       throw wrapIOException(e);
@@ -268,6 +295,7 @@ public class XMLCoverageReport {
           myOut.close();
           myOut = null;
         }
+        myStream = null;
         fOut.close();
       } catch (XMLStreamException e) {
         ErrorReporter.info("Error closing file.", e);
@@ -279,64 +307,133 @@ public class XMLCoverageReport {
     myOut.writeCharacters(NEW_LINE);
   }
 
-  private void writeProject(ProjectData project) throws XMLStreamException {
-    final HashMap<String, List<ClassData>> packages = mapClassesToPackages(project, true);
+  private void writeProject(final ClassSource classSource) throws XMLStreamException, IOException {
+    final HashMap<String, List<String>> packages = mapClassNamesToPackages(classSource);
 
     final Counter counter = new Counter();
-    for (Map.Entry<String, List<ClassData>> packageEntry : packages.entrySet()) {
-      String packageName = packageEntry.getKey();
-      List<ClassData> classes = packageEntry.getValue();
-      final Counter packageCounter = writePackage(project, packageName, classes);
-      counter.add(packageCounter);
+    if (myThreads <= 1 || packages.size() <= 1) {
+      for (Map.Entry<String, List<String>> packageEntry : packages.entrySet()) {
+        final PackageReport packageReport = collectPackage(classSource, packageEntry.getKey(), packageEntry.getValue());
+        writePackage(packageReport);
+        counter.add(packageReport.counter);
+      }
+    } else {
+      final ExecutorService executor = createExecutor(myThreads);
+      try {
+        final LinkedList<Future<PackageReport>> pending = new LinkedList<Future<PackageReport>>();
+        final Iterator<Map.Entry<String, List<String>>> it = packages.entrySet().iterator();
+        while (it.hasNext() || !pending.isEmpty()) {
+          // packages are collected a few steps ahead of writing, so only a few of them are held in memory
+          while (it.hasNext() && pending.size() < 2 * myThreads) {
+            final Map.Entry<String, List<String>> packageEntry = it.next();
+            pending.add(executor.submit(new Callable<PackageReport>() {
+              public PackageReport call() throws IOException {
+                final PackageReport packageReport = collectPackage(classSource, packageEntry.getKey(), packageEntry.getValue());
+                try {
+                  renderPackage(packageReport);
+                } catch (XMLStreamException e) {
+                  throw wrapIOException(e);
+                }
+                return packageReport;
+              }
+            }));
+          }
+          final PackageReport packageReport = get(pending.removeFirst());
+          writePackage(packageReport);
+          counter.add(packageReport.counter);
+        }
+      } finally {
+        executor.shutdownNow();
+      }
     }
     writeCounter(counter, INSTRUCTION_MASK | LINE_MASK | BRANCH_MASK | METHOD_MASK | CLASS_MASK);
     myOut.writeEndElement();
     newLine();
   }
 
-  private Counter writePackage(ProjectData project, String packageName, List<ClassData> classes) throws XMLStreamException {
-    myOut.writeStartElement(PACKAGE_TAG);
-    myOut.writeAttribute("name", ClassNameUtil.convertToInternalName(packageName));
-    newLine();
-    myFiles.clear();
-    final Counter counter = new Counter();
-    final Map<LineData, Counter> lineCounters = new HashMap<LineData, Counter>();
-    for (ClassData classData : classes) {
-      final Counter classCounter = writeClass(project, classData, lineCounters);
-      counter.add(classCounter);
+  /**
+   * Load the classes of a package and calculate their counters. This method may be called concurrently.
+   */
+  private static PackageReport collectPackage(ClassSource classSource, String packageName, List<String> classNames) throws IOException {
+    final PackageReport packageReport = new PackageReport(packageName);
+    final Map<String, List<LineCounter>> files = new LinkedHashMap<String, List<LineCounter>>();
+    for (String className : classNames) {
+      final ClassData classData = classSource.loadClass(className);
+      if (classData == null) continue;
+      final ClassReport classReport = collectClass(classData, classSource.getInstructions(classData), files);
+      packageReport.classes.add(classReport);
+      packageReport.counter.add(classReport.counter);
     }
-    for (Map.Entry<String, List<LineData>> fileEntry : myFiles.entrySet()) {
-      writeFile(fileEntry.getKey(), fileEntry.getValue(), lineCounters);
+    for (Map.Entry<String, List<LineCounter>> fileEntry : files.entrySet()) {
+      packageReport.files.add(collectFile(fileEntry.getKey(), fileEntry.getValue()));
     }
+    return packageReport;
+  }
 
-    writeCounter(counter, INSTRUCTION_MASK | LINE_MASK | BRANCH_MASK | METHOD_MASK | CLASS_MASK);
-
-    myOut.writeEndElement();
-    newLine();
-
-    return counter;
+  /**
+   * @param files counters of the lines of source files, the line counters of this class are added to
+   */
+  private static ClassReport collectClass(ClassData classData, ClassInstructions classInstructions, Map<String, List<LineCounter>> files) {
+    final String sourceName = classData.getSource();
+    final ClassReport classReport = new ClassReport(classData.getName(), sourceName);
+    List<LineCounter> fileLines = null;
+    if (sourceName != null && !sourceName.isEmpty()) {
+      fileLines = files.get(sourceName);
+      if (fileLines == null) {
+        fileLines = new ArrayList<LineCounter>();
+        files.put(sourceName, fileLines);
+      }
+    }
+    final Counter counter = classReport.counter;
+    Map<String, List<LineData>> methods = classData.mapLinesToMethods();
+    for (Map.Entry<String, List<LineData>> methodEntry : methods.entrySet()) {
+      final MethodReport methodReport = collectMethod(classInstructions, methodEntry.getKey(), methodEntry.getValue(), fileLines);
+      classReport.methods.add(methodReport);
+      counter.add(methodReport.counter);
+    }
+    counter.totalClasses = 1;
+    if (counter.coveredMethods > 0) counter.coveredClasses = 1;
+    return classReport;
   }
 
-  private void writeFile(String fileName, List<LineData> lines, Map<LineData, Counter> lineCounters) throws XMLStreamException {
-    myOut.writeStartElement(SOURCEFILE_TAG);
-    myOut.writeAttribute(NAME_TAG, fileName);
-    newLine();
-    final TIntObjectHashMap<Counter> groupedLines = new TIntObjectHashMap<Counter>();
+  /**
+   * @param fileLines counters of the source file lines, the line counters of this method are added to,
+   *                  or <code>null</code> if the class has no source file
+   */
+  private static MethodReport collectMethod(ClassInstructions classInstructions, String signature, List<LineData> lines, List<LineCounter> fileLines) {
+    final MethodReport methodReport = new MethodReport(signature);
+    final Counter counter = methodReport.counter;
+    final LineInstructions[] instructions = classInstructions == null ? null : classInstructions.getlines();
     for (LineData lineData : lines) {
       if (lineData == null) continue;
-      final int lineNumber = lineData.getLineNumber();
-      Counter lineCounter = groupedLines.get(lineNumber);
+      final LineInstructions lineInstructions = ArrayUtil.safeLoad(instructions, lineData.getLineNumber());
+      final Counter lineCounter = getLineCounter(lineInstructions, lineData);
+      if (fileLines != null) {
+        fileLines.add(new LineCounter(lineData.getLineNumber(), lineCounter));
+      }
+      counter.add(lineCounter);
+    }
+    counter.totalMethods = 1;
+    if (counter.coveredLines > 0) counter.coveredMethods = 1;
+    return methodReport;
+  }
+
+  /**
+   * @param lines counters of the lines of all the classes in this file, a line may belong to several classes
+   */
+  private static FileReport collectFile(String fileName, List<LineCounter> lines) {
+    final TIntObjectHashMap<Counter> groupedLines = new TIntObjectHashMap<Counter>();
+    for (LineCounter line : lines) {
+      Counter lineCounter = groupedLines.get(line.line);
       if (lineCounter == null) {
         lineCounter = new Counter();
-        groupedLines.put(lineNumber, lineCounter);
-      }
-      final Counter counter = lineCounters.get(lineData);
-      if (counter != null) {
-        lineCounter.add(counter);
+        groupedLines.put(line.line, lineCounter);
       }
+      lineCounter.add(line.counter);
     }
 
-    final List<LineCounter> groupedLinesList = new ArrayList<LineCounter>();
+    final FileReport fileReport = new FileReport(fileName);
+    final List<LineCounter> groupedLinesList = fileReport.lines;
     groupedLines.forEachEntry(new TIntObjectProcedure<Counter>() {
       public boolean execute(int lineNumber, Counter counter) {
         groupedLinesList.add(new LineCounter(lineNumber, counter));
@@ -350,80 +447,106 @@ public class XMLCoverageReport {
       }
     });
 
-
-    final Counter counter = new Counter();
     for (LineCounter lineCounter : groupedLinesList) {
+      fileReport.counter.add(lineCounter.counter);
+    }
+    return fileReport;
+  }
+
+  /**
+   * Write the classes and source files of a package in advance, so that the writing thread only copies them in order.
+   * This method may be called concurrently.
+   */
+  private static void renderPackage(PackageReport packageReport) throws XMLStreamException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final XMLCoverageReport renderer = new XMLCoverageReport(1);
+    renderer.myOut = XMLOutputFactory.newInstance().createXMLStreamWriter(bytes);
+    try {
+      for (ClassReport classReport : packageReport.classes) {
+        renderer.writeClass(classReport);
+      }
+      renderer.myOut.flush();
+      packageReport.classesXml = bytes.toByteArray();
+      for (FileReport fileReport : packageReport.files) {
+        bytes.reset();
+        renderer.writeFile(fileReport);
+        renderer.myOut.flush();
+        fileReport.xml = bytes.toByteArray();
+      }
+    } finally {
+      renderer.myOut.close();
+    }
+  }
+
+  private void writePackage(PackageReport packageReport) throws XMLStreamException, IOException {
+    myOut.writeStartElement(PACKAGE_TAG);
+    myOut.writeAttribute("name", ClassNameUtil.convertToInternalName(packageReport.name));
+    newLine();
+    if (packageReport.classesXml != null) {
+      myOut.flush();
+      myStream.write(packageReport.classesXml);
+    } else {
+      for (ClassReport classReport : packageReport.classes) {
+        writeClass(classReport);
+      }
+    }
+    // source files are ordered by a map that is reused for all the packages, so that the output stays the same
+    myFiles.clear();
+    for (FileReport fileReport : packageReport.files) {
+      myFiles.put(fileReport.name, fileReport);
+    }
+    for (FileReport fileReport : myFiles.values()) {
+      if (fileReport.xml != null) {
+        myStream.write(fileReport.xml);
+      } else {
+        writeFile(fileReport);
+      }
+    }
+
+    writeCounter(packageReport.counter, INSTRUCTION_MASK | LINE_MASK | BRANCH_MASK | METHOD_MASK | CLASS_MASK);
+
+    myOut.writeEndElement();
+    newLine();
+  }
+
+  private void writeFile(FileReport fileReport) throws XMLStreamException {
+    myOut.writeStartElement(SOURCEFILE_TAG);
+    myOut.writeAttribute(NAME_TAG, fileReport.name);
+    newLine();
+    for (LineCounter lineCounter : fileReport.lines) {
       writeLine(lineCounter.counter, lineCounter.line);
-      counter.add(lineCounter.counter);
     }
-    writeCounter(counter, INSTRUCTION_MASK | LINE_MASK | BRANCH_MASK);
+    writeCounter(fileReport.counter, INSTRUCTION_MASK | LINE_MASK | BRANCH_MASK);
     myOut.writeEndElement();
     newLine();
   }
 
-  private Counter writeClass(ProjectData project, ClassData classData, Map<LineData, Counter> lineCounters) throws XMLStreamException {
-    final ClassInstructions classInstructions = project.getInstructions().get(classData.getName());
+  private void writeClass(ClassReport classReport) throws XMLStreamException {
     myOut.writeStartElement(CLASS_TAG);
-    final String className = ClassNameUtil.convertToInternalName(classData.getName());
-    myOut.writeAttribute("name", className);
-    String sourceName = classData.getSource();
-    if (sourceName != null && !sourceName.isEmpty()) {
-      myOut.writeAttribute(SOURCEFILE_NAME_TAG, sourceName);
-      newLine();
-      List<LineData> lines = myFiles.get(sourceName);
-      if (lines == null) {
-        lines = new ArrayList<LineData>();
-        myFiles.put(sourceName, lines);
-      }
-      LineData[] linesArray = (LineData[]) classData.getLines();
-      if (linesArray != null) {
-        for (LineData line : linesArray) {
-          if (line == null) continue;
-          lines.add(line);
-        }
-      }
-    } else {
-      newLine();
+    myOut.writeAttribute("name", ClassNameUtil.convertToInternalName(classReport.name));
+    if (classReport.source != null && !classReport.source.isEmpty()) {
+      myOut.writeAttribute(SOURCEFILE_NAME_TAG, classReport.source);
     }
-    final Counter counter = new Counter();
-    Map<String, List<LineData>> methods = classData.mapLinesToMethods();
-    for (Map.Entry<String, List<LineData>> methodEntry : methods.entrySet()) {
-      final Counter methodCounter = writeMethod(classInstructions, methodEntry.getKey(), methodEntry.getValue(), lineCounters);
-      counter.add(methodCounter);
+    newLine();
+    for (MethodReport methodReport : classReport.methods) {
+      writeMethod(methodReport);
     }
-    counter.totalClasses = 1;
-    if (counter.coveredMethods > 0) counter.coveredClasses = 1;
-    writeCounter(counter, INSTRUCTION_MASK | LINE_MASK | BRANCH_MASK | METHOD_MASK);
+    writeCounter(classReport.counter, INSTRUCTION_MASK | LINE_MASK | BRANCH_MASK | METHOD_MASK);
     myOut.writeEndElement();
     newLine();
-    return counter;
   }
 
-  private Counter writeMethod(ClassInstructions classInstructions, String signature, List<LineData> lines, Map<LineData, Counter> lineCounters) throws XMLStreamException {
+  private void writeMethod(MethodReport methodReport) throws XMLStreamException {
     myOut.writeStartElement(METHOD_TAG);
-    int nameIndex = signature.indexOf('(');
-    String name = signature.substring(0, nameIndex);
-    String descriptor = signature.substring(nameIndex);
+    int nameIndex = methodReport.signature.indexOf('(');
+    String name = methodReport.signature.substring(0, nameIndex);
+    String descriptor = methodReport.signature.substring(nameIndex);
     myOut.writeAttribute(NAME_TAG, name);
     myOut.writeAttribute(DESC_TAG, descriptor);
     newLine();
-
-    final Counter counter = new Counter();
-    final LineInstructions[] instructions = classInstructions == null ? null : classInstructions.getlines();
-    for (LineData lineData : lines) {
-      if (lineData == null) continue;
-      final LineInstructions lineInstructions = ArrayUtil.safeLoad(instructions, lineData.getLineNumber());
-      final Counter lineCounter = getLineCounter(lineInstructions, lineData);
-      lineCounters.put(lineData, lineCounter);
-      counter.add(lineCounter);
-    }
-    counter.totalMethods = 1;
-    if (counter.coveredLines > 0) counter.coveredMethods = 1;
-    writeCounter(counter, INSTRUCTION_MASK | LINE_MASK | BRANCH_MASK);
-
+    writeCounter(methodReport.counter, INSTRUCTION_MASK | LINE_MASK | BRANCH_MASK);
     myOut.writeEndElement();
     newLine();
-    return counter;
   }
 
   private void writeLine(Counter counter, int lineNumber) throws XMLStreamException {
@@ -437,7 +560,7 @@ public class XMLCoverageReport {
     newLine();
   }
 
-  private Counter getLineCounter(LineInstructions lineInstructions, LineData lineData) {
+  private static Counter getLineCounter(LineInstructions lineInstructions, LineData lineData) {
     final Counter counter = new Counter();
     counter.totalLines = 1;
     counter.coveredLines = lineData.getHits() > 0 ? 1 : 0;
@@ -493,9 +616,7 @@ public class XMLCoverageReport {
     });
     for (ClassData classData : classes) {
       if (!shouldIncludeClass(classData)) continue;
-      String className = classData.getName();
-      int indexOfName = className.lastIndexOf('.');
-      String packageName = indexOfName < 0 ? (useClassNameIfEmpty ? className : "") : className.substring(0, indexOfName);
+      String packageName = getPackageName(classData.getName(), useClassNameIfEmpty);
       List<ClassData> packageClasses = packages.get(packageName);
       if (!packages.containsKey(packageName)) {
         packageClasses = new ArrayList<ClassData>();
@@ -506,12 +627,108 @@ public class XMLCoverageReport {
     return packages;
   }
 
+  /**
+   * Same as {@link #mapClassesToPackages(ProjectData, boolean)}, but only class names are kept, so that the packages are iterated in the same order.
+   */
+  private static HashMap<String, List<String>> mapClassNamesToPackages(ClassSource classSource) {
+    HashMap<String, List<String>> packages = new HashMap<String, List<String>>();
+    final List<String> classNames = new ArrayList<String>(classSource.getClassNames());
+    Collections.sort(classNames);
+    for (String className : classNames) {
+      if (!classSource.hasLines(className)) continue;
+      String packageName = getPackageName(className, true);
+      List<String> packageClasses = packages.get(packageName);
+      if (packageClasses == null) {
+        packageClasses = new ArrayList<String>();
+        packages.put(packageName, packageClasses);
+      }
+      packageClasses.add(className);
+    }
+    return packages;
+  }
+
+  private static String getPackageName(String className, boolean useClassNameIfEmpty) {
+    int indexOfName = className.lastIndexOf('.');
+    return indexOfName < 0 ? (useClassNameIfEmpty ? className : "") : className.substring(0, indexOfName);
+  }
+
+  public static ClassSource createClassSource(final ProjectData project) {
+    return new ClassSource() {
+      public Collection<String> getClassNames() {
+        return project.getClasses().keySet();
+      }
+
+      public boolean hasLines(String className) {
+        return shouldIncludeClass(project.getClassData(className));
+      }
+
+      public ClassData loadClass(String className) {
+        return project.getClassData(className);
+      }
+
+      public ClassInstructions getInstructions(ClassData classData) {
+        return project.getInstructions().get(classData.getName());
+      }
+    };
+  }
+
+  private static ExecutorService createExecutor(int threads) {
+    return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private final AtomicInteger myCounter = new AtomicInteger();
+
+      public Thread newThread(Runnable r) {
+        final Thread thread = new Thread(r, "IntelliJ Coverage XML Report " + myCounter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  private static <T> T get(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new RuntimeException(cause);
+    }
+  }
+
   private IOException wrapIOException(Throwable t) {
     IOException e = new IOException(t.getClass().getSimpleName() + ": " + t.getMessage());
     e.setStackTrace(t.getStackTrace());
     return e;
   }
 
+  /**
+   * Classes of a report, see {@link #write(FileOutputStream, ClassSource, String)}.
+   * The classes of different packages may be loaded concurrently.
+   */
+  public interface ClassSource {
+    Collection<String> getClassNames();
+
+    /**
+     * Check whether a class has lines, preferably without loading it.
+     * Packages are selected before loading their classes.
+     */
+    boolean hasLines(String className);
+
+    /**
+     * @return class data or <code>null</code> if there is no such class
+     */
+    ClassData loadClass(String className) throws IOException;
+
+    /**
+     * @return instructions of a loaded class or <code>null</code> if they are not available
+     */
+    ClassInstructions getInstructions(ClassData classData) throws IOException;
+  }
+
   private static class Counter {
     public int totalClasses;
     public int coveredClasses;
@@ -542,6 +759,53 @@ public class XMLCoverageReport {
     }
   }
 
+  private static class PackageReport {
+    private final String name;
+    private final List<ClassReport> classes = new ArrayList<ClassReport>();
+    /**
+     * In the order of the first class of each file.
+     */
+    private final List<FileReport> files = new ArrayList<FileReport>();
+    private final Counter counter = new Counter();
+    private byte[] classesXml;
+
+    private PackageReport(String name) {
+      this.name = name;
+    }
+  }
+
+  private static class ClassReport {
+    private final String name;
+    private final String source;
+    private final List<MethodReport> methods = new ArrayList<MethodReport>();
+    private final Counter counter = new Counter();
+
+    private ClassReport(String name, String source) {
+      this.name = name;
+      this.source = source;
+    }
+  }
+
+  private static class MethodReport {
+    private final String signature;
+    private final Counter counter = new Counter();
+
+    private MethodReport(String signature) {
+      this.signature = signature;
+    }
+  }
+
+  private static class FileReport {
+    private final String name;
+    private final List<LineCounter> lines = new ArrayList<LineCounter>();
+    private final Counter counter = new Counter();
+    private byte[] xml;
+
+    private FileReport(String name) {
+      this.name = name;
+    }
+  }
+
   private static class LineCounter {
     private final int line;
     private final Counter counter;
@@ -29,6 +29,7 @@ import org.jetbrains.coverage.org.objectweb.asm.ClassReader;
 
 import java.io.*;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 /**
  * This class contains API methods that are called at runtime in offline coverage mode.
@@ -96,5 +97,11 @@ public class CoverageRuntime {
         consumer.consume(new ClassFileEntry(className, classFile));
       }
     }
+
+    @Override
+    public void iterateMatchedClasses(ClassEntry.Consumer consumer, ExecutorService executor) {
+      // classes are already in memory, there is nothing to scan concurrently
+      iterateMatchedClasses(consumer);
+    }
   }
 }
@@ -24,7 +24,7 @@ import com.intellij.rt.coverage.instrument.RawReportLoader;
 import com.intellij.rt.coverage.instrumentation.data.ProjectContext;
 import com.intellij.rt.coverage.report.data.BinaryReport;
 import com.intellij.rt.coverage.util.CoverageReport;
-import com.intellij.rt.coverage.util.ProjectDataLoader;
+import com.intellij.rt.coverage.util.ProjectDataMerger;
 import com.intellij.rt.coverage.util.classFinder.ClassFilter;
 import com.intellij.rt.coverage.util.classFinder.OutputClassFinder;
 
@@ -67,6 +67,7 @@ public class Aggregator {
     final ProjectData projectDataCopy = hasRawHitsReport ? copyProjectData(projectData) : null;
     context.dropLineMappings(projectData);
 
+    final List<File> binaryReports = new ArrayList<File>();
     for (BinaryReport report : myReports) {
       if (report.isRawHitsReport()) {
         try {
@@ -75,14 +76,24 @@ public class Aggregator {
           throw new RuntimeException(e);
         }
       } else {
-        final ProjectData data = ProjectDataLoader.load(report.getDataFile());
-        context.dropIgnoredLines(data);
-        mergeHits(projectData, data);
+        binaryReports.add(report.getDataFile());
       }
     }
-    if (projectDataCopy != null) {
-      context.finalizeCoverage(projectDataCopy);
-      mergeHits(projectData, projectDataCopy);
+    // projectData contains all classes already filtered by outputs and filters,
+    // so only hits of these classes are merged
+    final ProjectDataMerger merger = ProjectDataMerger.create();
+    try {
+      merger.loadAndMergeHits(projectData, binaryReports, new ProjectDataMerger.ReportProcessor() {
+        public void process(ProjectData data) {
+          context.dropIgnoredLines(data);
+        }
+      });
+      if (projectDataCopy != null) {
+        context.finalizeCoverage(projectDataCopy);
+        merger.mergeHits(projectData, projectDataCopy);
+      }
+    } finally {
+      merger.shutdown();
     }
 
     if (context.getInherits() != null) {
@@ -146,18 +157,6 @@ public class Aggregator {
     return projectDataCopy;
   }
 
-  private static void mergeHits(ProjectData dst, ProjectData src) {
-    for (ClassData srcClass : src.getClassesCollection()) {
-      final ClassData dstClass = dst.getClassData(srcClass.getName());
-      if (dstClass == null) {
-        // dst ProjectData contains all classes already filtered by outputs and filters
-        // so this class must be filtered
-        continue;
-      }
-      dstClass.merge(srcClass);
-    }
-  }
-
   /**
    * Processing request is selecting required classes from a global project data.
    */
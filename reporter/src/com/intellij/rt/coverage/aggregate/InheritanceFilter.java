@@ -16,7 +16,7 @@
 
 package com.intellij.rt.coverage.aggregate;
 
-import com.intellij.rt.coverage.util.ClassNameUtil;
+import com.intellij.rt.coverage.util.ClassNameMatcher;
 
 import java.util.*;
 import java.util.regex.Pattern;
@@ -32,8 +32,10 @@ public class InheritanceFilter {
   public List<String> filterInherits(Collection<String> classes, List<Pattern> includePatterns, List<Pattern> excludePatterns) {
     List<String> result = new ArrayList<String>();
     myStatus.clear();
+    ClassNameMatcher includeMatcher = ClassNameMatcher.create(includePatterns);
+    ClassNameMatcher excludeMatcher = ClassNameMatcher.create(excludePatterns);
     for (String className : classes) {
-      IncludeStatus status = isIncluded(className, includePatterns, excludePatterns);
+      IncludeStatus status = isIncluded(className, includeMatcher, excludeMatcher);
       if (status == IncludeStatus.INCLUDED || status == IncludeStatus.EXCLUDED_SELF
           || status == IncludeStatus.UNKNOWN && includePatterns.isEmpty()) {
         result.add(className);
@@ -43,28 +45,28 @@ public class InheritanceFilter {
     return result;
   }
 
-  private IncludeStatus isIncluded(String className, List<Pattern> includePatterns, List<Pattern> excludePatterns) {
+  private IncludeStatus isIncluded(String className, ClassNameMatcher includeMatcher, ClassNameMatcher excludeMatcher) {
     IncludeStatus status = myStatus.get(className);
     if (status != null) return status;
 
-    status = isIncludedInternal(className, includePatterns, excludePatterns);
+    status = isIncludedInternal(className, includeMatcher, excludeMatcher);
     myStatus.put(className, status);
     return status;
   }
 
-  private IncludeStatus isIncludedInternal(String className, List<Pattern> includePatterns, List<Pattern> excludePatterns) {
+  private IncludeStatus isIncludedInternal(String className, ClassNameMatcher includeMatcher, ClassNameMatcher excludeMatcher) {
     IncludeStatus status = IncludeStatus.UNKNOWN;
-    if (ClassNameUtil.matchesPatterns(className, includePatterns)) {
+    if (includeMatcher.matches(className)) {
       status = IncludeStatus.INCLUDED_SELF;
     }
-    if (ClassNameUtil.matchesPatterns(className, excludePatterns)) {
+    if (excludeMatcher.matches(className)) {
       status = IncludeStatus.EXCLUDED_SELF;
     }
 
     String[] inherits = myInherits.get(className);
     if (inherits != null) {
       for (String inherit : inherits) {
-        IncludeStatus inheritStatus = isIncluded(inherit, includePatterns, excludePatterns);
+        IncludeStatus inheritStatus = isIncluded(inherit, includeMatcher, excludeMatcher);
         if (inheritStatus == IncludeStatus.EXCLUDED || inheritStatus == IncludeStatus.EXCLUDED_SELF) {
           return IncludeStatus.EXCLUDED;
         }
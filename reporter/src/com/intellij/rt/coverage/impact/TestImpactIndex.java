@@ -0,0 +1,294 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.impact;
+
+import com.intellij.rt.coverage.impact.api.ChangedLines;
+import com.intellij.rt.coverage.util.CountingOutputStream;
+import com.intellij.rt.coverage.util.CoverageIOUtil;
+import org.jetbrains.coverage.gnu.trove.TIntArrayList;
+import org.jetbrains.coverage.gnu.trove.TIntObjectHashMap;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Reverse index of test tracking data: from class lines to the tests that executed them.
+ * <p>
+ * The index file consists of
+ * <ul>
+ *   <li>header: magic number, version, number of tests and number of classes;</li>
+ *   <li>offsets of test names, tests are numbered in the order of their names;</li>
+ *   <li>offsets of class records, classes are sorted by name;</li>
+ *   <li>test names;</li>
+ *   <li>class records: class name and the covered lines in ascending order. Each line is written as a difference
+ *   with the previous line, the size of its posting list in bytes and the posting list: number of tests and
+ *   differences between subsequent test numbers.</li>
+ * </ul>
+ * Numbers in the tables are written as 4-byte ints, all other numbers with {@link CoverageIOUtil#writeINT}.
+ * The index is mapped into memory on opening, a query decodes only the posting lists of the changed lines.
+ */
+public class TestImpactIndex {
+  private static final int MAGIC = 0x54494931;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+
+  private final File myFile;
+  private final ByteBuffer myBuffer;
+  private final int myTestCount;
+  private final int myClassCount;
+
+  private TestImpactIndex(File file, ByteBuffer buffer) throws IOException {
+    myFile = file;
+    myBuffer = buffer;
+    if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+      throw new IOException("Not a test impact index: " + file.getAbsolutePath());
+    }
+    final int version = buffer.getInt(4);
+    if (version != VERSION) {
+      throw new IOException("Unsupported test impact index version " + version + ": " + file.getAbsolutePath());
+    }
+    myTestCount = buffer.getInt(8);
+    myClassCount = buffer.getInt(12);
+    if (myTestCount < 0 || myClassCount < 0 || HEADER_SIZE + 4L * (myTestCount + myClassCount) > buffer.limit()) {
+      throw new IOException("Corrupted test impact index: " + file.getAbsolutePath());
+    }
+  }
+
+  /**
+   * Invert test tracking data and write the index.
+   *
+   * @param traces covered lines by class name by test name, as loaded by
+   *               {@link com.intellij.rt.coverage.util.TestTrackingIOUtil#loadTestTrackingData}
+   */
+  public static void build(Map<String, Map<String, int[]>> traces, File output) throws IOException {
+    final String[] tests = traces.keySet().toArray(new String[0]);
+    Arrays.sort(tests);
+    final Map<String, TIntObjectHashMap<TIntArrayList>> classes = new HashMap<String, TIntObjectHashMap<TIntArrayList>>();
+    for (int test = 0; test < tests.length; test++) {
+      for (Map.Entry<String, int[]> entry : traces.get(tests[test]).entrySet()) {
+        TIntObjectHashMap<TIntArrayList> lines = classes.get(entry.getKey());
+        if (lines == null) {
+          lines = new TIntObjectHashMap<TIntArrayList>();
+          classes.put(entry.getKey(), lines);
+        }
+        for (int line : entry.getValue()) {
+          TIntArrayList postings = lines.get(line);
+          if (postings == null) {
+            postings = new TIntArrayList(1);
+            lines.put(line, postings);
+          }
+          // tests are visited in ascending order, a test may list a line twice only in a corrupted trace
+          if (postings.isEmpty() || postings.get(postings.size() - 1) != test) {
+            postings.add(test);
+          }
+        }
+      }
+    }
+    final String[] classNames = classes.keySet().toArray(new String[0]);
+    Arrays.sort(classNames);
+
+    final int[] offsets = new int[tests.length + classNames.length];
+    final CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(output)));
+    final DataOutputStream out = new DataOutputStream(counter);
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(tests.length);
+      out.writeInt(classNames.length);
+      // the tables are filled in when the offsets are known
+      for (int i = 0; i < offsets.length; i++) {
+        out.writeInt(0);
+      }
+      for (int i = 0; i < tests.length; i++) {
+        offsets[i] = getOffset(counter, output);
+        CoverageIOUtil.writeUTF(out, tests[i]);
+      }
+      final ByteArrayOutputStream postingsBytes = new ByteArrayOutputStream();
+      final DataOutputStream postingsOut = new DataOutputStream(postingsBytes);
+      for (int i = 0; i < classNames.length; i++) {
+        offsets[tests.length + i] = getOffset(counter, output);
+        CoverageIOUtil.writeUTF(out, classNames[i]);
+        final TIntObjectHashMap<TIntArrayList> lines = classes.get(classNames[i]);
+        final int[] lineNumbers = lines.keys();
+        Arrays.sort(lineNumbers);
+        CoverageIOUtil.writeINT(out, lineNumbers.length);
+        int lastLine = 0;
+        for (int line : lineNumbers) {
+          CoverageIOUtil.writeINT(out, line - lastLine);
+          lastLine = line;
+          final TIntArrayList postings = lines.get(line);
+          postingsBytes.reset();
+          CoverageIOUtil.writeINT(postingsOut, postings.size());
+          int lastTest = 0;
+          for (int j = 0; j < postings.size(); j++) {
+            CoverageIOUtil.writeINT(postingsOut, postings.get(j) - lastTest);
+            lastTest = postings.get(j);
+          }
+          CoverageIOUtil.writeINT(out, postingsBytes.size());
+          postingsBytes.writeTo(out);
+        }
+      }
+      // the whole index is mapped into a single buffer
+      getOffset(counter, output);
+    } finally {
+      out.close();
+    }
+
+    final RandomAccessFile raf = new RandomAccessFile(output, "rw");
+    try {
+      final ByteBuffer table = ByteBuffer.allocate(4 * offsets.length);
+      for (int offset : offsets) {
+        table.putInt(offset);
+      }
+      raf.seek(HEADER_SIZE);
+      raf.write(table.array());
+    } finally {
+      CoverageIOUtil.close(raf);
+    }
+  }
+
+  private static int getOffset(CountingOutputStream out, File output) throws IOException {
+    final long offset = out.getCount();
+    if (offset > Integer.MAX_VALUE) {
+      throw new IOException("Test impact index is too large: " + output.getAbsolutePath());
+    }
+    return (int) offset;
+  }
+
+  public static TestImpactIndex open(File file) throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+    final ByteBuffer buffer;
+    try {
+      final FileChannel channel = raf.getChannel();
+      final long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Test impact index is too large to be mapped: " + file.getAbsolutePath());
+      }
+      // the mapping stays valid after the channel is closed
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    } finally {
+      CoverageIOUtil.close(raf);
+    }
+    return new TestImpactIndex(file, buffer);
+  }
+
+  public int getTestCount() {
+    return myTestCount;
+  }
+
+  public int getClassCount() {
+    return myClassCount;
+  }
+
+  public String getTestName(int test) throws IOException {
+    return CoverageIOUtil.readUTFFast(openRecord(myBuffer.getInt(HEADER_SIZE + 4 * test)));
+  }
+
+  /**
+   * Find the tests that executed any of the changed lines.
+   * Lines of a class include the lines of its nested classes, as they belong to the same source file.
+   *
+   * @return names of the affected tests in ascending order
+   */
+  public List<String> findTests(List<ChangedLines> changes) throws IOException {
+    final BitSet tests = new BitSet(myTestCount);
+    try {
+      for (ChangedLines change : changes) {
+        collectTests(change, tests);
+      }
+      final List<String> result = new ArrayList<String>(tests.cardinality());
+      for (int test = tests.nextSetBit(0); test >= 0; test = tests.nextSetBit(test + 1)) {
+        result.add(getTestName(test));
+      }
+      return result;
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Unexpected end of test impact index: " + myFile.getAbsolutePath());
+    } catch (IndexOutOfBoundsException e) {
+      throw new IOException("Corrupted test impact index: " + myFile.getAbsolutePath());
+    } catch (IllegalArgumentException e) {
+      // a record offset out of the buffer
+      throw new IOException("Corrupted test impact index: " + myFile.getAbsolutePath());
+    }
+  }
+
+  private void collectTests(ChangedLines change, BitSet tests) throws IOException {
+    final String nestedPrefix = change.className + '$';
+    for (int i = lowerBound(change.className); i < myClassCount; i++) {
+      final ByteBuffer record = openRecord(getClassOffset(i));
+      final String className = CoverageIOUtil.readUTFFast(record);
+      if (!className.equals(change.className) && !className.startsWith(nestedPrefix)) {
+        // nested classes follow the class, but other classes with the same prefix may be in between
+        if (className.compareTo(nestedPrefix) > 0) break;
+        continue;
+      }
+      collectTests(record, change.startLine, change.endLine, tests);
+    }
+  }
+
+  private void collectTests(ByteBuffer record, int startLine, int endLine, BitSet tests) throws IOException {
+    final int lineCount = CoverageIOUtil.readINT(record);
+    int line = 0;
+    for (int i = 0; i < lineCount; i++) {
+      line += CoverageIOUtil.readINT(record);
+      if (line > endLine) return;
+      final int size = CoverageIOUtil.readINT(record);
+      if (line < startLine) {
+        record.position(record.position() + size);
+        continue;
+      }
+      final int count = CoverageIOUtil.readINT(record);
+      int test = 0;
+      for (int j = 0; j < count; j++) {
+        test += CoverageIOUtil.readINT(record);
+        if (test < 0 || test >= myTestCount) {
+          throw new IOException("Corrupted test impact index: " + myFile.getAbsolutePath());
+        }
+        tests.set(test);
+      }
+    }
+  }
+
+  /**
+   * @return index of the first class with a name not less than the given one
+   */
+  private int lowerBound(String name) throws IOException {
+    int low = 0;
+    int high = myClassCount;
+    while (low < high) {
+      final int middle = (low + high) >>> 1;
+      if (CoverageIOUtil.readUTFFast(openRecord(getClassOffset(middle))).compareTo(name) < 0) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  private int getClassOffset(int index) {
+    return myBuffer.getInt(HEADER_SIZE + 4 * (myTestCount + index));
+  }
+
+  private ByteBuffer openRecord(int offset) {
+    final ByteBuffer buffer = myBuffer.duplicate();
+    buffer.position(offset);
+    return buffer;
+  }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.impact.api;
+
+/**
+ * Lines of a class changed in a diff, the range is inclusive.
+ */
+public class ChangedLines {
+  public final String className;
+  public final int startLine;
+  public final int endLine;
+
+  public ChangedLines(String className, int startLine, int endLine) {
+    this.className = className;
+    this.startLine = startLine;
+    this.endLine = endLine;
+  }
+}
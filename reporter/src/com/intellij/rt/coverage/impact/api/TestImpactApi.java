@@ -0,0 +1,44 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.impact.api;
+
+import com.intellij.rt.coverage.impact.TestImpactIndex;
+import com.intellij.rt.coverage.util.TestTrackingIOUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+public class TestImpactApi {
+  private TestImpactApi() {
+    // no-op
+  }
+
+  /**
+   * Build a test impact index from the test tracking traces directory.
+   */
+  public static void buildIndex(File tracesDir, File indexFile) throws IOException {
+    TestImpactIndex.build(TestTrackingIOUtil.loadTestTrackingData(tracesDir), indexFile);
+  }
+
+  /**
+   * Find the tests that executed any of the changed lines.
+   */
+  public static List<String> findAffectedTests(File indexFile, List<ChangedLines> changes) throws IOException {
+    return TestImpactIndex.open(indexFile).findTests(changes);
+  }
+}
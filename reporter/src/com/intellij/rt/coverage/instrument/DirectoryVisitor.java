@@ -45,14 +45,27 @@ public class DirectoryVisitor {
       final PackageDirectory top = stack.remove(stack.size() - 1);
       final File[] children = top.file.listFiles();
       if (children == null) continue;
+      final List<File> files = new ArrayList<File>();
       for (File child : children) {
         if (child.isDirectory()) {
           final String packageName = ("".equals(top.packageName) ? "" : top.packageName + ".") + child.getName();
           stack.add(new PackageDirectory(child, packageName));
         } else {
-          visitFile(top.packageName, child);
+          files.add(child);
         }
       }
+      visitFiles(top.packageName, files);
+    }
+  }
+
+  /**
+   * Visits files of a single directory, subdirectories are visited separately.
+   * @param packageName dot separated path to files
+   * @param files files of the directory
+   */
+  protected void visitFiles(String packageName, List<File> files) {
+    for (File file : files) {
+      visitFile(packageName, file);
     }
   }
 
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrument;
+
+import com.intellij.rt.coverage.instrumentation.TransformationCache;
+import com.intellij.rt.coverage.util.CoverageIOUtil;
+import com.intellij.rt.coverage.util.ErrorReporter;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Hashes of the offline instrumentation inputs, so that an incremental build instruments only the changed files.
+ * <p>
+ * Each output file is mapped to the path, length, modification time and SHA-1 hash of its input.
+ * An input is unchanged if its path, length and modification time are the same, or otherwise if its content hash is the same,
+ * and the output file still exists.
+ * Outputs of the inputs that have been deleted are deleted too, see {@link #removeStale(File)}.
+ * The manifest is ignored when the instrumentation options or the coverage library change.
+ * <p>
+ * The methods are safe to be called concurrently.
+ */
+class InstrumentationManifest {
+  private static final String HEADER = "intellij-coverage-offline-manifest";
+  private static final String SEPARATOR = "\t";
+
+  private final File myFile;
+  private final String myFingerprint;
+  private final ConcurrentMap<String, Entry> myEntries = new ConcurrentHashMap<String, Entry>();
+  private final ConcurrentMap<String, Boolean> myVisited = new ConcurrentHashMap<String, Boolean>();
+
+  private InstrumentationManifest(File file, String fingerprint) {
+    myFile = file;
+    myFingerprint = fingerprint;
+  }
+
+  /**
+   * @param fingerprint identity of the instrumentation options, the stored entries are ignored if it is different
+   */
+  static InstrumentationManifest load(File file, String fingerprint) {
+    final InstrumentationManifest manifest = new InstrumentationManifest(file, fingerprint);
+    if (!file.exists()) return manifest;
+    BufferedReader reader = null;
+    try {
+      reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      if (!(HEADER + SEPARATOR + fingerprint).equals(reader.readLine())) return manifest;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        final String[] parts = line.split(SEPARATOR);
+        if (parts.length != 5) continue;
+        manifest.myEntries.put(parts[0], new Entry(parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3]), parts[4]));
+      }
+    } catch (IOException e) {
+      ErrorReporter.info("Failed to read offline instrumentation manifest " + file.getPath(), e);
+      manifest.myEntries.clear();
+    } catch (NumberFormatException e) {
+      ErrorReporter.info("Failed to read offline instrumentation manifest " + file.getPath(), e);
+      manifest.myEntries.clear();
+    } finally {
+      CoverageIOUtil.close(reader);
+    }
+    return manifest;
+  }
+
+  /**
+   * Check by the input path, length and modification time. The output is marked as visited in this run.
+   */
+  boolean isUnchanged(File input, File output) {
+    final String key = getKey(output);
+    myVisited.put(key, Boolean.TRUE);
+    final Entry entry = myEntries.get(key);
+    return entry != null
+        && entry.myInput.equals(input.getAbsolutePath())
+        && entry.myLength == input.length()
+        && entry.myLastModified == input.lastModified()
+        && output.exists();
+  }
+
+  /**
+   * Check by the input content hash. If it is the same, the entry is updated, so the next check is done without reading the input.
+   */
+  boolean isUnchanged(File input, String hash, File output) {
+    final String key = getKey(output);
+    final Entry entry = myEntries.get(key);
+    if (entry == null || !entry.myHash.equals(hash) || !output.exists()) return false;
+    put(input, hash, output);
+    return true;
+  }
+
+  void put(File input, String hash, File output) {
+    final String key = getKey(output);
+    myVisited.put(key, Boolean.TRUE);
+    myEntries.put(key, new Entry(input.getAbsolutePath(), input.length(), input.lastModified(), hash));
+  }
+
+  /**
+   * Delete outputs that have been instrumented in a previous run, but not visited in this run.
+   *
+   * @param outputRoot output directory or file
+   * @return number of deleted files
+   */
+  int removeStale(File outputRoot) {
+    final String root = getKey(outputRoot);
+    int removed = 0;
+    for (Iterator<Map.Entry<String, Entry>> it = myEntries.entrySet().iterator(); it.hasNext(); ) {
+      final String key = it.next().getKey();
+      if (myVisited.containsKey(key)) continue;
+      if (!key.equals(root) && !key.startsWith(root + File.separator)) continue;
+      it.remove();
+      if (new File(key).delete()) {
+        removed++;
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * The manifest is written to a temporary file first, so an interrupted build does not leave a partial manifest.
+   */
+  void save() throws IOException {
+    final File parent = myFile.getAbsoluteFile().getParentFile();
+    if (parent != null && !parent.exists() && !parent.mkdirs() && !parent.isDirectory()) {
+      throw new IOException("Failed to create directory at " + parent.getAbsolutePath());
+    }
+    final File tmp = new File(myFile.getPath() + ".tmp");
+    Writer writer = null;
+    try {
+      writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+      writer.write(HEADER + SEPARATOR + myFingerprint + "\n");
+      for (Map.Entry<String, Entry> e : myEntries.entrySet()) {
+        final Entry entry = e.getValue();
+        writer.write(e.getKey() + SEPARATOR + entry.myInput + SEPARATOR + entry.myLength + SEPARATOR
+            + entry.myLastModified + SEPARATOR + entry.myHash + "\n");
+      }
+    } finally {
+      CoverageIOUtil.close(writer);
+    }
+    if (!tmp.renameTo(myFile)) {
+      // rename does not replace an existing file on Windows
+      if (!myFile.delete() || !tmp.renameTo(myFile)) {
+        throw new IOException("Failed to write offline instrumentation manifest " + myFile.getPath());
+      }
+    }
+  }
+
+  static String hash(byte[] bytes) {
+    return TransformationCache.toHex(createDigest().digest(bytes));
+  }
+
+  static String hash(File file) throws IOException {
+    final MessageDigest digest = createDigest();
+    InputStream is = null;
+    try {
+      is = new FileInputStream(file);
+      final byte[] buffer = new byte[8192];
+      int read;
+      while ((read = is.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+      }
+    } finally {
+      CoverageIOUtil.close(is);
+    }
+    return TransformationCache.toHex(digest.digest());
+  }
+
+  private static String getKey(File output) {
+    return output.getAbsolutePath();
+  }
+
+  private static MessageDigest createDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static class Entry {
+    private final String myInput;
+    private final long myLength;
+    private final long myLastModified;
+    private final String myHash;
+
+    private Entry(String input, long length, long lastModified, String hash) {
+      myInput = input;
+      myLength = length;
+      myLastModified = lastModified;
+      myHash = hash;
+    }
+  }
+}
@@ -18,36 +18,104 @@ package com.intellij.rt.coverage.instrument;
 
 import com.intellij.rt.coverage.instrumentation.CoverageTransformer;
 import com.intellij.rt.coverage.instrumentation.InstrumentationOptions;
+import com.intellij.rt.coverage.instrumentation.TransformationCache;
 import com.intellij.rt.coverage.report.api.Filters;
 import com.intellij.rt.coverage.util.ClassNameUtil;
+import com.intellij.rt.coverage.util.CoverageIOUtil;
+import com.intellij.rt.coverage.util.ErrorReporter;
+import com.intellij.rt.coverage.util.OptionsUtil;
 import org.jetbrains.coverage.org.objectweb.asm.ClassReader;
 
-import java.io.File;
-import java.io.IOException;
-import java.util.List;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 /**
  * Perform offline instrumentation of class files in specified output roots.
  * If a class is not included into coverage instrumentation via filters,
  * its class file is copied to new output directory without modifications.
+ * <p>
+ * A root may be a directory or a jar file. A jar is streamed to the instrumented jar without unpacking,
+ * its output is the output root itself, or a file with the same name if the output root is an existing directory.
+ * <p>
+ * With several threads set in {@link OptionsUtil#OFFLINE_INSTRUMENTATION_THREADS}, files are processed on a worker pool.
+ * Classes with the same outer class are instrumented sequentially, outer class first,
+ * as annotation filters of an inner class depend on its outer class.
+ * <p>
+ * If a manifest file is set, unchanged files are not instrumented again, see {@link InstrumentationManifest}.
+ * With annotation filters, the classes with the same outer class are instrumented again if any of them has changed.
  */
 public class Instrumentator {
+  /**
+   * Number of jar entries per thread that are read and not yet written.
+   */
+  private static final int MAX_PENDING_ENTRIES_PER_THREAD = 64;
+  private static final Pattern JAR_SIGNATURE = Pattern.compile("META-INF/([^/]+\\.(SF|RSA|DSA|EC)|SIG-[^/]+)", Pattern.CASE_INSENSITIVE);
+  private static final String VERSIONS_PREFIX = "META-INF/versions/";
+
   private final List<File> myRoots;
   private final List<File> myOutputRoots;
   private final Filters myFilters;
+  private final File myManifestFile;
 
+  private final AtomicInteger myInstrumented = new AtomicInteger();
+  private final AtomicInteger myUnchanged = new AtomicInteger();
 
   public Instrumentator(List<File> roots, List<File> outputRoots, Filters filters) {
+    this(roots, outputRoots, filters, null);
+  }
+
+  /**
+   * @param manifestFile file to store the hashes of the inputs between runs, or <code>null</code> to instrument all the files
+   */
+  public Instrumentator(List<File> roots, List<File> outputRoots, Filters filters, File manifestFile) {
     myRoots = roots;
     myOutputRoots = outputRoots;
     myFilters = filters;
+    myManifestFile = manifestFile;
   }
 
   public void instrument(final boolean countHits) {
-    for (int i = 0; i < myRoots.size(); i++) {
-      final File root = myRoots.get(i);
-      final File outputRoot = myOutputRoots.get(i);
-      new InstrumentationVisitor(root, outputRoot, countHits).visitFiles();
+    final InstrumentationOptions options = createOptions(countHits);
+    final InstrumentationManifest manifest = myManifestFile == null ? null
+        : InstrumentationManifest.load(myManifestFile, getFingerprint(options));
+    final Tasks tasks = new Tasks(OptionsUtil.OFFLINE_INSTRUMENTATION_THREADS);
+    final List<File> outputs = new ArrayList<File>();
+    try {
+      for (int i = 0; i < myRoots.size(); i++) {
+        final File root = myRoots.get(i);
+        final File outputRoot = myOutputRoots.get(i);
+        final CoverageTransformer transformer = new OfflineCoverageTransformer(options);
+        if (root.isFile()) {
+          final File output = outputRoot.isDirectory() ? new File(outputRoot, root.getName()) : outputRoot;
+          instrumentJar(root, output, transformer, manifest, tasks);
+          outputs.add(output);
+        } else {
+          new InstrumentationVisitor(root, outputRoot, transformer, manifest, tasks).visitFiles();
+          outputs.add(outputRoot);
+        }
+      }
+      tasks.await();
+    } finally {
+      tasks.shutdown();
+    }
+    if (manifest != null) {
+      int removed = 0;
+      for (File output : outputs) {
+        removed += manifest.removeStale(output);
+      }
+      try {
+        manifest.save();
+      } catch (IOException e) {
+        ErrorReporter.warn("Failed to save offline instrumentation manifest", e);
+      }
+      ErrorReporter.info("Offline instrumentation: " + myInstrumented.get() + " files processed, "
+          + myUnchanged.get() + " unchanged, " + removed + " removed");
     }
   }
 
@@ -60,48 +128,413 @@ public class Instrumentator {
     return transformer.transform(loader, className, bytes, null);
   }
 
+  private InstrumentationOptions createOptions(boolean countHits) {
+    return new InstrumentationOptions.Builder()
+        .setIsCalculateHits(countHits)
+        .setExcludeAnnotations(myFilters.excludeAnnotations)
+        .build();
+  }
+
+  /**
+   * Everything that affects the instrumented bytes except the input itself.
+   */
+  private static String getFingerprint(InstrumentationOptions options) {
+    final StringBuilder builder = new StringBuilder();
+    builder.append(options.isCalculateHits)
+        .append(';').append(options.excludeAnnotations)
+        .append(';').append(OptionsUtil.FIELD_INSTRUMENTATION_ENABLED)
+        .append(';').append(OptionsUtil.CONDY_ENABLED)
+        .append(';').append(OptionsUtil.IGNORE_LOCAL_FUNCTIONS_IN_IGNORED_METHODS)
+        .append(';').append(OptionsUtil.PRESERVE_FRAMES);
+    TransformationCache.appendAgentIdentity(builder);
+    return InstrumentationManifest.hash(builder.toString().getBytes());
+  }
+
+  /**
+   * @param internalName class name with slashes
+   * @return instrumented bytes, or the original bytes if the class is not instrumented
+   */
+  private static byte[] transform(CoverageTransformer transformer, String internalName, byte[] bytes) {
+    // This loader is not user actually, just need some not null loader
+    final ClassLoader loader = ClassLoader.getSystemClassLoader();
+    final byte[] transformed = transformer.transform(loader, internalName, null, null, bytes);
+    return transformed == null ? bytes : transformed;
+  }
+
+  /**
+   * Jar entries are read and written sequentially in the original order, while classes are transformed on the worker pool.
+   * With annotation filters, classes are transformed sequentially in the order of their names, so an outer class
+   * is transformed before its inner classes. The class entries are written at the places of the original class entries then.
+   * Signature files are dropped, as the signatures do not match the instrumented classes.
+   * The jar is written to a temporary file first, so a failure does not leave a partial jar.
+   */
+  private void instrumentJar(File jar, File output, final CoverageTransformer transformer,
+                             InstrumentationManifest manifest, Tasks tasks) {
+    try {
+      String hash = null;
+      if (manifest != null) {
+        if (manifest.isUnchanged(jar, output)) {
+          myUnchanged.incrementAndGet();
+          return;
+        }
+        hash = InstrumentationManifest.hash(jar);
+        if (manifest.isUnchanged(jar, hash, output)) {
+          myUnchanged.incrementAndGet();
+          return;
+        }
+      }
+      createParentDirectory(output);
+      final File tmp = new File(output.getPath() + ".tmp");
+      final boolean sortClasses = !myFilters.excludeAnnotations.isEmpty();
+      final Tasks jarTasks = sortClasses ? Tasks.SEQUENTIAL : tasks;
+      final int maxPending = Math.max(1, tasks.getThreads()) * MAX_PENDING_ENTRIES_PER_THREAD;
+      final ZipFile in = new ZipFile(jar);
+      ZipOutputStream out = null;
+      try {
+        out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        final List<ZipEntry> entries = getJarEntries(in);
+        final Iterator<ZipEntry> sortedClasses = sortClasses ? getSortedClassEntries(entries).iterator() : null;
+        final LinkedList<Object[]> pending = new LinkedList<Object[]>();
+        for (ZipEntry original : entries) {
+          final ZipEntry entry = sortClasses && isClassEntry(original) ? sortedClasses.next() : original;
+          final ZipEntry newEntry = new ZipEntry(entry.getName());
+          if (entry.getTime() != -1) {
+            newEntry.setTime(entry.getTime());
+          }
+          newEntry.setComment(entry.getComment());
+          newEntry.setExtra(entry.getExtra());
+          final byte[] bytes = entry.isDirectory() ? null : readEntry(in, entry);
+          final String className = getJarClassName(entry.getName());
+          final Future<byte[]> result = className == null || bytes == null
+              ? Tasks.completed(bytes)
+              : jarTasks.submit(new Callable<byte[]>() {
+            public byte[] call() {
+              return transform(transformer, className, bytes);
+            }
+          });
+          pending.add(new Object[]{newEntry, result});
+          if (pending.size() > maxPending) {
+            writeEntry(out, pending.removeFirst());
+          }
+        }
+        while (!pending.isEmpty()) {
+          writeEntry(out, pending.removeFirst());
+        }
+      } finally {
+        CoverageIOUtil.close(out);
+        in.close();
+      }
+      if (!tmp.renameTo(output) && (!output.delete() || !tmp.renameTo(output))) {
+        throw new IOException("Failed to write " + output.getAbsolutePath());
+      }
+      myInstrumented.incrementAndGet();
+      if (manifest != null) {
+        manifest.put(jar, hash, output);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * @return entries in the original order without signature files and duplicates
+   */
+  private static List<ZipEntry> getJarEntries(ZipFile zip) {
+    final List<ZipEntry> result = new ArrayList<ZipEntry>();
+    final Set<String> names = new HashSet<String>();
+    final Enumeration<? extends ZipEntry> entries = zip.entries();
+    while (entries.hasMoreElements()) {
+      final ZipEntry entry = entries.nextElement();
+      final String name = entry.getName();
+      if (JAR_SIGNATURE.matcher(name).matches() || !names.add(name)) continue;
+      result.add(entry);
+    }
+    return result;
+  }
+
+  /**
+   * The outer class name is a prefix of the inner class names, so the outer class goes first.
+   */
+  private static List<ZipEntry> getSortedClassEntries(List<ZipEntry> entries) {
+    final List<ZipEntry> result = new ArrayList<ZipEntry>();
+    for (ZipEntry entry : entries) {
+      if (isClassEntry(entry)) {
+        result.add(entry);
+      }
+    }
+    Collections.sort(result, new Comparator<ZipEntry>() {
+      public int compare(ZipEntry o1, ZipEntry o2) {
+        final int byClass = getJarClassName(o1.getName()).compareTo(getJarClassName(o2.getName()));
+        return byClass != 0 ? byClass : o1.getName().compareTo(o2.getName());
+      }
+    });
+    return result;
+  }
+
+  private static boolean isClassEntry(ZipEntry entry) {
+    return !entry.isDirectory() && getJarClassName(entry.getName()) != null;
+  }
+
+  private static byte[] readEntry(ZipFile zip, ZipEntry entry) throws IOException {
+    final InputStream in = zip.getInputStream(entry);
+    try {
+      return IOUtil.readBytes(in);
+    } finally {
+      CoverageIOUtil.close(in);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void writeEntry(ZipOutputStream out, Object[] pending) throws IOException {
+    final byte[] bytes = Tasks.get((Future<byte[]>) pending[1]);
+    out.putNextEntry((ZipEntry) pending[0]);
+    if (bytes != null) {
+      out.write(bytes);
+    }
+    out.closeEntry();
+  }
+
+  /**
+   * @return internal class name, or <code>null</code> if the entry is not a class
+   */
+  private static String getJarClassName(String entryName) {
+    if (!entryName.endsWith(ClassNameUtil.CLASS_FILE_SUFFIX)) return null;
+    String name = entryName;
+    if (name.startsWith(VERSIONS_PREFIX)) {
+      final int index = name.indexOf('/', VERSIONS_PREFIX.length());
+      if (index < 0) return null;
+      name = name.substring(index + 1);
+    } else if (name.startsWith("META-INF/")) {
+      return null;
+    }
+    return ClassNameUtil.removeClassSuffix(name);
+  }
+
+  private static void createParentDirectory(File file) throws IOException {
+    final File directory = file.getAbsoluteFile().getParentFile();
+    createDirectory(directory);
+  }
+
+  /**
+   * Directories may be created concurrently, so the result of <code>mkdirs</code> is not enough.
+   */
+  private static void createDirectory(File directory) throws IOException {
+    if (directory != null && !directory.mkdirs() && !directory.isDirectory()) {
+      throw new IOException("Failed to create directory at " + directory.getAbsolutePath());
+    }
+  }
+
   private class InstrumentationVisitor extends DirectoryVisitor {
     private final File myOutput;
     private final CoverageTransformer myTransformer;
+    private final InstrumentationManifest myManifest;
+    private final Tasks myTasks;
 
-    private InstrumentationVisitor(File root, File output, boolean countHits) {
+    private InstrumentationVisitor(File root, File output, CoverageTransformer transformer,
+                                   InstrumentationManifest manifest, Tasks tasks) {
       super(root);
       myOutput = output;
-      InstrumentationOptions options = new InstrumentationOptions.Builder()
-          .setIsCalculateHits(countHits)
-          .setExcludeAnnotations(myFilters.excludeAnnotations)
-          .build();
-      myTransformer = new OfflineCoverageTransformer(options);
+      myTransformer = transformer;
+      myManifest = manifest;
+      myTasks = tasks;
+    }
+
+    /**
+     * Files of a directory are split into groups by the outer class name, each group is a single task.
+     */
+    @Override
+    protected void visitFiles(final String packageName, List<File> files) {
+      final Map<String, List<File>> groups = new HashMap<String, List<File>>();
+      for (File file : files) {
+        final String name = file.getName();
+        final String groupName = name.endsWith(ClassNameUtil.CLASS_FILE_SUFFIX)
+            ? ClassNameUtil.getOuterClassName(ClassNameUtil.removeClassSuffix(name))
+            : name;
+        List<File> group = groups.get(groupName);
+        if (group == null) {
+          group = new ArrayList<File>();
+          groups.put(groupName, group);
+        }
+        group.add(file);
+      }
+      for (final List<File> group : groups.values()) {
+        // the outer class name is a prefix of the inner class names
+        Collections.sort(group, new Comparator<File>() {
+          public int compare(File o1, File o2) {
+            return ClassNameUtil.removeClassSuffix(o1.getName()).compareTo(ClassNameUtil.removeClassSuffix(o2.getName()));
+          }
+        });
+        myTasks.execute(new Runnable() {
+          public void run() {
+            // an inner class is filtered with annotations of its outer class, which is known only if it is instrumented too
+            final boolean wholeGroup = myManifest != null && !myFilters.excludeAnnotations.isEmpty();
+            if (wholeGroup && isUnchanged(packageName, group)) {
+              myUnchanged.addAndGet(group.size());
+              return;
+            }
+            for (File file : group) {
+              instrumentFile(packageName, file, !wholeGroup);
+            }
+          }
+        });
+      }
     }
 
     @Override
     protected void visitFile(String packageName, File file) {
+      instrumentFile(packageName, file, true);
+    }
+
+    private boolean isUnchanged(String packageName, List<File> files) {
+      try {
+        for (File file : files) {
+          final File newFile = getOutputFile(packageName, file);
+          if (!myManifest.isUnchanged(file, newFile)
+              && !myManifest.isUnchanged(file, InstrumentationManifest.hash(file), newFile)) {
+            return false;
+          }
+        }
+        return true;
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    private File getOutputFile(String packageName, File file) {
+      return new File(new File(myOutput, packageName.replace(".", File.separator)), file.getName());
+    }
+
+    /**
+     * @param skipUnchanged whether to check the manifest, otherwise the file is instrumented and put to the manifest anyway
+     */
+    private void instrumentFile(String packageName, File file, boolean skipUnchanged) {
       try {
+        final File newFile = getOutputFile(packageName, file);
+        final File directory = newFile.getParentFile();
+        if (skipUnchanged && myManifest != null && myManifest.isUnchanged(file, newFile)) {
+          myUnchanged.incrementAndGet();
+          return;
+        }
+
         byte[] bytes = IOUtil.readBytes(file);
+        String hash = null;
+        if (myManifest != null) {
+          hash = InstrumentationManifest.hash(bytes);
+          if (skipUnchanged && myManifest.isUnchanged(file, hash, newFile)) {
+            myUnchanged.incrementAndGet();
+            return;
+          }
+        }
 
         if (file.getName().endsWith(ClassNameUtil.CLASS_FILE_SUFFIX)) {
           final String classSimpleName = ClassNameUtil.removeClassSuffix(file.getName());
           final String className = packageName.isEmpty()
               ? classSimpleName
               : ClassNameUtil.convertToInternalName(packageName) + "/" + classSimpleName;
-          // This loader is not user actually, just need some not null loader
-          final ClassLoader loader = ClassLoader.getSystemClassLoader();
-          final byte[] transformed = myTransformer.transform(loader, className, null, null, bytes);
-          if (transformed != null) {
-            bytes = transformed;
-          }
-        }
-
-        final File directory = new File(myOutput, packageName.replace(".", File.separator));
-        if (!directory.exists() && !directory.mkdirs()) {
-          throw new RuntimeException("Failed to create directory at " + directory.getAbsolutePath());
+          bytes = transform(myTransformer, className, bytes);
         }
 
-        final File newFile = new File(directory, file.getName());
+        createDirectory(directory);
         IOUtil.writeBytes(newFile, bytes);
+        myInstrumented.incrementAndGet();
+        if (myManifest != null) {
+          myManifest.put(file, hash, newFile);
+        }
       } catch (IOException e) {
         throw new RuntimeException(e);
       }
     }
   }
+
+  /**
+   * Worker pool of the offline instrumentation. With a single thread, tasks are run in the caller thread.
+   * The first failure is rethrown from {@link #await()}.
+   */
+  private static class Tasks {
+    static final Tasks SEQUENTIAL = new Tasks(1);
+
+    private final int myThreads;
+    private final ExecutorService myExecutor;
+    private final Queue<Future<?>> myFutures = new ConcurrentLinkedQueue<Future<?>>();
+
+    Tasks(int threads) {
+      myThreads = threads;
+      myExecutor = threads <= 1 ? null : Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        private final AtomicInteger myCounter = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+          final Thread thread = new Thread(r, "IntelliJ Coverage Offline Instrumentation " + myCounter.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+
+    int getThreads() {
+      return myThreads;
+    }
+
+    /**
+     * Run a task that is awaited in {@link #await()}.
+     */
+    void execute(Runnable task) {
+      if (myExecutor == null) {
+        task.run();
+      } else {
+        myFutures.add(myExecutor.submit(task));
+      }
+    }
+
+    /**
+     * Run a task whose result is taken by the caller, it is not awaited in {@link #await()}.
+     */
+    <T> Future<T> submit(Callable<T> task) {
+      if (myExecutor == null) {
+        try {
+          return completed(task.call());
+        } catch (RuntimeException e) {
+          throw e;
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+      return myExecutor.submit(task);
+    }
+
+    void await() {
+      Future<?> future;
+      while ((future = myFutures.poll()) != null) {
+        get(future);
+      }
+    }
+
+    void shutdown() {
+      if (myExecutor != null) {
+        myExecutor.shutdownNow();
+      }
+    }
+
+    static <T> Future<T> completed(T value) {
+      final FutureTask<T> future = new FutureTask<T>(new Runnable() {
+        public void run() {
+        }
+      }, value);
+      future.run();
+      return future;
+    }
+
+    static <T> T get(Future<T> future) {
+      try {
+        return future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+        if (cause instanceof Error) throw (Error) cause;
+        throw new RuntimeException(cause);
+      }
+    }
+  }
 }
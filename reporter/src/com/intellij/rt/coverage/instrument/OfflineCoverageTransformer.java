@@ -40,6 +40,14 @@ public class OfflineCoverageTransformer extends CoverageTransformer {
     super(new ProjectData(), new ProjectContext(options, null));
   }
 
+  /**
+   * Offline runtime stores hits in plain arrays.
+   */
+  @Override
+  protected boolean isStripedHits() {
+    return false;
+  }
+
   @Override
   protected CoverageDataAccess.Init createInit(String className, ClassReader cr, boolean needCache) {
     int length = getRequiredArrayLength(cr);
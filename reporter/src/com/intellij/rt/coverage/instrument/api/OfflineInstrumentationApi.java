@@ -34,6 +34,15 @@ public class OfflineInstrumentationApi {
     new Instrumentator(roots, outputRoots, filters).instrument(countHits);
   }
 
+  /**
+   * Instrument incrementally: the hashes of the inputs are stored in the manifest file,
+   * and the inputs that have not changed since the previous run are skipped.
+   * The roots may be directories or jar files.
+   */
+  public static void instrument(List<File> roots, List<File> outputRoots, Filters filters, boolean countHits, File manifestFile) {
+    new Instrumentator(roots, outputRoots, filters, manifestFile).instrument(countHits);
+  }
+
   public static byte[] instrument(InputStream input, boolean countHits) throws IOException {
     byte[] bytes = IOUtil.readBytes(input);
     return Instrumentator.instrument(bytes, countHits);
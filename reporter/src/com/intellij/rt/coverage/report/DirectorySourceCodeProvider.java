@@ -26,19 +26,75 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 /**
  * Provide source code for HTML report.
+ * <p>
+ * The source code may be loaded in background threads ahead of the requests, see {@link #prefetch(List, int)}.
  */
 public class DirectorySourceCodeProvider implements SourceCodeProvider {
   private final FileLocator myFileLocator;
+  private final Map<String, Future<CharSequence>> myPrefetched = new HashMap<String, Future<CharSequence>>();
+  private final Set<String> myRequested = new HashSet<String>();
+  private Iterator<String> myQueue;
+  private int myLookAhead;
+  private ExecutorService myExecutor;
 
   public DirectorySourceCodeProvider(ProjectData projectData, List<File> sources) {
     myFileLocator = new SourceFileLocator(sources, projectData);
   }
 
+  /**
+   * Start loading the source code of the classes in the given order, so that it is ready when the report builder requests it.
+   * Only a few sources that have not been requested yet are kept in memory,
+   * so the loading stops if the requests do not follow the given order.
+   * {@link #dispose()} must be called after the report is generated.
+   */
+  public void prefetch(List<String> classNames, int threads) {
+    if (threads <= 1 || classNames.isEmpty()) return;
+    myExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private final AtomicInteger myCounter = new AtomicInteger();
+
+      public Thread newThread(Runnable r) {
+        final Thread thread = new Thread(r, "IntelliJ Coverage Source Loader " + myCounter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    synchronized (myPrefetched) {
+      myQueue = classNames.iterator();
+      myLookAhead = 4 * threads;
+      submitPrefetch();
+    }
+  }
+
+  public void dispose() {
+    synchronized (myPrefetched) {
+      myPrefetched.clear();
+      myQueue = null;
+    }
+    if (myExecutor != null) {
+      myExecutor.shutdownNow();
+      myExecutor = null;
+    }
+  }
+
+  private void submitPrefetch() {
+    while (myQueue != null && myQueue.hasNext() && myPrefetched.size() < myLookAhead) {
+      final String className = myQueue.next();
+      if (myRequested.contains(className) || myPrefetched.containsKey(className)) continue;
+      myPrefetched.put(className, myExecutor.submit(new Callable<CharSequence>() {
+        public CharSequence call() {
+          return loadSourceCode(className);
+        }
+      }));
+    }
+  }
+
   private static String readText(File file) {
     try {
       return FileUtils.readAll(file);
@@ -47,6 +103,31 @@ public class DirectorySourceCodeProvider implements SourceCodeProvider {
     }
   }
 
+  @Nullable
+  @Override
+  public CharSequence getSourceCode(@NotNull String className) {
+    final Future<CharSequence> future;
+    synchronized (myPrefetched) {
+      future = myPrefetched.remove(className);
+      if (myQueue != null) {
+        myRequested.add(className);
+        submitPrefetch();
+      }
+    }
+    if (future == null) return loadSourceCode(className);
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new RuntimeException(cause);
+    }
+  }
+
   /*
    * An example when a class may have several source code candidates.
    * This issue occurs due to Kotlin directory structure,
@@ -71,8 +152,7 @@ public class DirectorySourceCodeProvider implements SourceCodeProvider {
    * @return source code string for the class
    */
   @Nullable
-  @Override
-  public CharSequence getSourceCode(@NotNull String className) {
+  private CharSequence loadSourceCode(String className) {
     final List<File> candidates = myFileLocator.locate(className);
     if (candidates.isEmpty()) return null;
     if (candidates.size() == 1) return readText(candidates.get(0));
@@ -21,6 +21,7 @@ import com.intellij.rt.coverage.aggregate.api.Request;
 import com.intellij.rt.coverage.data.ProjectData;
 import com.intellij.rt.coverage.report.api.Filters;
 import com.intellij.rt.coverage.report.data.BinaryReport;
+import com.intellij.rt.coverage.util.OptionsUtil;
 
 import java.io.File;
 import java.util.List;
@@ -41,12 +42,32 @@ public abstract class ReportLoadStrategy {
   public ProjectData getProjectData() {
     if (myCacheData == null) {
       myCacheData = loadProjectData();
+      if (OptionsUtil.COMPACT_LINES) {
+        // the data is only read during report generation
+        myCacheData.compact();
+      }
     }
     return myCacheData;
   }
 
   protected abstract ProjectData loadProjectData();
 
+  /**
+   * Classes for a report that is written one package at a time.
+   * The classes are taken from the project data if it is loaded already or cannot be read by classes.
+   */
+  public XMLCoverageReport.ClassSource getClassSource() {
+    if (myCacheData == null) {
+      final XMLCoverageReport.ClassSource classSource = openClassSource();
+      if (classSource != null) return classSource;
+    }
+    return XMLCoverageReport.createClassSource(getProjectData());
+  }
+
+  protected XMLCoverageReport.ClassSource openClassSource() {
+    return null;
+  }
+
 
   public List<File> getSources() {
     return mySourceRoots;
@@ -88,5 +109,10 @@ public abstract class ReportLoadStrategy {
     protected ProjectData loadProjectData() {
       return myReports.get(0).loadData();
     }
+
+    @Override
+    protected XMLCoverageReport.ClassSource openClassSource() {
+      return myReports.get(0).openClassSource();
+    }
   }
 }
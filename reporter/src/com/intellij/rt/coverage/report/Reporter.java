@@ -18,8 +18,8 @@ package com.intellij.rt.coverage.report;
 
 import com.intellij.rt.coverage.data.ProjectData;
 import com.intellij.rt.coverage.util.CoverageIOUtil;
+import com.intellij.rt.coverage.util.OptionsUtil;
 import jetbrains.coverage.report.ReportBuilderFactory;
-import jetbrains.coverage.report.SourceCodeProvider;
 import jetbrains.coverage.report.html.HTMLReportBuilder;
 import jetbrains.coverage.report.idea.IDEACoverageData;
 import jetbrains.coverage.report.impl.html.HTMLReportBuilderImpl;
@@ -27,6 +27,9 @@ import jetbrains.coverage.report.impl.html.HTMLReportBuilderImpl;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Creates XML or HTML coverage reports.
@@ -46,7 +49,7 @@ public class Reporter {
     try {
       xmlFile.getParentFile().mkdirs();
       out = new FileOutputStream(xmlFile);
-      report.write(out, myLoad.getProjectData(), myTitle);
+      report.write(out, myLoad.getClassSource(), myTitle);
     } finally {
       CoverageIOUtil.close(out);
     }
@@ -65,8 +68,17 @@ public class Reporter {
         ((HTMLReportBuilderImpl) builder).setCharset(charset);
       }
     }
-    final SourceCodeProvider sourceCodeProvider = new DirectorySourceCodeProvider(myLoad.getProjectData(), myLoad.getSources());
-    builder.generateReport(new IDEACoverageData(myLoad.getProjectData(), sourceCodeProvider));
+    final ProjectData projectData = myLoad.getProjectData();
+    final DirectorySourceCodeProvider sourceCodeProvider = new DirectorySourceCodeProvider(projectData, myLoad.getSources());
+    // pages are rendered one by one, the source files are read in parallel ahead of them
+    final List<String> classNames = new ArrayList<String>(projectData.getClasses().keySet());
+    Collections.sort(classNames);
+    sourceCodeProvider.prefetch(classNames, OptionsUtil.REPORT_THREADS);
+    try {
+      builder.generateReport(new IDEACoverageData(projectData, sourceCodeProvider));
+    } finally {
+      sourceCodeProvider.dispose();
+    }
   }
 
   public ProjectData getProjectData() {
@@ -17,14 +17,21 @@
 package com.intellij.rt.coverage.report.data;
 
 import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.instructions.ClassInstructions;
 import com.intellij.rt.coverage.offline.RawHitsReport;
+import com.intellij.rt.coverage.report.XMLCoverageReport;
 import com.intellij.rt.coverage.util.CoverageReport;
 import com.intellij.rt.coverage.util.ErrorReporter;
+import com.intellij.rt.coverage.util.MappedReport;
 import com.intellij.rt.coverage.util.ProjectDataLoader;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
 
 public class BinaryReport {
   private final File myDataFile;
@@ -70,4 +77,56 @@ public class BinaryReport {
     }
     return data;
   }
+
+  /**
+   * Open the report so that classes are loaded one at a time, instead of loading the whole report with {@link #loadData()}.
+   *
+   * @return class source or <code>null</code> if the report cannot be read by classes,
+   * e.g. it is a raw hits report, or it has instructions but no index
+   */
+  @Nullable
+  public XMLCoverageReport.ClassSource openClassSource() {
+    if (!myDataFile.isFile() || isRawHitsReport()) return null;
+    try {
+      final MappedReport report = MappedReport.open(myDataFile);
+      if (!report.canLoadInstructions()) return null;
+      final Map<String, String> sources = mySourceMapFile == null
+          ? Collections.<String, String>emptyMap()
+          : CoverageReport.loadSourceMap(mySourceMapFile);
+      return new MappedClassSource(report, sources);
+    } catch (IOException e) {
+      ErrorReporter.info("Failed to open coverage report " + myDataFile.getPath() + ", it will be loaded fully", e);
+      return null;
+    }
+  }
+
+  private static class MappedClassSource implements XMLCoverageReport.ClassSource {
+    private final MappedReport myReport;
+    private final Map<String, String> mySources;
+
+    private MappedClassSource(MappedReport report, Map<String, String> sources) {
+      myReport = report;
+      mySources = sources;
+    }
+
+    public Collection<String> getClassNames() {
+      return myReport.getClassNames();
+    }
+
+    public boolean hasLines(String className) {
+      return myReport.hasLines(className);
+    }
+
+    public ClassData loadClass(String className) throws IOException {
+      final ClassData classData = myReport.loadClass(className);
+      if (classData != null) {
+        classData.setSource(mySources.get(className));
+      }
+      return classData;
+    }
+
+    public ClassInstructions getInstructions(ClassData classData) throws IOException {
+      return myReport.loadInstructions(classData);
+    }
+  }
 }
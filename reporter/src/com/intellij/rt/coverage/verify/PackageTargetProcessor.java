@@ -20,6 +20,7 @@ import com.intellij.rt.coverage.data.ClassData;
 import com.intellij.rt.coverage.data.ProjectData;
 import com.intellij.rt.coverage.report.XMLCoverageReport;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -30,13 +31,25 @@ public class PackageTargetProcessor implements TargetProcessor {
 
   @Override
   public void process(ProjectData projectData, Consumer consumer) {
+    final Map<String, Verifier.CollectedCoverage> classCoverage = new HashMap<String, Verifier.CollectedCoverage>();
+    for (ClassData classData : projectData.getClassesCollection()) {
+      classCoverage.put(classData.getName(), ProjectTargetProcessor.collectClassCoverage(projectData, classData));
+    }
+    sumUpPackages(projectData, classCoverage, consumer);
+  }
+
+  /**
+   * Sum up coverage statistics of the classes for each package.
+   *
+   * @param classCoverage coverage summaries of all the classes by class name
+   */
+  static void sumUpPackages(ProjectData projectData, Map<String, Verifier.CollectedCoverage> classCoverage, Consumer consumer) {
     final Map<String, List<ClassData>> classesToPackages = XMLCoverageReport.mapClassesToPackages(projectData, false);
 
     for (Map.Entry<String, List<ClassData>> packageEntry : classesToPackages.entrySet()) {
       final Verifier.CollectedCoverage packageCoverage = new Verifier.CollectedCoverage();
       for (ClassData classData : packageEntry.getValue()) {
-        final Verifier.CollectedCoverage coverage = ProjectTargetProcessor.collectClassCoverage(projectData, classData);
-        packageCoverage.add(coverage);
+        packageCoverage.add(classCoverage.get(classData.getName()));
       }
       final String packageName = packageEntry.getKey();
       consumer.consume(packageName, packageCoverage);
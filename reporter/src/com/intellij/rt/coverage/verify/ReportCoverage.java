@@ -0,0 +1,86 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.verify;
+
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.verify.api.Target;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coverage summaries of a report for all the targets, calculated in one traversal of the report.
+ * The project data is not referenced, so that the summaries of many reports may be kept.
+ * <p>
+ * The summaries are collected by the {@link TargetProcessor}s of the targets,
+ * and the elements are passed to a consumer in the same order as by the processor.
+ */
+public class ReportCoverage {
+  private final List<String> myClassNames = new ArrayList<String>();
+  private final List<Verifier.CollectedCoverage> myClassCoverage = new ArrayList<Verifier.CollectedCoverage>();
+  private final List<String> myPackageNames = new ArrayList<String>();
+  private final List<Verifier.CollectedCoverage> myPackageCoverage = new ArrayList<Verifier.CollectedCoverage>();
+  private final Verifier.CollectedCoverage myProjectCoverage = new Verifier.CollectedCoverage();
+
+  private ReportCoverage() {
+  }
+
+  public static ReportCoverage collect(ProjectData projectData) {
+    final ReportCoverage result = new ReportCoverage();
+    final Map<String, Verifier.CollectedCoverage> classes = new HashMap<String, Verifier.CollectedCoverage>();
+    new ClassTargetProcessor().process(projectData, new TargetProcessor.Consumer() {
+      public void consume(String name, Verifier.CollectedCoverage coverage) {
+        result.myClassNames.add(name);
+        result.myClassCoverage.add(coverage);
+        result.myProjectCoverage.add(coverage);
+        classes.put(name, coverage);
+      }
+    });
+
+    PackageTargetProcessor.sumUpPackages(projectData, classes, new TargetProcessor.Consumer() {
+      public void consume(String name, Verifier.CollectedCoverage coverage) {
+        result.myPackageNames.add(name);
+        result.myPackageCoverage.add(coverage);
+      }
+    });
+    return result;
+  }
+
+  public void process(Target target, TargetProcessor.Consumer consumer) {
+    switch (target) {
+      case CLASS:
+        process(myClassNames, myClassCoverage, consumer);
+        return;
+      case PACKAGE:
+        process(myPackageNames, myPackageCoverage, consumer);
+        return;
+      case ALL:
+        consumer.consume("all", myProjectCoverage);
+        return;
+    }
+
+    throw new RuntimeException("Unexpected value " + target);
+  }
+
+  private static void process(List<String> names, List<Verifier.CollectedCoverage> coverage, TargetProcessor.Consumer consumer) {
+    for (int i = 0; i < names.size(); i++) {
+      consumer.consume(names.get(i), coverage.get(i));
+    }
+  }
+}
@@ -16,24 +16,35 @@
 
 package com.intellij.rt.coverage.verify;
 
-import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.util.OptionsUtil;
 import com.intellij.rt.coverage.util.ProjectDataLoader;
 import com.intellij.rt.coverage.verify.api.*;
 
+import java.io.File;
 import java.math.BigDecimal;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Sums up coverage statistics and checks if user defined coverage restrictions are passing
+ * <p>
+ * Each report is loaded once, and its coverage is summed up once for all the targets, see {@link ReportCoverage}.
  */
 public class Verifier {
   private final List<Rule> myRules;
+  private final int myThreads;
 
   public Verifier(List<Rule> rules) {
+    this(rules, OptionsUtil.REPORT_THREADS);
+  }
+
+  /**
+   * @param threads number of reports to be loaded in parallel
+   */
+  public Verifier(List<Rule> rules, int threads) {
     myRules = rules;
+    myThreads = threads;
   }
 
   /**
@@ -42,20 +53,74 @@ public class Verifier {
    * @return violations
    */
   public List<RuleViolation> processRules() {
+    final Map<File, ReportCoverage> reports = collectReports();
     final List<RuleViolation> violations = new ArrayList<RuleViolation>();
     for (Rule rule : myRules) {
-      final RuleViolation violation = processRule(rule);
+      final RuleViolation violation = processRule(rule, reports.get(rule.reportFile.getAbsoluteFile()));
       if (violation == null) continue;
       violations.add(violation);
     }
     return violations;
   }
 
-  private static RuleViolation processRule(final Rule rule) {
-    final ProjectData projectData = ProjectDataLoader.load(rule.reportFile);
+  private Map<File, ReportCoverage> collectReports() {
+    final Set<File> files = new LinkedHashSet<File>();
+    for (Rule rule : myRules) {
+      files.add(rule.reportFile.getAbsoluteFile());
+    }
+    final Map<File, ReportCoverage> reports = new HashMap<File, ReportCoverage>();
+    if (myThreads <= 1 || files.size() <= 1) {
+      for (File file : files) {
+        reports.put(file, ReportCoverage.collect(ProjectDataLoader.load(file)));
+      }
+      return reports;
+    }
+
+    final ExecutorService executor = Executors.newFixedThreadPool(Math.min(myThreads, files.size()), new ThreadFactory() {
+      private final AtomicInteger myCounter = new AtomicInteger();
+
+      public Thread newThread(Runnable r) {
+        final Thread thread = new Thread(r, "IntelliJ Coverage Verifier " + myCounter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    try {
+      final Map<File, Future<ReportCoverage>> futures = new LinkedHashMap<File, Future<ReportCoverage>>();
+      for (final File file : files) {
+        futures.put(file, executor.submit(new Callable<ReportCoverage>() {
+          public ReportCoverage call() {
+            // only the summary is kept, the project data is released as soon as it is collected
+            return ReportCoverage.collect(ProjectDataLoader.load(file));
+          }
+        }));
+      }
+      for (Map.Entry<File, Future<ReportCoverage>> entry : futures.entrySet()) {
+        reports.put(entry.getKey(), get(entry.getValue()));
+      }
+      return reports;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static <T> T get(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new RuntimeException(cause);
+    }
+  }
+
+  private static RuleViolation processRule(final Rule rule, ReportCoverage report) {
     final Map<Integer, BoundViolation> violations = new HashMap<Integer, BoundViolation>();
-    final TargetProcessor processor = rule.target.createTargetProcessor();
-    processor.process(projectData, new TargetProcessor.Consumer() {
+    report.process(rule.target, new TargetProcessor.Consumer() {
 
       private BoundViolation getOrCreateViolation(int boundId) {
         BoundViolation violation = violations.get(boundId);
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.rt.coverage.impact
+
+import com.intellij.rt.coverage.impact.api.ChangedLines
+import com.intellij.rt.coverage.impact.api.TestImpactApi
+import com.intellij.rt.coverage.util.TestTrackingIOUtil
+import org.junit.Assert
+import org.junit.Test
+import java.io.File
+import kotlin.io.path.createTempDirectory
+
+class TestImpactIndexTest {
+    private val traces = mapOf(
+        "test1" to mapOf("a.A" to intArrayOf(1, 2, 3), "a.A\$Inner" to intArrayOf(20)),
+        "test2" to mapOf("a.A" to intArrayOf(3, 4), "a.AB" to intArrayOf(1, 2)),
+        "test3" to mapOf("a.B" to intArrayOf(1, 200)),
+        "test0" to mapOf()
+    )
+
+    @Test
+    fun testFindTests() {
+        val index = buildIndex(traces)
+        Assert.assertEquals(4, index.testCount)
+        Assert.assertEquals(4, index.classCount)
+        Assert.assertEquals(listOf("test1", "test2"), index.findTests(listOf(ChangedLines("a.A", 3, 3))))
+        Assert.assertEquals(listOf("test1"), index.findTests(listOf(ChangedLines("a.A", 1, 2))))
+        Assert.assertEquals(listOf("test2"), index.findTests(listOf(ChangedLines("a.A", 4, 10))))
+        Assert.assertEquals(emptyList<String>(), index.findTests(listOf(ChangedLines("a.A", 5, 10))))
+        Assert.assertEquals(emptyList<String>(), index.findTests(listOf(ChangedLines("a.C", 1, 10))))
+        Assert.assertEquals(
+            listOf("test2", "test3"),
+            index.findTests(listOf(ChangedLines("a.B", 150, 300), ChangedLines("a.AB", 1, 1)))
+        )
+    }
+
+    @Test
+    fun testNestedClasses() {
+        val index = buildIndex(traces)
+        Assert.assertEquals(listOf("test1"), index.findTests(listOf(ChangedLines("a.A", 15, 25))))
+        Assert.assertEquals(listOf("test1"), index.findTests(listOf(ChangedLines("a.A\$Inner", 15, 25))))
+        Assert.assertEquals(listOf("test2"), index.findTests(listOf(ChangedLines("a.AB", 1, 25))))
+    }
+
+    @Test
+    fun testEmptyIndex() {
+        val index = buildIndex(emptyMap())
+        Assert.assertEquals(0, index.testCount)
+        Assert.assertEquals(emptyList<String>(), index.findTests(listOf(ChangedLines("a.A", 1, 10))))
+    }
+
+    @Test
+    fun testIndexFromTracesDirectory() {
+        val tracesDir = createTempDirectory("traces").toFile()
+        val indexFile = File.createTempFile("index", ".tii")
+        try {
+            for ((test, classes) in traces) {
+                val trace = HashMap<Any, BooleanArray>()
+                for ((className, lines) in classes) {
+                    trace[className] = BooleanArray(lines.maxOrNull()!! + 1).also { array -> lines.forEach { array[it] = true } }
+                }
+                TestTrackingIOUtil.saveTestResults(tracesDir, test, trace)
+            }
+            TestImpactApi.buildIndex(tracesDir, indexFile)
+            Assert.assertEquals(
+                listOf("test1", "test2"),
+                TestImpactApi.findAffectedTests(indexFile, listOf(ChangedLines("a.A", 3, 3)))
+            )
+        } finally {
+            tracesDir.deleteRecursively()
+            indexFile.delete()
+        }
+    }
+
+    private fun buildIndex(traces: Map<String, Map<String, IntArray>>): TestImpactIndex {
+        val file = File.createTempFile("index", ".tii")
+        file.deleteOnExit()
+        TestImpactIndex.build(traces, file)
+        return TestImpactIndex.open(file)
+    }
+}
@@ -19,10 +19,15 @@ import com.intellij.rt.coverage.instrument.api.OfflineInstrumentationApi
 import com.intellij.rt.coverage.report.TestUtils
 import com.intellij.rt.coverage.report.api.Filters
 import com.intellij.rt.coverage.util.ClassNameUtil
+import com.intellij.rt.coverage.util.OptionsUtil
 import org.jetbrains.coverage.org.objectweb.asm.*
 import org.junit.Assert
 import org.junit.Test
 import java.io.File
+import java.util.regex.Pattern
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+import java.util.zip.ZipOutputStream
 import kotlin.io.path.createTempDirectory
 
 class InstrumentatorTest {
@@ -57,7 +62,132 @@ class InstrumentatorTest {
         TestUtils.checkLogFile(File("."))
     }
 
+    @Test
+    fun parallelTest() {
+        val threads = OptionsUtil.OFFLINE_INSTRUMENTATION_THREADS
+        try {
+            OptionsUtil.OFFLINE_INSTRUMENTATION_THREADS = 1
+            val (roots, sequentialRoots) = createInstrumentatorTask()
+            runInstrumentator(roots, sequentialRoots, Filters.EMPTY)
+
+            OptionsUtil.OFFLINE_INSTRUMENTATION_THREADS = 4
+            val (_, parallelRoots) = createInstrumentatorTask()
+            runInstrumentator(roots, parallelRoots, Filters.EMPTY)
+
+            for ((sequential, parallel) in sequentialRoots.zip(parallelRoots)) {
+                Assert.assertEquals(collectContent(sequential), collectContent(parallel))
+            }
+        } finally {
+            OptionsUtil.OFFLINE_INSTRUMENTATION_THREADS = threads
+        }
+    }
+
+    @Test
+    fun jarTest() {
+        val root = File(TestUtils.JAVA_OUTPUT)
+        val jar = File(createTempDirectory("jar_input").toFile(), "classes.jar")
+        ZipOutputStream(jar.outputStream()).use { out ->
+            for ((name, bytes) in collectContent(root)) {
+                out.putNextEntry(ZipEntry(name))
+                out.write(bytes.toByteArray())
+                out.closeEntry()
+            }
+        }
+        val outputRoot = createTempDirectory("jar_output").toFile()
+
+        TestUtils.clearLogFile(File("."))
+        Instrumentator(listOf(jar), listOf(outputRoot), Filters.EMPTY).instrument(false)
+        TestUtils.checkLogFile(File("."))
+
+        // the jar is instrumented in the same way as the directory
+        val (_, directoryRoots) = createInstrumentatorTask()
+        runInstrumentator(listOf(root), directoryRoots.take(1), Filters.EMPTY)
+        val instrumented = ZipFile(File(outputRoot, jar.name)).use { zip ->
+            zip.entries().asSequence().associate { it.name to zip.getInputStream(it).readBytes().toList() }
+        }
+        Assert.assertEquals(collectContent(directoryRoots[0]), instrumented)
+    }
+
+    @Test
+    fun manifestTest() {
+        val root = createTempDirectory("manifest_input").toFile()
+        File(TestUtils.JAVA_OUTPUT).copyRecursively(root, overwrite = true)
+        val outputRoot = createTempDirectory("manifest_output").toFile()
+        val manifest = File(createTempDirectory("manifest").toFile(), "manifest.txt")
+        val filters = Filters.EMPTY
+
+        OfflineInstrumentationApi.instrument(listOf(root), listOf(outputRoot), filters, false, manifest)
+        checkOfflineInstrumentation(listOf(root), listOf(outputRoot), filters)
+        Assert.assertTrue(manifest.exists())
+
+        val classes = root.walk().filter { it.name.endsWith(ClassNameUtil.CLASS_FILE_SUFFIX) }.toList()
+        val touched = classes[0]
+        val deleted = classes[1]
+        val touchedOutput = File(outputRoot, touched.toRelativeString(root))
+        val deletedOutput = File(outputRoot, deleted.toRelativeString(root))
+        // the same content with a new timestamp is not instrumented again
+        Assert.assertTrue(touched.setLastModified(touched.lastModified() + 10000))
+        Assert.assertTrue(touchedOutput.setLastModified(1000))
+        Assert.assertTrue(deleted.delete())
+
+        OfflineInstrumentationApi.instrument(listOf(root), listOf(outputRoot), filters, false, manifest)
+        Assert.assertEquals(1000, touchedOutput.lastModified())
+        Assert.assertFalse(deletedOutput.exists())
+        checkOfflineInstrumentation(listOf(root), listOf(outputRoot), filters)
+    }
+
+    @Test
+    fun manifestExcludeAnnotationTest() {
+        val root = createTempDirectory("manifest_input").toFile()
+        File(TestUtils.JAVA_OUTPUT).copyRecursively(root, overwrite = true)
+        val outputRoot = createTempDirectory("manifest_output").toFile()
+        val manifest = File(createTempDirectory("manifest").toFile(), "manifest.txt")
+        val filters = TestUtils.createFilters(excludeAnnotations = listOf(Pattern.compile(EXCLUDE_ANNOTATION)))
+        val outerClass = File(outputRoot, OUTER_CLASS)
+        val anonymousClass = File(outputRoot, ANONYMOUS_CLASS)
+
+        OfflineInstrumentationApi.instrument(listOf(root), listOf(outputRoot), filters, false, manifest)
+        Assert.assertTrue(outerClass.readBytes().isInstrumented())
+        Assert.assertFalse(anonymousClass.readBytes().isInstrumented())
+
+        // the outer class is unchanged, but it is instrumented again to filter the anonymous class
+        Assert.assertTrue(anonymousClass.delete())
+        OfflineInstrumentationApi.instrument(listOf(root), listOf(outputRoot), filters, false, manifest)
+        Assert.assertTrue(outerClass.readBytes().isInstrumented())
+        Assert.assertFalse(anonymousClass.readBytes().isInstrumented())
+    }
+
+    @Test
+    fun jarExcludeAnnotationTest() {
+        val root = File(TestUtils.JAVA_OUTPUT)
+        val jar = File(createTempDirectory("jar_input").toFile(), "classes.jar")
+        // sorted entry names put inner classes before the outer ones, as '$' goes before '.'
+        ZipOutputStream(jar.outputStream()).use { out ->
+            for ((name, bytes) in collectContent(root).toSortedMap()) {
+                out.putNextEntry(ZipEntry(name))
+                out.write(bytes.toByteArray())
+                out.closeEntry()
+            }
+        }
+        val outputRoot = createTempDirectory("jar_output").toFile()
+        val filters = TestUtils.createFilters(excludeAnnotations = listOf(Pattern.compile(EXCLUDE_ANNOTATION)))
+
+        TestUtils.clearLogFile(File("."))
+        Instrumentator(listOf(jar), listOf(outputRoot), filters).instrument(false)
+        TestUtils.checkLogFile(File("."))
+
+        ZipFile(File(outputRoot, jar.name)).use { zip ->
+            Assert.assertEquals(collectContent(root).keys, zip.entries().asSequence().map { it.name }.toSet())
+            Assert.assertTrue(zip.getInputStream(zip.getEntry(OUTER_CLASS)).readBytes().isInstrumented())
+            Assert.assertFalse(zip.getInputStream(zip.getEntry(ANONYMOUS_CLASS)).readBytes().isInstrumented())
+        }
+    }
+
     companion object {
+        private const val EXCLUDE_ANNOTATION = "testData.excludeAnnotation.ExcludeFromCoverage"
+        private const val OUTER_CLASS = "testData/offlineExcludeAnnotation/AnonymousClassInExcludedMethod.class"
+        private const val ANONYMOUS_CLASS = "testData/offlineExcludeAnnotation/AnonymousClassInExcludedMethod\$1.class"
+
         fun runInstrumentator(roots: List<File>, outputRoots: List<File>, filters: Filters) {
             val inst = Instrumentator(roots, outputRoots, filters)
             TestUtils.clearLogFile(File("."))
@@ -76,6 +206,10 @@ class InstrumentatorTest {
 
 private fun collectFiles(root: File) = root.walk().map { it.toRelativeString(root) }.toHashSet()
 
+private fun collectContent(root: File) = root.walk()
+    .filter { it.isFile }
+    .associate { it.toRelativeString(root).replace(File.separatorChar, '/') to it.readBytes().toList() }
+
 private fun checkOfflineInstrumentation(roots: List<File>, outputRoots: List<File>, filters: Filters) {
     for ((root, outputRoot) in roots.zip(outputRoots)) {
         val original = collectFiles(root)
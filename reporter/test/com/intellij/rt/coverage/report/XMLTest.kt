@@ -28,6 +28,7 @@ import com.intellij.rt.coverage.report.TestUtils.createReporter
 import com.intellij.rt.coverage.report.TestUtils.getResourceFile
 import com.intellij.rt.coverage.report.TestUtils.runTest
 import com.intellij.rt.coverage.report.api.ReportApi
+import com.intellij.rt.coverage.report.data.BinaryReport
 import com.intellij.rt.coverage.report.util.FileUtils
 import org.junit.Assert
 import org.junit.Test
@@ -228,6 +229,45 @@ class XMLTest {
         verifyXMLWithExpected(xmlFile, "xml/classAndInheritanceFilter.xml")
     }
 
+    @Test
+    fun testStreamingReportEqualsLoadedReport() {
+        val patterns = "testData\\.branches\\..*"
+        val report = runTest(patterns, "testData.branches.TestKt")
+        val streamed = createXMLFile()
+        val reporter = createReporter(report, patterns)
+        // the aggregated report is indexed, so it is read by packages
+        Assert.assertNotNull(BinaryReport(report.dataFile, null).openClassSource())
+        reporter.createXMLReport(streamed)
+
+        val loaded = createXMLFile()
+        XMLCoverageReport().write(FileOutputStream(loaded), reporter.projectData, null)
+        Assert.assertEquals(FileUtils.readAll(loaded), FileUtils.readAll(streamed))
+    }
+
+    @Test
+    fun testParallelReportEqualsSequentialReport() {
+        val project = ProjectData()
+        for (p in 0 until 20) {
+            for (c in 0 until 5) {
+                val classData = project.getOrCreateClassData("package$p.Class$c")
+                val lines = arrayOfNulls<LineData>(c + 3)
+                for (l in 1 until lines.size) {
+                    val lineData = LineData(l, "foo$l()V")
+                    lineData.hits = (l + c) % 3
+                    lines[l] = lineData
+                }
+                classData.setLines(lines)
+                classData.source = "File${c % 2}.kt"
+            }
+        }
+
+        val sequential = createXMLFile()
+        XMLCoverageReport(1).write(FileOutputStream(sequential), project, null)
+        val parallel = createXMLFile()
+        XMLCoverageReport(4).write(FileOutputStream(parallel), project, null)
+        Assert.assertEquals(FileUtils.readAll(sequential), FileUtils.readAll(parallel))
+    }
+
     private fun test(testName: String) {
         val patterns = "testData\\.$testName\\..*"
         val className = "testData.$testName.TestKt"
@@ -170,6 +170,36 @@ class VerifierTest {
         runVerifier(rules, listOf(ruleViolation))
     }
 
+    @Test
+    @Throws(IOException::class, InterruptedException::class)
+    fun testRulesWithSameReport() {
+        val rules: MutableList<Rule> = ArrayList()
+        val bound1_1 = Bound(1, Counter.LINE, ValueType.COVERED, BigDecimal.valueOf(10), BigDecimal.valueOf(15))
+        val bound1_2 = Bound(2, Counter.BRANCH, ValueType.COVERED_RATE, BigDecimal.valueOf(0.1), BigDecimal.valueOf(0.9))
+        val rule1 = createRule(Target.ALL, bound1_1, bound1_2)
+        rules.add(rule1)
+
+        val bound2_1 = Bound(1, Counter.LINE, ValueType.COVERED, BigDecimal.valueOf(10), BigDecimal.valueOf(15))
+        rules.add(Rule(ruleId++, rule1.reportFile, Target.PACKAGE, listOf(bound2_1)))
+
+        val boundViolation1x2 = BoundViolation(2)
+        boundViolation1x2.minViolations.add(Violation("all", BigDecimal("0.090909")))
+        val ruleViolation1 = RuleViolation(1, listOf(boundViolation1x2))
+
+        val boundViolation2x1 = BoundViolation(1)
+        boundViolation2x1.minViolations.add(Violation("", BigDecimal.ONE))
+        boundViolation2x1.minViolations.add(Violation("testData.inline", BigDecimal("3")))
+        boundViolation2x1.minViolations.add(Violation("testData.defaultArgs", BigDecimal.ZERO))
+        boundViolation2x1.minViolations.add(Violation("testData.outOfPackageStructure", BigDecimal.ZERO))
+        boundViolation2x1.minViolations.add(Violation("testData.simple", BigDecimal("5")))
+        boundViolation2x1.minViolations.add(Violation("testData.crossinline", BigDecimal.ZERO))
+        boundViolation2x1.minViolations.add(Violation("testData.noReport.branches", BigDecimal.ZERO))
+        boundViolation2x1.minViolations.add(Violation("testData.branches", BigDecimal("4")))
+        val ruleViolation2 = RuleViolation(2, listOf(boundViolation2x1))
+
+        runVerifier(rules, listOf(ruleViolation1, ruleViolation2))
+    }
+
     @get:Throws(IOException::class)
     private val file: File
         get() = File.createTempFile("report", "ic")
@@ -194,10 +224,10 @@ class VerifierTest {
             includes.add(Pattern.compile("testData\\.simple\\..*"))
             includes.add(Pattern.compile("testData\\.outOfPackageStructure\\..*"))
             includes.add(Pattern.compile("[^.]*"))
-            for (rule in rules) {
+            for (reportFile in rules.map { it.reportFile }.distinct()) {
                 val request = Request(
                     createFilters(includes),
-                    rule.reportFile, null
+                    reportFile, null
                 )
                 requests.add(request)
             }
@@ -32,9 +32,17 @@ public class ClassData implements CoverageData {
    * Hits value forced to be in [0, MAX_HITS] to prevent hits overflow.
    */
   private static final int MAX_HITS = 1000000000;
+  /**
+   * Number of extra counters at the end of a hits stripe, 64 bytes in total.
+   */
+  private static final int STRIPE_PADDING = 16;
 
   private final String myClassName;
   private LineData[] myLinesArray;
+  /**
+   * Columnar storage of lines, which replaces {@link #myLinesArray} in a compact class.
+   */
+  private ColumnarLines myColumnarLines;
   private Map<String, Integer> myStatus;
   private String mySource;
 
@@ -42,6 +50,11 @@ public class ClassData implements CoverageData {
    * Storage for line and branch hits.
    */
   private volatile Object myHitsMask;
+  /**
+   * Storage for line and branch hits when each thread increments its own stripe of counters.
+   * The first stripe is the hits array, other stripes are created on demand.
+   */
+  private volatile int[][] myHitsStripes;
   /**
    * Storage for test tracking data.
    */
@@ -80,8 +93,9 @@ public class ClassData implements CoverageData {
 
   private Map<String, List<LineData>> prepareSignaturesMap(DictionaryLookup dictionaryLookup, boolean collapseSignatures) {
     final Map<String, List<LineData>> sigLines = new HashMap<String, List<LineData>>();
-    if (myLinesArray == null) return sigLines;
-    for (final LineData lineData : myLinesArray) {
+    final LineData[] linesArray = getLinesArray();
+    if (linesArray == null) return sigLines;
+    for (final LineData lineData : linesArray) {
       if (lineData == null) continue;
       final String methodSignature = lineData.getMethodSignature();
       final String sig = collapseSignatures ? CoverageIOUtil.collapse(methodSignature, dictionaryLookup) : methodSignature;
@@ -101,7 +115,8 @@ public class ClassData implements CoverageData {
 
   public void merge(final CoverageData data) {
     ClassData classData = (ClassData) data;
-    mergeLines(classData.myLinesArray);
+    expand();
+    mergeLines(classData.getLinesArray());
     for (String o : getMethodSigs()) {
       myStatus.put(o, null);
     }
@@ -141,19 +156,53 @@ public class ClassData implements CoverageData {
   }
 
   public LineData getLineData(int line) {
+    if (myColumnarLines != null) return myColumnarLines.getLine(line);
     if (line < 0 || line >= myLinesArray.length) return null;
     return myLinesArray[line];
   }
 
+  /**
+   * @return lines array indexed by line number; read-only views of the lines, which are created on each call, if this class is compact
+   */
   public Object[] getLines() {
-    return myLinesArray;
+    return getLinesArray();
+  }
+
+  private LineData[] getLinesArray() {
+    final ColumnarLines columnarLines = myColumnarLines;
+    return columnarLines != null ? columnarLines.getLines() : myLinesArray;
   }
 
   @SuppressWarnings("unused")
   public boolean containsLine(int line) {
+    if (myColumnarLines != null) return myColumnarLines.contains(line);
     return 0 <= line && line < myLinesArray.length && myLinesArray[line] != null;
   }
 
+  /**
+   * Replace the line objects with a columnar storage to reduce the memory footprint of a large report,
+   * which is only read after loading, e.g. during report generation.
+   * After that, {@link #getLines()} and {@link #getLineData(int)} return read-only views of the lines.
+   * Operations that modify the lines of this class convert them back to objects.
+   */
+  public void compact() {
+    if (myLinesArray == null) return;
+    final ColumnarLines columnarLines = ColumnarLines.create(myLinesArray);
+    if (columnarLines == null) return;
+    myColumnarLines = columnarLines;
+    myLinesArray = null;
+  }
+
+  public boolean isCompact() {
+    return myColumnarLines != null;
+  }
+
+  private void expand() {
+    if (myColumnarLines == null) return;
+    myLinesArray = myColumnarLines.toLineData();
+    myColumnarLines = null;
+  }
+
   public Collection<String> getMethodSigs() {
     initStatusMap();
     return myStatus.keySet();
@@ -168,7 +217,7 @@ public class ClassData implements CoverageData {
     if (myStatus == null) return null;
     Integer methodStatus = myStatus.get(methodSignature);
     if (methodStatus == null) {
-      for (final LineData lineData : myLinesArray) {
+      for (final LineData lineData : getLinesArray()) {
         if (lineData != null && methodSignature.equals(lineData.getMethodSignature())) {
           if (lineData.getStatus() != LineCoverage.NONE) {
             methodStatus = (int) LineCoverage.PARTIAL;
@@ -187,6 +236,7 @@ public class ClassData implements CoverageData {
   }
 
   public void setLines(LineData[] lines) {
+    expand();
     if (myLinesArray == null) {
       myLinesArray = lines;
     } else {
@@ -204,6 +254,7 @@ public class ClassData implements CoverageData {
   }
 
   public void resetLines(LineData[] lines) {
+    myColumnarLines = null;
     myLinesArray = lines;
   }
 
@@ -235,6 +286,17 @@ public class ClassData implements CoverageData {
           // Overwriting this field may cause incomplete coverage,
           // as the reference to this array is cached in the instrumented class field/condy.
           myHitsMask = ArrayUtil.copy(hits, size);
+          int[][] stripes = myHitsStripes;
+          if (stripes != null) {
+            int[][] newStripes = new int[stripes.length][];
+            newStripes[0] = (int[]) myHitsMask;
+            for (int i = 1; i < stripes.length; i++) {
+              if (stripes[i] != null) {
+                newStripes[i] = ArrayUtil.copy(stripes[i], size + STRIPE_PADDING);
+              }
+            }
+            myHitsStripes = newStripes;
+          }
         }
       }
     } else {
@@ -268,6 +330,45 @@ public class ClassData implements CoverageData {
     myHitsMask = hits;
   }
 
+  /**
+   * Get stripes of hits counters, so that concurrent threads do not lose increments
+   * and do not write to the same cache line.
+   * Instrumented methods select a stripe with {@link #getHitsStripe(int[][])},
+   * the stripes are summed up in {@link #applyHits()}.
+   *
+   * @param count number of stripes, rounded up to a power of two
+   */
+  public synchronized int[][] getHitsStripes(int count) {
+    int[][] stripes = myHitsStripes;
+    if (stripes == null) {
+      if (!(myHitsMask instanceof int[])) throw new IllegalStateException("Int array expected");
+      int size = Integer.highestOneBit(Math.max(1, count));
+      stripes = new int[size < count ? size << 1 : size][];
+      stripes[0] = (int[]) myHitsMask;
+      myHitsStripes = stripes;
+    }
+    return stripes;
+  }
+
+  /**
+   * Select the stripe of the current thread. Threads ids are sequential,
+   * so threads started one after another use different stripes.
+   */
+  public static int[] getHitsStripe(int[][] stripes) {
+    int index = (int) Thread.currentThread().getId() & (stripes.length - 1);
+    int[] stripe = stripes[index];
+    if (stripe != null) return stripe;
+    synchronized (stripes) {
+      stripe = stripes[index];
+      if (stripe == null) {
+        // padding prevents stripes allocated one after another from sharing a cache line
+        stripe = new int[stripes[0].length + STRIPE_PADDING];
+        stripes[index] = stripe;
+      }
+      return stripe;
+    }
+  }
+
   public boolean[] getTraceMask() {
     return myTraceMask;
   }
@@ -281,9 +382,32 @@ public class ClassData implements CoverageData {
     return MAX_HITS;
   }
 
+  /**
+   * Create a copy of this class data with the current runtime hits applied.
+   * The hits storage is only copied, not reset, so the instrumented code may run concurrently,
+   * and taking several snapshots does not count the same hits twice.
+   */
+  public ClassData createSnapshot() {
+    final ClassData snapshot = new ClassData(myClassName);
+    snapshot.merge(this);
+    final Object hitsMask = myHitsMask;
+    if (myHitsStripes != null) {
+      snapshot.myHitsMask = collectHits();
+    } else if (hitsMask instanceof int[]) {
+      snapshot.myHitsMask = ArrayUtil.copy((int[]) hitsMask);
+    } else if (hitsMask instanceof boolean[]) {
+      snapshot.myHitsMask = ArrayUtil.copy((boolean[]) hitsMask);
+    }
+    if (snapshot.myLinesArray != null) {
+      snapshot.applyHits();
+    }
+    return snapshot;
+  }
+
   public void applyHits() {
-    int[] hits = CommonArrayUtil.getIntArray(myHitsMask);
+    int[] hits = collectHits();
     if (hits == null) return;
+    expand();
 
     for (int i = 0; i < hits.length; ++i) {
       if (hits[i] < 0 || hits[i] > MAX_HITS) {
@@ -331,7 +455,14 @@ public class ClassData implements CoverageData {
           }
         }
       }
-      if (myHitsMask instanceof int[]) {
+      int[][] stripes = myHitsStripes;
+      if (stripes != null) {
+        for (int[] stripe : stripes) {
+          if (stripe != null) {
+            Arrays.fill(stripe, 0);
+          }
+        }
+      } else if (myHitsMask instanceof int[]) {
         Arrays.fill((int[]) myHitsMask, 0);
       } else if (myHitsMask instanceof boolean[]) {
         Arrays.fill((boolean[]) myHitsMask, false);
@@ -340,4 +471,21 @@ public class ClassData implements CoverageData {
       ErrorReporter.warn("Unexpected error during applying hits data to class " + getName(), e);
     }
   }
+
+  /**
+   * @return hits array, or the sum of all stripes if hits are striped
+   */
+  private int[] collectHits() {
+    int[][] stripes = myHitsStripes;
+    if (stripes == null) return CommonArrayUtil.getIntArray(myHitsMask);
+    int[] hits = ArrayUtil.copy(stripes[0]);
+    for (int s = 1; s < stripes.length; s++) {
+      int[] stripe = stripes[s];
+      if (stripe == null) continue;
+      for (int i = 0; i < hits.length; i++) {
+        hits[i] = trimHits(trimHits(hits[i]) + trimHits(stripe[i]));
+      }
+    }
+    return hits;
+  }
 }
@@ -0,0 +1,547 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.data;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Read-only columnar storage of the lines of a class.
+ * <p>
+ * Instead of a {@link LineData} object per line with its jumps and switches objects,
+ * each field is stored in a primitive array with an element per line (a slot), ordered by line number.
+ * Jumps, switches and switch cases of a line are ranges in their own arrays,
+ * method signatures are indices in a table of the distinct signatures of the class.
+ * <p>
+ * The lines are accessed via views, which read the arrays and are created on each access,
+ * so the existing consumers of {@link LineData} work unchanged.
+ * Jump and switch objects returned by a view are detached copies.
+ *
+ * @see ClassData#compact()
+ */
+final class ColumnarLines {
+  private static final byte STATUS_MASK = 3;
+  private static final byte HAS_JUMPS_AND_SWITCHES = 4;
+  private static final byte NOT_UNIQUE = 8;
+
+  /**
+   * Length of the lines array, which is indexed by line number.
+   */
+  private final int myLength;
+
+  private final int[] myLineNumbers;
+  private final int[] myHits;
+  /**
+   * Line, jump and switch ids are only set at runtime, all the id arrays are <code>null</code> if no id is set.
+   */
+  private final int[] myIds;
+  private final int[] mySignatureIndices;
+  private final String[] mySignatures;
+  /**
+   * Line status, and whether the line has jumps and switches and can be covered by a single test.
+   */
+  private final byte[] myFlags;
+  /**
+   * Name of the only test covering a line, <code>null</code> if no line is covered by a single test.
+   */
+  private final String[] myTestNames;
+
+  /**
+   * Jumps of the slot <code>i</code> are <code>[myJumpStart[i], myJumpStart[i + 1])</code>,
+   * jump arrays are <code>null</code> if the class has no jumps.
+   */
+  private final int[] myJumpStart;
+  private final int[] myJumpTrueHits;
+  private final int[] myJumpFalseHits;
+  private final int[] myJumpTrueIds;
+  private final int[] myJumpFalseIds;
+
+  /**
+   * Switches of the slot <code>i</code> are <code>[mySwitchStart[i], mySwitchStart[i + 1])</code>,
+   * cases of the switch <code>s</code> are <code>[myCaseStart[s], myCaseStart[s + 1])</code>.
+   * Switch arrays are <code>null</code> if the class has no switches.
+   */
+  private final int[] mySwitchStart;
+  private final int[] mySwitchDefaultHits;
+  private final int[] mySwitchDefaultIds;
+  private final int[] myCaseStart;
+  private final int[] myCaseKeys;
+  private final int[] myCaseHits;
+  private final int[] myCaseIds;
+
+  private ColumnarLines(LineData[] lines, int count, int jumps, int switches, int cases, boolean hasIds, boolean hasTestNames) {
+    myLength = lines.length;
+    myLineNumbers = new int[count];
+    myHits = new int[count];
+    myIds = hasIds ? new int[count] : null;
+    mySignatureIndices = new int[count];
+    myFlags = new byte[count];
+    myTestNames = hasTestNames ? new String[count] : null;
+
+    myJumpStart = jumps > 0 ? new int[count + 1] : null;
+    myJumpTrueHits = jumps > 0 ? new int[jumps] : null;
+    myJumpFalseHits = jumps > 0 ? new int[jumps] : null;
+    myJumpTrueIds = jumps > 0 && hasIds ? new int[jumps] : null;
+    myJumpFalseIds = jumps > 0 && hasIds ? new int[jumps] : null;
+
+    mySwitchStart = switches > 0 ? new int[count + 1] : null;
+    mySwitchDefaultHits = switches > 0 ? new int[switches] : null;
+    mySwitchDefaultIds = switches > 0 && hasIds ? new int[switches] : null;
+    myCaseStart = switches > 0 ? new int[switches + 1] : null;
+    myCaseKeys = switches > 0 ? new int[cases] : null;
+    myCaseHits = switches > 0 ? new int[cases] : null;
+    myCaseIds = switches > 0 && hasIds ? new int[cases] : null;
+
+    final Map<String, Integer> signatures = new HashMap<String, Integer>();
+    int slot = 0;
+    int jump = 0;
+    int aSwitch = 0;
+    int aCase = 0;
+    for (LineData line : lines) {
+      if (line == null) continue;
+      myLineNumbers[slot] = line.getLineNumber();
+      myHits[slot] = line.getHits();
+      if (myIds != null) myIds[slot] = line.getId();
+      Integer signature = signatures.get(line.getMethodSignature());
+      if (signature == null) {
+        signature = signatures.size();
+        signatures.put(line.getMethodSignature(), signature);
+      }
+      mySignatureIndices[slot] = signature;
+      byte flags = (byte) line.getStatus();
+      if (!line.mayBeUnique()) flags |= NOT_UNIQUE;
+      if (myTestNames != null) myTestNames[slot] = line.getUniqueTestName();
+
+      final JumpsAndSwitches jumpsAndSwitches = line.getJumpsAndSwitches();
+      if (jumpsAndSwitches != null) {
+        flags |= HAS_JUMPS_AND_SWITCHES;
+        final JumpData[] jumpsArray = jumpsAndSwitches.getJumps();
+        if (jumpsArray != null) {
+          for (JumpData jumpData : jumpsArray) {
+            if (jumpData != null) {
+              myJumpTrueHits[jump] = jumpData.getTrueHits();
+              myJumpFalseHits[jump] = jumpData.getFalseHits();
+            }
+            if (myJumpTrueIds != null) {
+              myJumpTrueIds[jump] = jumpData != null ? jumpData.getId(true) : -1;
+              myJumpFalseIds[jump] = jumpData != null ? jumpData.getId(false) : -1;
+            }
+            jump++;
+          }
+        }
+        final SwitchData[] switchesArray = jumpsAndSwitches.getSwitches();
+        if (switchesArray != null) {
+          for (SwitchData switchData : switchesArray) {
+            myCaseStart[aSwitch] = aCase;
+            if (mySwitchDefaultIds != null) {
+              mySwitchDefaultIds[aSwitch] = switchData != null ? switchData.getId(-1) : -1;
+            }
+            if (switchData != null) {
+              mySwitchDefaultHits[aSwitch] = switchData.getDefaultHits();
+              final int[] keys = switchData.getKeys();
+              final int[] hits = switchData.getHits();
+              for (int i = 0; i < hits.length; i++) {
+                myCaseKeys[aCase] = keys[i];
+                myCaseHits[aCase] = hits[i];
+                if (myCaseIds != null) myCaseIds[aCase] = switchData.getId(i);
+                aCase++;
+              }
+            }
+            aSwitch++;
+          }
+        }
+      }
+      myFlags[slot] = flags;
+      slot++;
+      if (myJumpStart != null) myJumpStart[slot] = jump;
+      if (mySwitchStart != null) mySwitchStart[slot] = aSwitch;
+    }
+    if (myCaseStart != null) myCaseStart[aSwitch] = aCase;
+
+    mySignatures = new String[signatures.size()];
+    for (Map.Entry<String, Integer> entry : signatures.entrySet()) {
+      mySignatures[entry.getValue()] = entry.getKey();
+    }
+  }
+
+  /**
+   * @param lines lines array indexed by line number
+   * @return columnar storage of the lines, or <code>null</code> if a line is not stored at its line number index
+   */
+  static ColumnarLines create(LineData[] lines) {
+    int count = 0;
+    int jumps = 0;
+    int switches = 0;
+    int cases = 0;
+    boolean hasIds = false;
+    boolean hasTestNames = false;
+    for (int i = 0; i < lines.length; i++) {
+      final LineData line = lines[i];
+      if (line == null) continue;
+      if (line.getLineNumber() != i) return null;
+      count++;
+      hasIds |= line.getId() != -1;
+      hasTestNames |= line.getUniqueTestName() != null;
+      final JumpsAndSwitches jumpsAndSwitches = line.getJumpsAndSwitches();
+      if (jumpsAndSwitches == null) continue;
+      final JumpData[] jumpsArray = jumpsAndSwitches.getJumps();
+      if (jumpsArray != null) {
+        jumps += jumpsArray.length;
+        for (JumpData jumpData : jumpsArray) {
+          hasIds |= jumpData != null && (jumpData.getId(true) != -1 || jumpData.getId(false) != -1);
+        }
+      }
+      final SwitchData[] switchesArray = jumpsAndSwitches.getSwitches();
+      if (switchesArray != null) {
+        switches += switchesArray.length;
+        for (SwitchData switchData : switchesArray) {
+          if (switchData == null) continue;
+          cases += switchData.getHits().length;
+          for (int key = -1; key < switchData.getHits().length && !hasIds; key++) {
+            hasIds = switchData.getId(key) != -1;
+          }
+        }
+      }
+    }
+    return new ColumnarLines(lines, count, jumps, switches, cases, hasIds, hasTestNames);
+  }
+
+  int getLength() {
+    return myLength;
+  }
+
+  boolean contains(int line) {
+    return Arrays.binarySearch(myLineNumbers, line) >= 0;
+  }
+
+  /**
+   * @return a view of the line, or <code>null</code> if there is no such line
+   */
+  LineData getLine(int line) {
+    final int slot = Arrays.binarySearch(myLineNumbers, line);
+    return slot < 0 ? null : new LineView(this, slot);
+  }
+
+  /**
+   * @return an array of views indexed by line number
+   */
+  LineData[] getLines() {
+    final LineData[] lines = new LineData[myLength];
+    for (int slot = 0; slot < myLineNumbers.length; slot++) {
+      lines[myLineNumbers[slot]] = new LineView(this, slot);
+    }
+    return lines;
+  }
+
+  /**
+   * Convert the lines back to objects, so that they can be modified.
+   */
+  LineData[] toLineData() {
+    final LineData[] lines = new LineData[myLength];
+    for (int slot = 0; slot < myLineNumbers.length; slot++) {
+      final LineData line = new LineData(myLineNumbers[slot], mySignatures[mySignatureIndices[slot]]);
+      line.setId(getId(slot));
+      line.setHits(myHits[slot]);
+      line.setUniqueTestName(getTestName(slot), (myFlags[slot] & NOT_UNIQUE) == 0);
+      line.setJumpsAndSwitches(createJumpsAndSwitches(slot));
+      lines[myLineNumbers[slot]] = line;
+    }
+    return lines;
+  }
+
+  private int getId(int slot) {
+    return myIds == null ? -1 : myIds[slot];
+  }
+
+  private String getTestName(int slot) {
+    return myTestNames == null ? null : myTestNames[slot];
+  }
+
+  private int jumpsCount(int slot) {
+    return myJumpStart == null ? 0 : myJumpStart[slot + 1] - myJumpStart[slot];
+  }
+
+  private int switchesCount(int slot) {
+    return mySwitchStart == null ? 0 : mySwitchStart[slot + 1] - mySwitchStart[slot];
+  }
+
+  private JumpsAndSwitches createJumpsAndSwitches(int slot) {
+    if ((myFlags[slot] & HAS_JUMPS_AND_SWITCHES) == 0) return null;
+    final JumpsAndSwitches jumpsAndSwitches = new JumpsAndSwitches();
+    for (int i = 0; i < jumpsCount(slot); i++) {
+      fillJump(jumpsAndSwitches.addJump(i), myJumpStart[slot] + i);
+    }
+    for (int i = 0; i < switchesCount(slot); i++) {
+      final int aSwitch = mySwitchStart[slot] + i;
+      fillSwitch(jumpsAndSwitches.addSwitch(i, getKeys(aSwitch)), aSwitch);
+    }
+    jumpsAndSwitches.fillArrays();
+    return jumpsAndSwitches;
+  }
+
+  private JumpData createJump(int slot, int index) {
+    final JumpData jump = new JumpData();
+    fillJump(jump, myJumpStart[slot] + index);
+    return jump;
+  }
+
+  private void fillJump(JumpData jumpData, int jump) {
+    jumpData.setTrueHits(myJumpTrueHits[jump]);
+    jumpData.setFalseHits(myJumpFalseHits[jump]);
+    if (myJumpTrueIds == null) return;
+    jumpData.setId(myJumpTrueIds[jump], true);
+    jumpData.setId(myJumpFalseIds[jump], false);
+  }
+
+  private SwitchData createSwitch(int slot, int index) {
+    final int aSwitch = mySwitchStart[slot] + index;
+    final SwitchData switchData = new SwitchData(getKeys(aSwitch));
+    fillSwitch(switchData, aSwitch);
+    return switchData;
+  }
+
+  private int[] getKeys(int aSwitch) {
+    return Arrays.copyOfRange(myCaseKeys, myCaseStart[aSwitch], myCaseStart[aSwitch + 1]);
+  }
+
+  private void fillSwitch(SwitchData switchData, int aSwitch) {
+    final int from = myCaseStart[aSwitch];
+    final int to = myCaseStart[aSwitch + 1];
+    switchData.setKeysAndHits(switchData.getKeys(), Arrays.copyOfRange(myCaseHits, from, to));
+    switchData.setDefaultHits(mySwitchDefaultHits[aSwitch]);
+    if (mySwitchDefaultIds == null) return;
+    boolean hasIds = mySwitchDefaultIds[aSwitch] != -1;
+    for (int i = from; i < to && !hasIds; i++) {
+      hasIds = myCaseIds[i] != -1;
+    }
+    if (!hasIds) return;
+    switchData.setId(mySwitchDefaultIds[aSwitch], -1);
+    for (int i = from; i < to; i++) {
+      switchData.setId(myCaseIds[i], i - from);
+    }
+  }
+
+  private BranchData getBranchData(int slot) {
+    if ((myFlags[slot] & HAS_JUMPS_AND_SWITCHES) == 0) return null;
+    int total = 0;
+    int covered = 0;
+    for (int jump = myJumpStart == null ? 0 : myJumpStart[slot], end = jump + jumpsCount(slot); jump < end; jump++) {
+      total += 2;
+      if (myJumpTrueHits[jump] > 0) covered++;
+      if (myJumpFalseHits[jump] > 0) covered++;
+    }
+    for (int aSwitch = mySwitchStart == null ? 0 : mySwitchStart[slot], end = aSwitch + switchesCount(slot); aSwitch < end; aSwitch++) {
+      for (int aCase = myCaseStart[aSwitch]; aCase < myCaseStart[aSwitch + 1]; aCase++) {
+        total++;
+        if (myCaseHits[aCase] > 0) covered++;
+      }
+    }
+    return new BranchData(total, covered);
+  }
+
+  /**
+   * Read-only view of a line, all the modifications throw {@link UnsupportedOperationException}.
+   */
+  private static final class LineView extends LineData {
+    private final ColumnarLines myLines;
+    private final int mySlot;
+
+    private LineView(ColumnarLines lines, int slot) {
+      super(lines.myLineNumbers[slot], lines.mySignatures[lines.mySignatureIndices[slot]]);
+      myLines = lines;
+      mySlot = slot;
+    }
+
+    @Override
+    public int getHits() {
+      return myLines.myHits[mySlot];
+    }
+
+    @Override
+    public int getId() {
+      return myLines.getId(mySlot);
+    }
+
+    @Override
+    public int getStatus() {
+      return myLines.myFlags[mySlot] & STATUS_MASK;
+    }
+
+    @Override
+    String getUniqueTestName() {
+      return myLines.getTestName(mySlot);
+    }
+
+    @Override
+    boolean mayBeUnique() {
+      return (myLines.myFlags[mySlot] & NOT_UNIQUE) == 0;
+    }
+
+    @Override
+    public boolean isCoveredByOneTest() {
+      final String testName = getUniqueTestName();
+      return testName != null && testName.length() > 0;
+    }
+
+    @Override
+    JumpsAndSwitches getJumpsAndSwitches() {
+      return myLines.createJumpsAndSwitches(mySlot);
+    }
+
+    @Override
+    public int jumpsCount() {
+      return myLines.jumpsCount(mySlot);
+    }
+
+    @Override
+    public int switchesCount() {
+      return myLines.switchesCount(mySlot);
+    }
+
+    @Override
+    public JumpData getJumpData(int jump) {
+      return myLines.createJump(mySlot, jump);
+    }
+
+    @Override
+    public SwitchData getSwitchData(int switchNumber) {
+      return myLines.createSwitch(mySlot, switchNumber);
+    }
+
+    @Override
+    public JumpData[] getJumps() {
+      final int count = jumpsCount();
+      if (count == 0) return null;
+      final JumpData[] jumps = new JumpData[count];
+      for (int i = 0; i < count; i++) {
+        jumps[i] = myLines.createJump(mySlot, i);
+      }
+      return jumps;
+    }
+
+    @Override
+    public SwitchData[] getSwitches() {
+      final int count = switchesCount();
+      if (count == 0) return null;
+      final SwitchData[] switches = new SwitchData[count];
+      for (int i = 0; i < count; i++) {
+        switches[i] = myLines.createSwitch(mySlot, i);
+      }
+      return switches;
+    }
+
+    @Override
+    public BranchData getBranchData() {
+      return myLines.getBranchData(mySlot);
+    }
+
+    @Override
+    public void touch() {
+      throw readOnly();
+    }
+
+    @Override
+    public void setHits(int hits) {
+      throw readOnly();
+    }
+
+    @Override
+    public void setId(int id) {
+      throw readOnly();
+    }
+
+    @Override
+    public void setStatus(byte status) {
+      throw readOnly();
+    }
+
+    @Override
+    public void setMethodSignature(String methodSignature) {
+      throw readOnly();
+    }
+
+    @Override
+    public void setTestName(String testName) {
+      throw readOnly();
+    }
+
+    @Override
+    void setUniqueTestName(String uniqueTestName, boolean mayBeUnique) {
+      throw readOnly();
+    }
+
+    @Override
+    public void merge(CoverageData data) {
+      throw readOnly();
+    }
+
+    @Override
+    JumpsAndSwitches getOrCreateJumpsAndSwitches() {
+      throw readOnly();
+    }
+
+    @Override
+    public void setJumpsAndSwitches(JumpsAndSwitches jumpsAndSwitches) {
+      throw readOnly();
+    }
+
+    @Override
+    public JumpData addJump(int jump) {
+      throw readOnly();
+    }
+
+    @Override
+    public void removeJump(int jump) {
+      throw readOnly();
+    }
+
+    @Override
+    public SwitchData addSwitch(int switchNumber, int[] keys) {
+      throw readOnly();
+    }
+
+    @Override
+    public void removeSwitch(int switchNumber) {
+      throw readOnly();
+    }
+
+    @Override
+    public void setTrueHits(int jumpNumber, int trueHits) {
+      throw readOnly();
+    }
+
+    @Override
+    public void setFalseHits(int jumpNumber, int falseHits) {
+      throw readOnly();
+    }
+
+    @Override
+    public void setDefaultHits(int switchNumber, int[] keys, int defaultHit) {
+      throw readOnly();
+    }
+
+    @Override
+    public void setSwitchHits(int switchNumber, int[] keys, int[] hits) {
+      throw readOnly();
+    }
+
+    private static UnsupportedOperationException readOnly() {
+      return new UnsupportedOperationException("Line data of a compact class is read-only");
+    }
+  }
+}
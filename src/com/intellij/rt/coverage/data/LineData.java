@@ -54,6 +54,10 @@ public class LineData implements CoverageData {
     return myJumpsAndSwitches;
   }
 
+  JumpsAndSwitches getJumpsAndSwitches() {
+    return myJumpsAndSwitches;
+  }
+
   public void setJumpsAndSwitches(JumpsAndSwitches jumpsAndSwitches) {
     myJumpsAndSwitches = jumpsAndSwitches;
   }
@@ -99,12 +103,15 @@ public class LineData implements CoverageData {
   }
 
   public void save(final DataOutputStream os) throws IOException {
-    CoverageIOUtil.writeINT(os, myLineNumber);
-    CoverageIOUtil.writeUTF(os, myUniqueTestName != null ? myUniqueTestName : "");
-    CoverageIOUtil.writeINT(os, myHits);
-    if (myHits > 0) {
-      if (myJumpsAndSwitches != null) {
-        getOrCreateJumpsAndSwitches().save(os);
+    final String uniqueTestName = getUniqueTestName();
+    final int hits = getHits();
+    CoverageIOUtil.writeINT(os, getLineNumber());
+    CoverageIOUtil.writeUTF(os, uniqueTestName != null ? uniqueTestName : "");
+    CoverageIOUtil.writeINT(os, hits);
+    if (hits > 0) {
+      final JumpsAndSwitches jumpsAndSwitches = getJumpsAndSwitches();
+      if (jumpsAndSwitches != null) {
+        jumpsAndSwitches.save(os);
       } else {
         new JumpsAndSwitches().save(os);
       }
@@ -114,12 +121,13 @@ public class LineData implements CoverageData {
   public void merge(final CoverageData data) {
     LineData lineData = (LineData) data;
     setHits(myHits + lineData.getHits());
-    if (lineData.myId != -1) myId = lineData.myId;
-    if (myJumpsAndSwitches != null || lineData.myJumpsAndSwitches != null) {
-      getOrCreateJumpsAndSwitches().merge(lineData.getOrCreateJumpsAndSwitches());
+    if (lineData.getId() != -1) myId = lineData.getId();
+    final JumpsAndSwitches jumpsAndSwitches = lineData.getJumpsAndSwitches();
+    if (jumpsAndSwitches != null) {
+      getOrCreateJumpsAndSwitches().merge(jumpsAndSwitches);
     }
     if (myMethodSignature == null) {
-      myMethodSignature = lineData.myMethodSignature;
+      myMethodSignature = lineData.getMethodSignature();
     }
     if (myStatus != -1) {
       byte status = (byte) lineData.getStatus();
@@ -243,6 +251,19 @@ public class LineData implements CoverageData {
     }
   }
 
+  String getUniqueTestName() {
+    return myUniqueTestName;
+  }
+
+  boolean mayBeUnique() {
+    return myMayBeUnique;
+  }
+
+  void setUniqueTestName(String uniqueTestName, boolean mayBeUnique) {
+    myUniqueTestName = uniqueTestName;
+    myMayBeUnique = mayBeUnique;
+  }
+
   @SuppressWarnings("unused") // Used in IntelliJ
   public boolean isCoveredByOneTest() {
     return myUniqueTestName != null && myUniqueTestName.length() > 0;
@@ -22,6 +22,7 @@ import com.intellij.rt.coverage.util.*;
 
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
@@ -126,6 +127,15 @@ public class ProjectData implements CoverageData, Serializable {
     InstructionsUtil.merge(projectData, this, null);
   }
 
+  /**
+   * Store lines of all classes in a columnar form, see {@link ClassData#compact()}.
+   */
+  public void compact() {
+    for (ClassData classData : myClasses.values()) {
+      classData.compact();
+    }
+  }
+
   public Map<String, ClassInstructions> getInstructions() {
     Map<String, ClassInstructions> instructions = myInstructions;
     if (instructions == null) {
@@ -159,6 +169,21 @@ public class ProjectData implements CoverageData, Serializable {
   public void testStarted(final String name) {
     if (myTestTrackingCallback != null) myTestTrackingCallback.testStarted(name);
   }
+
+  /**
+   * This method could be called in test tracking mode by test code or test engine listeners
+   * to attribute a task submitted to an executor to the test running in the current thread.
+   */
+  public Runnable bindToCurrentTest(final Runnable task) {
+    return myTestTrackingCallback == null ? task : myTestTrackingCallback.bindToCurrentTest(task);
+  }
+
+  /**
+   * @see #bindToCurrentTest(Runnable)
+   */
+  public <T> Callable<T> bindToCurrentTest(final Callable<T> task) {
+    return myTestTrackingCallback == null ? task : myTestTrackingCallback.bindToCurrentTest(task);
+  }
   //---------------------------------------------------------- //
 
 }
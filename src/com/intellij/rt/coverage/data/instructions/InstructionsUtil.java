@@ -28,20 +28,29 @@ import java.util.Map;
 public class InstructionsUtil {
   public static void merge(ProjectData source, ProjectData target, ClassFilter classFilter) {
     if (!target.isInstructionsCoverageEnabled()) return;
-    final Map<String, ClassInstructions> instructions = target.getInstructions();
-    for (Map.Entry<String, ClassInstructions> entry : source.getInstructions().entrySet()) {
-      final String className = entry.getKey();
+    for (String className : source.getInstructions().keySet()) {
       if (classFilter != null && !classFilter.shouldInclude(className)) continue;
-      final ClassData classData = target.getClassData(className);
-      if (classData == null) continue;
-      final ClassInstructions mergedInstructions = entry.getValue();
-      ClassInstructions classInstructions = instructions.get(className);
-      if (classInstructions == null) {
-        classInstructions = new ClassInstructions();
-        instructions.put(className, classInstructions);
-      }
-      classInstructions.merge(mergedInstructions);
+      mergeClass(source, target, className);
+    }
+  }
+
+  /**
+   * Merge instructions of a single class.
+   * Different classes may be merged concurrently.
+   */
+  public static void mergeClass(ProjectData source, ProjectData target, String className) {
+    if (!target.isInstructionsCoverageEnabled()) return;
+    final ClassInstructions mergedInstructions = source.getInstructions().get(className);
+    if (mergedInstructions == null) return;
+    final ClassData classData = target.getClassData(className);
+    if (classData == null) return;
+    final Map<String, ClassInstructions> instructions = target.getInstructions();
+    ClassInstructions classInstructions = instructions.get(className);
+    if (classInstructions == null) {
+      classInstructions = new ClassInstructions();
+      instructions.put(className, classInstructions);
     }
+    classInstructions.merge(mergedInstructions);
   }
 
   public static void applyInstructionsSMAP(ProjectData projectData, LineMapData[] linesMap, ClassData sourceClass, ClassData targetClass) {
@@ -21,10 +21,26 @@ public class OptionsUtil {
       "true".equals(System.getProperty("idea.new.sampling.coverage", "true"))
           && "true".equals(System.getProperty("idea.new.tracing.coverage", "true"));
   public static final boolean NEW_TEST_TRACKING_ENABLED = "true".equals(System.getProperty("idea.new.test.tracking.coverage", "true"));
+  public static boolean ASYNC_TEST_TRACES = "true".equals(System.getProperty("idea.coverage.test.tracking.async", "true"));
+  public static boolean TEST_TRACE_STORE = "true".equals(System.getProperty("idea.coverage.test.tracking.store", "false"));
+  public static boolean CONCURRENT_TEST_TRACKING = "true".equals(System.getProperty("idea.coverage.test.tracking.concurrent", "false"));
   public static boolean CONDY_ENABLED = "true".equals(System.getProperty("coverage.condy.enable", "true"));
   public static final boolean INSTRUCTIONS_COVERAGE_ENABLED = "true".equals(System.getProperty("coverage.instructions.enable", "false"));
   public static boolean CALCULATE_HITS_COUNT = "true".equals(System.getProperty("idea.coverage.calculate.hits", "false"));
+  public static int HITS_STRIPES = Integer.getInteger("idea.coverage.hits.stripes", 0);
   public static boolean IGNORE_LOCAL_FUNCTIONS_IN_IGNORED_METHODS = "true".equals(System.getProperty("idea.coverage.ignore.local.functions.in.ignored.methods", "true"));
+  public static final boolean CLASSES_MAP_STATISTICS = "true".equals(System.getProperty("idea.coverage.classes.map.statistics", "false"));
   public static final boolean TEST_MODE = "true".equals(System.getProperty("idea.coverage.test.mode", "false"));
+  public static final int MERGE_THREADS = Integer.getInteger("idea.coverage.merge.threads", Runtime.getRuntime().availableProcessors());
+  public static int UNLOADED_THREADS = Integer.getInteger("idea.coverage.unloaded.threads", Runtime.getRuntime().availableProcessors());
+  public static String UNLOADED_CACHE = System.getProperty("idea.coverage.unloaded.cache");
+  public static final boolean MERGE_SPOOL = "true".equals(System.getProperty("idea.coverage.merge.spool", "false"));
+  public static final String TRANSFORMATION_CACHE_DIR = System.getProperty("idea.coverage.transformation.cache.dir");
+  public static final int TRANSFORMATION_CACHE_SIZE_MB = Integer.getInteger("idea.coverage.transformation.cache.size", 512);
+  public static boolean PRESERVE_FRAMES = "true".equals(System.getProperty("idea.coverage.preserve.frames", "false"));
+  public static int OFFLINE_INSTRUMENTATION_THREADS = Integer.getInteger("idea.coverage.offline.threads", Runtime.getRuntime().availableProcessors());
+  public static final String INSTRUMENTATION_METRICS = System.getProperty("idea.coverage.instrumentation.metrics");
+  public static int REPORT_THREADS = Integer.getInteger("idea.coverage.report.threads", Runtime.getRuntime().availableProcessors());
+  public static boolean COMPACT_LINES = "true".equals(System.getProperty("idea.coverage.compact.lines", "false"));
   public static final boolean USE_SYSTEM_CLASS_LOADER = "true".equals(System.getProperty("idea.coverage.use.system.classloader", "false"));
 }
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.util;
+
+import com.intellij.rt.coverage.data.ClassData;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Test tracking callback that collects the trace of one running test in the trace masks of classes.
+ * The trace masks are shared by all tests, so they are cleared when a test ends.
+ */
+public abstract class SequentialTestTrackingCallback extends TestTrackingCallback {
+  /**
+   * Test tracking trace storage. Test tracking supports only sequential tests (but code inside one test could be parallel).
+   * Nevertheless, in case of parallel tests run setting storage to null truncates coverage significantly.
+   * Using CAS for the storage update slightly improves test tracking coverage as the data are not cleared too frequently.
+   */
+  private final AtomicReference<Map<Object, boolean[]>> myTrace = new AtomicReference<Map<Object, boolean[]>>();
+
+  protected SequentialTestTrackingCallback(File file) {
+    super(file);
+  }
+
+  protected abstract void clearTrace(ClassData classData);
+  protected abstract boolean[] traceLine(ClassData classData, int line);
+
+  private Map<Object, boolean[]> getTraces() {
+    return myTrace.get();
+  }
+
+  @Override
+  public void traceLineByTest(Object classData, int line) {
+    final Map<Object, boolean[]> traces = getTraces();
+    if (traces != null) {
+      final boolean[] lines = traceLine((ClassData) classData, line);
+      if (lines != null) {
+        traces.put(classData, lines);
+      }
+    }
+  }
+
+  public void registerForTrace(Object classData) {
+    final Map<Object, boolean[]> traces = getTraces();
+    if (traces != null) {
+      synchronized (classData) {
+        final boolean[] trace = ((ClassData) classData).getTraceMask();
+        if (traces.put(classData, trace) == null) {
+          // clear trace on register for a new test to prevent reporting about code running between tests
+          Arrays.fill(trace, false);
+        }
+        trace[0] = true;
+      }
+    }
+  }
+
+  @Override
+  public void testEnded(final String name) {
+    final Map<Object, boolean[]> trace = myTrace.getAndSet(null);
+    if (trace == null) return;
+    // the trace arrays are reused by the next tests, so a copy is written
+    final Map<Object, boolean[]> snapshot = new HashMap<Object, boolean[]>(trace.size());
+    for (Map.Entry<Object, boolean[]> entry : trace.entrySet()) {
+      final ClassData classData = (ClassData) entry.getKey();
+      snapshot.put(classData, ArrayUtil.copy(entry.getValue()));
+      clearTrace(classData);
+    }
+    submitTrace(name, snapshot);
+  }
+
+  @Override
+  public void testStarted(final String ignoredName) {
+    myTrace.compareAndSet(null, new ConcurrentHashMap<Object, boolean[]>());
+  }
+}
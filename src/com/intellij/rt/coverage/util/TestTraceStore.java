@@ -0,0 +1,199 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.util;
+
+import org.jetbrains.coverage.gnu.trove.TIntArrayList;
+import org.jetbrains.coverage.gnu.trove.TObjectIntHashMap;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only store of test tracking traces, an alternative to a separate <code>.tr</code> file per test.
+ * Every JVM appends its tests to its own store file in the traces directory.
+ * <p>
+ * The store is a sequence of records:
+ * <ul>
+ *   <li>a class record introduces a class name, classes are numbered in the order of these records;</li>
+ *   <li>a test record holds the test name and, for each touched class, the class number and the sorted covered lines,
+ *   where each line is encoded as a difference with the previous one.</li>
+ * </ul>
+ * On {@link #close()} a footer is appended: for each class, the numbers of the tests that touched it and the offsets of
+ * the corresponding lines in the test records; and the offsets of test records.
+ * The footer lets {@link TestTraceStoreReader} find the tests of a class without reading the whole store.
+ * A store without a footer, e.g. when the JVM was killed, is read by scanning the records.
+ * <p>
+ * All numbers except the header and the footer location are written with {@link CoverageIOUtil#writeINT}.
+ */
+public class TestTraceStore {
+  public static final String EXTENSION = ".trs";
+
+  static final int MAGIC = 0x54525331;
+  static final int VERSION = 1;
+  static final byte CLASS_RECORD = 1;
+  static final byte TEST_RECORD = 2;
+  static final byte FOOTER = 3;
+  /**
+   * Header is the magic number and the version.
+   */
+  static final int HEADER_SIZE = 8;
+  /**
+   * The store ends with the footer offset and the magic number.
+   */
+  static final int TRAILER_SIZE = 8;
+
+  private final File myFile;
+  private final CountingOutputStream myCounter;
+  private final DataOutputStream myOut;
+  private final TObjectIntHashMap<String> myClassIds = new TObjectIntHashMap<String>();
+  private final List<String> myClassNames = new ArrayList<String>();
+  /**
+   * Pairs of a test number and an offset of lines in the test record, by class number.
+   */
+  private final List<TIntArrayList> myClassEntries = new ArrayList<TIntArrayList>();
+  private final TIntArrayList myTestOffsets = new TIntArrayList();
+  private boolean myClosed;
+
+  private TestTraceStore(File file) throws IOException {
+    myFile = file;
+    // DataOutputStream.size() stops at Integer.MAX_VALUE, so the offset is counted separately
+    myCounter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    myOut = new DataOutputStream(myCounter);
+    myOut.writeInt(MAGIC);
+    myOut.writeInt(VERSION);
+    myOut.flush();
+  }
+
+  /**
+   * Create a new store file in the traces directory.
+   */
+  public static TestTraceStore create(File tracesDir) throws IOException {
+    return new TestTraceStore(File.createTempFile("traces", EXTENSION, tracesDir));
+  }
+
+  public File getFile() {
+    return myFile;
+  }
+
+  /**
+   * Append the trace of a test. The trace is written to the file before this method returns.
+   *
+   * @param trace covered lines by class data, as in {@link TestTrackingIOUtil#saveTestResults}
+   */
+  public synchronized void append(String name, Map<Object, boolean[]> trace) throws IOException {
+    if (myClosed) throw new IOException("Test trace store is closed: " + myFile.getPath());
+    final List<String> classes = new ArrayList<String>(trace.size());
+    final List<boolean[]> lines = new ArrayList<boolean[]>(trace.size());
+    for (Map.Entry<Object, boolean[]> entry : trace.entrySet()) {
+      final String className = entry.getKey().toString();
+      // copy lines array as it can be modified or cleared by another thread
+      final boolean[] touched = ArrayUtil.copy(entry.getValue());
+      if (!myClassIds.containsKey(className)) {
+        myClassIds.put(className, myClassNames.size());
+        myClassNames.add(className);
+        myClassEntries.add(new TIntArrayList());
+        myOut.writeByte(CLASS_RECORD);
+        CoverageIOUtil.writeUTF(myOut, className);
+      }
+      classes.add(className);
+      lines.add(touched);
+    }
+
+    final int testIndex = myTestOffsets.size();
+    myTestOffsets.add(getOffset());
+    myOut.writeByte(TEST_RECORD);
+    CoverageIOUtil.writeUTF(myOut, name);
+    CoverageIOUtil.writeINT(myOut, classes.size());
+    for (int i = 0; i < classes.size(); i++) {
+      final int classId = myClassIds.get(classes.get(i));
+      CoverageIOUtil.writeINT(myOut, classId);
+      final TIntArrayList entries = myClassEntries.get(classId);
+      entries.add(testIndex);
+      entries.add(getOffset());
+      writeLines(myOut, lines.get(i));
+    }
+    myOut.flush();
+    getOffset();
+  }
+
+  /**
+   * Append the footer and close the file. The store cannot be appended after that.
+   */
+  public synchronized void close() throws IOException {
+    if (myClosed) return;
+    myClosed = true;
+    try {
+      final int footerOffset = getOffset();
+      myOut.writeByte(FOOTER);
+      CoverageIOUtil.writeINT(myOut, myClassNames.size());
+      for (int i = 0; i < myClassNames.size(); i++) {
+        CoverageIOUtil.writeUTF(myOut, myClassNames.get(i));
+        final TIntArrayList entries = myClassEntries.get(i);
+        CoverageIOUtil.writeINT(myOut, entries.size() / 2);
+        int lastTest = 0;
+        int lastOffset = 0;
+        for (int j = 0; j < entries.size(); j += 2) {
+          CoverageIOUtil.writeINT(myOut, entries.get(j) - lastTest);
+          CoverageIOUtil.writeINT(myOut, entries.get(j + 1) - lastOffset);
+          lastTest = entries.get(j);
+          lastOffset = entries.get(j + 1);
+        }
+      }
+      CoverageIOUtil.writeINT(myOut, myTestOffsets.size());
+      int lastOffset = 0;
+      for (int i = 0; i < myTestOffsets.size(); i++) {
+        CoverageIOUtil.writeINT(myOut, myTestOffsets.get(i) - lastOffset);
+        lastOffset = myTestOffsets.get(i);
+      }
+      myOut.writeInt(footerOffset);
+      myOut.writeInt(MAGIC);
+    } finally {
+      myOut.close();
+    }
+  }
+
+  /**
+   * Offsets are stored as ints, and the reader maps the whole store into a single buffer.
+   */
+  private int getOffset() throws IOException {
+    final long offset = myCounter.getCount();
+    if (offset > Integer.MAX_VALUE) {
+      throw new IOException("Test trace store is too large: " + myFile.getPath());
+    }
+    return (int) offset;
+  }
+
+  /**
+   * Lines are written as a count followed by differences between subsequent covered lines.
+   * Line 0 is not written as it is not a valid line number.
+   */
+  private static void writeLines(DataOutput out, boolean[] lines) throws IOException {
+    int count = 0;
+    for (int i = 1; i < lines.length; i++) {
+      if (lines[i]) count++;
+    }
+    CoverageIOUtil.writeINT(out, count);
+    int last = 0;
+    for (int i = 1; i < lines.length; i++) {
+      if (!lines[i]) continue;
+      CoverageIOUtil.writeINT(out, i - last);
+      last = i;
+    }
+  }
+}
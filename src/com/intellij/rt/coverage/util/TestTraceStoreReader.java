@@ -0,0 +1,317 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.util;
+
+import org.jetbrains.coverage.gnu.trove.TIntArrayList;
+import org.jetbrains.coverage.gnu.trove.TObjectIntHashMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Read-only view of a {@link TestTraceStore} mapped into memory.
+ * <p>
+ * On opening, only the footer is read: class names and offsets of their lines in the test records.
+ * Covered lines are decoded on request, so finding the tests that cover a line reads only the records of its class.
+ * A store without a footer is scanned once instead, the lines are skipped during the scan.
+ */
+public class TestTraceStoreReader {
+  private final File myFile;
+  private final ByteBuffer myBuffer;
+  private final TObjectIntHashMap<String> myClassIds = new TObjectIntHashMap<String>();
+  private final List<String> myClassNames = new ArrayList<String>();
+  /**
+   * Pairs of a test number and an offset of lines in the test record, by class number.
+   */
+  private final List<TIntArrayList> myClassEntries = new ArrayList<TIntArrayList>();
+  private final TIntArrayList myTestOffsets = new TIntArrayList();
+
+  private TestTraceStoreReader(File file, ByteBuffer buffer) {
+    myFile = file;
+    myBuffer = buffer;
+  }
+
+  /**
+   * Open a store mapped into memory. The mapping is held until the reader is garbage collected.
+   */
+  public static TestTraceStoreReader open(File file) throws IOException {
+    return open(file, true);
+  }
+
+  /**
+   * Open a store read into the heap, so that the file could be deleted right after reading.
+   */
+  public static TestTraceStoreReader read(File file) throws IOException {
+    return open(file, false);
+  }
+
+  private static TestTraceStoreReader open(File file, boolean map) throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+    final ByteBuffer buffer;
+    try {
+      final FileChannel channel = raf.getChannel();
+      final long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Test trace store is too large: " + file.getAbsolutePath());
+      }
+      if (map) {
+        // the mapping stays valid after the channel is closed
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      } else {
+        final byte[] bytes = new byte[(int) size];
+        raf.readFully(bytes);
+        buffer = ByteBuffer.wrap(bytes);
+      }
+    } finally {
+      CoverageIOUtil.close(raf);
+    }
+    final TestTraceStoreReader reader = new TestTraceStoreReader(file, buffer);
+    try {
+      reader.index();
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Unexpected end of test trace store: " + file.getAbsolutePath());
+    } catch (IndexOutOfBoundsException e) {
+      throw new IOException("Corrupted test trace store: " + file.getAbsolutePath());
+    }
+    return reader;
+  }
+
+  public int getTestCount() {
+    return myTestOffsets.size();
+  }
+
+  public String getTestName(int test) throws IOException {
+    final ByteBuffer buffer = openRecord(myTestOffsets.get(test));
+    buffer.get();
+    return CoverageIOUtil.readUTFFast(buffer);
+  }
+
+  public List<String> getClassNames() {
+    return Collections.unmodifiableList(myClassNames);
+  }
+
+  /**
+   * Find the tests that cover a line.
+   *
+   * @return names of the tests in the order they were stored
+   */
+  public List<String> getTests(String className, int line) throws IOException {
+    if (!myClassIds.containsKey(className)) return Collections.emptyList();
+    final TIntArrayList entries = myClassEntries.get(myClassIds.get(className));
+    final List<String> result = new ArrayList<String>();
+    for (int i = 0; i < entries.size(); i += 2) {
+      if (containsLine(openRecord(entries.get(i + 1)), line)) {
+        result.add(getTestName(entries.get(i)));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Load the covered lines of a class. Lines of tests with the same name are merged.
+   *
+   * @return covered lines by test name
+   */
+  public Map<String, int[]> loadClass(String className) throws IOException {
+    final Map<String, int[]> result = new LinkedHashMap<String, int[]>();
+    if (!myClassIds.containsKey(className)) return result;
+    final TIntArrayList entries = myClassEntries.get(myClassIds.get(className));
+    for (int i = 0; i < entries.size(); i += 2) {
+      putLines(result, getTestName(entries.get(i)), readLines(openRecord(entries.get(i + 1))));
+    }
+    return result;
+  }
+
+  /**
+   * Load all traces, the result is in the format of {@link TestTrackingIOUtil#loadTestTrackingData}.
+   * Traces of tests with the same name are merged, also with the traces that are already in the result.
+   */
+  public void load(Map<String, Map<String, int[]>> result) throws IOException {
+    for (int test = 0; test < myTestOffsets.size(); test++) {
+      final ByteBuffer buffer = openRecord(myTestOffsets.get(test));
+      buffer.get();
+      final String name = CoverageIOUtil.readUTFFast(buffer);
+      Map<String, int[]> classes = result.get(name);
+      if (classes == null) {
+        classes = new HashMap<String, int[]>();
+        result.put(name, classes);
+      }
+      final int size = CoverageIOUtil.readINT(buffer);
+      for (int i = 0; i < size; i++) {
+        final String className = myClassNames.get(CoverageIOUtil.readINT(buffer));
+        putLines(classes, className, readLines(buffer));
+      }
+    }
+  }
+
+  private static void putLines(Map<String, int[]> map, String key, int[] lines) {
+    final int[] previous = map.get(key);
+    map.put(key, previous == null ? lines : merge(previous, lines));
+  }
+
+  /**
+   * @return union of sorted line arrays
+   */
+  private static int[] merge(int[] a, int[] b) {
+    final int[] result = new int[a.length + b.length];
+    int i = 0, j = 0, size = 0;
+    while (i < a.length || j < b.length) {
+      final int line;
+      if (j == b.length || i < a.length && a[i] < b[j]) {
+        line = a[i++];
+      } else if (i == a.length || b[j] < a[i]) {
+        line = b[j++];
+      } else {
+        line = a[i++];
+        j++;
+      }
+      result[size++] = line;
+    }
+    return size == result.length ? result : ArrayUtil.copy(result, size);
+  }
+
+  private void index() throws IOException {
+    final int size = myBuffer.limit();
+    if (size < TestTraceStore.HEADER_SIZE || myBuffer.getInt(0) != TestTraceStore.MAGIC) {
+      throw new IOException("Not a test trace store: " + myFile.getAbsolutePath());
+    }
+    final int version = myBuffer.getInt(4);
+    if (version != TestTraceStore.VERSION) {
+      throw new IOException("Unsupported test trace store version " + version + ": " + myFile.getAbsolutePath());
+    }
+    if (size >= TestTraceStore.HEADER_SIZE + TestTraceStore.TRAILER_SIZE && myBuffer.getInt(size - 4) == TestTraceStore.MAGIC) {
+      readFooter(myBuffer.getInt(size - TestTraceStore.TRAILER_SIZE));
+    } else {
+      scan();
+    }
+  }
+
+  private void readFooter(int offset) throws IOException {
+    final ByteBuffer buffer = openRecord(offset);
+    if (buffer.get() != TestTraceStore.FOOTER) {
+      throw new IOException("Corrupted test trace store: " + myFile.getAbsolutePath());
+    }
+    final int classCount = CoverageIOUtil.readINT(buffer);
+    for (int i = 0; i < classCount; i++) {
+      addClass(CoverageIOUtil.readUTFFast(buffer));
+      final int entriesCount = CoverageIOUtil.readINT(buffer);
+      final TIntArrayList entries = myClassEntries.get(i);
+      entries.ensureCapacity(2 * entriesCount);
+      int test = 0;
+      int lineOffset = 0;
+      for (int j = 0; j < entriesCount; j++) {
+        test += CoverageIOUtil.readINT(buffer);
+        lineOffset += CoverageIOUtil.readINT(buffer);
+        entries.add(test);
+        entries.add(lineOffset);
+      }
+    }
+    final int testCount = CoverageIOUtil.readINT(buffer);
+    myTestOffsets.ensureCapacity(testCount);
+    int testOffset = 0;
+    for (int i = 0; i < testCount; i++) {
+      testOffset += CoverageIOUtil.readINT(buffer);
+      myTestOffsets.add(testOffset);
+    }
+  }
+
+  /**
+   * Build the index by reading records one by one.
+   * A record that is cut off at the end of the file is ignored, as the writer could be terminated while appending it.
+   */
+  private void scan() throws IOException {
+    final ByteBuffer buffer = openRecord(TestTraceStore.HEADER_SIZE);
+    while (buffer.hasRemaining()) {
+      final int offset = buffer.position();
+      try {
+        final byte type = buffer.get();
+        if (type == TestTraceStore.CLASS_RECORD) {
+          addClass(CoverageIOUtil.readUTFFast(buffer));
+        } else if (type == TestTraceStore.TEST_RECORD) {
+          scanTest(buffer, offset);
+        } else {
+          break;
+        }
+      } catch (BufferUnderflowException e) {
+        break;
+      }
+    }
+  }
+
+  private void scanTest(ByteBuffer buffer, int offset) {
+    CoverageIOUtil.skipUTF(buffer);
+    final int test = myTestOffsets.size();
+    final int size = CoverageIOUtil.readINT(buffer);
+    final int[] entries = new int[2 * size];
+    for (int i = 0; i < size; i++) {
+      entries[2 * i] = CoverageIOUtil.readINT(buffer);
+      entries[2 * i + 1] = buffer.position();
+      skipLines(buffer);
+    }
+    // register the test only when the whole record is read
+    myTestOffsets.add(offset);
+    for (int i = 0; i < entries.length; i += 2) {
+      final TIntArrayList classEntries = myClassEntries.get(entries[i]);
+      classEntries.add(test);
+      classEntries.add(entries[i + 1]);
+    }
+  }
+
+  private void addClass(String className) {
+    myClassIds.put(className, myClassNames.size());
+    myClassNames.add(className);
+    myClassEntries.add(new TIntArrayList());
+  }
+
+  private ByteBuffer openRecord(int offset) {
+    final ByteBuffer buffer = myBuffer.duplicate();
+    buffer.position(offset);
+    return buffer;
+  }
+
+  private static int[] readLines(ByteBuffer buffer) {
+    final int[] lines = new int[CoverageIOUtil.readINT(buffer)];
+    int line = 0;
+    for (int i = 0; i < lines.length; i++) {
+      line += CoverageIOUtil.readINT(buffer);
+      lines[i] = line;
+    }
+    return lines;
+  }
+
+  private static boolean containsLine(ByteBuffer buffer, int line) {
+    if (line <= 0) return false;
+    final int count = CoverageIOUtil.readINT(buffer);
+    int current = 0;
+    for (int i = 0; i < count && current < line; i++) {
+      current += CoverageIOUtil.readINT(buffer);
+    }
+    return current == line;
+  }
+
+  private static void skipLines(ByteBuffer buffer) {
+    final int count = CoverageIOUtil.readINT(buffer);
+    for (int i = 0; i < count; i++) {
+      CoverageIOUtil.readINT(buffer);
+    }
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.util;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Writes traces of ended tests in a background thread, so that a test does not wait for its trace to be saved.
+ * Traces are passed through a bounded queue: when the writer falls behind, the ended tests wait for a free slot.
+ * After {@link #close()}, traces are written in the calling thread.
+ */
+class TestTraceWriter implements Runnable {
+  private static final int QUEUE_CAPACITY = 256;
+
+  private final TestTrackingCallback myCallback;
+  private final BlockingQueue<Task> myQueue = new ArrayBlockingQueue<Task>(QUEUE_CAPACITY);
+  private Thread myThread;
+  private boolean myClosed;
+
+  TestTraceWriter(TestTrackingCallback callback) {
+    myCallback = callback;
+  }
+
+  /**
+   * @param trace trace snapshot that is not modified after this call
+   */
+  void submit(String name, Map<Object, boolean[]> trace) {
+    synchronized (this) {
+      if (!myClosed) {
+        if (myThread == null) {
+          myThread = new Thread(this, "IntelliJ Coverage Test Traces");
+          myThread.setDaemon(true);
+          myThread.start();
+        }
+        if (put(new Task(name, trace, null, false))) return;
+      }
+    }
+    myCallback.writeTrace(name, trace);
+  }
+
+  /**
+   * Wait until all submitted traces are written.
+   */
+  void flush() {
+    final CountDownLatch done = new CountDownLatch(1);
+    synchronized (this) {
+      if (myThread == null || myClosed) return;
+      if (!put(new Task(null, null, done, false))) return;
+    }
+    await(done);
+  }
+
+  /**
+   * Write the remaining traces and stop the writer thread.
+   * The traces store is closed after this call, so an interrupt does not stop the waiting,
+   * the interrupt status is restored instead.
+   */
+  void close() {
+    final CountDownLatch done = new CountDownLatch(1);
+    synchronized (this) {
+      if (myClosed) return;
+      myClosed = true;
+      if (myThread == null) return;
+      boolean interrupted = false;
+      while (true) {
+        try {
+          myQueue.put(new Task(null, null, done, true));
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) Thread.currentThread().interrupt();
+    }
+    awaitUninterruptibly(done);
+  }
+
+  public void run() {
+    while (true) {
+      final Task task;
+      try {
+        task = myQueue.take();
+      } catch (InterruptedException e) {
+        // the thread is stopped only with the close marker, otherwise close would wait forever
+        continue;
+      }
+      if (task.myDone != null) {
+        task.myDone.countDown();
+        if (task.myStop) return;
+        continue;
+      }
+      try {
+        myCallback.writeTrace(task.myName, task.myTrace);
+      } catch (Throwable e) {
+        ErrorReporter.warn("Error writing traces for test '" + task.myName + "'", e);
+      }
+    }
+  }
+
+  private boolean put(Task task) {
+    try {
+      myQueue.put(task);
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void awaitUninterruptibly(CountDownLatch latch) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        latch.await();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) Thread.currentThread().interrupt();
+  }
+
+  private static class Task {
+    private final String myName;
+    private final Map<Object, boolean[]> myTrace;
+    /**
+     * Marker tasks only signal that the previous tasks are done.
+     */
+    private final CountDownLatch myDone;
+    private final boolean myStop;
+
+    private Task(String name, Map<Object, boolean[]> trace, CountDownLatch done, boolean stop) {
+      myName = name;
+      myTrace = trace;
+      myDone = done;
+      myStop = stop;
+    }
+  }
+}
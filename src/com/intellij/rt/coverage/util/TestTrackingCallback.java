@@ -21,92 +21,144 @@ import com.intellij.rt.coverage.data.LineData;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.Callable;
 
 public abstract class TestTrackingCallback {
   private final File myDataFile;
   private File myTracesDir;
-
-  /**
-   * Test tracking trace storage. Test tracking supports only sequential tests (but code inside one test could be parallel).
-   * Nevertheless, in case of parallel tests run setting storage to null truncates coverage significantly.
-   * Using CAS for the storage update slightly improves test tracking coverage as the data are not cleared too frequently.
-   */
-  private final AtomicReference<Map<Object, boolean[]>> myTrace = new AtomicReference<Map<Object, boolean[]>>();
+  private TestTraceStore myStore;
+  private TestTraceWriter myWriter;
 
   protected TestTrackingCallback(File file) {
     myDataFile = file;
   }
 
-  public abstract void clearTrace(ClassData classData);
-  public abstract boolean[] traceLine(ClassData classData, int line);
+  /**
+   * Mark the line as covered by the running test. This method is called from the instrumented code.
+   */
+  public abstract void traceLineByTest(Object classData, int line);
 
-  private Map<Object, boolean[]> getTraces() {
-    return myTrace.get();
-  }
+  /**
+   * This method could be called in test tracking mode by test engine listeners
+   */
+  public abstract void testEnded(String name);
 
-  public void traceLineByTest(Object classData, int line) {
-    final Map<Object, boolean[]> traces = getTraces();
-    if (traces != null) {
-      final boolean[] lines = traceLine((ClassData) classData, line);
-      if (lines != null) {
-        traces.put(classData, lines);
-      }
-    }
+  /**
+   * This method could be called in test tracking mode by test engine listeners
+   */
+  public abstract void testStarted(String name);
+
+  /**
+   * Bind a task to the test running in the current thread, so that the lines executed by the task
+   * are attributed to this test in any thread the task is run.
+   * Only concurrent test tracking distinguishes tests, in other modes the task is returned as is.
+   */
+  public Runnable bindToCurrentTest(Runnable task) {
+    return task;
   }
 
-  public void registerForTrace(Object classData) {
-    final Map<Object, boolean[]> traces = getTraces();
-    if (traces != null) {
-      synchronized (classData) {
-        final boolean[] trace = ((ClassData) classData).getTraceMask();
-        if (traces.put(classData, trace) == null) {
-          // clear trace on register for a new test to prevent reporting about code running between tests
-          Arrays.fill(trace, false);
-        }
-        trace[0] = true;
-      }
-    }
+  /**
+   * @see #bindToCurrentTest(Runnable)
+   */
+  public <T> Callable<T> bindToCurrentTest(Callable<T> task) {
+    return task;
   }
 
   /**
-   * This method could be called in test tracking mode by test engine listeners
+   * Save the trace of an ended test and mark the touched lines with the test name.
+   * This is done in a background thread unless asynchronous writing is disabled.
+   *
+   * @param trace covered lines by class data, must not be modified after this call
    */
-  public void testEnded(final String name) {
-    final Map<Object, boolean[]> trace = myTrace.getAndSet(null);
-    if (trace == null) return;
-    File tracesDir = getTracesDir();
+  protected void submitTrace(String name, Map<Object, boolean[]> trace) {
+    if (OptionsUtil.ASYNC_TEST_TRACES) {
+      getWriter().submit(name, trace);
+    } else {
+      writeTrace(name, trace);
+    }
+  }
+
+  void writeTrace(String name, Map<Object, boolean[]> trace) {
     try {
-      TestTrackingIOUtil.saveTestResults(tracesDir, name, trace);
-    } catch (IOException e) {
-      ErrorReporter.warn("Error writing traces for test '" + name + "' to directory " + tracesDir.getPath(), e);
+      saveTrace(name, trace);
     } finally {
       for (Map.Entry<Object, boolean[]> entry : trace.entrySet()) {
         final ClassData classData = (ClassData) entry.getKey();
         final boolean[] touched = entry.getValue();
-        final Object[] lines = classData.getLines();
-        final int lineCount = Math.min(lines.length, touched.length);
-        for (int i = 1; i < lineCount; i++) {
-          final LineData lineData = (LineData) lines[i];
-          if (lineData == null || !touched[i]) continue;
-          lineData.setTestName(name);
+        synchronized (classData) {
+          final Object[] lines = classData.getLines();
+          final int lineCount = Math.min(lines.length, touched.length);
+          for (int i = 1; i < lineCount; i++) {
+            final LineData lineData = (LineData) lines[i];
+            if (lineData == null || !touched[i]) continue;
+            lineData.setTestName(name);
+          }
         }
-        clearTrace(classData);
       }
     }
   }
 
+  private void saveTrace(String name, Map<Object, boolean[]> trace) {
+    final File tracesDir = getTracesDir();
+    try {
+      if (OptionsUtil.TEST_TRACE_STORE) {
+        getStore().append(name, trace);
+      } else {
+        TestTrackingIOUtil.saveTestResults(tracesDir, name, trace);
+      }
+    } catch (IOException e) {
+      ErrorReporter.warn("Error writing traces for test '" + name + "' to directory " + tracesDir.getPath(), e);
+    }
+  }
+
   /**
-   * This method could be called in test tracking mode by test engine listeners
+   * Wait until the traces of the ended tests are written.
+   */
+  public void flush() {
+    final TestTraceWriter writer;
+    synchronized (this) {
+      writer = myWriter;
+    }
+    if (writer != null) writer.flush();
+  }
+
+  /**
+   * Finish writing traces. This method is called on shutdown after all tests have ended.
    */
-  public void testStarted(final String ignoredName) {
-    myTrace.compareAndSet(null, new ConcurrentHashMap<Object, boolean[]>());
+  public void close() {
+    final TestTraceWriter writer;
+    synchronized (this) {
+      writer = myWriter;
+    }
+    if (writer != null) writer.close();
+    final TestTraceStore store;
+    synchronized (this) {
+      store = myStore;
+    }
+    if (store == null) return;
+    try {
+      store.close();
+    } catch (IOException e) {
+      ErrorReporter.warn("Error closing test traces file " + store.getFile().getPath(), e);
+    }
+  }
+
+  private synchronized TestTraceWriter getWriter() {
+    if (myWriter == null) {
+      myWriter = new TestTraceWriter(this);
+    }
+    return myWriter;
+  }
+
+  private synchronized TestTraceStore getStore() throws IOException {
+    if (myStore == null) {
+      myStore = TestTraceStore.create(getTracesDir());
+    }
+    return myStore;
   }
 
-  private File getTracesDir() {
+  private synchronized File getTracesDir() {
     if (myTracesDir == null) {
       myTracesDir = createTracesDir(myDataFile);
     }
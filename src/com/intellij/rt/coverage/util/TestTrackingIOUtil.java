@@ -64,6 +64,11 @@ public class TestTrackingIOUtil {
     if (traces == null) return result;
     for (File traceFile : traces) {
       final String fileName = traceFile.getName();
+      if (fileName.endsWith(TestTraceStore.EXTENSION)) {
+        TestTraceStoreReader.read(traceFile).load(result);
+        continue;
+      }
+      if (!fileName.endsWith(".tr")) continue;
       final String name = fileName.substring(0, fileName.length() - ".tr".length());
       final Map<String, int[]> classes = new HashMap<String, int[]>();
       DataInputStream is = null;
@@ -35,6 +35,14 @@ public abstract class ClassEntry {
 
   public abstract InputStream getClassInputStream() throws IOException;
 
+  /**
+   * @return a string that identifies the class file content without reading it, e.g. its path, size and modification time,
+   * or <code>null</code> if there is no such identity
+   */
+  public String getFileKey() {
+    return null;
+  }
+
   public boolean equals(final Object o) {
     if (this == o) return true;
     if (o == null || getClass() != o.getClass()) return false;
@@ -16,6 +16,7 @@
 
 package com.intellij.rt.coverage.util.classFinder;
 
+import com.intellij.rt.coverage.util.ClassNameMatcher;
 import com.intellij.rt.coverage.util.ClassNameUtil;
 
 import java.util.List;
@@ -25,19 +26,19 @@ public interface ClassFilter {
   boolean shouldInclude(String className);
 
   class PatternFilter implements ClassFilter {
-    private final List<Pattern> myIncludePatterns;
-    private final List<Pattern> myExcludePatterns;
+    private final ClassNameMatcher myIncludeMatcher;
+    private final ClassNameMatcher myExcludeMatcher;
 
     public PatternFilter(List<Pattern> includePatterns, List<Pattern> excludePatterns) {
-      myIncludePatterns = includePatterns;
-      myExcludePatterns = excludePatterns;
+      myIncludeMatcher = ClassNameMatcher.create(includePatterns);
+      myExcludeMatcher = ClassNameMatcher.create(excludePatterns);
     }
 
     public boolean shouldInclude(String className) {
-      if (ClassNameUtil.matchesPatterns(className, myExcludePatterns)) return false;
+      if (myExcludeMatcher.matches(className)) return false;
       final String outerClassName = ClassNameUtil.getOuterClassName(className);
-      if (ClassNameUtil.matchesPatterns(outerClassName, myIncludePatterns)) return true;
-      return myIncludePatterns.isEmpty();
+      if (myIncludeMatcher.matches(outerClassName)) return true;
+      return myIncludeMatcher.isEmpty();
     }
   }
 }
@@ -24,6 +24,9 @@ import java.net.URL;
 import java.net.URLClassLoader;
 import java.net.URLDecoder;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 /**
@@ -66,6 +69,41 @@ public class ClassFinder {
     }
   }
 
+  /**
+   * Iterate class path entries concurrently, each entry is scanned by a separate task of <code>executor</code>.
+   * Classes of one entry are passed to the consumer in the same order as by {@link #iterateMatchedClasses(ClassEntry.Consumer)},
+   * but the consumer is called from several threads at once.
+   * A class entry stream can only be read inside the <code>consume</code> call.
+   * This method returns when all entries are scanned.
+   */
+  public void iterateMatchedClasses(final ClassEntry.Consumer consumer, ExecutorService executor) {
+    final List<Future<?>> futures = new ArrayList<Future<?>>();
+    for (final ClassPathEntry entry : getClassPathEntries()) {
+      futures.add(executor.submit(new Runnable() {
+        public void run() {
+          try {
+            entry.iterateMatchedClasses(myFilter, consumer);
+          } catch (IOException e) {
+            ErrorReporter.info("Error during iterating classes.", e);
+          }
+        }
+      }));
+    }
+    try {
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new RuntimeException(cause);
+    }
+  }
+
   protected Collection<ClassPathEntry> getClassPathEntries() {
     Set<ClassPathEntry> result = new HashSet<ClassPathEntry>();
     result.addAll(extractEntries(System.getProperty("java.class.path")));
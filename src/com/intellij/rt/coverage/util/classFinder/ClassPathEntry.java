@@ -46,20 +46,20 @@ public class ClassPathEntry {
     processor.iterateMatchedClasses(myClassPathEntry, consumer);
   }
 
+  /**
+   * A new processor is created for each call as entries may be iterated concurrently with different filters.
+   */
   private static ClassPathEntryProcessor createEntryProcessor(String entry) {
     File file = new File(entry);
     if (file.isDirectory()) {
-      return myDirectoryProcessor;
+      return new DirectoryEntryProcessor();
     }
     if (file.isFile() && (file.getName().endsWith(".jar") || file.getName().endsWith(".zip"))) {
-      return myZipProcessor;
+      return new ZipEntryProcessor();
     }
     return null;
   }
 
-  private final static DirectoryEntryProcessor myDirectoryProcessor = new DirectoryEntryProcessor();
-  private final static ZipEntryProcessor myZipProcessor = new ZipEntryProcessor();
-
   private static abstract class AbstractClassPathEntryProcessor implements ClassPathEntryProcessor {
     private ClassFilter myFilter;
 
@@ -109,6 +109,11 @@ public class ClassPathEntry {
                     is[0] = new FileInputStream(f);
                     return is[0];
                   }
+
+                  @Override
+                  public String getFileKey() {
+                    return f.getPath() + ':' + f.length() + ':' + f.lastModified();
+                  }
                 });
               } finally {
                 CoverageIOUtil.close(is[0]);
@@ -141,6 +146,13 @@ public class ClassPathEntry {
                     is[0] = zipFile.getInputStream(zipEntry);
                     return is[0];
                   }
+
+                  @Override
+                  public String getFileKey() {
+                    final long crc = zipEntry.getCrc();
+                    if (crc == -1) return null;
+                    return classPathEntry + '!' + zipEntry.getName() + ':' + zipEntry.getSize() + ':' + crc;
+                  }
                 });
               } finally {
                 CoverageIOUtil.close(is[0]);
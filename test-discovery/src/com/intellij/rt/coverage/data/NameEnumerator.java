@@ -20,26 +20,61 @@ import org.jetbrains.coverage.gnu.trove.TObjectIntHashMap;
 
 import java.util.ArrayList;
 import java.util.List;
-
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Assigns ids to names. Ids of already known names are read without locking.
+ * A new name is registered with a CAS, and only the thread that has registered the name takes a new id,
+ * so ids are dense. The id is published after {@link #updateDataIncrement} is called,
+ * so any id that other threads can see is already in the data increment.
+ * If the registering thread fails, the name is registered again by the next thread that needs it.
+ */
 public class NameEnumerator {
-  private final TObjectIntHashMap<String> myNames = new TObjectIntHashMap<String>();
-  private int myNextNameId = 1; // because TObjectIntHashMap uses 0 as null
-  private final Object myNameLock = "NameLock";
+  private final ConcurrentHashMap<String, Entry> myNames = new ConcurrentHashMap<String, Entry>();
+  // ids start from 1 because TObjectIntHashMap uses 0 as null, and Entry uses 0 for an id that is not assigned yet
+  private final AtomicInteger myNextNameId = new AtomicInteger(1);
 
   int enumerate(String name) {
-    synchronized (myNameLock) {
-      int enumerated = myNames.get(name);
-      if (enumerated != 0) return enumerated;
+    while (true) {
+      Entry entry = myNames.get(name);
+      if (entry == null) {
+        final Entry newEntry = new Entry();
+        entry = myNames.putIfAbsent(name, newEntry);
+        if (entry == null) return assignId(name, newEntry);
+      }
+      final int id = entry.getId();
+      if (id != Entry.FAILED) return id;
+    }
+  }
 
-      int newId = myNextNameId++;
+  private int assignId(String name, Entry entry) {
+    boolean assigned = false;
+    try {
+      final int newId = myNextNameId.getAndIncrement();
       updateDataIncrement(name, newId);
-      myNames.put(name, newId);
+      entry.myId = newId;
+      assigned = true;
       return newId;
+    } finally {
+      if (!assigned) {
+        // removed before the threads waiting for this entry retry
+        myNames.remove(name, entry);
+        entry.myId = Entry.FAILED;
+      }
     }
   }
 
   TObjectIntHashMap<String> getNamesMap() {
-    return myNames;
+    final TObjectIntHashMap<String> result = new TObjectIntHashMap<String>();
+    for (Map.Entry<String, Entry> entry : myNames.entrySet()) {
+      final int id = entry.getValue().myId;
+      if (id > 0) {
+        result.put(entry.getKey(), id);
+      }
+    }
+    return result;
   }
 
   protected void updateDataIncrement(String name, int id) {
@@ -82,6 +117,25 @@ public class NameEnumerator {
     }
   }
 
+  private static final class Entry {
+    static final int FAILED = -1;
+
+    /**
+     * 0 until the id is assigned, {@link #FAILED} if the registering thread has failed to assign it.
+     */
+    private volatile int myId;
+
+    int getId() {
+      int id = myId;
+      while (id == 0) {
+        // another thread has just registered this name and is assigning the id
+        Thread.yield();
+        id = myId;
+      }
+      return id;
+    }
+  }
+
   static int[] enumerate(String[] names, NameEnumerator enumerator) {
     int[] ids = new int[names.length];
     for (int i = 0; i < names.length; i++) {
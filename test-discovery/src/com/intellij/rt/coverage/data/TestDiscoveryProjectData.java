@@ -23,6 +23,8 @@ import java.lang.reflect.Method;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static com.intellij.rt.coverage.util.CoverageIOUtil.GIGA;
 
@@ -65,6 +67,12 @@ public class TestDiscoveryProjectData {
     }));
   }
 
+  // For tests
+  TestDiscoveryProjectData(TestDiscoveryDataListener dataListener) {
+    myDataListener = dataListener;
+    myNameEnumerator = dataListener.getNameEnumerator();
+  }
+
   public static TestDiscoveryProjectData getProjectData() {
     return ourProjectData;
   }
@@ -73,6 +81,12 @@ public class TestDiscoveryProjectData {
   private final ConcurrentMap<Integer, int[]> myClassToMethodNames = new ConcurrentHashMap<Integer, int[]>();
   final ConcurrentMap<Integer, ClassMetadata> classesToMetadata = new ConcurrentHashMap<Integer, ClassMetadata>();
   private final TestDiscoveryDataListener myDataListener;
+  private final Object myClassRegistrationLock = new Object();
+  /**
+   * Classes are registered under the read lock, the data listener is called under the write lock,
+   * so the class maps do not change while the listener writes them.
+   */
+  private final ReadWriteLock myRegistrationLock = new ReentrantReadWriteLock();
 
   // called from instrumented code during class's static init
   public static boolean[] trace(String className, boolean[] methodFlags, String[] methodNames) {
@@ -87,27 +101,49 @@ public class TestDiscoveryProjectData {
   private static Long ourTraceTime = 0L;
   private static Long ourCleanupTime = 0L;
 
-  private synchronized boolean[] traceLines(String className, boolean[] methodFlags, String[] methodNames) {
+  /**
+   * Classes are registered concurrently with each other, only the update of the class maps is exclusive.
+   * Names are enumerated before a class is added to the maps, so the listener always knows the names of the classes it writes.
+   */
+  boolean[] traceLines(String className, boolean[] methodFlags, String[] methodNames) {
     //System.out.println("Registering " + className);
     //assert methodFlags.length == methodNames.length;
     int classId = myNameEnumerator.enumerate(className);
 
-    final boolean[] previousMethodFlags = myClassToVisitedMethods.putIfAbsent(classId, methodFlags);
+    final boolean[] knownMethodFlags = myClassToVisitedMethods.get(classId);
+    if (knownMethodFlags != null && knownMethodFlags.length == methodFlags.length) {
+      return knownMethodFlags;
+    }
+    return registerClass(classId, methodFlags, methodNames);
+  }
+
+  private boolean[] registerClass(int classId, boolean[] methodFlags, String[] methodNames) {
+    final int[] methodIds = NameEnumerator.enumerate(methodNames, myNameEnumerator);
+
+    myRegistrationLock.readLock().lock();
+    try {
+      synchronized (myClassRegistrationLock) {
+        final boolean[] previousMethodFlags = myClassToVisitedMethods.putIfAbsent(classId, methodFlags);
+
+        if (previousMethodFlags != null) {
+          if (previousMethodFlags.length == methodFlags.length) {
+            return previousMethodFlags;
+          }
+          //override previous data so different loaded classes would work with different arrays
+          //the last loaded class wins but at least no ArrayIndexOutOfBound would be possible due to different class versions
+          myClassToVisitedMethods.put(classId, methodFlags);
+        }
 
-    if (previousMethodFlags != null) {
-      if (previousMethodFlags.length == methodFlags.length) {
-        return previousMethodFlags;
+        myClassToMethodNames.put(classId, methodIds);
+        return methodFlags;
       }
-      //override previous data so different loaded classes would work with different arrays 
-      //the last loaded class wins but at least no ArrayIndexOutOfBound would be possible due to different class versions
-      myClassToVisitedMethods.put(classId, methodFlags);
+    } finally {
+      myRegistrationLock.readLock().unlock();
     }
-
-    myClassToMethodNames.put(classId, NameEnumerator.enumerate(methodNames, myNameEnumerator));
-    return methodFlags;
   }
 
   public synchronized void testDiscoveryEnded(final String className, final String methodName) {
+    myRegistrationLock.writeLock().lock();
     try {
       myDataListener.testFinished(className, methodName, myClassToVisitedMethods, myClassToMethodNames, enumerateFiles(myOpenFilesPerTest));
       for (Map.Entry<Integer, boolean[]> e : myClassToVisitedMethods.entrySet()) {
@@ -123,6 +159,8 @@ public class TestDiscoveryProjectData {
       }
     } catch (Exception e) {
       e.printStackTrace();
+    } finally {
+      myRegistrationLock.writeLock().unlock();
     }
   }
 
@@ -168,10 +206,13 @@ public class TestDiscoveryProjectData {
   public synchronized void testDiscoveryFinished() {
     if (myFinished) return;
     myFinished = true;
+    myRegistrationLock.writeLock().lock();
     try {
       myDataListener.testsFinished();
     } catch (Exception e) {
       e.printStackTrace();
+    } finally {
+      myRegistrationLock.writeLock().unlock();
     }
   }
 
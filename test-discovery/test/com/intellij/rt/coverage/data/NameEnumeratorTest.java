@@ -0,0 +1,158 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.data;
+
+import org.jetbrains.coverage.gnu.trove.TObjectIntHashMap;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class NameEnumeratorTest {
+  @Test
+  public void testIdsAreStable() {
+    final NameEnumerator.Incremental enumerator = new NameEnumerator.Incremental();
+    assertThat(enumerator.enumerate("A")).isEqualTo(1);
+    assertThat(enumerator.enumerate("B")).isEqualTo(2);
+    assertThat(enumerator.enumerate("A")).isEqualTo(1);
+    assertThat(enumerator.getAndClearDataIncrement()).hasSize(2);
+    assertThat(enumerator.enumerate("B")).isEqualTo(2);
+    assertThat(enumerator.enumerate("C")).isEqualTo(3);
+    final List<NameEnumerator.Incremental.NameAndId> increment = enumerator.getAndClearDataIncrement();
+    assertThat(increment).hasSize(1);
+    assertThat(increment.get(0).getName()).isEqualTo("C");
+    assertThat(increment.get(0).getId()).isEqualTo(3);
+  }
+
+  @Test
+  public void testConcurrentEnumeration() throws Exception {
+    final int threads = 4;
+    final int namesCount = 10000;
+    final NameEnumerator.Incremental enumerator = new NameEnumerator.Incremental();
+    final List<String> names = new ArrayList<String>();
+    for (int i = 0; i < namesCount; i++) {
+      names.add("name" + i);
+    }
+
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    final CyclicBarrier barrier = new CyclicBarrier(threads);
+    final List<Future<Map<String, Integer>>> futures = new ArrayList<Future<Map<String, Integer>>>();
+    final Map<String, Integer> incrementIds = new HashMap<String, Integer>();
+    try {
+      for (int t = 0; t < threads; t++) {
+        final List<String> order = new ArrayList<String>(names);
+        Collections.shuffle(order, new Random(t));
+        futures.add(executor.submit(new Callable<Map<String, Integer>>() {
+          public Map<String, Integer> call() throws Exception {
+            barrier.await();
+            final Map<String, Integer> ids = new HashMap<String, Integer>();
+            for (String name : order) {
+              ids.put(name, enumerator.enumerate(name));
+            }
+            return ids;
+          }
+        }));
+      }
+      // the increment is collected concurrently, as the protocol listener does
+      while (!allDone(futures)) {
+        collectIncrement(enumerator, incrementIds);
+      }
+    } finally {
+      executor.shutdown();
+    }
+    collectIncrement(enumerator, incrementIds);
+
+    final Map<String, Integer> expected = futures.get(0).get();
+    for (Future<Map<String, Integer>> future : futures) {
+      assertThat(future.get()).isEqualTo(expected);
+    }
+    assertThat(incrementIds).isEqualTo(expected);
+    assertThat(new TreeSet<Integer>(expected.values())).hasSize(namesCount).startsWith(1).endsWith(namesCount);
+    final TObjectIntHashMap<String> namesMap = enumerator.getNamesMap();
+    assertThat(namesMap.size()).isEqualTo(namesCount);
+    for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+      assertThat(namesMap.get(entry.getKey())).isEqualTo(entry.getValue().intValue());
+    }
+  }
+
+  @Test
+  public void testFailedRegistration() throws Exception {
+    final CountDownLatch registering = new CountDownLatch(1);
+    final CountDownLatch failure = new CountDownLatch(1);
+    final AtomicBoolean failed = new AtomicBoolean();
+    final NameEnumerator enumerator = new NameEnumerator() {
+      @Override
+      protected void updateDataIncrement(String name, int id) {
+        if (failed.compareAndSet(false, true)) {
+          registering.countDown();
+          try {
+            failure.await();
+          } catch (InterruptedException ignored) {
+          }
+          throw new IllegalStateException();
+        }
+      }
+    };
+
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      final Future<Integer> failing = executor.submit(new Callable<Integer>() {
+        public Integer call() {
+          return enumerator.enumerate("A");
+        }
+      });
+      registering.await();
+      // waits for the id of the entry registered by the failing thread
+      final Future<Integer> waiting = executor.submit(new Callable<Integer>() {
+        public Integer call() {
+          return enumerator.enumerate("A");
+        }
+      });
+      failure.countDown();
+
+      try {
+        failing.get();
+        fail();
+      } catch (ExecutionException e) {
+        assertThat(e.getCause()).isInstanceOf(IllegalStateException.class);
+      }
+      final int id = waiting.get(10, TimeUnit.SECONDS);
+      assertThat(id).isEqualTo(2);
+      assertThat(enumerator.enumerate("A")).isEqualTo(id);
+      assertThat(enumerator.getNamesMap().get("A")).isEqualTo(id);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static boolean allDone(List<? extends Future<?>> futures) {
+    for (Future<?> future : futures) {
+      if (!future.isDone()) return false;
+    }
+    return true;
+  }
+
+  private static void collectIncrement(NameEnumerator.Incremental enumerator, Map<String, Integer> ids) {
+    for (NameEnumerator.Incremental.NameAndId nameAndId : enumerator.getAndClearDataIncrement()) {
+      assertThat(ids.put(nameAndId.getName(), nameAndId.getId())).isNull();
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.data;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestDiscoveryProjectDataTest {
+  @BeforeClass
+  public static void setUpListener() {
+    // the shared project data is created on class initialization
+    System.setProperty(TestDiscoveryProjectData.TEST_DISCOVERY_DATA_LISTENER_PROP, RecordingListener.class.getName());
+  }
+
+  @Test
+  public void testClassesAreNotRegisteredWhileTestEnds() throws Exception {
+    final RecordingListener listener = new RecordingListener();
+    final TestDiscoveryProjectData projectData = new TestDiscoveryProjectData(listener);
+    projectData.traceLines("A", new boolean[1], new String[]{"a"});
+
+    final Thread registration = new Thread() {
+      @Override
+      public void run() {
+        try {
+          listener.myTestEnding.await();
+          projectData.traceLines("B", new boolean[1], new String[]{"b"});
+          // a new version of the class replaces the flags array
+          projectData.traceLines("A", new boolean[2], new String[]{"a", "c"});
+          listener.myRegistered.countDown();
+        } catch (InterruptedException ignored) {
+        }
+      }
+    };
+    registration.start();
+    projectData.testDiscoveryEnded("Test", "test");
+    registration.join();
+
+    assertThat(listener.myRegisteredDuringTestEnd).isFalse();
+    assertThat(listener.myClassesAfter).isEqualTo(listener.myClassesBefore);
+    assertThat(listener.myClassesBefore).hasSize(1);
+
+    final NameEnumerator enumerator = listener.getNameEnumerator();
+    final Map<Integer, boolean[]> classes = projectData.getClassToVisitedMethods();
+    assertThat(classes).hasSize(2);
+    assertThat(classes.get(enumerator.enumerate("A"))).hasSize(2);
+    assertThat(projectData.getClassToMethodNames().get(enumerator.enumerate("A"))).hasSize(2);
+  }
+
+  public static class RecordingListener implements TestDiscoveryDataListener {
+    private final NameEnumerator.Incremental myNameEnumerator = new NameEnumerator.Incremental();
+    private final CountDownLatch myTestEnding = new CountDownLatch(1);
+    private final CountDownLatch myRegistered = new CountDownLatch(1);
+    private Map<Integer, boolean[]> myClassesBefore;
+    private Map<Integer, boolean[]> myClassesAfter;
+    private boolean myRegisteredDuringTestEnd;
+
+    public void testFinished(String className, String methodName, Map<Integer, boolean[]> classToVisitedMethods, Map<Integer, int[]> classToMethodNames, List<int[]> openedFiles) {
+      myClassesBefore = new HashMap<Integer, boolean[]>(classToVisitedMethods);
+      myTestEnding.countDown();
+      try {
+        myRegisteredDuringTestEnd = myRegistered.await(500, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      myClassesAfter = new HashMap<Integer, boolean[]>(classToVisitedMethods);
+    }
+
+    public void testsFinished() {
+    }
+
+    public void addMetadata(Map<String, String> metadata) {
+    }
+
+    public void addClassMetadata(List<ClassMetadata> metadata) {
+    }
+
+    public NameEnumerator getNameEnumerator() {
+      return myNameEnumerator;
+    }
+  }
+}
@@ -17,6 +17,7 @@
 package com.intellij.rt.coverage.caseTests
 
 import com.intellij.rt.coverage.createTmpFile
+import com.intellij.rt.coverage.data.LineData
 import com.intellij.rt.coverage.data.ProjectData
 import com.intellij.rt.coverage.instrumentation.InstrumentationOptions
 import com.intellij.rt.coverage.logFile
@@ -24,6 +25,8 @@ import com.intellij.rt.coverage.util.CoverageIOUtil
 import com.intellij.rt.coverage.util.CoverageReport
 import com.intellij.rt.coverage.util.ErrorReporter
 import com.intellij.rt.coverage.util.ProjectDataLoader
+import com.intellij.rt.coverage.util.ReportIndex
+import com.intellij.rt.coverage.util.ReportSectionsUtil
 import org.junit.After
 import org.junit.Assert
 import org.junit.Before
@@ -31,6 +34,7 @@ import org.junit.Test
 import java.io.DataOutputStream
 import java.io.File
 import java.io.FileOutputStream
+import java.nio.ByteBuffer
 import java.util.regex.Pattern
 
 class ReportFormatTest {
@@ -169,4 +173,52 @@ class ReportFormatTest {
         Assert.assertEquals(excludeFilters.toString(), readProjectData.excludePatterns.toString())
         Assert.assertEquals(annotations.toString(), readProjectData.annotationsToIgnore.toString())
     }
-}
\ No newline at end of file
+
+    @Test
+    fun testIndexIsWritten() {
+        val projectData = ProjectData()
+        val lineData = LineData(1, "foo()V")
+        projectData.getOrCreateClassData("A").setLines(arrayOf(null, lineData))
+        projectData.getOrCreateClassData("B").setLines(arrayOf(null, LineData(1, "bar()V").apply { hits = 1 }))
+        projectData.includePatterns = listOf(Pattern.compile("foo.*"))
+        CoverageReport.save(projectData, InstrumentationOptions.Builder().setDataFile(file).build())
+
+        val index = ReportIndex.read(ByteBuffer.wrap(file.readBytes()))!!
+        Assert.assertEquals(2, index.classCount)
+        Assert.assertNotEquals(ReportIndex.NO_OFFSET, index.getClassOffset(0))
+        Assert.assertNotEquals(ReportIndex.NO_OFFSET, index.getClassOffset(1))
+        Assert.assertNotEquals(ReportIndex.NO_OFFSET, index.getSectionOffset(ReportSectionsUtil.UNCOVERED_BRANCHES_SECTION_ID))
+        Assert.assertEquals(ReportIndex.NO_OFFSET, index.getSectionOffset(Int.MAX_VALUE))
+
+        // the index is the last section, so the sections before it are loaded by the sequential loader
+        val loaded = ProjectDataLoader.load(file)
+        readLog()?.also { log -> throw RuntimeException(log) }
+        Assert.assertEquals(1, loaded.getClassData("B").getLineData(1).hits)
+        Assert.assertEquals("[foo.*]", loaded.includePatterns.toString())
+    }
+
+    @Test
+    fun testNoIndexInOldFormat() {
+        writeSimpleProject()
+        CoverageIOUtil.writeINT(out, 1) // version
+        CoverageIOUtil.writeUTF(out, "") // extra line
+        CoverageIOUtil.writeINT(out, 0) // sections number
+        out.flush()
+
+        Assert.assertNull(ReportIndex.read(ByteBuffer.wrap(file.readBytes())))
+    }
+
+    @Test
+    fun testCorruptedIndexIsIgnored() {
+        writeSimpleProject()
+        CoverageIOUtil.writeINT(out, ProjectDataLoader.REPORT_VERSION) // version
+        CoverageIOUtil.writeUTF(out, "") // extra line
+        CoverageIOUtil.writeINT(out, 0) // sections number
+        out.writeInt(Int.MAX_VALUE) // index offset out of file
+        out.writeInt(ReportIndex.MAGIC)
+        out.flush()
+
+        Assert.assertNull(ReportIndex.read(ByteBuffer.wrap(file.readBytes())))
+        Assert.assertEquals(1, ProjectDataLoader.load(file).getClassData("ClassName").getLineData(42).hits)
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.intellij.rt.coverage;
 
+import com.intellij.rt.coverage.util.ClassNameMatcher;
 import com.intellij.rt.coverage.util.ClassNameUtil;
 import junit.framework.TestCase;
 
@@ -56,6 +57,7 @@ public class FilteringTest extends TestCase {
 
   private void doTestExcludeFilter(String className, List<Pattern> excludePatterns, boolean expected) {
     assertEquals(expected, ClassNameUtil.matchesPatterns(className, excludePatterns));
+    assertEquals(expected, ClassNameMatcher.create(excludePatterns).matches(className));
   }
 
   private List<Pattern> toPatterns(String[] regexs) {
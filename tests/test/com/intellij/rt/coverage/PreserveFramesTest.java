@@ -0,0 +1,256 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage;
+
+import com.intellij.rt.coverage.data.*;
+import com.intellij.rt.coverage.instrumentation.CoverageRuntime;
+import com.intellij.rt.coverage.instrumentation.CoverageTransformer;
+import com.intellij.rt.coverage.instrumentation.InstrumentationOptions;
+import com.intellij.rt.coverage.instrumentation.data.ProjectContext;
+import com.intellij.rt.coverage.util.OptionsUtil;
+import org.jetbrains.coverage.org.objectweb.asm.ClassWriter;
+import org.jetbrains.coverage.org.objectweb.asm.Label;
+import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
+import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class PreserveFramesTest {
+  private boolean myPreserveFrames;
+  private boolean myFieldInstrumentation;
+
+  @Before
+  public void setUp() {
+    myPreserveFrames = OptionsUtil.PRESERVE_FRAMES;
+    myFieldInstrumentation = OptionsUtil.FIELD_INSTRUMENTATION_ENABLED;
+  }
+
+  @After
+  public void tearDown() {
+    OptionsUtil.PRESERVE_FRAMES = myPreserveFrames;
+    OptionsUtil.FIELD_INSTRUMENTATION_ENABLED = myFieldInstrumentation;
+  }
+
+  @Test
+  public void testFieldInstrumentation() throws Exception {
+    OptionsUtil.FIELD_INSTRUMENTATION_ENABLED = true;
+    doTest(false);
+    doTest(true);
+  }
+
+  @Test
+  public void testNameInstrumentation() throws Exception {
+    OptionsUtil.FIELD_INSTRUMENTATION_ENABLED = false;
+    doTest(false);
+    doTest(true);
+  }
+
+  @Test
+  public void testFallbackToComputedFrames() throws Exception {
+    OptionsUtil.PRESERVE_FRAMES = true;
+    final String name = "DeadCode";
+    final ProjectData projectData = new ProjectData();
+    CoverageRuntime.installRuntime(projectData);
+    final byte[] bytes = new TestTransformer(projectData, true).instrument(createDeadCodeClass(name), name, getClass().getClassLoader(), true);
+    final Class<?> aClass = new TransformedClassLoader(getClass().getClassLoader(), name, bytes).loadClass(name, true);
+    assertEquals(0, aClass.getMethod("m", int.class).invoke(null, 5));
+  }
+
+  /**
+   * Frames are not computed in the preserving mode, so the class hierarchy is not needed.
+   */
+  private void doTest(boolean calculateHits) throws Exception {
+    final String name = Sample.class.getName();
+    final List<String> log = new ArrayList<String>();
+
+    OptionsUtil.PRESERVE_FRAMES = false;
+    final String expected = run(name, calculateHits, log);
+    assertFalse(log.isEmpty());
+
+    log.clear();
+    OptionsUtil.PRESERVE_FRAMES = true;
+    assertEquals(expected, run(name, calculateHits, log));
+    assertTrue(log.isEmpty());
+  }
+
+  private String run(String name, boolean calculateHits, List<String> commonSuperClasses) throws Exception {
+    final ProjectData projectData = new ProjectData();
+    CoverageRuntime.installRuntime(projectData);
+    final ClassLoader loader = getClass().getClassLoader();
+    final byte[] bytes = TransformedClassLoader.readBytes(loader.getResourceAsStream(name.replace('.', '/') + ".class"));
+    final byte[] transformedBytes = new TestTransformer(projectData, calculateHits).instrument(bytes, name, loader, commonSuperClasses);
+    final Class<?> aClass = new TransformedClassLoader(loader, name, transformedBytes).loadClass(name, true);
+
+    for (int i = 0; i < 4; i++) {
+      aClass.getConstructor(boolean.class).newInstance(i % 2 == 0);
+      aClass.getMethod("tableSwitch", int.class).invoke(null, i);
+      aClass.getMethod("lookupSwitch", int.class).invoke(null, i * 500);
+      aClass.getMethod("stringSwitch", String.class).invoke(null, String.valueOf((char) ('a' + i)));
+      aClass.getMethod("loop", long.class, double.class).invoke(null, (long) i * 3, 0.5);
+      aClass.getMethod("newWithBranch", boolean.class).invoke(null, i == 1);
+      aClass.getMethod("tryCatch", String.class).invoke(null, i == 2 ? "x" : String.valueOf(i));
+      aClass.getMethod("merge", boolean.class).invoke(null, i > 1);
+    }
+
+    final ClassData classData = projectData.getClassData(name);
+    assertNotNull(classData);
+    classData.applyHits();
+    return describe(classData);
+  }
+
+  private static String describe(ClassData classData) {
+    final StringBuilder builder = new StringBuilder();
+    for (Object o : classData.getLines()) {
+      if (o == null) continue;
+      final LineData line = (LineData) o;
+      builder.append(line.getLineNumber()).append(':').append(line.getHits());
+      for (int i = 0; i < line.jumpsCount(); i++) {
+        final JumpData jump = line.getJumpData(i);
+        builder.append(" j").append(jump.getTrueHits()).append('/').append(jump.getFalseHits());
+      }
+      for (int i = 0; i < line.switchesCount(); i++) {
+        final SwitchData aSwitch = line.getSwitchData(i);
+        builder.append(" s").append(Arrays.toString(aSwitch.getHits())).append('/').append(aSwitch.getDefaultHits());
+      }
+      builder.append('\n');
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Version 50 classes may have no frames, so the frame of a branch target is unknown.
+   */
+  private static byte[] createDeadCodeClass(String name) {
+    final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    cw.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, name, null, "java/lang/Object", null);
+    final MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "m", "(I)I", null, null);
+    mv.visitCode();
+    final Label start = new Label();
+    mv.visitLabel(start);
+    mv.visitLineNumber(1, start);
+    mv.visitInsn(Opcodes.ICONST_0);
+    mv.visitInsn(Opcodes.IRETURN);
+    final Label dead = new Label();
+    mv.visitLabel(dead);
+    mv.visitLineNumber(2, dead);
+    mv.visitVarInsn(Opcodes.ILOAD, 0);
+    final Label target = new Label();
+    mv.visitJumpInsn(Opcodes.IFEQ, target);
+    mv.visitInsn(Opcodes.ICONST_1);
+    mv.visitInsn(Opcodes.IRETURN);
+    mv.visitLabel(target);
+    mv.visitInsn(Opcodes.ICONST_2);
+    mv.visitInsn(Opcodes.IRETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+    cw.visitEnd();
+    return cw.toByteArray();
+  }
+
+  private static class TestTransformer extends CoverageTransformer {
+    TestTransformer(ProjectData projectData, boolean calculateHits) {
+      super(projectData, new ProjectContext(new InstrumentationOptions.Builder()
+          .setIsCalculateHits(calculateHits)
+          .setBranchCoverage(true)
+          .build()));
+    }
+
+    byte[] instrument(byte[] bytes, String name, ClassLoader loader, List<String> commonSuperClasses) {
+      return instrument(bytes, name, loader, true, commonSuperClasses);
+    }
+  }
+
+  public static class Sample {
+    private final Object myValue;
+
+    public Sample(boolean flag) {
+      this(flag ? new ArrayList<Object>() : new LinkedList<Object>());
+    }
+
+    private Sample(Object value) {
+      myValue = value;
+    }
+
+    public static int tableSwitch(int x) {
+      switch (x) {
+        case 0:
+          return 10;
+        case 1:
+        case 2:
+          return 20;
+        default:
+          return 0;
+      }
+    }
+
+    public static int lookupSwitch(int x) {
+      switch (x) {
+        case 0:
+          return 1;
+        case 1000:
+          return 2;
+        default:
+          return 3;
+      }
+    }
+
+    public static String stringSwitch(String s) {
+      switch (s) {
+        case "a":
+          return "A";
+        case "b":
+          return "B";
+        default:
+          return "?";
+      }
+    }
+
+    public static double loop(long n, double d) {
+      double result = 0;
+      for (long i = 0; i < n; i++) {
+        if (i % 3 == 0) {
+          result += d;
+        } else {
+          result -= 1;
+        }
+      }
+      return result;
+    }
+
+    public static Object newWithBranch(boolean flag) {
+      return new StringBuilder(flag ? "a" : "b");
+    }
+
+    public static int tryCatch(String s) {
+      try {
+        return Integer.parseInt(s) > 0 ? 1 : 0;
+      } catch (NumberFormatException e) {
+        return -1;
+      }
+    }
+
+    public static Object merge(boolean flag) {
+      final List<Object> list = flag ? new ArrayList<Object>() : new LinkedList<Object>();
+      return list.isEmpty() ? list : null;
+    }
+  }
+}
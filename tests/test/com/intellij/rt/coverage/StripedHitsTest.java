@@ -0,0 +1,130 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.LineData;
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.instrumentation.CoverageRuntime;
+import com.intellij.rt.coverage.instrumentation.CoverageTransformer;
+import com.intellij.rt.coverage.instrumentation.InstrumentationOptions;
+import com.intellij.rt.coverage.instrumentation.data.ProjectContext;
+import com.intellij.rt.coverage.util.OptionsUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class StripedHitsTest {
+  private static final int THREADS = 8;
+  private static final int CALLS = 100000;
+
+  private int myStripes;
+  private boolean myFieldInstrumentation;
+
+  @Before
+  public void setUp() {
+    myStripes = OptionsUtil.HITS_STRIPES;
+    myFieldInstrumentation = OptionsUtil.FIELD_INSTRUMENTATION_ENABLED;
+    OptionsUtil.HITS_STRIPES = 64;
+  }
+
+  @After
+  public void tearDown() {
+    OptionsUtil.HITS_STRIPES = myStripes;
+    OptionsUtil.FIELD_INSTRUMENTATION_ENABLED = myFieldInstrumentation;
+  }
+
+  @Test
+  public void testFieldInstrumentation() throws Exception {
+    OptionsUtil.FIELD_INSTRUMENTATION_ENABLED = true;
+    doTest();
+  }
+
+  @Test
+  public void testNameInstrumentation() throws Exception {
+    OptionsUtil.FIELD_INSTRUMENTATION_ENABLED = false;
+    doTest();
+  }
+
+  private void doTest() throws Exception {
+    final String name = Counter.class.getName();
+    final ProjectData projectData = new ProjectData();
+    CoverageRuntime.installRuntime(projectData);
+    final Method method = loadTransformed(name, projectData).getMethod("count", int.class);
+
+    final Thread[] threads = new Thread[THREADS];
+    for (int t = 0; t < THREADS; t++) {
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < CALLS; i++) {
+              method.invoke(null, i);
+            }
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    final ClassData classData = projectData.getClassData(name);
+    assertNotNull(classData);
+    classData.applyHits();
+    final LineData line = findLine(classData, "count(I)I");
+    assertEquals(THREADS * CALLS, line.getHits());
+    assertEquals(THREADS * CALLS / 2, line.getJumpData(0).getTrueHits());
+    assertEquals(THREADS * CALLS / 2, line.getJumpData(0).getFalseHits());
+  }
+
+  private Class<?> loadTransformed(String name, ProjectData data) throws Exception {
+    final String resource = name.replace('.', '/') + ".class";
+    final ClassLoader loader = getClass().getClassLoader();
+    final byte[] bytes = TransformedClassLoader.readBytes(loader.getResourceAsStream(resource));
+    final InstrumentationOptions options = new InstrumentationOptions.Builder()
+        .setIsCalculateHits(true)
+        .setBranchCoverage(true)
+        .build();
+    final byte[] transformedBytes = new CoverageTransformer(data, new ProjectContext(options))
+        .instrument(bytes, name, loader, true);
+    return new TransformedClassLoader(loader, name, transformedBytes).loadClass(name, true);
+  }
+
+  private static LineData findLine(ClassData classData, String methodSignature) {
+    for (Object line : classData.getLines()) {
+      if (line != null && methodSignature.equals(((LineData) line).getMethodSignature())) {
+        return (LineData) line;
+      }
+    }
+    throw new AssertionError("No lines in " + methodSignature);
+  }
+
+  public static class Counter {
+    public static int count(int i) {
+      return i % 2 == 0 ? 1 : 2;
+    }
+  }
+}
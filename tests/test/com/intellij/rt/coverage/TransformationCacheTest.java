@@ -0,0 +1,178 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage;
+
+import com.intellij.rt.coverage.data.*;
+import com.intellij.rt.coverage.instrumentation.CoverageRuntime;
+import com.intellij.rt.coverage.instrumentation.CoverageTransformer;
+import com.intellij.rt.coverage.instrumentation.InstrumentationOptions;
+import com.intellij.rt.coverage.instrumentation.TransformationCache;
+import com.intellij.rt.coverage.instrumentation.data.ProjectContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TransformationCacheTest {
+  private File myCacheDir;
+
+  @Before
+  public void setUp() throws IOException {
+    myCacheDir = File.createTempFile("transformation", "cache");
+    assertTrue(myCacheDir.delete());
+    assertTrue(myCacheDir.mkdirs());
+  }
+
+  @After
+  public void tearDown() {
+    final File[] files = myCacheDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    myCacheDir.delete();
+  }
+
+  @Test
+  public void testCachedClassIsTheSame() throws Exception {
+    final InstrumentationOptions options = createOptions(true);
+    final String name = Sample.class.getName();
+
+    final ProjectData instrumented = new ProjectData();
+    final TransformationCache cache1 = new TransformationCache(myCacheDir, Long.MAX_VALUE, options);
+    final byte[] bytes1 = instrument(name, instrumented, options, cache1);
+    assertEquals(0, cache1.getHits());
+    assertEquals(1, cache1.getMisses());
+
+    final ProjectData cached = new ProjectData();
+    final TransformationCache cache2 = new TransformationCache(myCacheDir, Long.MAX_VALUE, options);
+    final byte[] bytes2 = instrument(name, cached, options, cache2);
+    assertEquals(1, cache2.getHits());
+    assertArrayEquals(bytes1, bytes2);
+    assertSameLayout(instrumented.getClassData(name), cached.getClassData(name));
+
+    CoverageRuntime.installRuntime(cached);
+    final ClassLoader loader = getClass().getClassLoader();
+    final Class<?> sampleClass = new TransformedClassLoader(loader, name, bytes2).loadClass(name, true);
+    sampleClass.getMethod("select", int.class).invoke(null, 1);
+    final ClassData classData = cached.getClassData(name);
+    classData.applyHits();
+    final LineData line = findLine(classData, "select(I)I");
+    assertEquals(1, line.getHits());
+  }
+
+  @Test
+  public void testOptionsChangeKey() throws Exception {
+    final String name = Sample.class.getName();
+    final InstrumentationOptions branches = createOptions(true);
+    instrument(name, new ProjectData(), branches, new TransformationCache(myCacheDir, Long.MAX_VALUE, branches));
+
+    final InstrumentationOptions lines = createOptions(false);
+    final TransformationCache cache = new TransformationCache(myCacheDir, Long.MAX_VALUE, lines);
+    instrument(name, new ProjectData(), lines, cache);
+    assertEquals(0, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void testEviction() throws Exception {
+    final InstrumentationOptions options = createOptions(true);
+    final TransformationCache cache = new TransformationCache(myCacheDir, 0, options);
+    instrument(Sample.class.getName(), new ProjectData(), options, cache);
+    assertEquals(1, myCacheDir.listFiles().length);
+    cache.evict();
+    assertEquals(0, myCacheDir.listFiles().length);
+  }
+
+  private byte[] instrument(String name, ProjectData data, InstrumentationOptions options, TransformationCache cache) throws IOException {
+    final String resource = name.replace('.', '/') + ".class";
+    final ClassLoader loader = getClass().getClassLoader();
+    final byte[] bytes = TransformedClassLoader.readBytes(loader.getResourceAsStream(resource));
+    final CoverageTransformer transformer = new CoverageTransformer(data, new ProjectContext(options));
+    transformer.setTransformationCache(cache);
+    return transformer.instrument(bytes, name, loader, true);
+  }
+
+  private static InstrumentationOptions createOptions(boolean branchCoverage) {
+    return new InstrumentationOptions.Builder()
+        .setBranchCoverage(branchCoverage)
+        .setSaveSource(true)
+        .build();
+  }
+
+  private static void assertSameLayout(ClassData expected, ClassData actual) {
+    assertNotNull(actual);
+    assertEquals(expected.getSource(), actual.getSource());
+    assertEquals(((boolean[]) expected.getHitsMask()).length, ((boolean[]) actual.getHitsMask()).length);
+    final Object[] expectedLines = expected.getLines();
+    final Object[] actualLines = actual.getLines();
+    assertEquals(expectedLines.length, actualLines.length);
+    for (int i = 0; i < expectedLines.length; i++) {
+      final LineData expectedLine = (LineData) expectedLines[i];
+      final LineData actualLine = (LineData) actualLines[i];
+      if (expectedLine == null) {
+        assertNull(actualLine);
+        continue;
+      }
+      assertEquals(expectedLine.getLineNumber(), actualLine.getLineNumber());
+      assertEquals(expectedLine.getMethodSignature(), actualLine.getMethodSignature());
+      assertEquals(expectedLine.getId(), actualLine.getId());
+      assertEquals(expectedLine.jumpsCount(), actualLine.jumpsCount());
+      for (int j = 0; j < expectedLine.jumpsCount(); j++) {
+        assertEquals(expectedLine.getJumpData(j).getId(true), actualLine.getJumpData(j).getId(true));
+        assertEquals(expectedLine.getJumpData(j).getId(false), actualLine.getJumpData(j).getId(false));
+      }
+      assertEquals(expectedLine.switchesCount(), actualLine.switchesCount());
+      for (int s = 0; s < expectedLine.switchesCount(); s++) {
+        final SwitchData expectedSwitch = expectedLine.getSwitchData(s);
+        final SwitchData actualSwitch = actualLine.getSwitchData(s);
+        assertTrue(Arrays.equals(expectedSwitch.getKeys(), actualSwitch.getKeys()));
+        for (int k = -1; k < expectedSwitch.getKeys().length; k++) {
+          assertEquals(expectedSwitch.getId(k), actualSwitch.getId(k));
+        }
+      }
+    }
+  }
+
+  private static LineData findLine(ClassData classData, String methodSignature) {
+    for (Object line : classData.getLines()) {
+      if (line != null && methodSignature.equals(((LineData) line).getMethodSignature())) {
+        return (LineData) line;
+      }
+    }
+    throw new AssertionError("No lines in " + methodSignature);
+  }
+
+  public static class Sample {
+    public static int select(int i) {
+      switch (i) {
+        case 1:
+          return i > 0 ? 10 : 20;
+        case 2:
+          return 30;
+        default:
+          return 0;
+      }
+    }
+  }
+}
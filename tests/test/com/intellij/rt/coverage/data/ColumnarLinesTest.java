@@ -0,0 +1,184 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.data;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class ColumnarLinesTest extends TestCase {
+  public void testViewsMatchObjects() throws IOException {
+    final ClassData classData = createClassData("A", 1);
+    final String expected = describe(classData);
+    final byte[] expectedBytes = save(classData);
+
+    classData.compact();
+    assertTrue(classData.isCompact());
+    assertEquals(expected, describe(classData));
+    assertTrue(Arrays.equals(expectedBytes, save(classData)));
+
+    assertNull(classData.getLineData(2));
+    assertNull(classData.getLineData(100));
+    assertFalse(classData.containsLine(2));
+    assertTrue(classData.containsLine(3));
+    assertEquals(3, classData.getLineData(3).getLineNumber());
+    assertEquals(2, classData.getMethodSigs().size());
+    assertEquals(Integer.valueOf(LineCoverage.PARTIAL), classData.getStatus("foo()V"));
+    assertEquals(Integer.valueOf(LineCoverage.NONE), classData.getStatus("bar()V"));
+  }
+
+  public void testLinesWithoutIds() throws IOException {
+    final ClassData classData = createClassData("A", 1);
+    for (Object line : classData.getLines()) {
+      if (line != null) ((LineData) line).setId(-1);
+    }
+    classData.getLineData(1).getJumpData(0).setId(-1, true);
+    classData.getLineData(1).getJumpData(0).setId(-1, false);
+    classData.getLineData(3).getSwitchData(0).setId(-1, -1);
+    classData.getLineData(3).getSwitchData(0).setId(-1, 1);
+    final String expected = describe(classData);
+    final byte[] expectedBytes = save(classData);
+    classData.compact();
+    assertEquals(expected, describe(classData));
+    assertTrue(Arrays.equals(expectedBytes, save(classData)));
+  }
+
+  public void testViewIsReadOnly() {
+    final ClassData classData = createClassData("A", 1);
+    classData.compact();
+    final LineData line = classData.getLineData(1);
+    try {
+      line.setHits(5);
+      fail();
+    } catch (UnsupportedOperationException ignored) {
+    }
+    try {
+      line.addJump(1);
+      fail();
+    } catch (UnsupportedOperationException ignored) {
+    }
+    // jumps of a view are detached copies
+    line.getJumpData(0).setTrueHits(100);
+    assertEquals(3, classData.getLineData(1).getJumpData(0).getTrueHits());
+  }
+
+  public void testMergeExpandsCompactClass() {
+    final ClassData expected = createClassData("A", 1);
+    expected.merge(createClassData("A", 2));
+
+    final ClassData compact = createClassData("A", 1);
+    compact.compact();
+    final ClassData source = createClassData("A", 2);
+    source.compact();
+    compact.merge(source);
+    assertFalse(compact.isCompact());
+    assertTrue(source.isCompact());
+    assertEquals(describe(expected), describe(compact));
+  }
+
+  public void testApplyHitsExpandsCompactClass() {
+    final ClassData classData = createClassData("A", 1);
+    classData.createMask(8, true);
+    ((int[]) classData.getHitsMask())[0] = 10;
+    classData.compact();
+    classData.applyHits();
+    assertFalse(classData.isCompact());
+    assertEquals(11, classData.getLineData(1).getHits());
+  }
+
+  private static ClassData createClassData(String name, int hits) {
+    final ClassData classData = new ClassData(name);
+    final LineData[] lines = new LineData[6];
+
+    lines[1] = new LineData(1, "foo()V");
+    lines[1].setId(0);
+    lines[1].setHits(hits);
+    lines[1].addJump(0);
+    lines[1].setTrueHits(0, 3 * hits);
+    lines[1].getJumpData(0).setId(1, true);
+    lines[1].getJumpData(0).setId(2, false);
+    lines[1].setTestName("test1");
+
+    lines[3] = new LineData(3, "foo()V");
+    lines[3].setHits(2 * hits);
+    final int[] keys = {1, 5, 7};
+    lines[3].addSwitch(0, keys);
+    lines[3].setSwitchHits(0, keys, new int[]{hits, 0, 4});
+    lines[3].setDefaultHits(0, keys, 1);
+    lines[3].getSwitchData(0).setId(3, -1);
+    lines[3].getSwitchData(0).setId(4, 1);
+    lines[3].addJump(0);
+    lines[3].setFalseHits(0, hits);
+    lines[3].setTestName("test1");
+    lines[3].setTestName("test2");
+
+    lines[5] = new LineData(5, "bar()V");
+
+    for (LineData line : lines) {
+      if (line == null) continue;
+      line.fillArrays();
+      classData.registerMethodSignature(line);
+    }
+    classData.setLines(lines);
+    return classData;
+  }
+
+  private static String describe(ClassData classData) {
+    final StringBuilder builder = new StringBuilder();
+    final Object[] lines = classData.getLines();
+    builder.append(lines.length).append('\n');
+    for (Object o : lines) {
+      if (o == null) continue;
+      final LineData line = (LineData) o;
+      builder.append(line.getLineNumber()).append(' ').append(line.getMethodSignature())
+          .append(" hits=").append(line.getHits()).append(" id=").append(line.getId())
+          .append(" status=").append(line.getStatus()).append(" unique=").append(line.isCoveredByOneTest());
+      final BranchData branchData = line.getBranchData();
+      if (branchData != null) {
+        builder.append(" branches=").append(branchData.getCoveredBranches()).append('/').append(branchData.getTotalBranches());
+      }
+      for (int i = 0; i < line.jumpsCount(); i++) {
+        final JumpData jump = line.getJumpData(i);
+        builder.append(" j").append(jump.getTrueHits()).append('/').append(jump.getFalseHits())
+            .append('#').append(jump.getId(true)).append('/').append(jump.getId(false));
+      }
+      for (int i = 0; i < line.switchesCount(); i++) {
+        final SwitchData aSwitch = line.getSwitchData(i);
+        builder.append(" s").append(Arrays.toString(aSwitch.getKeys())).append(Arrays.toString(aSwitch.getHits()))
+            .append('/').append(aSwitch.getDefaultHits()).append('#').append(aSwitch.getId(-1));
+        for (int key = 0; key < aSwitch.getKeys().length; key++) {
+          builder.append(',').append(aSwitch.getId(key));
+        }
+      }
+      builder.append('\n');
+    }
+    return builder.toString();
+  }
+
+  private static byte[] save(ClassData classData) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream os = new DataOutputStream(bytes);
+    for (Object line : classData.getLines()) {
+      if (line != null) ((LineData) line).save(os);
+    }
+    os.close();
+    return bytes.toByteArray();
+  }
+}
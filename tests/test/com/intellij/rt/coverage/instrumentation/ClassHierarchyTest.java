@@ -0,0 +1,87 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+public class ClassHierarchyTest extends TestCase {
+  private final ClassLoader myLoader = getClass().getClassLoader();
+
+  public void testCommonSuperClass() {
+    final ClassHierarchy hierarchy = new ClassHierarchy();
+    final ClassWriterImpl cw = new ClassWriterImpl(0, myLoader, hierarchy);
+    assertEquals("java/util/AbstractList", cw.computeCommonSuperClass("java/util/ArrayList", "java/util/LinkedList"));
+    assertEquals("java/util/List", cw.computeCommonSuperClass("java/util/List", "java/util/ArrayList"));
+    assertEquals("java/lang/Object", cw.computeCommonSuperClass("java/util/Map", "java/util/ArrayList"));
+    assertEquals("java/lang/Object", cw.computeCommonSuperClass("java/lang/String", "java/lang/Integer"));
+  }
+
+  public void testResultsAreMemoized() {
+    final ClassHierarchy hierarchy = new ClassHierarchy();
+    final ClassHierarchy.LoaderHierarchy loaderHierarchy = hierarchy.getLoaderHierarchy(myLoader);
+    final ClassWriterImpl cw = new ClassWriterImpl(0, myLoader, hierarchy);
+    cw.computeCommonSuperClass("java/util/ArrayList", "java/util/LinkedList");
+    assertEquals("java/util/AbstractList", loaderHierarchy.getCommonSuperClass("java/util/ArrayList", "java/util/LinkedList"));
+    final int classes = loaderHierarchy.getClassesCount();
+    assertTrue(classes > 0);
+
+    // another writer for the same loader shares the hierarchy
+    new ClassWriterImpl(0, myLoader, hierarchy).computeCommonSuperClass("java/util/ArrayList", "java/util/LinkedList");
+    assertEquals(classes, loaderHierarchy.getClassesCount());
+    assertSame(loaderHierarchy, hierarchy.getLoaderHierarchy(myLoader));
+  }
+
+  public void testMissingClass() {
+    final ClassWriterImpl cw = new ClassWriterImpl(0, myLoader, new ClassHierarchy());
+    try {
+      cw.computeCommonSuperClass("java/util/ArrayList", "a/Missing");
+      fail();
+    } catch (ClassWriterImpl.FrameComputationClassNotFoundException ignored) {
+    }
+  }
+
+  public void testConcurrentComputation() throws Exception {
+    final ClassHierarchy hierarchy = new ClassHierarchy();
+    final String[] types = {"java/util/ArrayList", "java/util/LinkedList", "java/util/Vector", "java/util/Stack",
+        "java/util/concurrent/CopyOnWriteArrayList", "java/util/AbstractList", "java/util/HashSet"};
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      final List<Future<String>> futures = new ArrayList<Future<String>>();
+      for (int i = 0; i < 200; i++) {
+        final String type1 = types[i % types.length];
+        final String type2 = types[(i / types.length) % types.length];
+        futures.add(executor.submit(new Callable<String>() {
+          public String call() {
+            return new ClassWriterImpl(0, myLoader, hierarchy).computeCommonSuperClass(type1, type2);
+          }
+        }));
+      }
+      final ClassWriterImpl serial = new ClassWriterImpl(0, myLoader, new ClassHierarchy());
+      for (int i = 0; i < futures.size(); i++) {
+        final String type1 = types[i % types.length];
+        final String type2 = types[(i / types.length) % types.length];
+        assertEquals(serial.computeCommonSuperClass(type1, type2), futures.get(i).get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
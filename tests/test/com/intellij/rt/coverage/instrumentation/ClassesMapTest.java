@@ -0,0 +1,68 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.data.ProjectData;
+import junit.framework.TestCase;
+
+public class ClassesMapTest extends TestCase {
+  private static final int CLASSES = 20000;
+
+  public void testLookupsAfterResize() {
+    final ProjectData projectData = new ProjectData();
+    final String[] names = new String[CLASSES];
+    for (int i = 0; i < CLASSES; i++) {
+      names[i] = "a.Class" + i;
+      projectData.getOrCreateClassData(names[i]);
+    }
+
+    final ClassesMap map = new ClassesMap(true);
+    for (String name : names) {
+      assertSame(projectData.getClassData(name), map.get(name, projectData));
+    }
+    assertEquals(CLASSES, map.getMisses());
+    assertEquals(CLASSES, map.size());
+
+    for (String name : names) {
+      assertSame(projectData.getClassData(name), map.get(name, projectData));
+    }
+    assertEquals(CLASSES, map.getHits());
+    assertEquals(CLASSES, map.getMisses());
+  }
+
+  public void testEqualNameDoesNotGrowMap() {
+    final ProjectData projectData = new ProjectData();
+    projectData.getOrCreateClassData("a.B");
+
+    final ClassesMap map = new ClassesMap(false);
+    for (int i = 0; i < 10; i++) {
+      assertNotNull(map.get(new String("a.B"), projectData));
+    }
+    assertEquals(1, map.size());
+    assertEquals(0, map.getHits());
+  }
+
+  public void testMissingClassIsNotCached() {
+    final ProjectData projectData = new ProjectData();
+    final ClassesMap map = new ClassesMap(false);
+    final String name = "a.B";
+    assertNull(map.get(name, projectData));
+
+    projectData.getOrCreateClassData(name);
+    assertSame(projectData.getClassData(name), map.get(name, projectData));
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.LineData;
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.instrumentation.testTracking.TestTrackingConcurrentMode;
+import com.intellij.rt.coverage.util.TestTrackingCallback;
+import com.intellij.rt.coverage.util.TestTrackingIOUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class ConcurrentTestTrackingTest extends TestCase {
+  private File myDir;
+  private File myDataFile;
+  private ProjectData myProjectData;
+  private ClassData myClassData;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = File.createTempFile("tracking", "test");
+    myDir.delete();
+    myDir.mkdirs();
+    myDataFile = new File(myDir, "coverage.ic");
+    myProjectData = new ProjectData(new TestTrackingConcurrentMode().createTestTrackingCallback(myDataFile));
+    myClassData = myProjectData.getOrCreateClassData("A");
+    final LineData[] lines = new LineData[10];
+    for (int i = 1; i < lines.length; i++) {
+      lines[i] = new LineData(i, "foo()V");
+    }
+    myClassData.setLines(lines);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    delete(myDir);
+    super.tearDown();
+  }
+
+  public void testParallelTests() throws Exception {
+    final CountDownLatch started = new CountDownLatch(2);
+    final CountDownLatch traced = new CountDownLatch(2);
+    final Thread first = runTest("test1", started, traced, 1, 2, 3);
+    final Thread second = runTest("test2", started, traced, 3, 4);
+    first.join();
+    second.join();
+
+    final Map<String, Map<String, int[]>> traces = loadTraces();
+    assertEquals("[1, 2, 3]", Arrays.toString(traces.get("test1").get("A")));
+    assertEquals("[3, 4]", Arrays.toString(traces.get("test2").get("A")));
+    assertTrue(myClassData.getLineData(1).isCoveredByOneTest());
+    assertTrue(myClassData.getLineData(4).isCoveredByOneTest());
+    assertFalse(myClassData.getLineData(3).isCoveredByOneTest());
+  }
+
+  public void testChildThreadAndExecutor() throws Exception {
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      // create the executor thread before the test, so that it does not inherit the test
+      executor.submit(new Runnable() {
+        public void run() {
+        }
+      }).get();
+
+      myProjectData.testStarted("test1");
+      myProjectData.testStarted("test2");
+      final Thread child = new Thread(new Runnable() {
+        public void run() {
+          trace(1);
+        }
+      });
+      child.start();
+      child.join();
+      executor.submit(myProjectData.bindToCurrentTest(new Runnable() {
+        public void run() {
+          trace(2);
+        }
+      })).get();
+      // several tests are running, the unbound task cannot be attributed
+      executor.submit(new Runnable() {
+        public void run() {
+          trace(5);
+        }
+      }).get();
+      myProjectData.testEnded("test2");
+      myProjectData.testEnded("test1");
+    } finally {
+      executor.shutdown();
+    }
+
+    final Map<String, Map<String, int[]>> traces = loadTraces();
+    assertEquals("[1, 2]", Arrays.toString(traces.get("test2").get("A")));
+    assertTrue(traces.get("test1").isEmpty());
+    assertFalse(myClassData.getLineData(5).isCoveredByOneTest());
+  }
+
+  public void testUnboundThreadWithSingleTest() throws Exception {
+    myProjectData.testStarted("test1");
+    final Thread thread = new Thread(new Runnable() {
+      public void run() {
+        trace(7);
+      }
+    });
+    // the thread is unbound as the test has ended
+    myProjectData.testEnded("test1");
+    myProjectData.testStarted("test2");
+    thread.start();
+    thread.join();
+    myProjectData.testEnded("test2");
+
+    final Map<String, Map<String, int[]>> traces = loadTraces();
+    assertTrue(traces.get("test1").isEmpty());
+    assertEquals("[7]", Arrays.toString(traces.get("test2").get("A")));
+  }
+
+  private Thread runTest(final String name, final CountDownLatch started, final CountDownLatch traced, final int... lines) {
+    final Thread thread = new Thread(new Runnable() {
+      public void run() {
+        try {
+          myProjectData.testStarted(name);
+          started.countDown();
+          started.await();
+          for (int line : lines) {
+            trace(line);
+          }
+          traced.countDown();
+          traced.await();
+          myProjectData.testEnded(name);
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    thread.start();
+    return thread;
+  }
+
+  private void trace(int line) {
+    myProjectData.myTestTrackingCallback.traceLineByTest(myClassData, line);
+  }
+
+  private Map<String, Map<String, int[]>> loadTraces() throws IOException {
+    myProjectData.myTestTrackingCallback.flush();
+    return TestTrackingIOUtil.loadTestTrackingData(TestTrackingCallback.createTracesDir(myDataFile));
+  }
+
+  private static void delete(File file) {
+    final File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.TransformedClassLoader;
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.instrumentation.data.ProjectContext;
+import junit.framework.TestCase;
+import org.jetbrains.coverage.org.objectweb.asm.*;
+
+import java.io.IOException;
+
+public class CoverageMarkersTest extends TestCase {
+  public void testPlainClass() throws IOException {
+    assertEquals(Boolean.FALSE, CoverageMarkers.hasCoverage(readClass(Sample.class)));
+  }
+
+  public void testInstrumentedClass() throws IOException {
+    final String name = Sample.class.getName();
+    final CoverageTransformer transformer = new CoverageTransformer(new ProjectData(), new ProjectContext(new InstrumentationOptions.Builder().build()));
+    final ClassLoader loader = getClass().getClassLoader();
+    final byte[] instrumented = transformer.instrument(readClass(Sample.class), name, loader, true);
+    assertNotNull(instrumented);
+    assertEquals(Boolean.TRUE, CoverageMarkers.hasCoverage(instrumented));
+  }
+
+  public void testRuntimeCallIsAmbiguous() throws IOException {
+    assertNull(CoverageMarkers.hasCoverage(readClass(RuntimeUser.class)));
+  }
+
+  public void testHitsConstant() {
+    final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    cw.visit(Opcodes.V11, Opcodes.ACC_PUBLIC, "Condy", null, "java/lang/Object", null);
+    final MethodVisitor mv = cw.visitMethod(Opcodes.ACC_STATIC, "m", "()V", null, null);
+    mv.visitCode();
+    final Handle bsm = new Handle(Opcodes.H_INVOKESTATIC, CoverageMarkers.CONDY_UTILS_OWNER, "getHits",
+        "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;Ljava/lang/String;)[I", false);
+    mv.visitLdcInsn(new ConstantDynamic(CoverageMarkers.HITS_FIELD_NAME, "[I", bsm, "Condy"));
+    mv.visitInsn(Opcodes.POP);
+    mv.visitInsn(Opcodes.RETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+    cw.visitEnd();
+    assertEquals(Boolean.TRUE, CoverageMarkers.hasCoverage(cw.toByteArray()));
+  }
+
+  public void testHitsField() {
+    final ClassWriter cw = new ClassWriter(0);
+    cw.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, "Field", null, "java/lang/Object", new String[]{"java/io/Serializable"});
+    cw.visitField(Opcodes.ACC_PRIVATE, "other", "J", null, 42L).visitEnd();
+    cw.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC, CoverageMarkers.HITS_FIELD_NAME, "[I", null, null).visitEnd();
+    cw.visitEnd();
+    assertEquals(Boolean.TRUE, CoverageMarkers.hasCoverage(cw.toByteArray()));
+  }
+
+  public void testMalformedClass() {
+    assertNull(CoverageMarkers.hasCoverage(new byte[]{(byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE, 0, 0, 0, 52, 0, 5, 1}));
+  }
+
+  private static byte[] readClass(Class<?> aClass) throws IOException {
+    final String resource = aClass.getName().replace('.', '/') + ".class";
+    return TransformedClassLoader.readBytes(aClass.getClassLoader().getResourceAsStream(resource));
+  }
+
+  public static class Sample {
+    public static int foo(int x) {
+      return x > 0 ? 1 : 2;
+    }
+  }
+
+  public static class RuntimeUser {
+    public static int[] hits() {
+      return CoverageRuntime.getHits("a.B");
+    }
+  }
+}
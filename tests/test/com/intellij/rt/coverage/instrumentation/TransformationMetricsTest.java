@@ -0,0 +1,138 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.TransformedClassLoader;
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.instrumentation.data.ProjectContext;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+public class TransformationMetricsTest extends TestCase {
+  public void testHistogramPercentiles() {
+    final TransformationMetrics.Histogram histogram = new TransformationMetrics.Histogram();
+    assertEquals(0, histogram.getPercentile(0.5));
+    for (int i = 1; i <= 10000; i++) {
+      histogram.add(i * 1000L);
+    }
+    assertEquals(10000, histogram.getCount());
+    assertEquals(10000 * 1000L, histogram.getMax());
+    assertEquals(5000500L, histogram.getMean());
+    assertApproximately(5000 * 1000L, histogram.getPercentile(0.5));
+    assertApproximately(9900 * 1000L, histogram.getPercentile(0.99));
+    assertEquals(10000 * 1000L, histogram.getPercentile(1));
+  }
+
+  public void testHistogramBuckets() {
+    long previous = -1;
+    for (int bucket = 0; bucket <= TransformationMetrics.Histogram.getBucket(Long.MAX_VALUE); bucket++) {
+      final long upperBound = TransformationMetrics.Histogram.getUpperBound(bucket);
+      assertEquals(bucket, TransformationMetrics.Histogram.getBucket(previous + 1));
+      assertEquals(bucket, TransformationMetrics.Histogram.getBucket(upperBound));
+      previous = upperBound;
+    }
+    assertEquals(Long.MAX_VALUE, previous);
+  }
+
+  public void testConcurrentRecording() throws InterruptedException {
+    final TransformationMetrics.Histogram histogram = new TransformationMetrics.Histogram();
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+    for (int i = 0; i < 8; i++) {
+      executor.execute(new Runnable() {
+        public void run() {
+          for (int j = 0; j < 10000; j++) {
+            histogram.add(j);
+          }
+        }
+      });
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+    assertEquals(80000, histogram.getCount());
+    assertEquals(8L * 9999 * 10000 / 2, histogram.getTotal());
+    assertEquals(9999, histogram.getMax());
+  }
+
+  public void testTransformation() throws IOException {
+    final InstrumentationOptions options = new InstrumentationOptions.Builder()
+        .setBranchCoverage(true)
+        .setExcludePatterns(Collections.singletonList(Pattern.compile(".*Excluded")))
+        .build();
+    final CoverageTransformer transformer = new CoverageTransformer(new ProjectData(), new ProjectContext(options));
+    final TransformationMetrics metrics = new TransformationMetrics();
+    transformer.setMetrics(metrics);
+    final ClassLoader loader = getClass().getClassLoader();
+
+    final byte[] bytes = readClass(Sample.class);
+    // classes of the coverage packages are never instrumented
+    final byte[] instrumented = transformer.transform(loader, "a/Sample", null, null, bytes);
+    assertNotNull(instrumented);
+    assertNull(transformer.transform(loader, "a/Excluded", null, null, readClass(Excluded.class)));
+    assertNull(transformer.transform(loader, "java/lang/Object", null, null, new byte[0]));
+    assertNull(transformer.transform(loader, "a/Broken", null, null, new byte[]{1, 2, 3}));
+
+    assertEquals(4, metrics.getTransformedCount());
+    assertEquals(1, metrics.getInstrumentedCount());
+    assertEquals(1, metrics.getExcludedCount());
+    assertEquals(1, metrics.getFailedCount());
+    assertEquals(1, metrics.getSkippedCount());
+    assertEquals(bytes.length, metrics.getBytesIn());
+    assertEquals(instrumented.length, metrics.getBytesOut());
+    assertEquals(Collections.singletonList("a.Sample"), metrics.getSlowestClasses());
+
+    for (int phase = TransformationMetrics.PARSE; phase <= TransformationMetrics.TOTAL; phase++) {
+      assertEquals(1, metrics.getPhase(phase).getCount());
+    }
+    assertTrue(metrics.getPhase(TransformationMetrics.FRAMES).getTotal() > 0);
+
+    final StringWriter json = new StringWriter();
+    metrics.writeJson(json);
+    assertTrue(json.toString(), json.toString().startsWith("{\"classes\":{\"transformed\":4,\"instrumented\":1,\"skipped\":1,\"excluded\":1,\"failed\":1,"));
+    assertTrue(json.toString(), json.toString().contains("\"slowestClasses\":[{\"name\":\"a.Sample\",\"timeNs\":"));
+
+    final StringWriter csv = new StringWriter();
+    metrics.writeCsv(csv);
+    assertTrue(csv.toString(), csv.toString().startsWith("key,value\nclasses.transformed,4\n"));
+    assertTrue(csv.toString(), csv.toString().contains("\nphases.frames.count,1\n"));
+    assertTrue(csv.toString(), csv.toString().contains("\nslowestClasses.1.name,a.Sample\n"));
+  }
+
+  private static void assertApproximately(long expected, long actual) {
+    assertTrue(expected + " ~ " + actual, Math.abs(expected - actual) <= expected / 8);
+  }
+
+  private static byte[] readClass(Class<?> aClass) throws IOException {
+    final String resource = aClass.getName().replace('.', '/') + ".class";
+    return TransformedClassLoader.readBytes(aClass.getClassLoader().getResourceAsStream(resource));
+  }
+
+  public static class Sample {
+    public static Object foo(boolean flag) {
+      return flag ? new StringBuilder() : "";
+    }
+  }
+
+  public static class Excluded {
+  }
+}
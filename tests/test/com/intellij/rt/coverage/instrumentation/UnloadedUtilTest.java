@@ -0,0 +1,130 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.LineData;
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.instrumentation.data.ProjectContext;
+import com.intellij.rt.coverage.util.OptionsUtil;
+import com.intellij.rt.coverage.util.classFinder.ClassFilter;
+import com.intellij.rt.coverage.util.classFinder.OutputClassFinder;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.regex.Pattern;
+
+public class UnloadedUtilTest extends TestCase {
+  private int myThreads;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myThreads = OptionsUtil.UNLOADED_THREADS;
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    OptionsUtil.UNLOADED_THREADS = myThreads;
+    super.tearDown();
+  }
+
+  public void testConcurrentAnalysisIsTheSameAsSerial() throws Exception {
+    OptionsUtil.UNLOADED_THREADS = 1;
+    final ProjectData serial = analyse();
+    OptionsUtil.UNLOADED_THREADS = 4;
+    final ProjectData concurrent = analyse();
+    assertSameAnalysis(serial, concurrent);
+  }
+
+  public void testCachedAnalysisIsTheSame() throws Exception {
+    final File cacheFile = File.createTempFile("unloaded", ".cache");
+    try {
+      assertTrue(cacheFile.delete());
+      OptionsUtil.UNLOADED_THREADS = 1;
+      final ProjectData expected = analyse();
+
+      final UnloadedCache cache1 = new UnloadedCache(cacheFile, createContext());
+      final ProjectData firstRun = analyse(cache1);
+      assertEquals(0, cache1.getHits());
+      cache1.save();
+      assertSameAnalysis(expected, firstRun);
+
+      final UnloadedCache cache2 = new UnloadedCache(cacheFile, createContext());
+      final ProjectData serialRun = analyse(cache2);
+      assertEquals(cache1.getMisses(), cache2.getHits());
+      assertEquals(0, cache2.getMisses());
+      assertSameAnalysis(expected, serialRun);
+
+      OptionsUtil.UNLOADED_THREADS = 4;
+      final UnloadedCache cache3 = new UnloadedCache(cacheFile, createContext());
+      final ProjectData concurrentRun = analyse(cache3);
+      assertEquals(cache1.getMisses(), cache3.getHits());
+      assertSameAnalysis(expected, concurrentRun);
+    } finally {
+      cacheFile.delete();
+    }
+  }
+
+  private static void assertSameAnalysis(ProjectData expectedData, ProjectData actualData) {
+    assertFalse(expectedData.getClasses().isEmpty());
+    assertEquals(expectedData.getClasses().keySet(), actualData.getClasses().keySet());
+    for (ClassData expected : expectedData.getClassesCollection()) {
+      final ClassData actual = actualData.getClassData(expected.getName());
+      assertEquals(expected.getName(), expected.getSource(), actual.getSource());
+      final Object[] expectedLines = expected.getLines();
+      final Object[] actualLines = actual.getLines();
+      assertEquals(expected.getName(), expectedLines.length, actualLines.length);
+      for (int i = 0; i < expectedLines.length; i++) {
+        final LineData expectedLine = (LineData) expectedLines[i];
+        final LineData actualLine = (LineData) actualLines[i];
+        if (expectedLine == null) {
+          assertNull(actualLine);
+          continue;
+        }
+        assertEquals(expectedLine.getMethodSignature(), actualLine.getMethodSignature());
+        assertEquals(expectedLine.jumpsCount(), actualLine.jumpsCount());
+        assertEquals(expectedLine.switchesCount(), actualLine.switchesCount());
+      }
+    }
+  }
+
+  private ProjectData analyse() throws Exception {
+    return analyse(null);
+  }
+
+  private ProjectData analyse(UnloadedCache cache) throws Exception {
+    final ProjectData projectData = new ProjectData();
+    final ProjectContext context = createContext();
+    UnloadedUtil.appendUnloaded(projectData, context, false, cache);
+    context.finalizeCoverage(projectData);
+    return projectData;
+  }
+
+  private ProjectContext createContext() throws Exception {
+    final File root = new File(getClass().getProtectionDomain().getCodeSource().getLocation().toURI());
+    final ClassFilter filter = new ClassFilter.PatternFilter(
+        Collections.singletonList(Pattern.compile("com\\.intellij\\.rt\\.coverage\\..*")),
+        Collections.<Pattern>emptyList());
+    final InstrumentationOptions options = new InstrumentationOptions.Builder()
+        .setBranchCoverage(true)
+        .setSaveSource(true)
+        .build();
+    return new ProjectContext(options, new OutputClassFinder(filter, Collections.singletonList(root)));
+  }
+}
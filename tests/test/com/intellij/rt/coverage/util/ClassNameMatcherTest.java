@@ -0,0 +1,118 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.util;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+public class ClassNameMatcherTest extends TestCase {
+  private static final String[] PATTERNS = {
+      "com\\.product\\.AAA",
+      "com\\.product\\.AAA(\\$.*)?",
+      "com\\.product\\..*",
+      "com\\.product\\..*(\\$.*)?",
+      "com.product.AAA",
+      "com.product.*",
+      ".*AAA",
+      ".*AAA(\\$.*)?",
+      ".*AAA\\$1",
+      ".*\\$.*",
+      "com\\..*\\.impl\\..*",
+      "com\\..*\\.impl\\..*Test(\\$.*)?",
+      "com\\.product\\.A.A",
+      "com\\.product\\.A+",
+      "com\\.product\\.[AB]AA",
+      "com\\.product\\.AAA|org\\..*",
+      "com\\.product\\.AAAB?",
+      "com\\.product\\.AAAB{0,2}",
+      "com\\.product\\.(AAA|BAA)\\$\\d+",
+      ".*",
+      "",
+  };
+
+  private static final String[] NAMES = {
+      "com.product.AAA",
+      "com.product.AAA$1",
+      "com.product.AAA$QQQ$1",
+      "com.product.AAAB",
+      "com.product.ABA",
+      "com.product.BAA",
+      "com.product.QQQ$AAA",
+      "com.product.QQQ$$$AAB$AAA",
+      "com.product.QQQ",
+      "com.product",
+      "comXproductXAAA",
+      "com.product.impl.FooTest",
+      "com.product.impl.FooTest$Inner",
+      "com.impl.Foo",
+      "com..impl.Foo",
+      "org.Foo",
+      "Foo",
+      "",
+      "com.product.AAA\n",
+  };
+
+  public void testSamePatternsAsRegexps() {
+    for (String pattern : PATTERNS) {
+      assertSameAsRegexps(Collections.singletonList(Pattern.compile(pattern)));
+    }
+    final List<Pattern> all = new ArrayList<Pattern>();
+    for (String pattern : PATTERNS) {
+      all.add(Pattern.compile(pattern));
+    }
+    assertSameAsRegexps(all.subList(0, 12));
+    assertSameAsRegexps(all);
+  }
+
+  public void testGlobPatternsAreNotRegexps() {
+    final ClassNameMatcher matcher = ClassNameMatcher.create(Arrays.asList(
+        Pattern.compile("com\\.product\\.AAA(\\$.*)?"),
+        Pattern.compile("com.product.*"),
+        Pattern.compile(".*AAA(\\$.*)?"),
+        Pattern.compile("com\\.product\\.[AB]AA")));
+    assertEquals(2, matcher.getGlobsCount());
+    assertEquals(1, matcher.getRegexpsCount());
+  }
+
+  public void testLiteralPrefix() {
+    assertEquals("com.product.", ClassNameMatcher.getLiteralPrefix("com\\.product\\.[AB]AA"));
+    assertEquals("com.product.AA", ClassNameMatcher.getLiteralPrefix("com\\.product\\.AAA?"));
+    assertEquals("com.product.AAA", ClassNameMatcher.getLiteralPrefix("com\\.product\\.AAA+"));
+    assertEquals("", ClassNameMatcher.getLiteralPrefix("com\\.product|org\\.product"));
+    assertEquals("", ClassNameMatcher.getLiteralPrefix("\\w+"));
+  }
+
+  public void testEmpty() {
+    assertTrue(ClassNameMatcher.create(null).isEmpty());
+    assertFalse(ClassNameMatcher.create(null).matches("Foo"));
+    assertFalse(ClassNameMatcher.create(Collections.<Pattern>emptyList()).matches(""));
+  }
+
+  private static void assertSameAsRegexps(List<Pattern> patterns) {
+    final ClassNameMatcher matcher = ClassNameMatcher.create(patterns);
+    for (int i = 0; i < 2; i++) {
+      for (String name : NAMES) {
+        assertEquals(patterns + " " + name, ClassNameUtil.matchesPatterns(name, patterns), matcher.matches(name));
+      }
+    }
+  }
+}
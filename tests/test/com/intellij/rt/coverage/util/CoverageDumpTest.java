@@ -0,0 +1,97 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.util;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.LineData;
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.instrumentation.InstrumentationOptions;
+import com.intellij.rt.coverage.instrumentation.data.ProjectContext;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+public class CoverageDumpTest extends TestCase {
+  private File myDataFile;
+  private File myDumpFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDataFile = File.createTempFile("coverage", ".ic");
+    myDumpFile = new File(myDataFile.getPath() + ".dump");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myDataFile.delete();
+    myDumpFile.delete();
+    super.tearDown();
+  }
+
+  public void testRepeatedDumpsDoNotDoubleCount() throws IOException {
+    final ProjectData projectData = new ProjectData();
+    final ClassData classData = createClass(projectData, "a.B");
+    final int[] hits = (int[]) classData.getHitsMask();
+    final ProjectContext context = createContext();
+
+    hits[0] = 5;
+    CoverageReport.dump(projectData, context, myDumpFile);
+    hits[1] = 3;
+    CoverageReport.dump(projectData, context, myDumpFile);
+
+    final ClassData dumped = ProjectDataLoader.load(myDumpFile).getClassData("a.B");
+    assertEquals(5, dumped.getLineData(1).getHits());
+    assertEquals(3, dumped.getLineData(2).getHits());
+
+    // runtime data must stay untouched
+    assertEquals(5, hits[0]);
+    assertEquals(0, classData.getLineData(1).getHits());
+    assertFalse(new File(myDumpFile.getPath() + ".tmp").exists());
+  }
+
+  public void testDumpDoesNotAffectFinalReport() throws IOException {
+    final ProjectData projectData = new ProjectData();
+    final ClassData classData = createClass(projectData, "a.B");
+    final ProjectContext context = createContext();
+
+    ((int[]) classData.getHitsMask())[0] = 2;
+    CoverageReport.dump(projectData, context, myDumpFile);
+    CoverageReport.dump(projectData, context, myDumpFile);
+    CoverageReport.save(projectData, context);
+
+    final ClassData saved = ProjectDataLoader.load(myDataFile).getClassData("a.B");
+    assertEquals(2, saved.getLineData(1).getHits());
+    assertEquals(0, saved.getLineData(2).getHits());
+  }
+
+  private ProjectContext createContext() {
+    return new ProjectContext(new InstrumentationOptions.Builder().setDataFile(myDataFile).build());
+  }
+
+  private static ClassData createClass(ProjectData projectData, String name) {
+    final ClassData classData = projectData.getOrCreateClassData(name);
+    final LineData line1 = new LineData(1, "foo()V");
+    line1.setId(0);
+    final LineData line2 = new LineData(2, "foo()V");
+    line2.setId(1);
+    classData.setLines(new LineData[]{null, line1, line2});
+    classData.createMask(2, true);
+    return classData;
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.util;
+
+import com.intellij.rt.coverage.data.*;
+import com.intellij.rt.coverage.instrumentation.InstrumentationOptions;
+import com.intellij.rt.coverage.instrumentation.data.ProjectContext;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class MappedReportTest extends TestCase {
+  private File myDataFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDataFile = File.createTempFile("coverage", ".ic");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myDataFile.delete();
+    super.tearDown();
+  }
+
+  public void testLoadClass() throws Exception {
+    saveReport();
+    final ProjectData expected = ProjectDataLoader.load(myDataFile);
+    final MappedReport report = MappedReport.open(myDataFile);
+
+    assertEquals(3, report.getClassCount());
+    assertTrue(report.containsClass("a.B"));
+    assertFalse(report.containsClass("a.X"));
+    assertNull(report.loadClass("a.X"));
+    for (String className : new String[]{"a.B", "a.C", "a.D"}) {
+      final ClassData classData = report.loadClass(className);
+      assertEquals(className, classData.getName());
+      assertEquals(dump(expected.getClassData(className)), dump(classData));
+      assertEquals(expected.getClassData(className).isFullyAnalysed(), classData.isFullyAnalysed());
+    }
+    assertFalse(report.loadClass("a.D").isFullyAnalysed());
+    // branches of uncovered lines are stored in a separate section
+    assertEquals(2, report.loadClass("a.B").getLineData(4).jumpsCount());
+  }
+
+  public void testLoad() throws Exception {
+    saveReport();
+    final ProjectData expected = ProjectDataLoader.load(myDataFile);
+    final ProjectData actual = MappedReport.open(myDataFile).load();
+
+    assertEquals(expected.getClasses().keySet(), actual.getClasses().keySet());
+    for (ClassData classData : expected.getClassesCollection()) {
+      assertEquals(dump(classData), dump(actual.getClassData(classData.getName())));
+    }
+  }
+
+  public void testReportWithoutIndex() throws Exception {
+    saveReport();
+    final ProjectData expected = ProjectDataLoader.load(myDataFile);
+    // break the index trailer, so that the report is scanned as the reports written before the index was introduced
+    final RandomAccessFile file = new RandomAccessFile(myDataFile, "rw");
+    try {
+      file.seek(file.length() - 4);
+      file.writeInt(0);
+    } finally {
+      file.close();
+    }
+
+    final MappedReport report = MappedReport.open(myDataFile);
+    for (String className : new String[]{"a.B", "a.C", "a.D"}) {
+      final ClassData classData = report.loadClass(className);
+      assertEquals(dump(expected.getClassData(className)), dump(classData));
+      assertEquals(expected.getClassData(className).isFullyAnalysed(), classData.isFullyAnalysed());
+    }
+    assertEquals(2, report.loadClass("a.B").getLineData(4).jumpsCount());
+  }
+
+  public void testEmptyFile() throws Exception {
+    final MappedReport report = MappedReport.open(myDataFile);
+    assertEquals(0, report.getClassCount());
+    assertTrue(report.load().getClasses().isEmpty());
+  }
+
+  private void saveReport() {
+    final ProjectData projectData = new ProjectData();
+
+    final ClassData b = projectData.getOrCreateClassData("a.B");
+    final LineData covered = new LineData(1, "foo(La/C;)V");
+    covered.setHits(3);
+    covered.addJump(0);
+    covered.setTrueHits(0, 2);
+    covered.addSwitch(0, new int[]{1, 5});
+    covered.setSwitchHits(0, new int[]{1, 5}, new int[]{0, 1});
+    covered.fillArrays();
+    final LineData uncovered = new LineData(4, "foo(La/C;)V");
+    uncovered.addJump(0);
+    uncovered.addJump(1);
+    uncovered.addSwitch(0, new int[]{1, 2, 3});
+    uncovered.fillArrays();
+    final LineData other = new LineData(6, "bar()V");
+    other.setHits(1);
+    b.setLines(new LineData[]{null, covered, null, null, uncovered, null, other});
+
+    final ClassData c = projectData.getOrCreateClassData("a.C");
+    c.setLines(new LineData[]{null, new LineData(1, "<init>()V")});
+
+    final ClassData d = projectData.getOrCreateClassData("a.D");
+    final LineData mapped = new LineData(2, "baz()V");
+    mapped.setHits(1);
+    d.setLines(new LineData[]{null, null, mapped});
+    d.setFullyAnalysed(false);
+
+    final InstrumentationOptions options = new InstrumentationOptions.Builder().setDataFile(myDataFile).build();
+    CoverageReport.save(projectData, new ProjectContext(options));
+  }
+
+  private static String dump(ClassData classData) {
+    final List<String> result = new ArrayList<String>();
+    for (Object o : classData.getLines()) {
+      final LineData line = (LineData) o;
+      if (line == null) continue;
+      final StringBuilder sb = new StringBuilder();
+      sb.append(line.getLineNumber()).append(' ').append(line.getMethodSignature()).append(" hits=").append(line.getHits());
+      final JumpData[] jumps = line.getJumps();
+      if (jumps != null) {
+        for (JumpData jump : jumps) {
+          sb.append(" jump(").append(jump.getTrueHits()).append(',').append(jump.getFalseHits()).append(')');
+        }
+      }
+      final SwitchData[] switches = line.getSwitches();
+      if (switches != null) {
+        for (SwitchData switchData : switches) {
+          sb.append(" switch(").append(switchData.getDefaultHits());
+          for (int hit : switchData.getHits()) {
+            sb.append(',').append(hit);
+          }
+          sb.append(')');
+        }
+      }
+      result.add(sb.toString());
+    }
+    Collections.sort(result);
+    return result.toString();
+  }
+}
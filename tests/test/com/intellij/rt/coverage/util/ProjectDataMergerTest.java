@@ -0,0 +1,130 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.util;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.LineData;
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.instrumentation.InstrumentationOptions;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class ProjectDataMergerTest extends TestCase {
+  private static final int CLASSES = 2000;
+
+  private final List<File> myFiles = new ArrayList<File>();
+  private ProjectDataMerger myMerger;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myMerger = new ProjectDataMerger(4);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myMerger.shutdown();
+    for (File file : myFiles) {
+      file.delete();
+    }
+    super.tearDown();
+  }
+
+  public void testMergeIsEquivalentToSerialMerge() {
+    final ProjectData expected = createProjectData(CLASSES, 1);
+    expected.merge(createProjectData(CLASSES * 2, 2));
+
+    final ProjectData actual = createProjectData(CLASSES, 1);
+    myMerger.merge(actual, createProjectData(CLASSES * 2, 2));
+
+    assertEqualHits(expected, actual);
+  }
+
+  public void testMergeHitsSkipsMissingClasses() {
+    final ProjectData target = createProjectData(CLASSES, 1);
+    myMerger.mergeHits(target, createProjectData(CLASSES * 2, 2));
+
+    assertEquals(CLASSES, target.getClassesNumber());
+    final ProjectData expected = createProjectData(CLASSES, 1);
+    expected.merge(createProjectData(CLASSES, 2));
+    assertEqualHits(expected, target);
+  }
+
+  public void testLoadAndMerge() throws Exception {
+    final List<File> reports = new ArrayList<File>();
+    final ProjectData expected = new ProjectData();
+    for (int i = 0; i < 6; i++) {
+      final File file = File.createTempFile("coverage", ".ic");
+      myFiles.add(file);
+      reports.add(file);
+      CoverageReport.save(createProjectData(CLASSES + 100 * i, i), new InstrumentationOptions.Builder().setDataFile(file).build());
+      expected.merge(ProjectDataLoader.load(file));
+    }
+
+    final int[] processed = new int[1];
+    final ProjectData actual = new ProjectData();
+    myMerger.loadAndMerge(actual, reports, new ProjectDataMerger.ReportProcessor() {
+      public void process(ProjectData data) {
+        synchronized (processed) {
+          processed[0]++;
+        }
+      }
+    });
+
+    assertEquals(reports.size(), processed[0]);
+    assertEqualHits(expected, actual);
+  }
+
+  private static ProjectData createProjectData(int classes, long seed) {
+    final Random random = new Random(seed);
+    final ProjectData projectData = new ProjectData();
+    for (int c = 0; c < classes; c++) {
+      final ClassData classData = projectData.getOrCreateClassData("a.Class" + c);
+      final LineData[] lines = new LineData[6];
+      for (int l = 1; l < lines.length; l++) {
+        final LineData line = new LineData(l, "foo()V");
+        line.setHits(random.nextInt(3));
+        line.addJump(0);
+        line.setTrueHits(0, random.nextInt(3));
+        line.fillArrays();
+        lines[l] = line;
+      }
+      classData.setLines(lines);
+    }
+    return projectData;
+  }
+
+  private static void assertEqualHits(ProjectData expected, ProjectData actual) {
+    assertEquals(expected.getClassesNumber(), actual.getClassesNumber());
+    for (ClassData expectedClass : expected.getClassesCollection()) {
+      final ClassData actualClass = actual.getClassData(expectedClass.getName());
+      assertNotNull(expectedClass.getName(), actualClass);
+      final Object[] expectedLines = expectedClass.getLines();
+      for (int l = 0; l < expectedLines.length; l++) {
+        final LineData expectedLine = (LineData) expectedLines[l];
+        if (expectedLine == null) continue;
+        final LineData actualLine = actualClass.getLineData(l);
+        assertEquals(expectedLine.getHits(), actualLine.getHits());
+        assertEquals(expectedLine.getJumpData(0).getTrueHits(), actualLine.getJumpData(0).getTrueHits());
+      }
+    }
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.util;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.LineData;
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.instrumentation.InstrumentationOptions;
+import junit.framework.TestCase;
+
+import java.io.File;
+
+public class ReportSpoolTest extends TestCase {
+  private File myDir;
+  private InstrumentationOptions myOptions;
+  private boolean myUseOsLock;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myUseOsLock = CoverageIOUtil.FileLock.USE_OS_LOCK;
+    myDir = File.createTempFile("spool", "test");
+    myDir.delete();
+    myDir.mkdirs();
+    myOptions = new InstrumentationOptions.Builder()
+        .setDataFile(new File(myDir, "coverage.ic"))
+        .setSourceMapFile(new File(myDir, "coverage.sm"))
+        .build();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    CoverageIOUtil.FileLock.USE_OS_LOCK = myUseOsLock;
+    delete(myDir);
+    super.tearDown();
+  }
+
+  public void testFileLock() throws Exception {
+    CoverageIOUtil.FileLock.USE_OS_LOCK = false;
+    doTestSpool();
+  }
+
+  public void testOsLock() throws Exception {
+    CoverageIOUtil.FileLock.USE_OS_LOCK = true;
+    doTestSpool();
+  }
+
+  public void testTryLock() {
+    CoverageIOUtil.FileLock.USE_OS_LOCK = true;
+    final CoverageIOUtil.FileLock lock = CoverageIOUtil.FileLock.lock(myOptions.dataFile);
+    assertNotNull(lock);
+    assertNull(CoverageIOUtil.FileLock.tryLock(myOptions.dataFile));
+    CoverageIOUtil.FileLock.unlock(lock);
+
+    final CoverageIOUtil.FileLock newLock = CoverageIOUtil.FileLock.tryLock(myOptions.dataFile);
+    assertNotNull(newLock);
+    CoverageIOUtil.FileLock.unlock(newLock);
+  }
+
+  public void testOsLockTimeout() {
+    CoverageIOUtil.FileLock.USE_OS_LOCK = true;
+    final CoverageIOUtil.FileLock lock = CoverageIOUtil.FileLock.lock(myOptions.dataFile);
+    assertNotNull(lock);
+    try {
+      final long start = System.currentTimeMillis();
+      assertNull(CoverageIOUtil.FileLock.lock(myOptions.dataFile, 500, 100));
+      assertTrue(System.currentTimeMillis() - start >= 500);
+    } finally {
+      CoverageIOUtil.FileLock.unlock(lock);
+    }
+  }
+
+  public void testConcurrentFileLock() throws Exception {
+    CoverageIOUtil.FileLock.USE_OS_LOCK = false;
+    doTestConcurrentSpool();
+  }
+
+  public void testConcurrentOsLock() throws Exception {
+    CoverageIOUtil.FileLock.USE_OS_LOCK = true;
+    doTestConcurrentSpool();
+  }
+
+  private void doTestSpool() throws Exception {
+    final File spoolDir = ReportSpool.getSpoolDir(myOptions.dataFile);
+    final CoverageIOUtil.FileLock lock = CoverageIOUtil.FileLock.lock(myOptions.dataFile);
+    try {
+      // the lock is held by someone else, so the reports are left for the lock holder
+      ReportSpool.add(createProjectData("A", 1), myOptions);
+      ReportSpool.add(createProjectData("B", 2), myOptions);
+      assertEquals(4, spoolDir.listFiles().length);
+      assertFalse(myOptions.dataFile.exists());
+    } finally {
+      CoverageIOUtil.FileLock.unlock(lock);
+    }
+    // the lock holder folds the spool
+    ReportSpool.fold(myOptions);
+    assertEquals(0, spoolDir.listFiles().length);
+
+    ReportSpool.add(createProjectData("A", 3), myOptions);
+    assertEquals(0, spoolDir.listFiles().length);
+
+    final ProjectData projectData = ProjectDataLoader.load(myOptions.dataFile);
+    CoverageReport.loadAndApplySourceMap(projectData, myOptions.sourceMapFile);
+    assertEquals(2, projectData.getClassesNumber());
+    assertEquals(4, projectData.getClassData("A").getLineData(1).getHits());
+    assertEquals(2, projectData.getClassData("B").getLineData(1).getHits());
+    assertEquals("A.kt", projectData.getClassData("A").getSource());
+    assertEquals("B.kt", projectData.getClassData("B").getSource());
+  }
+
+  private void doTestConcurrentSpool() throws Exception {
+    final int threadsCount = 4;
+    final int reportsCount = 10;
+    final Throwable[] errors = new Throwable[threadsCount];
+    final Thread[] threads = new Thread[threadsCount];
+    for (int i = 0; i < threadsCount; i++) {
+      final int index = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int j = 0; j < reportsCount; j++) {
+              ReportSpool.add(createProjectData("A" + index, 1), myOptions);
+            }
+          } catch (Throwable e) {
+            errors[index] = e;
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    for (Throwable error : errors) {
+      if (error != null) throw new RuntimeException(error);
+    }
+
+    // every added report is folded, even if its process failed to take the lock
+    assertEquals(0, ReportSpool.getSpoolDir(myOptions.dataFile).listFiles().length);
+    final ProjectData projectData = ProjectDataLoader.load(myOptions.dataFile);
+    assertEquals(threadsCount, projectData.getClassesNumber());
+    for (int i = 0; i < threadsCount; i++) {
+      assertEquals(reportsCount, projectData.getClassData("A" + i).getLineData(1).getHits());
+    }
+  }
+
+  private static void delete(File file) {
+    final File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  private static ProjectData createProjectData(String className, int hits) {
+    final ProjectData projectData = new ProjectData();
+    final ClassData classData = projectData.getOrCreateClassData(className);
+    classData.setSource(className + ".kt");
+    final LineData line = new LineData(1, "foo()V");
+    line.setHits(hits);
+    classData.setLines(new LineData[]{null, line});
+    return projectData;
+  }
+}
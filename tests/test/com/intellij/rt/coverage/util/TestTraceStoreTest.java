@@ -0,0 +1,144 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.util;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class TestTraceStoreTest extends TestCase {
+  private File myDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = File.createTempFile("traces", "test");
+    myDir.delete();
+    myDir.mkdirs();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    delete(myDir);
+    super.tearDown();
+  }
+
+  public void testLookupByFooter() throws IOException {
+    final TestTraceStore store = writeStore();
+    store.close();
+    checkStore(TestTraceStoreReader.open(store.getFile()));
+  }
+
+  public void testStoreWithoutFooter() throws IOException {
+    final TestTraceStore store = writeStore();
+    // the trailing record is cut off as if the process was killed while writing it
+    store.append("test4", trace("A", 1, 2, 3, 4, 5));
+    final long length = store.getFile().length();
+    store.close();
+    truncate(store.getFile(), length - 2);
+
+    final TestTraceStoreReader reader = TestTraceStoreReader.open(store.getFile());
+    assertEquals(3, reader.getTestCount());
+    checkStore(reader);
+  }
+
+  public void testLoadTracesDirectory() throws IOException {
+    final TestTraceStore store = writeStore();
+    store.close();
+    TestTrackingIOUtil.saveTestResults(myDir, "test5", trace("C", 2));
+
+    final Map<String, Map<String, int[]>> traces = TestTrackingIOUtil.loadTestTrackingData(myDir);
+    assertEquals(4, traces.size());
+    assertEquals("[1, 3, 200]", Arrays.toString(traces.get("test1").get("A")));
+    assertEquals("[4]", Arrays.toString(traces.get("test1").get("B")));
+    assertEquals("[3]", Arrays.toString(traces.get("test2").get("A")));
+    assertEquals(Collections.<String, int[]>emptyMap(), traces.get("test3"));
+    assertEquals("[2]", Arrays.toString(traces.get("test5").get("C")));
+  }
+
+  public void testMergeTestsWithSameName() throws IOException {
+    final TestTraceStore store = writeStore();
+    store.append("test1", trace("A", 2, 3, 300));
+    store.close();
+
+    final Map<String, Map<String, int[]>> traces = new HashMap<String, Map<String, int[]>>();
+    TestTraceStoreReader.read(store.getFile()).load(traces);
+    assertEquals("[1, 2, 3, 200, 300]", Arrays.toString(traces.get("test1").get("A")));
+    assertEquals("[4]", Arrays.toString(traces.get("test1").get("B")));
+    final Map<String, int[]> lines = TestTraceStoreReader.read(store.getFile()).loadClass("A");
+    assertEquals("[1, 2, 3, 200, 300]", Arrays.toString(lines.get("test1")));
+    assertEquals("[3]", Arrays.toString(lines.get("test2")));
+  }
+
+  private TestTraceStore writeStore() throws IOException {
+    final TestTraceStore store = TestTraceStore.create(myDir);
+    final Map<Object, boolean[]> trace = trace("A", 1, 3, 200);
+    trace.putAll(trace("B", 4));
+    store.append("test1", trace);
+    store.append("test2", trace("A", 3));
+    store.append("test3", Collections.<Object, boolean[]>emptyMap());
+    return store;
+  }
+
+  private static void checkStore(TestTraceStoreReader reader) throws IOException {
+    assertEquals(Arrays.asList("A", "B"), reader.getClassNames());
+    assertEquals(Arrays.asList("test1", "test2"), reader.getTests("A", 3));
+    assertEquals(Collections.singletonList("test1"), reader.getTests("A", 200));
+    assertEquals(Collections.emptyList(), reader.getTests("A", 2));
+    assertEquals(Collections.singletonList("test1"), reader.getTests("B", 4));
+    assertEquals(Collections.emptyList(), reader.getTests("C", 1));
+    final Map<String, int[]> lines = reader.loadClass("A");
+    assertEquals(Arrays.asList("test1", "test2"), Arrays.asList(lines.keySet().toArray()));
+    assertEquals("[1, 3, 200]", Arrays.toString(lines.get("test1")));
+  }
+
+  private static Map<Object, boolean[]> trace(String className, int... lines) {
+    final boolean[] touched = new boolean[lines[lines.length - 1] + 1];
+    for (int line : lines) {
+      touched[line] = true;
+    }
+    final Map<Object, boolean[]> result = new LinkedHashMap<Object, boolean[]>();
+    result.put(className, touched);
+    return result;
+  }
+
+  private static void truncate(File file, long length) throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(length);
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static void delete(File file) {
+    final File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
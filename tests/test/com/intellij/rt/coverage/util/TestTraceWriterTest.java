@@ -0,0 +1,132 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.util;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.LineData;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+public class TestTraceWriterTest extends TestCase {
+  private File myDir;
+  private File myDataFile;
+  private ClassData myClassData;
+  private SequentialTestTrackingCallback myCallback;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = File.createTempFile("tracking", "test");
+    myDir.delete();
+    myDir.mkdirs();
+    myDataFile = new File(myDir, "coverage.ic");
+    myClassData = new ClassData("A");
+    final LineData[] lines = new LineData[10];
+    for (int i = 1; i < lines.length; i++) {
+      lines[i] = new LineData(i, "foo()V");
+    }
+    myClassData.setLines(lines);
+    myClassData.createTraceMask(lines.length);
+    // array test tracking mode, where the trace mask is reused by all tests
+    myCallback = new SequentialTestTrackingCallback(myDataFile) {
+      public void clearTrace(ClassData classData) {
+        classData.getTraceMask()[0] = false;
+      }
+
+      public boolean[] traceLine(ClassData classData, int line) {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myCallback.close();
+    delete(myDir);
+    super.tearDown();
+  }
+
+  public void testTracesAreWrittenAfterTestEnded() throws IOException {
+    runTest("test1", 1, 2);
+    runTest("test2", 2, 3);
+    for (int i = 0; i < 100; i++) {
+      runTest("test" + (i + 3), 4);
+    }
+    myCallback.flush();
+
+    final Map<String, Map<String, int[]>> traces = loadTraces();
+    assertEquals(102, traces.size());
+    assertEquals("[1, 2]", Arrays.toString(traces.get("test1").get("A")));
+    assertEquals("[2, 3]", Arrays.toString(traces.get("test2").get("A")));
+    assertEquals("[4]", Arrays.toString(traces.get("test50").get("A")));
+    assertTrue(myClassData.getLineData(1).isCoveredByOneTest());
+    assertFalse(myClassData.getLineData(2).isCoveredByOneTest());
+    assertFalse(myClassData.getLineData(4).isCoveredByOneTest());
+  }
+
+  public void testTracesAreWrittenSynchronouslyAfterClose() throws IOException {
+    runTest("test1", 1);
+    myCallback.close();
+    assertEquals(1, loadTraces().size());
+
+    runTest("test2", 2);
+    final Map<String, Map<String, int[]>> traces = loadTraces();
+    assertEquals("[2]", Arrays.toString(traces.get("test2").get("A")));
+    assertTrue(myClassData.getLineData(2).isCoveredByOneTest());
+  }
+
+  public void testCloseWaitsForTracesWhenInterrupted() throws IOException {
+    for (int i = 0; i < 100; i++) {
+      runTest("test" + i, 1);
+    }
+    Thread.currentThread().interrupt();
+    try {
+      myCallback.close();
+      assertTrue(Thread.currentThread().isInterrupted());
+    } finally {
+      Thread.interrupted();
+    }
+    assertEquals(100, loadTraces().size());
+  }
+
+  private void runTest(String name, int... lines) {
+    myCallback.testStarted(name);
+    myCallback.registerForTrace(myClassData);
+    for (int line : lines) {
+      myClassData.getTraceMask()[line] = true;
+    }
+    myCallback.testEnded(name);
+  }
+
+  private Map<String, Map<String, int[]>> loadTraces() throws IOException {
+    return TestTrackingIOUtil.loadTestTrackingData(TestTrackingCallback.createTracesDir(myDataFile));
+  }
+
+  private static void delete(File file) {
+    final File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -23,8 +23,9 @@ import org.jetbrains.coverage.org.objectweb.asm.*;
 
 import java.lang.instrument.ClassFileTransformer;
 import java.security.ProtectionDomain;
-import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public abstract class AbstractIntellijClassfileTransformer implements ClassFileTransformer {
   public interface InclusionPattern {
@@ -32,29 +33,49 @@ public abstract class AbstractIntellijClassfileTransformer implements ClassFileT
   }
 
   private final boolean computeFrames = computeFrames();
-  private final WeakHashMap<ClassLoader, Map<String, ClassReader>> classReaders = new WeakHashMap<ClassLoader, Map<String, ClassReader>>();
+  private final ClassHierarchy classHierarchy = new ClassHierarchy();
 
-  private long ourTime;
-  private int ourClassCount;
+  private final AtomicLong ourTime = new AtomicLong();
+  private final AtomicInteger ourClassCount = new AtomicInteger();
+  private volatile TransformationMetrics myMetrics;
 
   protected AbstractIntellijClassfileTransformer() {
     Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
       public void run() {
-        double allTime = 1. * ourTime / CoverageIOUtil.GIGA;
+        final int classCount = ourClassCount.get();
+        double allTime = 1. * ourTime.get() / CoverageIOUtil.GIGA;
         ErrorReporter.printInfo("Class transformation time: " + allTime + "s for " +
-            ourClassCount + " classes or " + allTime / ourClassCount + "s per class"
+            classCount + " classes or " + allTime / classCount + "s per class"
         );
       }
     }));
   }
 
+  /**
+   * Enable detailed metrics of the transformation, which are not collected by default.
+   */
+  public void setMetrics(TransformationMetrics metrics) {
+    myMetrics = metrics;
+  }
+
+  public TransformationMetrics getMetrics() {
+    return myMetrics;
+  }
+
   public final byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classFileBuffer) {
     long s = System.nanoTime();
+    byte[] result = null;
     try {
-      return transformInner(loader, className, classFileBuffer, classBeingRedefined);
+      result = transformInner(loader, className, classFileBuffer, classBeingRedefined);
+      return result;
     } finally {
-      ourClassCount++;
-      ourTime += System.nanoTime() - s;
+      final long time = System.nanoTime() - s;
+      ourClassCount.incrementAndGet();
+      ourTime.addAndGet(time);
+      final TransformationMetrics metrics = myMetrics;
+      if (metrics != null) {
+        metrics.recordClass(className, classFileBuffer, result, time);
+      }
     }
   }
 
@@ -77,7 +98,13 @@ public abstract class AbstractIntellijClassfileTransformer implements ClassFileT
 
     if (classBeingRedefined != null && classAlreadyHasCoverage(classFileBuffer)) return null;
 
-    if (shouldExclude(className)) return null;
+    if (shouldExclude(className)) {
+      final TransformationMetrics metrics = myMetrics;
+      if (metrics != null) {
+        metrics.recordExcluded();
+      }
+      return null;
+    }
 
     visitClassLoader(loader);
 
@@ -93,12 +120,14 @@ public abstract class AbstractIntellijClassfileTransformer implements ClassFileT
   }
 
   private boolean classAlreadyHasCoverage(byte[] classFileBuffer) {
+    final Boolean hasMarkers = CoverageMarkers.hasCoverage(classFileBuffer);
+    if (hasMarkers != null) return hasMarkers;
     final boolean[] hasCoverage = new boolean[]{false};
 
     new ClassReader(classFileBuffer).accept(new ClassVisitor(Opcodes.API_VERSION) {
       @Override
       public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
-        if ("__$hits$__".equals(name)) {
+        if (CoverageMarkers.HITS_FIELD_NAME.equals(name)) {
           hasCoverage[0] = true;
         }
         return super.visitField(access, name, descriptor, signature, value);
@@ -113,7 +142,7 @@ public abstract class AbstractIntellijClassfileTransformer implements ClassFileT
             super.visitLdcInsn(value);
             if (value instanceof ConstantDynamic) {
               ConstantDynamic condy = (ConstantDynamic) value;
-              if ("com/intellij/rt/coverage/util/CondyUtils".equals(condy.getDescriptor())) {
+              if (CoverageMarkers.HITS_FIELD_NAME.equals(condy.getName())) {
                 hasCoverage[0] = true;
               }
             }
@@ -122,7 +151,7 @@ public abstract class AbstractIntellijClassfileTransformer implements ClassFileT
           @Override
           public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
             super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
-            if ("com/intellij/rt/coverage/instrumentation/CoverageRuntime".equals(owner)) {
+            if (CoverageMarkers.COVERAGE_RUNTIME_OWNER.equals(owner)) {
               hasCoverage[0] = true;
             }
           }
@@ -144,6 +173,10 @@ public abstract class AbstractIntellijClassfileTransformer implements ClassFileT
     } catch (Throwable e) {
       ErrorReporter.warn("Error during class instrumentation: " + className, e);
     }
+    final TransformationMetrics metrics = myMetrics;
+    if (metrics != null) {
+      metrics.recordFailed();
+    }
     return null;
   }
 
@@ -156,20 +189,82 @@ public abstract class AbstractIntellijClassfileTransformer implements ClassFileT
 
   //public for test
   public byte[] instrument(final byte[] classfileBuffer, String className, ClassLoader loader, boolean computeFrames) {
+    return instrument(classfileBuffer, className, loader, computeFrames, null);
+  }
+
+  /**
+   * @param commonSuperClassesLog if not null, common super classes computed for frames are added here,
+   *                              see {@link #checkCommonSuperClasses}
+   */
+  protected byte[] instrument(final byte[] classfileBuffer, String className, ClassLoader loader, boolean computeFrames,
+                              List<String> commonSuperClassesLog) {
+    final TransformationMetrics metrics = myMetrics;
+    final TransformationMetrics.Sample sample = metrics == null ? null : new TransformationMetrics.Sample();
     final ClassReader cr = new ClassReader(classfileBuffer);
-    final ClassWriter cw;
+    if (sample != null) sample.endPhase(TransformationMetrics.PARSE);
+    int flags = ClassWriter.COMPUTE_MAXS;
+    byte[] result = null;
+    boolean instrumented = false;
     if (computeFrames) {
       final int version = getClassFileVersion(cr);
-      int flags = (version & 0xFFFF) >= Opcodes.V1_6 && version != Opcodes.V1_1 ? ClassWriter.COMPUTE_FRAMES : ClassWriter.COMPUTE_MAXS;
-      cw = new ClassWriterImpl(flags, loader, classReaders);
-    } else {
-      cw = new ClassWriterImpl(ClassWriter.COMPUTE_MAXS, loader, classReaders);
+      if ((version & 0xFFFF) >= Opcodes.V1_6 && version != Opcodes.V1_1) {
+        if (shouldPreserveFrames()) {
+          try {
+            result = instrument(cr, className, loader, ClassWriter.COMPUTE_MAXS, commonSuperClassesLog, true, sample);
+            instrumented = true;
+          } catch (ComputeFramesException e) {
+            ErrorReporter.info("Frames are computed for class " + className + ": " + e.getMessage());
+            if (sample != null) {
+              sample.endPhase(TransformationMetrics.VISIT);
+              metrics.recordFramesFallback();
+            }
+          }
+        }
+        flags = ClassWriter.COMPUTE_FRAMES;
+      }
+    }
+    if (!instrumented) {
+      result = instrument(cr, className, loader, flags, commonSuperClassesLog, false, sample);
+    }
+    if (sample != null) {
+      metrics.recordPhases(sample);
     }
+    return result;
+  }
 
-    final ClassVisitor cv = createClassVisitor(className, loader, cr, cw);
+  private byte[] instrument(ClassReader cr, String className, ClassLoader loader, int flags,
+                            List<String> commonSuperClassesLog, boolean preserveFrames, TransformationMetrics.Sample sample) {
+    final ClassWriterImpl cw = new ClassWriterImpl(flags, loader, classHierarchy, commonSuperClassesLog, preserveFrames);
+    final ClassVisitor cv = createClassVisitor(className, loader, cr, sample == null ? cw : cw.measureFramesTime());
+    if (sample != null) sample.endPhase(TransformationMetrics.SETUP);
     if (cv == null) return null;
     cr.accept(cv, ClassReader.EXPAND_FRAMES);
-    return cw.toByteArray();
+    if (sample != null) {
+      sample.endPhase(TransformationMetrics.VISIT);
+      sample.move(TransformationMetrics.VISIT, TransformationMetrics.FRAMES, cw.getFramesTime());
+    }
+    final byte[] result = cw.toByteArray();
+    if (sample != null) sample.endPhase(TransformationMetrics.WRITE);
+    return result;
+  }
+
+  /**
+   * Check that common super classes recorded during instrumentation are the same for this class loader.
+   *
+   * @param log flattened triples of arguments and result
+   * @return false if any result differs or cannot be computed
+   */
+  protected boolean checkCommonSuperClasses(String[] log, ClassLoader loader) {
+    if (log.length == 0) return true;
+    final ClassWriterImpl cw = new ClassWriterImpl(0, loader, classHierarchy);
+    try {
+      for (int i = 0; i + 2 < log.length; i += 3) {
+        if (!log[i + 2].equals(cw.computeCommonSuperClass(log[i], log[i + 1]))) return false;
+      }
+      return true;
+    } catch (RuntimeException e) {
+      return false;
+    }
   }
 
   protected abstract ClassVisitor createClassVisitor(String className, ClassLoader loader, ClassReader cr, ClassVisitor cw);
@@ -188,10 +283,40 @@ public abstract class AbstractIntellijClassfileTransformer implements ClassFileT
     return false;
   }
 
+  /**
+   * Whether the original stack map frames should be kept instead of computing all the frames.
+   * In this mode the instrumenters add frames only for the inserted code,
+   * and if a method cannot be instrumented this way, they throw {@link ComputeFramesException}
+   * so the class is instrumented again with frames computation.
+   */
+  protected boolean shouldPreserveFrames() {
+    return false;
+  }
+
+  /**
+   * @param cw class writer passed to {@link #createClassVisitor}
+   * @return true if the instrumenters should add frames for the inserted code, see {@link #shouldPreserveFrames()}
+   */
+  public static boolean isPreservingFrames(ClassVisitor cw) {
+    if (cw instanceof ClassWriterImpl.FramesTimeVisitor) {
+      cw = ((ClassWriterImpl.FramesTimeVisitor) cw).myWriter;
+    }
+    return cw instanceof ClassWriterImpl && ((ClassWriterImpl) cw).isPreservingFrames();
+  }
+
   private boolean computeFrames() {
     return System.getProperty("idea.coverage.no.frames") == null;
   }
 
+  /**
+   * Thrown by the instrumenters when the frames of the instrumented code cannot be derived from the original frames.
+   */
+  public static class ComputeFramesException extends RuntimeException {
+    public ComputeFramesException(String message) {
+      super(message);
+    }
+  }
+
   /**
    * Returns class file version in the {@code minor << 16 | major} format.<br/>
    * <b>Warning</b>: in classes compiled with <a href="https://openjdk.java.net/jeps/12">JEP 12's</a> {@code --enable-preview} option
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.util.CoverageIOUtil;
+import org.jetbrains.coverage.org.objectweb.asm.ClassReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Class hierarchy used for frames computation, see {@link ClassWriterImpl#getCommonSuperClass(String, String)}.
+ * <p>
+ * For each class loader, only the super class, interfaces and access flags of the loaded classes are kept,
+ * together with the computed common super classes. Both caches are bounded, when a cache is full
+ * some entries are dropped, so a class may be read again.
+ * The caches are safe for concurrent class loading.
+ */
+class ClassHierarchy {
+  private static final int MAX_CLASSES = 1 << 14;
+  private static final int MAX_COMMON_SUPER_CLASSES = 1 << 14;
+
+  private final Map<ClassLoader, LoaderHierarchy> myLoaders = new WeakHashMap<ClassLoader, LoaderHierarchy>();
+
+  synchronized LoaderHierarchy getLoaderHierarchy(ClassLoader loader) {
+    LoaderHierarchy hierarchy = myLoaders.get(loader);
+    if (hierarchy == null) {
+      hierarchy = new LoaderHierarchy();
+      myLoaders.put(loader, hierarchy);
+    }
+    return hierarchy;
+  }
+
+  static class ClassInfo {
+    final String superName;
+    final String[] interfaces;
+    final int access;
+
+    ClassInfo(String superName, String[] interfaces, int access) {
+      this.superName = superName;
+      this.interfaces = interfaces;
+      this.access = access;
+    }
+  }
+
+  /**
+   * Must not reference the class loader, as it is a value of a <code>WeakHashMap</code> keyed by the loader.
+   */
+  static class LoaderHierarchy {
+    private final ConcurrentMap<String, ClassInfo> myClasses = new ConcurrentHashMap<String, ClassInfo>();
+    private final ConcurrentMap<String, String> myCommonSuperClasses = new ConcurrentHashMap<String, String>();
+
+    ClassInfo getClassInfo(ClassLoader loader, String className) throws IOException {
+      ClassInfo info = myClasses.get(className);
+      if (info == null) {
+        info = loadClassInfo(loader, className);
+        ensureCapacity(myClasses, MAX_CLASSES);
+        final ClassInfo existing = myClasses.putIfAbsent(className, info);
+        if (existing != null) {
+          info = existing;
+        }
+      }
+      return info;
+    }
+
+    String getCommonSuperClass(String type1, String type2) {
+      return myCommonSuperClasses.get(getPairKey(type1, type2));
+    }
+
+    void putCommonSuperClass(String type1, String type2, String result) {
+      ensureCapacity(myCommonSuperClasses, MAX_COMMON_SUPER_CLASSES);
+      myCommonSuperClasses.put(getPairKey(type1, type2), result);
+    }
+
+    int getClassesCount() {
+      return myClasses.size();
+    }
+
+    private static ClassInfo loadClassInfo(ClassLoader loader, String className) throws IOException {
+      InputStream is = null;
+      try {
+        final String resource = className + ".class";
+        is = loader == null
+            ? ClassLoader.getSystemResourceAsStream(resource)
+            : loader.getResourceAsStream(resource);
+        if (is == null) {
+          throw new ClassWriterImpl.FrameComputationClassNotFoundException("Class " + className + " not found");
+        }
+        final ClassReader reader = new ClassReader(is);
+        return new ClassInfo(reader.getSuperName(), reader.getInterfaces(), reader.getAccess());
+      } finally {
+        CoverageIOUtil.close(is);
+      }
+    }
+
+    private static String getPairKey(String type1, String type2) {
+      return type1 + ';' + type2;
+    }
+
+    private static void ensureCapacity(ConcurrentMap<String, ?> map, int maxSize) {
+      if (map.size() < maxSize) return;
+      // drop a quarter of the entries in the iteration order, which is effectively random
+      final Iterator<String> it = map.keySet().iterator();
+      for (int i = 0; i < maxSize / 4 && it.hasNext(); i++) {
+        it.next();
+        it.remove();
+      }
+    }
+  }
+}
@@ -16,31 +16,79 @@
 
 package com.intellij.rt.coverage.instrumentation;
 
-import com.intellij.rt.coverage.util.CoverageIOUtil;
-import org.jetbrains.coverage.org.objectweb.asm.ClassReader;
+import org.jetbrains.coverage.org.objectweb.asm.ClassVisitor;
 import org.jetbrains.coverage.org.objectweb.asm.ClassWriter;
+import org.jetbrains.coverage.org.objectweb.asm.MethodVisitor;
 import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 
 class ClassWriterImpl extends ClassWriter {
   private static final String JAVA_LANG_OBJECT = "java/lang/Object";
   private final ClassLoader myClassLoader;
-  private final Map<ClassLoader, Map<String, ClassReader>> myClassReaders;
+  private final ClassHierarchy.LoaderHierarchy myHierarchy;
+  private final List<String> myCommonSuperClassesLog;
+  private final boolean myPreserveFrames;
+  private long myFramesTime;
 
-  ClassWriterImpl(int flags, ClassLoader classLoader, Map<ClassLoader, Map<String, ClassReader>> classReaders) {
+  ClassWriterImpl(int flags, ClassLoader classLoader, ClassHierarchy hierarchy) {
+    this(flags, classLoader, hierarchy, null, false);
+  }
+
+  /**
+   * @param commonSuperClassesLog if not null, each computed common super class is added as a triple of arguments and result
+   * @param preserveFrames        whether the original frames are kept and the instrumenters should add frames for the inserted code,
+   *                              see {@link AbstractIntellijClassfileTransformer#isPreservingFrames(ClassVisitor)}
+   */
+  ClassWriterImpl(int flags, ClassLoader classLoader, ClassHierarchy hierarchy,
+                  List<String> commonSuperClassesLog, boolean preserveFrames) {
     super(flags);
     myClassLoader = classLoader;
-    myClassReaders = classReaders;
+    myHierarchy = hierarchy.getLoaderHierarchy(classLoader);
+    myCommonSuperClassesLog = commonSuperClassesLog;
+    myPreserveFrames = preserveFrames;
+  }
+
+  boolean isPreservingFrames() {
+    return myPreserveFrames;
+  }
+
+  /**
+   * @return visitor that measures the time of frames and maximum stack sizes computation,
+   * which is done by ASM when a method ends, see {@link #getFramesTime()}
+   */
+  ClassVisitor measureFramesTime() {
+    return new FramesTimeVisitor(this);
+  }
+
+  long getFramesTime() {
+    return myFramesTime;
   }
 
   protected String getCommonSuperClass(String type1, String type2) {
+    final String result = computeCommonSuperClass(type1, type2);
+    if (myCommonSuperClassesLog != null) {
+      myCommonSuperClassesLog.add(type1);
+      myCommonSuperClassesLog.add(type2);
+      myCommonSuperClassesLog.add(result);
+    }
+    return result;
+  }
+
+  String computeCommonSuperClass(String type1, String type2) {
+    String result = myHierarchy.getCommonSuperClass(type1, type2);
+    if (result == null) {
+      result = computeCommonSuperClassInternal(type1, type2);
+      myHierarchy.putCommonSuperClass(type1, type2, result);
+    }
+    return result;
+  }
+
+  private String computeCommonSuperClassInternal(String type1, String type2) {
     try {
-      ClassReader info1 = getOrLoadClassReader(type1);
-      ClassReader info2 = getOrLoadClassReader(type2);
+      ClassHierarchy.ClassInfo info1 = getClassInfo(type1);
+      ClassHierarchy.ClassInfo info2 = getClassInfo(type2);
       String
           superType = checkImplementInterface(type1, type2, info1, info2);
       if (superType != null) return superType;
@@ -74,8 +122,8 @@ class ClassWriterImpl extends ClassWriter {
     }
   }
 
-  private String checkImplementInterface(String type1, String type2, ClassReader info1, ClassReader info2) throws IOException {
-    if ((info1.getAccess() & Opcodes.ACC_INTERFACE) != 0) {
+  private String checkImplementInterface(String type1, String type2, ClassHierarchy.ClassInfo info1, ClassHierarchy.ClassInfo info2) throws IOException {
+    if ((info1.access & Opcodes.ACC_INTERFACE) != 0) {
       if (typeImplements(type2, info2, type1)) {
         return type1;
       }
@@ -84,58 +132,59 @@ class ClassWriterImpl extends ClassWriter {
     return null;
   }
 
-  private StringBuilder typeAncestors(String type, ClassReader info) throws IOException {
+  private StringBuilder typeAncestors(String type, ClassHierarchy.ClassInfo info) throws IOException {
     StringBuilder b = new StringBuilder();
     while (!JAVA_LANG_OBJECT.equals(type)) {
       b.append(';').append(type);
-      type = info.getSuperName();
-      info = getOrLoadClassReader(type);
+      type = info.superName;
+      info = getClassInfo(type);
     }
     return b;
   }
 
 
-  private boolean typeImplements(String type, ClassReader classReader, String interfaceName) throws IOException {
+  private boolean typeImplements(String type, ClassHierarchy.ClassInfo info, String interfaceName) throws IOException {
     while (!JAVA_LANG_OBJECT.equals(type)) {
-      String[] interfaces = classReader.getInterfaces();
+      String[] interfaces = info.interfaces;
       for (String itf1 : interfaces) {
         if (itf1.equals(interfaceName)) {
           return true;
         }
       }
       for (String itf : interfaces) {
-        if (typeImplements(itf, getOrLoadClassReader(itf), interfaceName)) {
+        if (typeImplements(itf, getClassInfo(itf), interfaceName)) {
           return true;
         }
       }
-      type = classReader.getSuperName();
-      classReader = getOrLoadClassReader(type);
+      type = info.superName;
+      info = getClassInfo(type);
     }
     return false;
   }
 
-  private synchronized ClassReader getOrLoadClassReader(String className) throws IOException {
-    Map<String, ClassReader> loaderClassReaders = myClassReaders.get(myClassLoader);
-    if (loaderClassReaders == null) {
-      myClassReaders.put(myClassLoader, loaderClassReaders = new HashMap<String, ClassReader>());
+  private ClassHierarchy.ClassInfo getClassInfo(String className) throws IOException {
+    return myHierarchy.getClassInfo(myClassLoader, className);
+  }
+
+  static class FramesTimeVisitor extends ClassVisitor {
+    final ClassWriterImpl myWriter;
+
+    private FramesTimeVisitor(ClassWriterImpl writer) {
+      super(Opcodes.API_VERSION, writer);
+      myWriter = writer;
     }
-    ClassReader classReader = loaderClassReaders.get(className);
-    if (classReader == null) {
-      InputStream is = null;
-      try {
-        String resource = className + ".class";
-        is = myClassLoader == null
-            ? ClassLoader.getSystemResourceAsStream(resource)
-            : myClassLoader.getResourceAsStream(resource);
-        if (is == null) {
-          throw new FrameComputationClassNotFoundException("Class " + className + " not found");
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+      return new MethodVisitor(Opcodes.API_VERSION, super.visitMethod(access, name, descriptor, signature, exceptions)) {
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+          final long start = System.nanoTime();
+          super.visitMaxs(maxStack, maxLocals);
+          myWriter.myFramesTime += System.nanoTime() - start;
         }
-        loaderClassReaders.put(className, classReader = new ClassReader(is));
-      } finally {
-        CoverageIOUtil.close(is);
-      }
+      };
     }
-    return classReader;
   }
 
   static class FrameComputationClassNotFoundException extends RuntimeException {
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation;
+
+/**
+ * Detection of classes that are already instrumented by scanning the constant pool and fields of a class file,
+ * without parsing method bodies.
+ * <p>
+ * An instrumented class has a <code>__$hits$__</code> field or constant dynamic, or calls <code>CoverageRuntime</code>.
+ * If none of these names is in the constant pool, the class is not instrumented.
+ */
+class CoverageMarkers {
+  static final String HITS_FIELD_NAME = "__$hits$__";
+  static final String COVERAGE_RUNTIME_OWNER = "com/intellij/rt/coverage/instrumentation/CoverageRuntime";
+  static final String CONDY_UTILS_OWNER = "com/intellij/rt/coverage/util/CondyUtils";
+
+  private static final int UTF8 = 1;
+  private static final int INTEGER = 3;
+  private static final int FLOAT = 4;
+  private static final int LONG = 5;
+  private static final int DOUBLE = 6;
+  private static final int CLASS = 7;
+  private static final int STRING = 8;
+  private static final int FIELD_REF = 9;
+  private static final int METHOD_REF = 10;
+  private static final int INTERFACE_METHOD_REF = 11;
+  private static final int NAME_AND_TYPE = 12;
+  private static final int METHOD_HANDLE = 15;
+  private static final int METHOD_TYPE = 16;
+  private static final int DYNAMIC = 17;
+  private static final int INVOKE_DYNAMIC = 18;
+  private static final int MODULE = 19;
+  private static final int PACKAGE = 20;
+
+  private static final byte[] HITS_FIELD_NAME_BYTES = getBytes(HITS_FIELD_NAME);
+  private static final byte[] COVERAGE_RUNTIME_OWNER_BYTES = getBytes(COVERAGE_RUNTIME_OWNER);
+  private static final byte[] CONDY_UTILS_OWNER_BYTES = getBytes(CONDY_UTILS_OWNER);
+
+  /**
+   * @return <code>Boolean.TRUE</code> if the class has a hits field or constant,
+   * <code>Boolean.FALSE</code> if the class does not reference coverage names,
+   * or <code>null</code> if the method bodies should be checked
+   */
+  static Boolean hasCoverage(byte[] b) {
+    try {
+      final int count = readUnsignedShort(b, 8);
+      // offsets of the constant pool entries, pointing after the tag
+      final int[] offsets = new int[count];
+      boolean hasHitsName = false;
+      boolean hasOwner = false;
+      boolean hasDynamic = false;
+      int offset = 10;
+      for (int i = 1; i < count; i++) {
+        final int tag = b[offset];
+        offsets[i] = offset + 1;
+        switch (tag) {
+          case UTF8:
+            final int length = readUnsignedShort(b, offset + 1);
+            if (equals(b, offset + 3, length, HITS_FIELD_NAME_BYTES)) {
+              hasHitsName = true;
+            } else if (equals(b, offset + 3, length, COVERAGE_RUNTIME_OWNER_BYTES)
+                || equals(b, offset + 3, length, CONDY_UTILS_OWNER_BYTES)) {
+              hasOwner = true;
+            }
+            offset += 3 + length;
+            break;
+          case CLASS:
+          case STRING:
+          case METHOD_TYPE:
+          case MODULE:
+          case PACKAGE:
+            offset += 3;
+            break;
+          case METHOD_HANDLE:
+            offset += 4;
+            break;
+          case DYNAMIC:
+            hasDynamic = true;
+            offset += 5;
+            break;
+          case INTEGER:
+          case FLOAT:
+          case FIELD_REF:
+          case METHOD_REF:
+          case INTERFACE_METHOD_REF:
+          case NAME_AND_TYPE:
+          case INVOKE_DYNAMIC:
+            offset += 5;
+            break;
+          case LONG:
+          case DOUBLE:
+            offset += 9;
+            i++;
+            break;
+          default:
+            return null;
+        }
+      }
+      if (!hasHitsName && !hasOwner) return Boolean.FALSE;
+      if (!hasHitsName) return null;
+
+      if (hasDynamic && hasHitsConstant(b, offsets)) return Boolean.TRUE;
+      if (hasHitsField(b, offset, offsets)) return Boolean.TRUE;
+      return hasOwner ? null : Boolean.FALSE;
+    } catch (IndexOutOfBoundsException e) {
+      return null;
+    }
+  }
+
+  private static boolean hasHitsConstant(byte[] b, int[] offsets) {
+    for (int offset : offsets) {
+      if (offset == 0 || b[offset - 1] != DYNAMIC) continue;
+      final int nameAndType = offsets[readUnsignedShort(b, offset + 2)];
+      if (isUtf8(b, offsets, readUnsignedShort(b, nameAndType), HITS_FIELD_NAME_BYTES)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * @param offset offset of the class access flags
+   */
+  private static boolean hasHitsField(byte[] b, int offset, int[] offsets) {
+    final int interfaces = readUnsignedShort(b, offset + 6);
+    offset += 8 + 2 * interfaces;
+    final int fields = readUnsignedShort(b, offset);
+    offset += 2;
+    for (int i = 0; i < fields; i++) {
+      if (isUtf8(b, offsets, readUnsignedShort(b, offset + 2), HITS_FIELD_NAME_BYTES)) return true;
+      int attributes = readUnsignedShort(b, offset + 6);
+      offset += 8;
+      while (attributes-- > 0) {
+        offset += 6 + readInt(b, offset + 2);
+      }
+    }
+    return false;
+  }
+
+  private static boolean isUtf8(byte[] b, int[] offsets, int index, byte[] expected) {
+    final int offset = offsets[index];
+    return b[offset - 1] == UTF8 && equals(b, offset + 2, readUnsignedShort(b, offset), expected);
+  }
+
+  private static boolean equals(byte[] b, int offset, int length, byte[] expected) {
+    if (length != expected.length) return false;
+    for (int i = 0; i < length; i++) {
+      if (b[offset + i] != expected[i]) return false;
+    }
+    return true;
+  }
+
+  private static int readUnsignedShort(byte[] b, int offset) {
+    return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+  }
+
+  private static int readInt(byte[] b, int offset) {
+    return ((b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16) | ((b[offset + 2] & 0xFF) << 8) | (b[offset + 3] & 0xFF);
+  }
+
+  /**
+   * The names are ASCII, so the modified UTF-8 form is the same as ASCII.
+   */
+  private static byte[] getBytes(String s) {
+    final byte[] bytes = new byte[s.length()];
+    for (int i = 0; i < s.length(); i++) {
+      bytes[i] = (byte) s.charAt(i);
+    }
+    return bytes;
+  }
+}
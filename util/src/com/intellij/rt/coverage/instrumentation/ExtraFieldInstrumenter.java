@@ -53,6 +53,7 @@ public abstract class ExtraFieldInstrumenter extends ClassVisitor {
   private final String myFieldType;
 
   protected final String myInternalClassName;
+  private final boolean myJava6AndAbove;
   private final boolean myJava8AndAbove;
   private final boolean myInterface;
   private final boolean myShouldCoverClinit;
@@ -66,7 +67,9 @@ public abstract class ExtraFieldInstrumenter extends ClassVisitor {
     myFieldType = fieldType;
     myInternalClassName = ClassNameUtil.convertToInternalName(className);
     myInterface = (cr.getAccess() & Opcodes.ACC_INTERFACE) != 0;
-    myJava8AndAbove = (cr.readInt(4) & 0xFFFF) >= Opcodes.V1_8;
+    final int version = cr.readInt(4) & 0xFFFF;
+    myJava6AndAbove = version >= Opcodes.V1_6;
+    myJava8AndAbove = version >= Opcodes.V1_8;
     myShouldCoverClinit = shouldCoverClinit;
   }
 
@@ -83,6 +86,18 @@ public abstract class ExtraFieldInstrumenter extends ClassVisitor {
    */
   public MethodVisitor createMethodVisitor(MethodVisitor mv,
                                            final String name) {
+    return createMethodVisitor(mv, 0, name, null);
+  }
+
+  /**
+   * Create method visitor that ensures field initialization.
+   * A frame is added after the initialization, so that the original frames of the method may be kept.
+   *
+   * @param mv   instrumenting method visitor
+   * @param desc method descriptor, or null if the frame should not be added
+   */
+  public MethodVisitor createMethodVisitor(MethodVisitor mv, final int access,
+                                           final String name, final String desc) {
     if ("<clinit>".equals(name)) {
       if (myInterface && (myJava8AndAbove || myShouldCoverClinit)) {
         mv = new MethodVisitor(Opcodes.API_VERSION, mv) {
@@ -112,11 +127,51 @@ public abstract class ExtraFieldInstrumenter extends ClassVisitor {
         initField(mv);
 
         super.visitLabel(alreadyInitialized);
+        if (desc != null && myJava6AndAbove) {
+          final Object[] locals = getInitialLocals(access, name, desc);
+          super.visitFrame(Opcodes.F_NEW, locals.length, locals, 0, new Object[0]);
+        }
         super.visitCode();
       }
     };
   }
 
+  /**
+   * Locals of the implicit first frame of a method.
+   */
+  private Object[] getInitialLocals(int access, String name, String desc) {
+    final Type[] arguments = Type.getArgumentTypes(desc);
+    final boolean isStatic = (access & Opcodes.ACC_STATIC) != 0;
+    final Object[] locals = new Object[arguments.length + (isStatic ? 0 : 1)];
+    int index = 0;
+    if (!isStatic) {
+      locals[index++] = "<init>".equals(name) ? Opcodes.UNINITIALIZED_THIS : myInternalClassName;
+    }
+    for (Type argument : arguments) {
+      switch (argument.getSort()) {
+        case Type.BOOLEAN:
+        case Type.CHAR:
+        case Type.BYTE:
+        case Type.SHORT:
+        case Type.INT:
+          locals[index++] = Opcodes.INTEGER;
+          break;
+        case Type.FLOAT:
+          locals[index++] = Opcodes.FLOAT;
+          break;
+        case Type.LONG:
+          locals[index++] = Opcodes.LONG;
+          break;
+        case Type.DOUBLE:
+          locals[index++] = Opcodes.DOUBLE;
+          break;
+        default:
+          locals[index++] = argument.getInternalName();
+      }
+    }
+    return locals;
+  }
+
   /**
    * Generate field with {@link ExtraFieldInstrumenter#myFieldType} array
    */
@@ -0,0 +1,520 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.util.ClassNameUtil;
+import com.intellij.rt.coverage.util.CoverageIOUtil;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Self-profiling of the class transformation, see {@link AbstractIntellijClassfileTransformer#setMetrics(TransformationMetrics)}.
+ * <p>
+ * Collects class counts by outcome, bytes before and after instrumentation, time histograms for each phase
+ * and the slowest classes. All the methods are safe for concurrent class loading.
+ * <p>
+ * Phases of a class instrumentation:
+ * <ul>
+ *   <li><code>parse</code> - reading the class file</li>
+ *   <li><code>setup</code> - creating the chain of filters and instrumenters</li>
+ *   <li><code>visit</code> - the single pass of the filters, enumeration and instrumentation over the class</li>
+ *   <li><code>frames</code> - computation of frames and maximum stack sizes by the class writer</li>
+ *   <li><code>write</code> - building the resulting class file</li>
+ *   <li><code>total</code> - the whole transformation of an instrumented class, including the cached ones</li>
+ * </ul>
+ */
+public class TransformationMetrics {
+  public static final int PARSE = 0;
+  public static final int SETUP = 1;
+  public static final int VISIT = 2;
+  public static final int FRAMES = 3;
+  public static final int WRITE = 4;
+  public static final int TOTAL = 5;
+  private static final String[] PHASES = {"parse", "setup", "visit", "frames", "write", "total"};
+  private static final int SLOWEST_CLASSES = 20;
+
+  private final AtomicLong myTransformed = new AtomicLong();
+  private final AtomicLong myInstrumented = new AtomicLong();
+  private final AtomicLong myExcluded = new AtomicLong();
+  private final AtomicLong myFailed = new AtomicLong();
+  private final AtomicLong myFramesFallbacks = new AtomicLong();
+  private final AtomicLong myBytesIn = new AtomicLong();
+  private final AtomicLong myBytesOut = new AtomicLong();
+  private final Histogram[] myPhases = new Histogram[PHASES.length];
+  private final SlowestClasses mySlowest = new SlowestClasses(SLOWEST_CLASSES);
+
+  public TransformationMetrics() {
+    for (int i = 0; i < myPhases.length; i++) {
+      myPhases[i] = new Histogram();
+    }
+  }
+
+  /**
+   * @param className  class name as passed to the transformer
+   * @param bytes      original class file, may be null
+   * @param result     instrumented class file or null if the class has not been instrumented
+   * @param time       the transformation time in nanoseconds
+   */
+  void recordClass(String className, byte[] bytes, byte[] result, long time) {
+    myTransformed.incrementAndGet();
+    if (result == null) return;
+    myInstrumented.incrementAndGet();
+    final int bytesIn = bytes == null ? 0 : bytes.length;
+    myBytesIn.addAndGet(bytesIn);
+    myBytesOut.addAndGet(result.length);
+    myPhases[TOTAL].add(time);
+    mySlowest.offer(className, time, bytesIn, result.length);
+  }
+
+  void recordExcluded() {
+    myExcluded.incrementAndGet();
+  }
+
+  void recordFailed() {
+    myFailed.incrementAndGet();
+  }
+
+  void recordFramesFallback() {
+    myFramesFallbacks.incrementAndGet();
+  }
+
+  void recordPhases(Sample sample) {
+    for (int i = 0; i < TOTAL; i++) {
+      myPhases[i].add(sample.myTimes[i]);
+    }
+  }
+
+  public long getTransformedCount() {
+    return myTransformed.get();
+  }
+
+  public long getInstrumentedCount() {
+    return myInstrumented.get();
+  }
+
+  public long getExcludedCount() {
+    return myExcluded.get();
+  }
+
+  public long getFailedCount() {
+    return myFailed.get();
+  }
+
+  /**
+   * Classes that are neither instrumented, excluded nor failed: internal and already instrumented classes,
+   * classes not matching the include patterns and so on.
+   */
+  public long getSkippedCount() {
+    return Math.max(0, getTransformedCount() - getInstrumentedCount() - getExcludedCount() - getFailedCount());
+  }
+
+  public long getBytesIn() {
+    return myBytesIn.get();
+  }
+
+  public long getBytesOut() {
+    return myBytesOut.get();
+  }
+
+  public Histogram getPhase(int phase) {
+    return myPhases[phase];
+  }
+
+  /**
+   * @return names of the slowest instrumented classes, the slowest first
+   */
+  public List<String> getSlowestClasses() {
+    final List<String> result = new ArrayList<String>();
+    for (SlowClass slowClass : mySlowest.getSorted()) {
+      result.add(slowClass.myName);
+    }
+    return result;
+  }
+
+  /**
+   * Metrics file is placed next to the coverage report.
+   *
+   * @param format <code>csv</code> or <code>json</code>
+   */
+  public static File getMetricsFile(File dataFile, String format) {
+    return new File(dataFile.getPath() + ".metrics." + ("csv".equals(format) ? "csv" : "json"));
+  }
+
+  /**
+   * Save the metrics in CSV format if the file extension is <code>.csv</code>, and in JSON format otherwise.
+   */
+  public void save(File file) throws IOException {
+    final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+    try {
+      if (file.getName().endsWith(".csv")) {
+        writeCsv(writer);
+      } else {
+        writeJson(writer);
+      }
+    } finally {
+      CoverageIOUtil.close(writer);
+    }
+  }
+
+  /**
+   * Write the metrics as a JSON object. Times are in nanoseconds.
+   */
+  public void writeJson(Writer writer) throws IOException {
+    write(new JsonOutput(writer));
+    writer.write('\n');
+  }
+
+  /**
+   * Write the metrics as <code>key,value</code> lines, where the key is the path of the value in the JSON format.
+   */
+  public void writeCsv(Writer writer) throws IOException {
+    writer.write("key,value\n");
+    write(new CsvOutput(writer));
+  }
+
+  private void write(Output out) throws IOException {
+    out.begin(null, false);
+
+    out.begin("classes", false);
+    out.value("transformed", getTransformedCount());
+    out.value("instrumented", getInstrumentedCount());
+    out.value("skipped", getSkippedCount());
+    out.value("excluded", getExcludedCount());
+    out.value("failed", getFailedCount());
+    out.value("framesFallbacks", myFramesFallbacks.get());
+    out.end();
+
+    out.begin("bytes", false);
+    out.value("in", getBytesIn());
+    out.value("out", getBytesOut());
+    out.end();
+
+    out.begin("phases", false);
+    for (int i = 0; i < PHASES.length; i++) {
+      final Histogram histogram = myPhases[i];
+      out.begin(PHASES[i], false);
+      out.value("count", histogram.getCount());
+      out.value("totalNs", histogram.getTotal());
+      out.value("meanNs", histogram.getMean());
+      out.value("p50Ns", histogram.getPercentile(0.5));
+      out.value("p90Ns", histogram.getPercentile(0.9));
+      out.value("p99Ns", histogram.getPercentile(0.99));
+      out.value("maxNs", histogram.getMax());
+      out.end();
+    }
+    out.end();
+
+    out.begin("slowestClasses", true);
+    int i = 0;
+    for (SlowClass slowClass : mySlowest.getSorted()) {
+      out.begin(String.valueOf(++i), false);
+      out.value("name", slowClass.myName);
+      out.value("timeNs", slowClass.myTime);
+      out.value("bytesIn", slowClass.myBytesIn);
+      out.value("bytesOut", slowClass.myBytesOut);
+      out.end();
+    }
+    out.end();
+
+    out.end();
+  }
+
+  /**
+   * Phase times of a single class instrumentation. Not thread-safe, it is used by one transformation only.
+   */
+  static class Sample {
+    private final long[] myTimes = new long[TOTAL];
+    private long myStart = System.nanoTime();
+
+    /**
+     * Add the time since the end of the previous phase.
+     */
+    void endPhase(int phase) {
+      final long now = System.nanoTime();
+      myTimes[phase] += now - myStart;
+      myStart = now;
+    }
+
+    /**
+     * Account a part of the <code>from</code> phase time to the <code>to</code> phase.
+     */
+    void move(int from, int to, long time) {
+      myTimes[from] -= time;
+      myTimes[to] += time;
+    }
+  }
+
+  /**
+   * Log-linear histogram of non-negative values: values below 16 are exact,
+   * larger values are split into 8 buckets per power of two, so the relative error is below 12.5%.
+   */
+  public static class Histogram {
+    private static final int EXACT = 16;
+    private static final int SUB_BUCKETS_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKETS_BITS;
+    private static final int BUCKETS = EXACT + (63 - 4) * SUB_BUCKETS;
+
+    private final AtomicLongArray myBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong myCount = new AtomicLong();
+    private final AtomicLong myTotal = new AtomicLong();
+    private final AtomicLong myMax = new AtomicLong();
+
+    public void add(long value) {
+      if (value < 0) value = 0;
+      myBuckets.incrementAndGet(getBucket(value));
+      myCount.incrementAndGet();
+      myTotal.addAndGet(value);
+      long max = myMax.get();
+      while (value > max && !myMax.compareAndSet(max, value)) {
+        max = myMax.get();
+      }
+    }
+
+    public long getCount() {
+      return myCount.get();
+    }
+
+    public long getTotal() {
+      return myTotal.get();
+    }
+
+    public long getMax() {
+      return myMax.get();
+    }
+
+    public long getMean() {
+      final long count = getCount();
+      return count == 0 ? 0 : getTotal() / count;
+    }
+
+    /**
+     * @param fraction percentile in the <code>(0, 1]</code> range
+     * @return upper bound of the bucket containing the percentile, or 0 if there are no values
+     */
+    public long getPercentile(double fraction) {
+      final long count = getCount();
+      if (count == 0) return 0;
+      final long rank = Math.max(1, (long) Math.ceil(fraction * count));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += myBuckets.get(i);
+        if (seen >= rank) {
+          return Math.min(getUpperBound(i), getMax());
+        }
+      }
+      return getMax();
+    }
+
+    static int getBucket(long value) {
+      if (value < EXACT) return (int) value;
+      final int exponent = 63 - Long.numberOfLeadingZeros(value);
+      final int subBucket = (int) (value >>> (exponent - SUB_BUCKETS_BITS)) & (SUB_BUCKETS - 1);
+      return EXACT + (exponent - 4) * SUB_BUCKETS + subBucket;
+    }
+
+    static long getUpperBound(int bucket) {
+      if (bucket < EXACT) return bucket;
+      final int exponent = (bucket - EXACT) / SUB_BUCKETS + 4;
+      final int subBucket = (bucket - EXACT) % SUB_BUCKETS;
+      final int shift = exponent - SUB_BUCKETS_BITS;
+      return ((long) (SUB_BUCKETS + subBucket) << shift) + (1L << shift) - 1;
+    }
+  }
+
+  private static class SlowClass {
+    private final String myName;
+    private final long myTime;
+    private final int myBytesIn;
+    private final int myBytesOut;
+
+    private SlowClass(String name, long time, int bytesIn, int bytesOut) {
+      myName = name;
+      myTime = time;
+      myBytesIn = bytesIn;
+      myBytesOut = bytesOut;
+    }
+  }
+
+  private static class SlowestClasses {
+    private static final Comparator<SlowClass> BY_TIME = new Comparator<SlowClass>() {
+      public int compare(SlowClass o1, SlowClass o2) {
+        return o1.myTime < o2.myTime ? -1 : o1.myTime == o2.myTime ? 0 : 1;
+      }
+    };
+
+    private final int myLimit;
+    private final PriorityQueue<SlowClass> myQueue;
+    /**
+     * Time of the fastest kept class when the queue is full, checked without the lock.
+     */
+    private volatile long myThreshold = -1;
+
+    private SlowestClasses(int limit) {
+      myLimit = limit;
+      myQueue = new PriorityQueue<SlowClass>(limit + 1, BY_TIME);
+    }
+
+    void offer(String className, long time, int bytesIn, int bytesOut) {
+      if (time <= myThreshold) return;
+      final String name = className == null ? null : ClassNameUtil.convertToFQName(ClassNameUtil.removeClassSuffix(className));
+      synchronized (this) {
+        myQueue.add(new SlowClass(name, time, bytesIn, bytesOut));
+        if (myQueue.size() > myLimit) {
+          myQueue.poll();
+        }
+        if (myQueue.size() == myLimit) {
+          myThreshold = myQueue.peek().myTime;
+        }
+      }
+    }
+
+    synchronized List<SlowClass> getSorted() {
+      final List<SlowClass> result = new ArrayList<SlowClass>(myQueue);
+      Collections.sort(result, Collections.reverseOrder(BY_TIME));
+      return result;
+    }
+  }
+
+  private interface Output {
+    /**
+     * @param name  null for the root object
+     * @param array whether the children names are indices
+     */
+    void begin(String name, boolean array) throws IOException;
+
+    void end() throws IOException;
+
+    void value(String name, long value) throws IOException;
+
+    void value(String name, String value) throws IOException;
+  }
+
+  private static class JsonOutput implements Output {
+    private final Writer myWriter;
+    private final List<Boolean> myArrays = new ArrayList<Boolean>();
+    private boolean myFirst = true;
+
+    private JsonOutput(Writer writer) {
+      myWriter = writer;
+    }
+
+    public void begin(String name, boolean array) throws IOException {
+      writeName(name);
+      myWriter.write(array ? '[' : '{');
+      myArrays.add(array);
+      myFirst = true;
+    }
+
+    public void end() throws IOException {
+      myWriter.write(myArrays.remove(myArrays.size() - 1) ? ']' : '}');
+      myFirst = false;
+    }
+
+    public void value(String name, long value) throws IOException {
+      writeName(name);
+      myWriter.write(String.valueOf(value));
+    }
+
+    public void value(String name, String value) throws IOException {
+      writeName(name);
+      if (value == null) {
+        myWriter.write("null");
+      } else {
+        writeString(value);
+      }
+    }
+
+    private void writeName(String name) throws IOException {
+      if (!myFirst) myWriter.write(',');
+      myFirst = false;
+      if (myArrays.isEmpty() || myArrays.get(myArrays.size() - 1)) return;
+      writeString(name);
+      myWriter.write(':');
+    }
+
+    private void writeString(String value) throws IOException {
+      myWriter.write('"');
+      for (int i = 0; i < value.length(); i++) {
+        final char c = value.charAt(i);
+        if (c == '"' || c == '\\') {
+          myWriter.write('\\');
+          myWriter.write(c);
+        } else if (c < ' ') {
+          final String hex = Integer.toHexString(c);
+          myWriter.write("\\u0000", 0, 6 - hex.length());
+          myWriter.write(hex);
+        } else {
+          myWriter.write(c);
+        }
+      }
+      myWriter.write('"');
+    }
+  }
+
+  private static class CsvOutput implements Output {
+    private final Writer myWriter;
+    private final List<String> myPath = new ArrayList<String>();
+
+    private CsvOutput(Writer writer) {
+      myWriter = writer;
+    }
+
+    public void begin(String name, boolean array) {
+      if (name != null) myPath.add(name);
+    }
+
+    public void end() {
+      if (!myPath.isEmpty()) myPath.remove(myPath.size() - 1);
+    }
+
+    public void value(String name, long value) throws IOException {
+      writeKey(name);
+      myWriter.write(String.valueOf(value));
+      myWriter.write('\n');
+    }
+
+    public void value(String name, String value) throws IOException {
+      writeKey(name);
+      if (value != null) {
+        writeString(value);
+      }
+      myWriter.write('\n');
+    }
+
+    private void writeKey(String name) throws IOException {
+      for (String part : myPath) {
+        myWriter.write(part);
+        myWriter.write('.');
+      }
+      myWriter.write(name);
+      myWriter.write(',');
+    }
+
+    private void writeString(String value) throws IOException {
+      if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+        myWriter.write(value);
+        return;
+      }
+      myWriter.write('"');
+      myWriter.write(value.replace("\"", "\"\""));
+      myWriter.write('"');
+    }
+  }
+}
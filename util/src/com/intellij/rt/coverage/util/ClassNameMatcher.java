@@ -0,0 +1,329 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Compiled form of a list of class name patterns, equivalent to {@link ClassNameUtil#matchesPatterns(String, List)}.
+ * <p>
+ * Most patterns are derived from globs, e.g. <code>com\.example\..*(\$.*)?</code>. Such patterns are parsed into
+ * literal characters, any-character wildcards (unescaped <code>.</code>) and any-string wildcards (<code>.*</code>).
+ * Patterns without any-string wildcards or with the only one at the end are merged into a prefix trie,
+ * other parsed patterns are matched as globs, and the rest are matched as regular expressions
+ * after a check of their literal prefix.
+ * <p>
+ * Results are cached per class name, as the same names are checked repeatedly by the transformer and the report.
+ */
+public class ClassNameMatcher {
+  private static final int MAX_CACHE_SIZE = 1 << 16;
+  private static final char ANY_CHAR = 0;
+  private static final String INNER_CLASSES_SUFFIX = "(\\$.*)?";
+
+  private static final ClassNameMatcher EMPTY = new ClassNameMatcher(new ArrayList<Pattern>());
+
+  private final TrieNode myTrie = new TrieNode();
+  private final List<Glob> myGlobs = new ArrayList<Glob>();
+  private final List<Regexp> myRegexps = new ArrayList<Regexp>();
+  private final List<Pattern> myPatterns;
+  private final boolean myEmpty;
+  private final ConcurrentMap<String, Boolean> myCache = new ConcurrentHashMap<String, Boolean>();
+
+  private ClassNameMatcher(List<Pattern> patterns) {
+    myPatterns = new ArrayList<Pattern>(patterns);
+    for (Pattern pattern : patterns) {
+      add(pattern);
+    }
+    myEmpty = patterns.isEmpty();
+  }
+
+  /**
+   * @param patterns patterns to match, <code>null</code> is the same as an empty list
+   */
+  public static ClassNameMatcher create(List<Pattern> patterns) {
+    if (patterns == null || patterns.isEmpty()) return EMPTY;
+    return new ClassNameMatcher(patterns);
+  }
+
+  public boolean isEmpty() {
+    return myEmpty;
+  }
+
+  public boolean matches(String className) {
+    if (myEmpty) return false;
+    final Boolean cached = myCache.get(className);
+    if (cached != null) return cached;
+    final boolean result = matchesInternal(className);
+    if (myCache.size() >= MAX_CACHE_SIZE) {
+      myCache.clear();
+    }
+    myCache.put(className, result);
+    return result;
+  }
+
+  int getGlobsCount() {
+    return myGlobs.size();
+  }
+
+  int getRegexpsCount() {
+    return myRegexps.size();
+  }
+
+  private boolean matchesInternal(String className) {
+    // wildcards do not match line terminators, this is not expected in class names
+    if (hasLineTerminator(className)) return ClassNameUtil.matchesPatterns(className, myPatterns);
+    if (myTrie.matches(className, 0)) return true;
+    for (Glob glob : myGlobs) {
+      if (glob.matches(className)) return true;
+    }
+    for (Regexp regexp : myRegexps) {
+      if (regexp.matches(className)) return true;
+    }
+    return false;
+  }
+
+  private void add(Pattern pattern) {
+    String regex = pattern.pattern();
+    final List<String> segments = pattern.flags() == 0 ? parse(regex) : null;
+    if (segments == null) {
+      myRegexps.add(new Regexp(pattern, pattern.flags() == 0 ? getLiteralPrefix(regex) : ""));
+      return;
+    }
+    addSegments(segments);
+    // pattern(\$.*)? matches also inner classes of the pattern classes
+    if (regex.endsWith(INNER_CLASSES_SUFFIX)) {
+      final String last = segments.get(segments.size() - 1);
+      if (last.length() > 0) {
+        segments.set(segments.size() - 1, last + '$');
+        segments.add("");
+        addSegments(segments);
+      }
+    }
+  }
+
+  private void addSegments(List<String> segments) {
+    if (segments.size() == 1) {
+      myTrie.add(segments.get(0), false);
+    } else if (segments.size() == 2 && segments.get(1).length() == 0) {
+      myTrie.add(segments.get(0), true);
+    } else {
+      myGlobs.add(new Glob(segments.toArray(new String[0])));
+    }
+  }
+
+  /**
+   * Split a regular expression by <code>.*</code> wildcards.
+   * Unescaped <code>.</code> is replaced with {@link #ANY_CHAR}.
+   * A trailing <code>(\$.*)?</code> group is removed.
+   *
+   * @return literal segments or <code>null</code> if the expression contains other constructs
+   */
+  static List<String> parse(String regex) {
+    if (regex.endsWith(INNER_CLASSES_SUFFIX)) {
+      regex = regex.substring(0, regex.length() - INNER_CLASSES_SUFFIX.length());
+    }
+    final List<String> segments = new ArrayList<String>();
+    final StringBuilder segment = new StringBuilder();
+    for (int i = 0; i < regex.length(); i++) {
+      final char c = regex.charAt(i);
+      if (c == '\\') {
+        if (i + 1 == regex.length()) return null;
+        final char next = regex.charAt(++i);
+        // escaped letters and digits are character classes and other constructs
+        if (Character.isLetterOrDigit(next) || next == ANY_CHAR) return null;
+        segment.append(next);
+      } else if (c == '.') {
+        if (i + 1 < regex.length() && regex.charAt(i + 1) == '*') {
+          i++;
+          segments.add(segment.toString());
+          segment.setLength(0);
+        } else {
+          segment.append(ANY_CHAR);
+        }
+      } else if ("[](){}*+?|^$".indexOf(c) >= 0 || c == ANY_CHAR) {
+        return null;
+      } else {
+        segment.append(c);
+      }
+    }
+    segments.add(segment.toString());
+    return segments;
+  }
+
+  /**
+   * @return the string that all the matched strings start with, possibly empty
+   */
+  static String getLiteralPrefix(String regex) {
+    if (regex.indexOf('|') >= 0) return "";
+    final StringBuilder prefix = new StringBuilder();
+    for (int i = 0; i < regex.length(); i++) {
+      final char c = regex.charAt(i);
+      final int length = prefix.length();
+      if (c == '\\') {
+        if (i + 1 == regex.length()) break;
+        final char next = regex.charAt(++i);
+        if (Character.isLetterOrDigit(next)) break;
+        prefix.append(next);
+      } else if ("[](){}?*+|^$.".indexOf(c) >= 0) {
+        break;
+      } else {
+        prefix.append(c);
+      }
+      if (i + 1 < regex.length() && "?*{".indexOf(regex.charAt(i + 1)) >= 0) {
+        // the last character is optional
+        prefix.setLength(Character.isLowSurrogate(c) ? Math.max(0, length - 1) : length);
+        break;
+      }
+    }
+    return prefix.toString();
+  }
+
+  private static boolean charMatches(char patternChar, char c) {
+    return patternChar == c || patternChar == ANY_CHAR && !isLineTerminator(c);
+  }
+
+  private static boolean isLineTerminator(char c) {
+    return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+  }
+
+  private static boolean hasLineTerminator(String s) {
+    for (int i = 0; i < s.length(); i++) {
+      if (isLineTerminator(s.charAt(i))) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Prefix trie of the patterns without inner wildcards. A node accepts the string if the string ends at this node
+   * (<code>myExact</code>) or if any suffix is allowed (<code>myPrefix</code>).
+   */
+  private static class TrieNode {
+    private char[] myChars = new char[0];
+    private TrieNode[] myChildren = new TrieNode[0];
+    private boolean myExact;
+    private boolean myPrefix;
+
+    void add(String literal, boolean prefix) {
+      TrieNode node = this;
+      for (int i = 0; i < literal.length(); i++) {
+        node = node.getOrCreateChild(literal.charAt(i));
+      }
+      if (prefix) {
+        node.myPrefix = true;
+      } else {
+        node.myExact = true;
+      }
+    }
+
+    boolean matches(String s, int start) {
+      TrieNode node = this;
+      for (int i = start; i < s.length(); i++) {
+        if (node.myPrefix) return true;
+        final char c = s.charAt(i);
+        TrieNode next = null;
+        final char[] chars = node.myChars;
+        for (int j = 0; j < chars.length; j++) {
+          final char patternChar = chars[j];
+          if (patternChar == c) {
+            next = node.myChildren[j];
+          } else if (patternChar == ANY_CHAR && charMatches(patternChar, c)) {
+            // the rest of the string may match with either branch
+            if (node.myChildren[j].matches(s, i + 1)) return true;
+          }
+        }
+        if (next == null) return false;
+        node = next;
+      }
+      return node.myExact || node.myPrefix;
+    }
+
+    private TrieNode getOrCreateChild(char c) {
+      for (int i = 0; i < myChars.length; i++) {
+        if (myChars[i] == c) return myChildren[i];
+      }
+      final int size = myChars.length;
+      final char[] chars = new char[size + 1];
+      final TrieNode[] children = new TrieNode[size + 1];
+      System.arraycopy(myChars, 0, chars, 0, size);
+      System.arraycopy(myChildren, 0, children, 0, size);
+      chars[size] = c;
+      children[size] = new TrieNode();
+      myChars = chars;
+      myChildren = children;
+      return children[size];
+    }
+  }
+
+  private static class Regexp {
+    private final Pattern myPattern;
+    private final String myPrefix;
+
+    private Regexp(Pattern pattern, String prefix) {
+      myPattern = pattern;
+      myPrefix = prefix;
+    }
+
+    boolean matches(String s) {
+      return s.startsWith(myPrefix) && myPattern.matcher(s).matches();
+    }
+  }
+
+  /**
+   * Literal segments separated by any-string wildcards.
+   */
+  private static class Glob {
+    private final String[] mySegments;
+
+    private Glob(String[] segments) {
+      mySegments = segments;
+    }
+
+    boolean matches(String s) {
+      final String first = mySegments[0];
+      final String last = mySegments[mySegments.length - 1];
+      if (s.length() < first.length() + last.length()) return false;
+      if (!regionMatches(s, 0, first) || !regionMatches(s, s.length() - last.length(), last)) return false;
+      // the leftmost occurrence of each middle segment leaves the most space for the rest
+      int position = first.length();
+      final int end = s.length() - last.length();
+      for (int i = 1; i < mySegments.length - 1; i++) {
+        position = indexOf(s, mySegments[i], position, end);
+        if (position < 0) return false;
+        position += mySegments[i].length();
+      }
+      return true;
+    }
+
+    private static int indexOf(String s, String segment, int from, int end) {
+      for (int i = from; i + segment.length() <= end; i++) {
+        if (regionMatches(s, i, segment)) return i;
+      }
+      return -1;
+    }
+
+    private static boolean regionMatches(String s, int offset, String segment) {
+      for (int i = 0; i < segment.length(); i++) {
+        if (!charMatches(segment.charAt(i), s.charAt(offset + i))) return false;
+      }
+      return true;
+    }
+  }
+}
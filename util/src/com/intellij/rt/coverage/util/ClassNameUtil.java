@@ -31,6 +31,9 @@ public class ClassNameUtil {
     return className.substring(0, idx);
   }
 
+  /**
+   * Checks patterns one by one, use {@link ClassNameMatcher} for repeated checks against the same patterns.
+   */
   public static boolean matchesPatterns(String className, List<Pattern> patterns) {
     if (patterns == null) return false;
     for (Pattern excludePattern : patterns) {